@@ -0,0 +1,178 @@
+package org.cf.simplify;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.cf.smalivm.SmaliClassManager;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.iface.reference.Reference;
+import org.jf.dexlib2.util.ReferenceUtil;
+import org.jf.dexlib2.writer.builder.BuilderMethod;
+
+/**
+ * Static call graph between a set of methods, built from their invoke instructions. Virtual invocations are only
+ * linked to the referenced method since the actual target isn't known until execution.
+ *
+ * @author cfenton
+ */
+public class CallGraph {
+
+    private final List<String> methodDescriptors;
+    private final Map<String, Set<String>> callerToCallees;
+
+    public CallGraph(SmaliClassManager classManager, List<String> methodDescriptors) {
+        this.methodDescriptors = methodDescriptors;
+        callerToCallees = new HashMap<String, Set<String>>();
+        Set<String> includedMethods = new HashSet<String>(methodDescriptors);
+        for (String methodDescriptor : methodDescriptors) {
+            Set<String> callees = new LinkedHashSet<String>();
+            if (classManager.methodHasImplementation(methodDescriptor)) {
+                BuilderMethod method = classManager.getMethod(methodDescriptor);
+                synchronized (method) {
+                    for (Instruction instruction : method.getImplementation().getInstructions()) {
+                        if (!(instruction instanceof ReferenceInstruction)) {
+                            continue;
+                        }
+
+                        Reference reference = ((ReferenceInstruction) instruction).getReference();
+                        if (!(reference instanceof MethodReference)) {
+                            continue;
+                        }
+
+                        String callee = ReferenceUtil.getMethodDescriptor((MethodReference) reference);
+                        if (includedMethods.contains(callee)) {
+                            callees.add(callee);
+                        }
+                    }
+                }
+            }
+            callerToCallees.put(methodDescriptor, callees);
+        }
+    }
+
+    public Set<String> getCallees(String methodDescriptor) {
+        return Collections.unmodifiableSet(callerToCallees.get(methodDescriptor));
+    }
+
+    /**
+     * Find strongly connected components, i.e. groups of mutually recursive methods, with Tarjan's algorithm. The
+     * depth first search keeps its own stack so long call chains can't overflow the thread's stack.
+     *
+     * @return components ordered so that each comes after every component it calls
+     */
+    public List<List<String>> getStronglyConnectedComponents() {
+        List<List<String>> components = new ArrayList<List<String>>();
+        Map<String, Integer> methodToIndex = new HashMap<String, Integer>();
+        Map<String, Integer> methodToLowLink = new HashMap<String, Integer>();
+        Deque<String> componentStack = new ArrayDeque<String>();
+        Set<String> onComponentStack = new HashSet<String>();
+        Deque<String> searchStack = new ArrayDeque<String>();
+        Deque<Iterator<String>> calleeIterators = new ArrayDeque<Iterator<String>>();
+
+        for (String root : methodDescriptors) {
+            if (methodToIndex.containsKey(root)) {
+                continue;
+            }
+
+            String methodDescriptor = root;
+            while (methodDescriptor != null) {
+                if (!methodToIndex.containsKey(methodDescriptor)) {
+                    // First visit
+                    int index = methodToIndex.size();
+                    methodToIndex.put(methodDescriptor, index);
+                    methodToLowLink.put(methodDescriptor, index);
+                    componentStack.push(methodDescriptor);
+                    onComponentStack.add(methodDescriptor);
+                    searchStack.push(methodDescriptor);
+                    calleeIterators.push(callerToCallees.get(methodDescriptor).iterator());
+                }
+
+                methodDescriptor = searchStack.peek();
+                Iterator<String> it = calleeIterators.peek();
+                if (it.hasNext()) {
+                    String callee = it.next();
+                    if (!methodToIndex.containsKey(callee)) {
+                        methodDescriptor = callee;
+                    } else if (onComponentStack.contains(callee)) {
+                        lowerLowLink(methodToLowLink, methodDescriptor, methodToIndex.get(callee));
+                    }
+                    continue;
+                }
+
+                // All callees are done
+                searchStack.pop();
+                calleeIterators.pop();
+                if (methodToLowLink.get(methodDescriptor).equals(methodToIndex.get(methodDescriptor))) {
+                    List<String> component = new ArrayList<String>();
+                    String member;
+                    do {
+                        member = componentStack.pop();
+                        onComponentStack.remove(member);
+                        component.add(member);
+                    } while (!member.equals(methodDescriptor));
+                    Collections.reverse(component);
+                    components.add(component);
+                }
+
+                String caller = searchStack.peek();
+                if (caller != null) {
+                    lowerLowLink(methodToLowLink, caller, methodToLowLink.get(methodDescriptor));
+                }
+                methodDescriptor = caller;
+            }
+        }
+
+        return components;
+    }
+
+    /**
+     * Group methods into waves where each wave only calls methods in earlier waves or in its own strongly connected
+     * components. Components of the same wave don't call each other, so they may be processed in any order.
+     *
+     * @return methods in bottom-up waves, starting with methods which call none of the others
+     */
+    public List<List<String>> getBottomUpWaves() {
+        List<List<String>> waves = new ArrayList<List<String>>();
+        Map<String, Integer> methodToWave = new HashMap<String, Integer>();
+        for (List<String> component : getStronglyConnectedComponents()) {
+            int wave = 0;
+            for (String member : component) {
+                for (String callee : callerToCallees.get(member)) {
+                    Integer calleeWave = methodToWave.get(callee);
+                    // Callee is either in an earlier component, or this one
+                    if (calleeWave != null) {
+                        wave = Math.max(wave, calleeWave + 1);
+                    }
+                }
+            }
+
+            if (wave == waves.size()) {
+                waves.add(new ArrayList<String>());
+            }
+            waves.get(wave).addAll(component);
+            for (String member : component) {
+                methodToWave.put(member, wave);
+            }
+        }
+
+        return waves;
+    }
+
+    private static void lowerLowLink(Map<String, Integer> methodToLowLink, String methodDescriptor, int lowLink) {
+        if (lowLink < methodToLowLink.get(methodDescriptor)) {
+            methodToLowLink.put(methodDescriptor, lowLink);
+        }
+    }
+
+}
@@ -148,7 +148,10 @@ public class ConstantBuilder implements Dependancy {
         } else if (type.equals("D")) {
             result = buildConstant((Double) value, register);
         } else if (type.equals("Ljava/lang/String;")) {
-            BuilderStringReference stringRef = dexBuilder.internStringReference(value.toString());
+            BuilderStringReference stringRef;
+            synchronized (dexBuilder) {
+                stringRef = dexBuilder.internStringReference(value.toString());
+            }
             result = new BuilderInstruction21c(Opcode.CONST_STRING, register, stringRef);
         } else if (type.equals("Ljava/lang/Class;")) {
             String className;
@@ -158,7 +161,10 @@ public class ConstantBuilder implements Dependancy {
                 Class<?> klazz = (Class<?>) value;
                 className = SmaliClassUtils.javaClassToSmali(klazz);
             }
-            BuilderTypeReference typeRef = dexBuilder.internTypeReference(className);
+            BuilderTypeReference typeRef;
+            synchronized (dexBuilder) {
+                typeRef = dexBuilder.internTypeReference(className);
+            }
             result = new BuilderInstruction21c(Opcode.CONST_CLASS, register, typeRef);
         } else {
             if (log.isWarnEnabled()) {
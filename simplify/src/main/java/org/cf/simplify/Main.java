@@ -1,14 +1,26 @@
 package org.cf.simplify;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
+import org.cf.smalivm.ExecutionBudget;
+import org.cf.smalivm.PureCallCache;
 import org.cf.smalivm.SmaliClassManager;
 import org.cf.smalivm.VirtualMachine;
 import org.cf.smalivm.context.ExecutionGraph;
+import org.jf.dexlib2.builder.MutableMethodImplementation;
 import org.jf.dexlib2.writer.builder.BuilderMethod;
 import org.jf.dexlib2.writer.builder.DexBuilder;
 import org.jf.dexlib2.writer.io.FileDataStore;
@@ -24,8 +36,10 @@ public class Main {
 
     private static final Pattern SUPPORT_LIBRARY_PATTERN = Pattern.compile("Landroid/support/(annotation|v\\d{1,2})/");
 
+    private static final long MEGABYTE = 1024 * 1024;
+
     public static void main(String[] args) throws Exception {
-        OptionBean bean = new OptionBean();
+        final OptionBean bean = new OptionBean();
         CmdLineParser parser = new CmdLineParser(bean);
         parser.parseArgument(args);
         if (bean.isHelp()) {
@@ -33,6 +47,13 @@ public class Main {
             System.exit(0);
         }
 
+        if (((bean.getMaxMethodHeapMegabytes() > 0) || (bean.getMaxRunHeapMegabytes() > 0))
+                        && ((bean.getThreads() > 1) || (bean.getExecutorThreads() > 1))) {
+            System.err.println("Heap limits only work with one thread and one executor thread");
+            parser.printUsage(System.err);
+            System.exit(1);
+        }
+
         setLogLevel(bean);
         if (log.isInfoEnabled()) {
             log.info("Options:\n" + bean.toString());
@@ -40,43 +61,87 @@ public class Main {
 
         long startTime = System.currentTimeMillis();
 
-        DexBuilder dexBuilder = DexBuilder.makeDexBuilder(bean.getOutputAPILevel());
-        SmaliClassManager classManager = new SmaliClassManager(bean.getInFile(), dexBuilder);
-        VirtualMachine vm = new VirtualMachine(classManager, bean.getMaxAddressVisits(), bean.getMaxCallDepth(),
-                        bean.getMaxMethodVisits());
+        final DexBuilder dexBuilder = DexBuilder.makeDexBuilder(bean.getOutputAPILevel());
+        final SmaliClassManager classManager = new SmaliClassManager(bean.getInFile(), dexBuilder);
+        final ExecutionBudget executionBudget = new ExecutionBudget(bean.getMaxMethodSeconds() * 1000L,
+                        bean.getMaxMethodHeapMegabytes() * MEGABYTE, bean.getMaxRunSeconds() * 1000L,
+                        bean.getMaxRunHeapMegabytes() * MEGABYTE);
+        final PureCallCache pureCallCache = loadPureCallCache(bean.getPureCallCacheFile(), classManager);
+        final VirtualMachine.Options vmOptions = new VirtualMachine.Options()
+                        .setMaxAddressVisits(bean.getMaxAddressVisits()).setMaxCallDepth(bean.getMaxCallDepth())
+                        .setMaxMethodVisits(bean.getMaxMethodVisits()).setExecutorThreads(bean.getExecutorThreads())
+                        .setLoopWideningThreshold(bean.getLoopWideningThreshold()).setExecutionBudget(executionBudget)
+                        .setCompileThreshold(bean.getCompileThreshold()).setPureCallCache(pureCallCache);
+        // Executors keep per-method state and optimizers edit ops, so each thread needs its own virtual machine
+        final List<VirtualMachine> vms = Collections.synchronizedList(new ArrayList<VirtualMachine>());
+        final ThreadLocal<VirtualMachine> threadVM = new ThreadLocal<VirtualMachine>() {
+            @Override
+            protected VirtualMachine initialValue() {
+                VirtualMachine vm = new VirtualMachine(classManager, vmOptions);
+                vms.add(vm);
+
+                return vm;
+            }
+        };
 
         Set<String> classNames = classManager.getNonFrameworkClassNames();
+        // All input classes must be loaded to be included in the output
+        classManager.loadClasses(classNames, bean.getLoadThreads());
+
+        List<String> allMethodDescriptors = new ArrayList<String>();
         for (String className : classNames) {
             Set<String> methodDescriptors = classManager.getMethodDescriptors(className);
             filterMethods(methodDescriptors, bean.getIncludeFilter(), bean.getExcludeFilter());
             if (!bean.includeSupportLibrary()) {
                 filterSupportLibrary(methodDescriptors);
             }
+            allMethodDescriptors.addAll(methodDescriptors);
+        }
 
-            for (String methodDescriptor : methodDescriptors) {
-                boolean reExecute = false;
-                do {
-                    System.out.println("Executing: " + methodDescriptor);
-                    ExecutionGraph graph = vm.execute(methodDescriptor);
-                    if (null == graph) {
-                        System.out.println("Skipping " + methodDescriptor);
-                        break;
+        /*
+         * Methods are simplified bottom-up in waves of the call graph so that callees are simplified before their
+         * callers execute them. Each method is simplified on a private copy of its implementation, and copies are only
+         * set on the methods after every method of the wave is done. This way, the output doesn't depend on the order
+         * methods within a wave are simplified or the number of threads. Summaries of earlier calls are charged the
+         * visits and call depth of the executions they stand in for, so visit and depth limits are reached the same
+         * way on any thread. Time and heap budgets, and compiled methods, which aren't limited by address visits, are
+         * the exceptions: with those, output may differ once a limit is reached.
+         */
+        List<List<String>> waves = new CallGraph(classManager, allMethodDescriptors).getBottomUpWaves();
+        if (log.isInfoEnabled()) {
+            log.info("Simplifying " + allMethodDescriptors.size() + " methods in " + waves.size() + " waves");
+        }
+        ExecutorService executor = bean.getThreads() < 2 ? null : Executors.newFixedThreadPool(bean.getThreads());
+        try {
+            for (List<String> wave : waves) {
+                List<MutableMethodImplementation> implementations = simplifyMethods(wave, threadVM, executor,
+                                dexBuilder, bean.getMaxOptimizationPasses());
+                for (int i = 0; i < wave.size(); i++) {
+                    MutableMethodImplementation implementation = implementations.get(i);
+                    if (null == implementation) {
+                        continue;
                     }
 
-                    BuilderMethod method = classManager.getMethod(methodDescriptor);
-                    Optimizer opt = new Optimizer(graph, method, vm, dexBuilder);
-                    opt.simplify(bean.getMaxOptimizationPasses());
-                    if (opt.madeChanges()) {
-                        // Optimizer changed the implementation. Re-build graph to include changes.
-                        vm.updateInstructionGraph(methodDescriptor);
+                    String methodDescriptor = wave.get(i);
+                    classManager.setImplementation(methodDescriptor, implementation);
+                    // Templates built by callers or class initializers are of the original implementation
+                    synchronized (vms) {
+                        for (VirtualMachine vm : vms) {
+                            vm.removeInstructionGraph(methodDescriptor);
+                        }
                     }
-                    System.out.println(opt.getOptimizationCounts());
-
-                    reExecute = opt.reExecute();
-                } while (reExecute);
+                }
+            }
+        } finally {
+            if (null != executor) {
+                executor.shutdown();
             }
         }
 
+        if (null != pureCallCache) {
+            savePureCallCache(pureCallCache, bean.getPureCallCacheFile());
+        }
+
         long totalTime = System.currentTimeMillis() - startTime;
         System.out.println("Simplified " + classNames.size() + " classes in " + totalTime + " ms.");
         System.out.println(Optimizer.getTotalOptimizationCounts());
@@ -86,6 +151,135 @@ public class Main {
         dexBuilder.writeTo(new FileDataStore(outFile));
     }
 
+    private static PureCallCache loadPureCallCache(File file, SmaliClassManager classManager) {
+        if (null == file) {
+            return null;
+        }
+
+        PureCallCache pureCallCache = new PureCallCache(classManager);
+        if (file.exists()) {
+            try {
+                pureCallCache.load(file);
+                if (log.isInfoEnabled()) {
+                    log.info("Loaded " + pureCallCache.size() + " pure call results from " + file);
+                }
+            } catch (IOException e) {
+                if (log.isWarnEnabled()) {
+                    log.warn("Unable to load pure call results from " + file + ", starting without them", e);
+                }
+                pureCallCache = new PureCallCache(classManager);
+            }
+        }
+
+        return pureCallCache;
+    }
+
+    private static void savePureCallCache(PureCallCache pureCallCache, File file) {
+        try {
+            pureCallCache.save(file);
+            if (log.isInfoEnabled()) {
+                log.info("Saved " + pureCallCache.size() + " pure call results to " + file);
+            }
+        } catch (IOException e) {
+            if (log.isWarnEnabled()) {
+                log.warn("Unable to save pure call results to " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Simplify methods with the executor, or on the calling thread if there is none.
+     *
+     * @return optimized implementation of each method, or null if the method wasn't changed
+     */
+    private static List<MutableMethodImplementation> simplifyMethods(List<String> methodDescriptors,
+                    final ThreadLocal<VirtualMachine> threadVM, ExecutorService executor, final DexBuilder dexBuilder,
+                    final int maxOptimizationPasses) throws InterruptedException, ExecutionException {
+        List<MutableMethodImplementation> implementations = new ArrayList<MutableMethodImplementation>();
+        if (null == executor) {
+            for (String methodDescriptor : methodDescriptors) {
+                implementations.add(simplifyMethod(threadVM.get(), methodDescriptor, dexBuilder,
+                                maxOptimizationPasses));
+            }
+
+            return implementations;
+        }
+
+        List<Callable<MutableMethodImplementation>> tasks = new ArrayList<Callable<MutableMethodImplementation>>();
+        for (final String methodDescriptor : methodDescriptors) {
+            tasks.add(new Callable<MutableMethodImplementation>() {
+                @Override
+                public MutableMethodImplementation call() {
+                    return simplifyMethod(threadVM.get(), methodDescriptor, dexBuilder, maxOptimizationPasses);
+                }
+            });
+        }
+        for (Future<MutableMethodImplementation> future : executor.invokeAll(tasks)) {
+            implementations.add(future.get());
+        }
+
+        return implementations;
+    }
+
+    /**
+     * Execute and optimize a copy of the method's implementation until no more changes are made.
+     *
+     * @param vm
+     *            virtual machine owned by the calling thread
+     * @param methodDescriptor
+     * @param dexBuilder
+     * @param maxOptimizationPasses
+     * @return optimized implementation, or null if the method wasn't changed
+     */
+    private static MutableMethodImplementation simplifyMethod(VirtualMachine vm, String methodDescriptor,
+                    DexBuilder dexBuilder, int maxOptimizationPasses) {
+        SmaliClassManager classManager = vm.getClassManager();
+        if (!classManager.methodHasImplementation(methodDescriptor)) {
+            System.out.println("Skipping " + methodDescriptor);
+            return null;
+        }
+        if (vm.getExecutionBudget().isRunExhausted()) {
+            System.out.println("Skipping " + methodDescriptor + ", run budget exhausted");
+            return null;
+        }
+
+        BuilderMethod method = classManager.getMethod(methodDescriptor);
+        MutableMethodImplementation implementation;
+        synchronized (method) {
+            implementation = new MutableMethodImplementation(method.getImplementation());
+        }
+        vm.updateInstructionGraph(methodDescriptor, implementation);
+
+        boolean madeChanges = false;
+        try {
+            boolean reExecute = false;
+            do {
+                System.out.println("Executing: " + methodDescriptor);
+                ExecutionGraph graph = vm.execute(methodDescriptor);
+                if (null == graph) {
+                    System.out.println("Skipping " + methodDescriptor);
+                    break;
+                }
+
+                Optimizer opt = new Optimizer(graph, method, implementation, vm, dexBuilder);
+                opt.simplify(maxOptimizationPasses);
+                if (opt.madeChanges()) {
+                    // Optimizer changed the implementation. Re-build graph to include changes.
+                    vm.updateInstructionGraph(methodDescriptor, implementation);
+                    madeChanges = true;
+                }
+                System.out.println(opt.getOptimizationCounts());
+
+                reExecute = opt.reExecute();
+            } while (reExecute);
+        } finally {
+            // Callers of this method should see the original implementation until all methods are done
+            vm.removeInstructionGraph(methodDescriptor);
+        }
+
+        return madeChanges ? implementation : null;
+    }
+
     private static void filterMethods(Collection<String> methodDescriptors, Pattern positive, Pattern negative) {
         for (Iterator<String> it = methodDescriptors.iterator(); it.hasNext();) {
             String name = it.next();
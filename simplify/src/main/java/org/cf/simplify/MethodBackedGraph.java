@@ -11,8 +11,10 @@ import gnu.trove.set.hash.TIntHashSet;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -83,12 +85,26 @@ public class MethodBackedGraph extends ExecutionGraph {
     private final VirtualMachine vm;
 
     public MethodBackedGraph(ExecutionGraph graph, BuilderMethod method, VirtualMachine vm, DexBuilder dexBuilder) {
+        this(graph, method, (MutableMethodImplementation) method.getImplementation(), vm, dexBuilder);
+    }
+
+    /**
+     *
+     * @param graph
+     * @param method
+     * @param implementation
+     *            implementation to modify instead of the method's, e.g. a private copy
+     * @param vm
+     * @param dexBuilder
+     */
+    public MethodBackedGraph(ExecutionGraph graph, BuilderMethod method, MutableMethodImplementation implementation,
+                    VirtualMachine vm, DexBuilder dexBuilder) {
         super(graph, true);
 
         this.dexBuilder = dexBuilder;
         this.method = method;
         this.methodDescriptor = ReferenceUtil.getMethodDescriptor(method);
-        implementation = (MutableMethodImplementation) method.getImplementation();
+        this.implementation = implementation;
         addressToInstruction = buildAddressToInstruction(implementation.getInstructions());
         this.vm = vm;
         opFactory = new OpFactory(vm);
@@ -106,6 +122,10 @@ public class MethodBackedGraph extends ExecutionGraph {
         return addressToInstruction.get(address);
     }
 
+    public MutableMethodImplementation getImplementation() {
+        return implementation;
+    }
+
     public VirtualMachine getVM() {
         return vm;
     }
@@ -405,7 +425,13 @@ public class MethodBackedGraph extends ExecutionGraph {
         }
         TIntSet registersRead = new TIntHashSet();
         TIntSet registersAssigned = new TIntHashSet();
+        // Merged nodes share children, so a node may be reached more than once
+        Set<ExecutionNode> visited = Collections.newSetFromMap(new IdentityHashMap<ExecutionNode, Boolean>());
         while ((node = stack.poll()) != null) {
+            if (!visited.add(node)) {
+                continue;
+            }
+
             MethodState mState = node.getContext().getMethodState();
             for (int register : registers) {
                 if (registersRead.contains(register) || registersAssigned.contains(register)) {
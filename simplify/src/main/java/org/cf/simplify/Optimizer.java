@@ -14,6 +14,7 @@ import org.cf.simplify.strategy.PeepholeStrategy;
 import org.cf.simplify.strategy.ReflectionRemovalStrategy;
 import org.cf.smalivm.VirtualMachine;
 import org.cf.smalivm.context.ExecutionGraph;
+import org.jf.dexlib2.builder.MutableMethodImplementation;
 import org.jf.dexlib2.util.ReferenceUtil;
 import org.jf.dexlib2.writer.builder.BuilderMethod;
 import org.jf.dexlib2.writer.builder.DexBuilder;
@@ -39,8 +40,15 @@ public class Optimizer {
     private Map<String, Integer> optimizationCounts;
 
     public Optimizer(ExecutionGraph graph, BuilderMethod method, VirtualMachine vm, DexBuilder dexBuilder) {
+        this(graph, method, (MutableMethodImplementation) method.getImplementation(), vm, dexBuilder);
+    }
+
+    public Optimizer(ExecutionGraph graph, BuilderMethod method, MutableMethodImplementation implementation,
+                    VirtualMachine vm, DexBuilder dexBuilder) {
         methodDescriptor = ReferenceUtil.getMethodDescriptor(method);
-        mbgraph = new MethodBackedGraph(graph, method, vm, dexBuilder);
+        // Execution is done, so free what optimizations don't need before they start
+        graph.compact();
+        mbgraph = new MethodBackedGraph(graph, method, implementation, vm, dexBuilder);
         performOnceStrategies = new LinkedList<OptimizationStrategy>();
         performOnceStrategies.add(new ConstantPropigationStrategy(mbgraph));
         performOnceStrategies.add(new PeepholeStrategy(mbgraph));
@@ -100,16 +108,19 @@ public class Optimizer {
                 if (null == currentCount) {
                     currentCount = 0;
                 }
-                Integer totalCount = totalOptimizationCounts.get(key);
-                if (null == totalCount) {
-                    totalCount = 0;
-                }
 
                 int count = optimizations.get(key);
                 currentCount += count;
                 optimizationCounts.put(key, currentCount);
-                totalCount += count;
-                totalOptimizationCounts.put(key, totalCount);
+                // Optimizers may run on several threads
+                synchronized (totalOptimizationCounts) {
+                    Integer totalCount = totalOptimizationCounts.get(key);
+                    if (null == totalCount) {
+                        totalCount = 0;
+                    }
+                    totalCount += count;
+                    totalOptimizationCounts.put(key, totalCount);
+                }
 
                 sweepCount += count;
             }
@@ -135,11 +146,13 @@ public class Optimizer {
 
     public static String getTotalOptimizationCounts() {
         StringBuilder sb = new StringBuilder("Total optimizations: ");
-        Set<String> keySet = totalOptimizationCounts.keySet();
-        String[] keys = keySet.toArray(new String[keySet.size()]);
-        Arrays.sort(keys);
-        for (String key : keys) {
-            sb.append(key).append('=').append(totalOptimizationCounts.get(key)).append(", ");
+        synchronized (totalOptimizationCounts) {
+            Set<String> keySet = totalOptimizationCounts.keySet();
+            String[] keys = keySet.toArray(new String[keySet.size()]);
+            Arrays.sort(keys);
+            for (String key : keys) {
+                sb.append(key).append('=').append(totalOptimizationCounts.get(key)).append(", ");
+            }
         }
         if (sb.length() > "Total optimizations: ".length()) {
             sb.setLength(sb.length() - 2);
@@ -31,12 +31,33 @@ public class OptionBean implements Serializable {
     @Option(name = "--max-method-visits", usage = "Maximum visits over all addresses in method. Higher for longer methods + loops.")
     private int maxMethodVisits = maxAddressVisits * 200;
 
+    @Option(name = "--loop-widening", usage = "Make values unknown after this many iterations of a loop which may not end, instead of exceeding max address visits. 0 disables.")
+    private int loopWideningThreshold = 0;
+
+    @Option(name = "--compile-threshold", usage = "Compile invoked methods to JVM bytecode after executing them with known arguments this many times. Only simple int and array methods can be compiled. 0 disables.")
+    private int compileThreshold = 0;
+
+    @Option(name = "--max-method-time", usage = "Give up on a method after executing it for this many seconds. 0 for no limit.")
+    private int maxMethodSeconds = 0;
+
+    @Option(name = "--max-method-heap", usage = "Give up on a method after it allocates this many MB. Needs one thread. 0 for no limit.")
+    private int maxMethodHeapMegabytes = 0;
+
+    @Option(name = "--max-run-time", usage = "Stop executing methods after this many seconds and write what's done. 0 for no limit.")
+    private int maxRunSeconds = 0;
+
+    @Option(name = "--max-run-heap", usage = "Stop executing methods after this many MB are allocated and write what's done. Needs one thread. 0 for no limit.")
+    private int maxRunHeapMegabytes = 0;
+
     @Option(name = "--max-passes", usage = "Limit optimization passes.")
     private int maxOptimizationPasses = 100;
 
     @Option(name = "-o", aliases = { "--output" }, metaVar = "output", handler = FileOptionHandler.class, usage = "Output DEX file, default is <infile>_simple.dex")
     private File outFile;
 
+    @Option(name = "--pure-call-cache", metaVar = "file", handler = FileOptionHandler.class, usage = "Reuse results of pure method calls saved in this file by earlier runs, and save new ones to it.")
+    private File pureCallCacheFile;
+
     @Option(name = "--output-api-level", usage = "Output DEX API compatibility level.")
     private int outputAPILevel = 15;
 
@@ -55,8 +76,25 @@ public class OptionBean implements Serializable {
     @Option(name = "--include-support", usage = "Include support library package path")
     private boolean includeSupportLibrary;
 
+    @Option(name = "--load-threads", usage = "Threads used to load input classes before simplifying.")
+    private int loadThreads = Runtime.getRuntime().availableProcessors();
+
+    @Option(name = "--executor-threads", usage = "Threads used to explore independent paths of each method. Helps with huge methods.")
+    private int executorThreads = 1;
+
+    @Option(name = "--threads", usage = "Threads used to simplify methods. Output is the same for any number of threads, including the default of one. Simplified methods are only executed by callers in later call graph waves, so output may differ from earlier versions, which used each simplified method right away.")
+    private int threads = 1;
+
     private File inFile;
 
+    public int getCompileThreshold() {
+        return compileThreshold;
+    }
+
+    public int getExecutorThreads() {
+        return executorThreads;
+    }
+
     public Pattern getExcludeFilter() {
         return excludeFilter;
     }
@@ -69,6 +107,14 @@ public class OptionBean implements Serializable {
         return inFile;
     }
 
+    public int getLoadThreads() {
+        return loadThreads;
+    }
+
+    public int getLoopWideningThreshold() {
+        return loopWideningThreshold;
+    }
+
     public int getMaxAddressVisits() {
         return maxAddressVisits;
     }
@@ -77,6 +123,14 @@ public class OptionBean implements Serializable {
         return maxCallDepth;
     }
 
+    public int getMaxMethodHeapMegabytes() {
+        return maxMethodHeapMegabytes;
+    }
+
+    public int getMaxMethodSeconds() {
+        return maxMethodSeconds;
+    }
+
     public int getMaxMethodVisits() {
         return maxMethodVisits;
     }
@@ -85,14 +139,30 @@ public class OptionBean implements Serializable {
         return maxOptimizationPasses;
     }
 
+    public int getMaxRunHeapMegabytes() {
+        return maxRunHeapMegabytes;
+    }
+
+    public int getMaxRunSeconds() {
+        return maxRunSeconds;
+    }
+
     public File getOutFile() {
         return outFile;
     }
 
+    public File getPureCallCacheFile() {
+        return pureCallCacheFile;
+    }
+
     public int getOutputAPILevel() {
         return outputAPILevel;
     }
 
+    public int getThreads() {
+        return threads;
+    }
+
     public boolean includeSupportLibrary() {
         return includeSupportLibrary;
     }
@@ -117,7 +187,7 @@ public class OptionBean implements Serializable {
         return vvverbose;
     }
 
-    @Option(name = "-i", aliases = { "--input" }, metaVar = "input", handler = FileOptionHandler.class, usage = "Input SMALI file or folder", required = true)
+    @Option(name = "-i", aliases = { "--input" }, metaVar = "input", handler = FileOptionHandler.class, usage = "Input Smali file or folder, DEX, or APK", required = true)
     private void setInFile(File inFile) {
         this.inFile = inFile;
 
@@ -130,11 +200,21 @@ public class OptionBean implements Serializable {
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append("Include support library: ").append(includeSupportLibrary).append('\n');
+        sb.append("Compile threshold: ").append(getCompileThreshold()).append('\n');
+        sb.append("Executor threads: ").append(getExecutorThreads()).append('\n');
+        sb.append("Load threads: ").append(getLoadThreads()).append('\n');
+        sb.append("Loop widening threshold: ").append(getLoopWideningThreshold()).append('\n');
         sb.append("Max address visits: ").append(getMaxAddressVisits()).append('\n');
         sb.append("Max call depth: ").append(getMaxCallDepth()).append('\n');
         sb.append("Max method visits: ").append(getMaxMethodVisits()).append('\n');
+        sb.append("Pure call cache: ").append(getPureCallCacheFile()).append('\n');
+        sb.append("Max method time: ").append(getMaxMethodSeconds()).append('\n');
+        sb.append("Max method heap: ").append(getMaxMethodHeapMegabytes()).append('\n');
+        sb.append("Max run time: ").append(getMaxRunSeconds()).append('\n');
+        sb.append("Max run heap: ").append(getMaxRunHeapMegabytes()).append('\n');
         sb.append("Max optimization passes: ").append(getMaxOptimizationPasses()).append('\n');
         sb.append("Output API level: ").append(getOutputAPILevel()).append('\n');
+        sb.append("Threads: ").append(getThreads()).append('\n');
         sb.append("Exclude filter: ").append(getExcludeFilter()).append('\n');
         sb.append("Include filter: ").append(getIncludeFilter()).append('\n');
         sb.append("Input file: ").append(getInFile()).append('\n');
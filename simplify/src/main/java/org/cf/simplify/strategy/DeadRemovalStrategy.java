@@ -6,10 +6,13 @@ import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 
 import java.util.ArrayDeque;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.cf.simplify.MethodBackedGraph;
 import org.cf.smalivm.SideEffect;
@@ -39,7 +42,12 @@ public class DeadRemovalStrategy implements OptimizationStrategy {
         ExecutionNode node;
         int[] registers = registerSet.toArray();
         TIntSet reassigned = new TIntHashSet();
+        // Merged nodes share children, so a node may be reached more than once
+        Set<ExecutionNode> visited = Collections.newSetFromMap(new IdentityHashMap<ExecutionNode, Boolean>());
         while ((node = stack.poll()) != null) {
+            if (!visited.add(node)) {
+                continue;
+            }
             MethodState mState = node.getContext().getMethodState();
             for (int register : registers) {
                 if (reassigned.contains(register)) {
@@ -174,7 +182,7 @@ public class DeadRemovalStrategy implements OptimizationStrategy {
         }
 
         Op op = mbgraph.getOp(address);
-        if (op.sideEffectLevel() != SideEffect.Level.NONE) {
+        if (mbgraph.getHighestSideEffectLevel(address) != SideEffect.Level.NONE) {
             // Could have modified class state
             return false;
         }
@@ -225,7 +233,7 @@ public class DeadRemovalStrategy implements OptimizationStrategy {
             log.debug("Results usage test @" + address + " for: " + op);
         }
 
-        if (op.sideEffectLevel() != SideEffect.Level.NONE) {
+        if (mbgraph.getHighestSideEffectLevel(address) != SideEffect.Level.NONE) {
             // Could have modified class state
             return false;
         }
@@ -331,7 +339,7 @@ public class DeadRemovalStrategy implements OptimizationStrategy {
 
         for (int address : validAddresses.toArray()) {
             Op op = mbgraph.getOp(address);
-            int level = op.sideEffectLevel().getValue();
+            int level = mbgraph.getHighestSideEffectLevel(address).getValue();
             if (level > SIDE_EFFECT_THRESHOLD.getValue()) {
                 validAddresses.remove(address);
                 continue;
@@ -21,6 +21,7 @@ import org.jf.dexlib2.iface.instruction.formats.Instruction35c;
 import org.jf.dexlib2.iface.reference.MethodReference;
 import org.jf.dexlib2.util.ReferenceUtil;
 import org.jf.dexlib2.writer.builder.BuilderTypeReference;
+import org.jf.dexlib2.writer.builder.DexBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -151,7 +152,11 @@ public class PeepholeStrategy implements OptimizationStrategy {
         if (klazz.isUnknown()) {
             log.warn("Optimizing Class.forName of potentially non-existant class: " + smaliClassName);
         }
-        BuilderTypeReference classRef = mbgraph.getDexBuilder().internTypeReference(smaliClassName);
+        DexBuilder dexBuilder = mbgraph.getDexBuilder();
+        BuilderTypeReference classRef;
+        synchronized (dexBuilder) {
+            classRef = dexBuilder.internTypeReference(smaliClassName);
+        }
         BuilderInstruction constClassInstruction = new BuilderInstruction21c(Opcode.CONST_CLASS, register, classRef);
 
         return constClassInstruction;
@@ -34,6 +34,7 @@ import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
 import org.jf.dexlib2.util.ReferenceUtil;
 import org.jf.dexlib2.writer.builder.BuilderMethod;
 import org.jf.dexlib2.writer.builder.BuilderTypeReference;
+import org.jf.dexlib2.writer.builder.DexBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -51,8 +52,7 @@ public class ReflectionRemovalStrategy implements OptimizationStrategy {
         return fourBitValues;
     }
 
-    private static void setRegisterCount(BuilderMethod method, int registerCount) throws Exception {
-        MethodImplementation implementation = method.getImplementation();
+    private static void setRegisterCount(MethodImplementation implementation, int registerCount) throws Exception {
         Field f = implementation.getClass().getDeclaredField("registerCount");
         f.setAccessible(true); // hack the planet
         f.set(implementation, Integer.valueOf(registerCount));
@@ -98,7 +98,11 @@ public class ReflectionRemovalStrategy implements OptimizationStrategy {
 
         ImmutableMethodReference immutableMethodRef = new ImmutableMethodReference(className, name, parameterTypes,
                         returnType);
-        MethodReference methodRef = mbgraph.getDexBuilder().internMethodReference(immutableMethodRef);
+        DexBuilder dexBuilder = mbgraph.getDexBuilder();
+        MethodReference methodRef;
+        synchronized (dexBuilder) {
+            methodRef = dexBuilder.internMethodReference(immutableMethodRef);
+        }
 
         return methodRef;
     }
@@ -116,7 +120,11 @@ public class ReflectionRemovalStrategy implements OptimizationStrategy {
                 // Check cast expects a type reference, which I've never seen to be a primitive type.
                 typeName = SmaliClassUtils.javaClassToSmali(SmaliClassUtils.smaliPrimitiveToJavaWrapper(typeName));
             }
-            BuilderTypeReference typeRef = mbgraph.getDexBuilder().internTypeReference(typeName);
+            DexBuilder dexBuilder = mbgraph.getDexBuilder();
+            BuilderTypeReference typeRef;
+            synchronized (dexBuilder) {
+                typeRef = dexBuilder.internTypeReference(typeName);
+            }
             BuilderInstruction checkCast = new BuilderInstruction21c(Opcode.CHECK_CAST, register, typeRef);
 
             instructions.add(constInstruction);
@@ -190,7 +198,10 @@ public class ReflectionRemovalStrategy implements OptimizationStrategy {
             classAccessFlags = manager.getClass(declaringClass).getAccessFlags();
             parameterTypes = Utils.builderTypeListToStringList(methodDef.getParameterTypes());
             parameterRegisterCount = Utils.getRegisterSize(methodDef.getParameterTypes());
-            methodRef = mbgraph.getDexBuilder().internMethodReference(methodDef);
+            DexBuilder dexBuilder = mbgraph.getDexBuilder();
+            synchronized (dexBuilder) {
+                methodRef = dexBuilder.internMethodReference(methodDef);
+            }
         }
         boolean isStatic = (methodAccessFlags & AccessFlags.STATIC.getValue()) != 0;
         int invokeRegisterCount = parameterRegisterCount + (isStatic ? 0 : 1);
@@ -214,11 +225,10 @@ public class ReflectionRemovalStrategy implements OptimizationStrategy {
 
             if (availableRegisters.size() < parameterRegisterCount) {
                 // Add some more locals to this method
-                String methodDescriptor = mbgraph.getMethodDescriptor();
-                BuilderMethod builderMethod = mbgraph.getVM().getClassManager().getMethod(methodDescriptor);
-                int oldRegisterCount = builderMethod.getImplementation().getRegisterCount();
+                MethodImplementation implementation = mbgraph.getImplementation();
+                int oldRegisterCount = implementation.getRegisterCount();
                 int registerCount = oldRegisterCount + invokeRegisterCount;
-                setRegisterCount(builderMethod, registerCount);
+                setRegisterCount(implementation, registerCount);
                 availableRegisters.clear();
                 for (int register = oldRegisterCount; register < registerCount; register++) {
                     availableRegisters.add(register);
@@ -252,11 +262,10 @@ public class ReflectionRemovalStrategy implements OptimizationStrategy {
                 if (registers.size() < invokeRegisterCount) {
                     // Couldn't find enough contiguous. Expand locals and use registers at the end.
                     registers.clear();
-                    String methodDescriptor = mbgraph.getMethodDescriptor();
-                    BuilderMethod builderMethod = mbgraph.getVM().getClassManager().getMethod(methodDescriptor);
-                    int oldRegisterCount = builderMethod.getImplementation().getRegisterCount();
+                    MethodImplementation implementation = mbgraph.getImplementation();
+                    int oldRegisterCount = implementation.getRegisterCount();
                     int registerCount = oldRegisterCount + invokeRegisterCount;
-                    setRegisterCount(builderMethod, registerCount);
+                    setRegisterCount(implementation, registerCount);
                     for (int register = oldRegisterCount; register < registerCount; register++) {
                         registers.add(register);
                     }
@@ -0,0 +1,80 @@
+package org.cf.simplify;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.cf.smalivm.SmaliClassManager;
+import org.cf.smalivm.VMTester;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCallGraph {
+
+    private static final String CLASS_NAME = "Lcall_graph_test;";
+
+    private static final String LEAF = CLASS_NAME + "->Leaf()V";
+    private static final String MIDDLE = CLASS_NAME + "->Middle()V";
+    private static final String TOP = CLASS_NAME + "->Top()V";
+    private static final String IS_EVEN = CLASS_NAME + "->IsEven(I)Z";
+    private static final String IS_ODD = CLASS_NAME + "->IsOdd(I)Z";
+
+    private CallGraph callGraph;
+
+    @Before
+    public void setUp() {
+        SmaliClassManager classManager = VMTester.getTestVM().getClassManager();
+        // Callers first, so the order must come from the graph
+        List<String> methodDescriptors = Arrays.asList(TOP, IS_EVEN, IS_ODD, MIDDLE, LEAF);
+        callGraph = new CallGraph(classManager, methodDescriptors);
+    }
+
+    @Test
+    public void testCalleesAreFoundFromInvokes() {
+        assertEquals(new HashSet<String>(Arrays.asList(MIDDLE, IS_EVEN)), callGraph.getCallees(TOP));
+        assertEquals(new HashSet<String>(Arrays.asList(IS_EVEN, LEAF)), callGraph.getCallees(IS_ODD));
+        assertTrue(callGraph.getCallees(LEAF).isEmpty());
+    }
+
+    @Test
+    public void testMutuallyRecursiveMethodsShareComponent() {
+        List<List<String>> components = callGraph.getStronglyConnectedComponents();
+
+        assertEquals(4, components.size());
+        List<String> recursive = null;
+        for (List<String> component : components) {
+            if (component.contains(IS_EVEN)) {
+                recursive = component;
+            }
+        }
+        assertEquals(new HashSet<String>(Arrays.asList(IS_EVEN, IS_ODD)), new HashSet<String>(recursive));
+    }
+
+    @Test
+    public void testComponentsAreOrderedCalleesFirst() {
+        List<String> order = new ArrayList<String>();
+        for (List<String> component : callGraph.getStronglyConnectedComponents()) {
+            order.addAll(component);
+        }
+
+        assertTrue(order.indexOf(LEAF) < order.indexOf(MIDDLE));
+        assertTrue(order.indexOf(LEAF) < order.indexOf(IS_ODD));
+        assertTrue(order.indexOf(MIDDLE) < order.indexOf(TOP));
+        assertTrue(order.indexOf(IS_EVEN) < order.indexOf(TOP));
+    }
+
+    @Test
+    public void testWavesOnlyCallEarlierWaves() {
+        List<List<String>> waves = callGraph.getBottomUpWaves();
+
+        assertEquals(3, waves.size());
+        assertEquals(Arrays.asList(LEAF), waves.get(0));
+        assertEquals(new HashSet<String>(Arrays.asList(MIDDLE, IS_EVEN, IS_ODD)), new HashSet<String>(waves.get(1)));
+        assertEquals(Arrays.asList(TOP), waves.get(2));
+    }
+
+}
@@ -3,16 +3,25 @@ package org.cf.simplify;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
 
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import org.cf.smalivm.VMTester;
+import org.cf.smalivm.VirtualMachine;
+import org.cf.smalivm.context.ExecutionGraph;
 import org.cf.smalivm.context.ExecutionNode;
+import org.cf.smalivm.context.HeapItem;
 import org.cf.smalivm.opcode.Op;
 import org.jf.dexlib2.Opcode;
 import org.jf.dexlib2.builder.BuilderInstruction;
+import org.jf.dexlib2.builder.MutableMethodImplementation;
 import org.jf.dexlib2.builder.instruction.BuilderInstruction10x;
 import org.jf.dexlib2.builder.instruction.BuilderInstruction21s;
+import org.jf.dexlib2.writer.builder.BuilderMethod;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -138,4 +147,22 @@ public class TestMethodBackedGraph {
         }
     }
 
+    @Test
+    public void testModifyingCopiedImplementationLeavesMethodUnchanged() {
+        VirtualMachine vm = VMTester.getTestVM(true);
+        ExecutionGraph graph = VMTester.execute(vm, CLASS_NAME, METHOD_NAME, new TIntObjectHashMap<HeapItem>(),
+                        new HashMap<String, Map<String, HeapItem>>());
+        BuilderMethod method = vm.getClassManager().getMethod(CLASS_NAME + "->" + METHOD_NAME);
+        MutableMethodImplementation implementation = new MutableMethodImplementation(method.getImplementation());
+        MethodBackedGraph copyGraph = new MethodBackedGraph(graph, method, implementation, vm,
+                        VMTester.getDexBuilder());
+        copyGraph.insertInstruction(0, new BuilderInstruction10x(Opcode.NOP));
+
+        assertEquals(7, implementation.getInstructions().size());
+        assertEquals(Opcode.NOP, implementation.getInstructions().get(0).getOpcode());
+        MutableMethodImplementation original = (MutableMethodImplementation) method.getImplementation();
+        assertEquals(6, original.getInstructions().size());
+        assertEquals(Opcode.CONST_4, original.getInstructions().get(0).getOpcode());
+    }
+
 }
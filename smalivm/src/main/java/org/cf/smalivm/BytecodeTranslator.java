@@ -0,0 +1,753 @@
+package org.cf.smalivm;
+
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.cf.smalivm.exception.UncompilableMethod;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.builder.BuilderInstruction;
+import org.jf.dexlib2.builder.MutableMethodImplementation;
+import org.jf.dexlib2.iface.instruction.NarrowLiteralInstruction;
+import org.jf.dexlib2.iface.instruction.OffsetInstruction;
+import org.jf.dexlib2.iface.instruction.OneRegisterInstruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.iface.instruction.ThreeRegisterInstruction;
+import org.jf.dexlib2.iface.instruction.TwoRegisterInstruction;
+import org.jf.dexlib2.iface.instruction.formats.ArrayPayload;
+import org.jf.dexlib2.iface.reference.TypeReference;
+import org.jf.dexlib2.util.ReferenceUtil;
+import org.jf.dexlib2.writer.builder.BuilderMethod;
+
+/**
+ * Translate a static smali method into a JVM class with a single static method. Only instructions which map directly
+ * onto JVM instructions are supported: int constants, moves and math, branches, and primitive arrays. Anything else,
+ * such as invocations, fields, wide values, or try blocks, makes the method uncompilable.
+ *
+ * Registers become locals after the parameters, the fuel array and a fuel counter. Fuel is counted in the same visits
+ * the virtual machine counts: entering a run of instructions without branches uses up one for each instruction in it,
+ * and the method throws once fuel runs out, so a loop can't run forever. What's left is stored back into the fuel
+ * array before returning so the caller can charge what was used. The class file version predates stack map frames, so the JVM infers the
+ * type of each local itself, and fails verification if a register's use doesn't match its type, e.g. a zero constant
+ * used as a null array.
+ *
+ * @author cfenton
+ */
+class BytecodeTranslator {
+
+    private static final int CLASS_FILE_VERSION = 49;
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_STATIC = 0x0008;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+    private static final int MAX_STACK = 4;
+
+    private static final int ACONST_NULL = 0x01;
+    private static final int ICONST_M1 = 0x02;
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC = 0x12;
+    private static final int LDC_W = 0x13;
+    private static final int ILOAD = 0x15;
+    private static final int ALOAD = 0x19;
+    private static final int IALOAD = 0x2e;
+    private static final int BALOAD = 0x33;
+    private static final int CALOAD = 0x34;
+    private static final int SALOAD = 0x35;
+    private static final int ISTORE = 0x36;
+    private static final int ASTORE = 0x3a;
+    private static final int IASTORE = 0x4f;
+    private static final int BASTORE = 0x54;
+    private static final int CASTORE = 0x55;
+    private static final int SASTORE = 0x56;
+    private static final int SWAP = 0x5f;
+    private static final int IADD = 0x60;
+    private static final int ISUB = 0x64;
+    private static final int IMUL = 0x68;
+    private static final int IDIV = 0x6c;
+    private static final int IREM = 0x70;
+    private static final int INEG = 0x74;
+    private static final int ISHL = 0x78;
+    private static final int ISHR = 0x7a;
+    private static final int IUSHR = 0x7c;
+    private static final int IAND = 0x7e;
+    private static final int IOR = 0x80;
+    private static final int IXOR = 0x82;
+    private static final int IINC = 0x84;
+    private static final int I2B = 0x91;
+    private static final int I2C = 0x92;
+    private static final int I2S = 0x93;
+    private static final int IFEQ = 0x99;
+    private static final int IFNE = 0x9a;
+    private static final int IFLT = 0x9b;
+    private static final int IFGE = 0x9c;
+    private static final int IFGT = 0x9d;
+    private static final int IFLE = 0x9e;
+    private static final int IF_ICMPEQ = 0x9f;
+    private static final int IF_ICMPNE = 0xa0;
+    private static final int IF_ICMPLT = 0xa1;
+    private static final int IF_ICMPGE = 0xa2;
+    private static final int IF_ICMPGT = 0xa3;
+    private static final int IF_ICMPLE = 0xa4;
+    private static final int GOTO = 0xa7;
+    private static final int IRETURN = 0xac;
+    private static final int ARETURN = 0xb0;
+    private static final int RETURN = 0xb1;
+    private static final int NEWARRAY = 0xbc;
+    private static final int ARRAYLENGTH = 0xbe;
+    private static final int ATHROW = 0xbf;
+    private static final int WIDE = 0xc4;
+
+    private static final Pattern BINARY_MATH_PATTERN = Pattern
+                    .compile("^(r?sub|add|mul|div|rem|and|or|xor|shl|shr|ushr)-int(/2addr|/lit8|/lit16)?$");
+    private static final Map<String, Integer> MATH_NAME_TO_OPCODE;
+    private static final Map<String, Integer> ARRAY_TYPE_TO_ATYPE;
+    private static final Map<Opcode, Integer> IF_TO_OPCODE;
+
+    static {
+        MATH_NAME_TO_OPCODE = new HashMap<String, Integer>();
+        MATH_NAME_TO_OPCODE.put("add", IADD);
+        MATH_NAME_TO_OPCODE.put("sub", ISUB);
+        MATH_NAME_TO_OPCODE.put("rsub", ISUB);
+        MATH_NAME_TO_OPCODE.put("mul", IMUL);
+        MATH_NAME_TO_OPCODE.put("div", IDIV);
+        MATH_NAME_TO_OPCODE.put("rem", IREM);
+        MATH_NAME_TO_OPCODE.put("and", IAND);
+        MATH_NAME_TO_OPCODE.put("or", IOR);
+        MATH_NAME_TO_OPCODE.put("xor", IXOR);
+        MATH_NAME_TO_OPCODE.put("shl", ISHL);
+        MATH_NAME_TO_OPCODE.put("shr", ISHR);
+        MATH_NAME_TO_OPCODE.put("ushr", IUSHR);
+
+        ARRAY_TYPE_TO_ATYPE = new HashMap<String, Integer>();
+        ARRAY_TYPE_TO_ATYPE.put("[Z", 4);
+        ARRAY_TYPE_TO_ATYPE.put("[C", 5);
+        ARRAY_TYPE_TO_ATYPE.put("[B", 8);
+        ARRAY_TYPE_TO_ATYPE.put("[S", 9);
+        ARRAY_TYPE_TO_ATYPE.put("[I", 10);
+
+        IF_TO_OPCODE = new EnumMap<Opcode, Integer>(Opcode.class);
+        IF_TO_OPCODE.put(Opcode.IF_EQ, IF_ICMPEQ);
+        IF_TO_OPCODE.put(Opcode.IF_NE, IF_ICMPNE);
+        IF_TO_OPCODE.put(Opcode.IF_LT, IF_ICMPLT);
+        IF_TO_OPCODE.put(Opcode.IF_GE, IF_ICMPGE);
+        IF_TO_OPCODE.put(Opcode.IF_GT, IF_ICMPGT);
+        IF_TO_OPCODE.put(Opcode.IF_LE, IF_ICMPLE);
+        IF_TO_OPCODE.put(Opcode.IF_EQZ, IFEQ);
+        IF_TO_OPCODE.put(Opcode.IF_NEZ, IFNE);
+        IF_TO_OPCODE.put(Opcode.IF_LTZ, IFLT);
+        IF_TO_OPCODE.put(Opcode.IF_GEZ, IFGE);
+        IF_TO_OPCODE.put(Opcode.IF_GTZ, IFGT);
+        IF_TO_OPCODE.put(Opcode.IF_LEZ, IFLE);
+    }
+
+    private static boolean isIntType(String type) {
+        return "I".equals(type) || "Z".equals(type) || "B".equals(type) || "S".equals(type) || "C".equals(type);
+    }
+
+    private final String methodDescriptor;
+    private final List<BuilderInstruction> instructions;
+    private final int parameterCount;
+    private final int registerCount;
+    private final String returnType;
+    private final List<byte[]> constantPool;
+    private final TObjectIntMap<String> utf8ToIndex;
+    private final TIntIntMap integerToIndex;
+    private final ByteArrayOutputStream code;
+    // Branch opcode offsets in the code, and the smali address each one jumps to
+    private final TIntIntMap branchOffsetToTarget;
+    // Array type most recently created in each register, in instruction order
+    private final TIntObjectMap<String> registerToArrayType;
+    private int returnAddress;
+    // Visits of the instructions from each block's first address up to the next block
+    private final TIntIntMap blockAddressToVisits;
+
+    BytecodeTranslator(BuilderMethod method, MutableMethodImplementation implementation) throws UncompilableMethod {
+        methodDescriptor = ReferenceUtil.getMethodDescriptor(method);
+        if (!AccessFlags.STATIC.isSet(method.getAccessFlags())) {
+            throw new UncompilableMethod(methodDescriptor, "not static");
+        }
+        if (!implementation.getTryBlocks().isEmpty()) {
+            throw new UncompilableMethod(methodDescriptor, "has try blocks");
+        }
+        for (CharSequence parameterType : method.getParameterTypes()) {
+            if (!isIntType(parameterType.toString())) {
+                throw new UncompilableMethod(methodDescriptor, "parameter type " + parameterType);
+            }
+        }
+        returnType = method.getReturnType();
+        if (!"V".equals(returnType) && !"I".equals(returnType) && !ARRAY_TYPE_TO_ATYPE.containsKey(returnType)) {
+            throw new UncompilableMethod(methodDescriptor, "return type " + returnType);
+        }
+        instructions = new ArrayList<BuilderInstruction>(implementation.getInstructions());
+        parameterCount = method.getParameterTypes().size();
+        registerCount = implementation.getRegisterCount();
+        constantPool = new ArrayList<byte[]>();
+        utf8ToIndex = new TObjectIntHashMap<String>();
+        integerToIndex = new TIntIntHashMap();
+        code = new ByteArrayOutputStream();
+        branchOffsetToTarget = new TIntIntHashMap();
+        registerToArrayType = new TIntObjectHashMap<String>();
+        returnAddress = -1;
+        blockAddressToVisits = new TIntIntHashMap();
+    }
+
+    /**
+     * @return parameters of the compiled method, which are every parameter as an int followed by the fuel array
+     */
+    public Class<?>[] getParameterClasses() {
+        Class<?>[] result = new Class<?>[parameterCount + 1];
+        for (int i = 0; i < parameterCount; i++) {
+            result[i] = int.class;
+        }
+        result[parameterCount] = int[].class;
+
+        return result;
+    }
+
+    public String getReturnType() {
+        return returnType;
+    }
+
+    /**
+     * @return address of the first return instruction, valid after translating
+     */
+    public int getReturnAddress() {
+        return returnAddress;
+    }
+
+    public byte[] translate(String className, String methodName) throws UncompilableMethod {
+        // Parameters are copied to the locals of the registers they're in
+        int parameterStart = registerCount - parameterCount;
+        for (int i = 0; i < parameterCount; i++) {
+            emitLocal(ILOAD, i);
+            emitLocal(ISTORE, getLocal(parameterStart + i));
+        }
+        emitLocal(ALOAD, getFuelArrayLocal());
+        code.write(ICONST_0);
+        code.write(IALOAD);
+        emitLocal(ISTORE, getFuelLocal());
+
+        TIntObjectMap<BuilderInstruction> addressToInstruction = new TIntObjectHashMap<BuilderInstruction>();
+        for (BuilderInstruction instruction : instructions) {
+            addressToInstruction.put(instruction.getLocation().getCodeAddress(), instruction);
+        }
+        findBlocks();
+        TIntIntMap addressToCodeOffset = new TIntIntHashMap();
+        for (BuilderInstruction instruction : instructions) {
+            int address = instruction.getLocation().getCodeAddress();
+            addressToCodeOffset.put(address, code.size());
+            if (blockAddressToVisits.get(address) > 0) {
+                // Branches jump here, so fuel is used before any of the block's instructions
+                emitFuelCheck(blockAddressToVisits.get(address));
+            }
+            translate(instruction, address, addressToInstruction);
+        }
+        if (returnAddress < 0) {
+            throw new UncompilableMethod(methodDescriptor, "never returns");
+        }
+
+        byte[] codeBytes = code.toByteArray();
+        for (int branchOffset : branchOffsetToTarget.keys()) {
+            int target = branchOffsetToTarget.get(branchOffset);
+            if (!addressToCodeOffset.containsKey(target)) {
+                throw new UncompilableMethod(methodDescriptor, "branch to unknown address " + target);
+            }
+            int jump = addressToCodeOffset.get(target) - branchOffset;
+            if ((jump < Short.MIN_VALUE) || (jump > Short.MAX_VALUE)) {
+                throw new UncompilableMethod(methodDescriptor, "branch too far");
+            }
+            codeBytes[branchOffset + 1] = (byte) (jump >> 8);
+            codeBytes[branchOffset + 2] = (byte) jump;
+        }
+
+        return buildClassFile(className, methodName, codeBytes);
+    }
+
+    private void findBlocks() {
+        // Blocks start at the first instruction, branch targets, and after branches and returns
+        TIntSet blockAddresses = new TIntHashSet();
+        boolean startsBlock = true;
+        for (BuilderInstruction instruction : instructions) {
+            int address = instruction.getLocation().getCodeAddress();
+            if (startsBlock) {
+                blockAddresses.add(address);
+            }
+            Opcode opcode = instruction.getOpcode();
+            startsBlock = opcode.name.startsWith("return");
+            if ((instruction instanceof OffsetInstruction) && (opcode != Opcode.FILL_ARRAY_DATA)) {
+                blockAddresses.add(address + ((OffsetInstruction) instruction).getCodeOffset());
+                startsBlock = true;
+            }
+        }
+
+        int blockAddress = -1;
+        for (BuilderInstruction instruction : instructions) {
+            int address = instruction.getLocation().getCodeAddress();
+            if (blockAddresses.contains(address)) {
+                blockAddress = address;
+                blockAddressToVisits.put(blockAddress, 0);
+            }
+            Opcode opcode = instruction.getOpcode();
+            if (opcode == Opcode.ARRAY_PAYLOAD) {
+                // Only visited by its fill-array-data
+                continue;
+            }
+            int visits = (opcode == Opcode.FILL_ARRAY_DATA) ? 2 : 1;
+            blockAddressToVisits.adjustValue(blockAddress, visits);
+        }
+    }
+
+    private void translate(BuilderInstruction instruction, int address,
+                    TIntObjectMap<BuilderInstruction> addressToInstruction) throws UncompilableMethod {
+        Opcode opcode = instruction.getOpcode();
+        Matcher matcher = BINARY_MATH_PATTERN.matcher(opcode.name);
+        if (matcher.matches()) {
+            translateBinaryMath(instruction, matcher.group(1), matcher.group(2));
+            return;
+        }
+
+        switch (opcode) {
+        case NOP:
+        case ARRAY_PAYLOAD:
+            break;
+        case CONST_4:
+        case CONST_16:
+        case CONST:
+        case CONST_HIGH16:
+            emitInt(((NarrowLiteralInstruction) instruction).getNarrowLiteral());
+            emitLocal(ISTORE, getLocal(((OneRegisterInstruction) instruction).getRegisterA()));
+            break;
+        case MOVE:
+        case MOVE_FROM16:
+        case MOVE_16:
+            emitLocal(ILOAD, getLocal(((TwoRegisterInstruction) instruction).getRegisterB()));
+            emitLocal(ISTORE, getLocal(((TwoRegisterInstruction) instruction).getRegisterA()));
+            break;
+        case MOVE_OBJECT:
+        case MOVE_OBJECT_FROM16:
+        case MOVE_OBJECT_16:
+            emitLocal(ALOAD, getLocal(((TwoRegisterInstruction) instruction).getRegisterB()));
+            emitLocal(ASTORE, getLocal(((TwoRegisterInstruction) instruction).getRegisterA()));
+            break;
+        case NEG_INT:
+        case NOT_INT:
+        case INT_TO_BYTE:
+        case INT_TO_CHAR:
+        case INT_TO_SHORT:
+            translateUnaryMath((TwoRegisterInstruction) instruction);
+            break;
+        case IF_EQ:
+        case IF_NE:
+        case IF_LT:
+        case IF_GE:
+        case IF_GT:
+        case IF_LE:
+            emitLocal(ILOAD, getLocal(((TwoRegisterInstruction) instruction).getRegisterA()));
+            emitLocal(ILOAD, getLocal(((TwoRegisterInstruction) instruction).getRegisterB()));
+            emitBranch(IF_TO_OPCODE.get(opcode), address,
+                            ((OffsetInstruction) instruction).getCodeOffset());
+            break;
+        case IF_EQZ:
+        case IF_NEZ:
+        case IF_LTZ:
+        case IF_GEZ:
+        case IF_GTZ:
+        case IF_LEZ:
+            emitLocal(ILOAD, getLocal(((OneRegisterInstruction) instruction).getRegisterA()));
+            emitBranch(IF_TO_OPCODE.get(opcode), address,
+                            ((OffsetInstruction) instruction).getCodeOffset());
+            break;
+        case GOTO:
+        case GOTO_16:
+        case GOTO_32:
+            emitBranch(GOTO, address, ((OffsetInstruction) instruction).getCodeOffset());
+            break;
+        case RETURN_VOID:
+        case RETURN:
+        case RETURN_OBJECT:
+            translateReturn(instruction, address);
+            break;
+        case NEW_ARRAY:
+            translateNewArray(instruction);
+            break;
+        case ARRAY_LENGTH:
+            emitLocal(ALOAD, getLocal(((TwoRegisterInstruction) instruction).getRegisterB()));
+            code.write(ARRAYLENGTH);
+            emitLocal(ISTORE, getLocal(((TwoRegisterInstruction) instruction).getRegisterA()));
+            break;
+        case AGET:
+        case AGET_BOOLEAN:
+        case AGET_BYTE:
+        case AGET_CHAR:
+        case AGET_SHORT:
+            translateArrayGet((ThreeRegisterInstruction) instruction);
+            break;
+        case APUT:
+        case APUT_BOOLEAN:
+        case APUT_BYTE:
+        case APUT_CHAR:
+        case APUT_SHORT:
+            translateArrayPut((ThreeRegisterInstruction) instruction);
+            break;
+        case FILL_ARRAY_DATA:
+            int payloadAddress = address + ((OffsetInstruction) instruction).getCodeOffset();
+            translateFillArrayData(((OneRegisterInstruction) instruction).getRegisterA(),
+                            addressToInstruction.get(payloadAddress));
+            break;
+        default:
+            throw new UncompilableMethod(methodDescriptor, "unsupported instruction " + opcode.name);
+        }
+    }
+
+    private void translateBinaryMath(BuilderInstruction instruction, String mathName, String form)
+                    throws UncompilableMethod {
+        int destination = ((OneRegisterInstruction) instruction).getRegisterA();
+        if (form == null) {
+            emitLocal(ILOAD, getLocal(((ThreeRegisterInstruction) instruction).getRegisterB()));
+            emitLocal(ILOAD, getLocal(((ThreeRegisterInstruction) instruction).getRegisterC()));
+        } else if ("/2addr".equals(form)) {
+            emitLocal(ILOAD, getLocal(destination));
+            emitLocal(ILOAD, getLocal(((TwoRegisterInstruction) instruction).getRegisterB()));
+        } else {
+            emitLocal(ILOAD, getLocal(((TwoRegisterInstruction) instruction).getRegisterB()));
+            emitInt(((NarrowLiteralInstruction) instruction).getNarrowLiteral());
+            if ("rsub".equals(mathName)) {
+                // Literal minus register
+                code.write(SWAP);
+            }
+        }
+        code.write(MATH_NAME_TO_OPCODE.get(mathName));
+        emitLocal(ISTORE, getLocal(destination));
+    }
+
+    private void translateUnaryMath(TwoRegisterInstruction instruction) throws UncompilableMethod {
+        emitLocal(ILOAD, getLocal(instruction.getRegisterB()));
+        switch (instruction.getOpcode()) {
+        case NEG_INT:
+            code.write(INEG);
+            break;
+        case NOT_INT:
+            code.write(ICONST_M1);
+            code.write(IXOR);
+            break;
+        case INT_TO_BYTE:
+            code.write(I2B);
+            break;
+        case INT_TO_CHAR:
+            code.write(I2C);
+            break;
+        default:
+            code.write(I2S);
+            break;
+        }
+        emitLocal(ISTORE, getLocal(instruction.getRegisterA()));
+    }
+
+    private void translateReturn(BuilderInstruction instruction, int address) throws UncompilableMethod {
+        Opcode opcode = instruction.getOpcode();
+        // Leave the fuel which wasn't used for the caller
+        emitLocal(ALOAD, getFuelArrayLocal());
+        code.write(ICONST_0);
+        emitLocal(ILOAD, getFuelLocal());
+        code.write(IASTORE);
+        if (opcode == Opcode.RETURN_VOID && "V".equals(returnType)) {
+            code.write(RETURN);
+        } else if (opcode == Opcode.RETURN && "I".equals(returnType)) {
+            emitLocal(ILOAD, getLocal(((OneRegisterInstruction) instruction).getRegisterA()));
+            code.write(IRETURN);
+        } else if (opcode == Opcode.RETURN_OBJECT && returnType.startsWith("[")) {
+            emitLocal(ALOAD, getLocal(((OneRegisterInstruction) instruction).getRegisterA()));
+            code.write(ARETURN);
+        } else {
+            throw new UncompilableMethod(methodDescriptor, opcode.name + " for return type " + returnType);
+        }
+        if (returnAddress < 0) {
+            returnAddress = address;
+        }
+    }
+
+    private void translateNewArray(BuilderInstruction instruction) throws UncompilableMethod {
+        String type = ((TypeReference) ((ReferenceInstruction) instruction).getReference()).getType();
+        Integer atype = ARRAY_TYPE_TO_ATYPE.get(type);
+        if (atype == null) {
+            throw new UncompilableMethod(methodDescriptor, "array type " + type);
+        }
+        int destination = ((TwoRegisterInstruction) instruction).getRegisterA();
+        emitLocal(ILOAD, getLocal(((TwoRegisterInstruction) instruction).getRegisterB()));
+        code.write(NEWARRAY);
+        code.write(atype);
+        emitLocal(ASTORE, getLocal(destination));
+        registerToArrayType.put(destination, type);
+    }
+
+    private void translateArrayGet(ThreeRegisterInstruction instruction) throws UncompilableMethod {
+        emitLocal(ALOAD, getLocal(instruction.getRegisterB()));
+        emitLocal(ILOAD, getLocal(instruction.getRegisterC()));
+        switch (instruction.getOpcode()) {
+        case AGET_BOOLEAN:
+        case AGET_BYTE:
+            code.write(BALOAD);
+            break;
+        case AGET_CHAR:
+            code.write(CALOAD);
+            break;
+        case AGET_SHORT:
+            code.write(SALOAD);
+            break;
+        default:
+            code.write(IALOAD);
+            break;
+        }
+        emitLocal(ISTORE, getLocal(instruction.getRegisterA()));
+    }
+
+    private void translateArrayPut(ThreeRegisterInstruction instruction) throws UncompilableMethod {
+        emitLocal(ALOAD, getLocal(instruction.getRegisterB()));
+        emitLocal(ILOAD, getLocal(instruction.getRegisterC()));
+        emitLocal(ILOAD, getLocal(instruction.getRegisterA()));
+        switch (instruction.getOpcode()) {
+        case APUT_BOOLEAN:
+        case APUT_BYTE:
+            code.write(BASTORE);
+            break;
+        case APUT_CHAR:
+            code.write(CASTORE);
+            break;
+        case APUT_SHORT:
+            code.write(SASTORE);
+            break;
+        default:
+            code.write(IASTORE);
+            break;
+        }
+    }
+
+    private void translateFillArrayData(int register, BuilderInstruction payload) throws UncompilableMethod {
+        if (!(payload instanceof ArrayPayload)) {
+            throw new UncompilableMethod(methodDescriptor, "missing array payload");
+        }
+        // Stores of the same width differ by element type, which is only known if the array was created here
+        String type = registerToArrayType.get(register);
+        int storeOpcode;
+        if ("[Z".equals(type) || "[B".equals(type)) {
+            storeOpcode = BASTORE;
+        } else if ("[C".equals(type)) {
+            storeOpcode = CASTORE;
+        } else if ("[S".equals(type)) {
+            storeOpcode = SASTORE;
+        } else if ("[I".equals(type)) {
+            storeOpcode = IASTORE;
+        } else {
+            throw new UncompilableMethod(methodDescriptor, "fill of unknown array type " + type);
+        }
+
+        List<Number> elements = ((ArrayPayload) payload).getArrayElements();
+        for (int i = 0; i < elements.size(); i++) {
+            emitLocal(ALOAD, getLocal(register));
+            emitInt(i);
+            emitInt(elements.get(i).intValue());
+            code.write(storeOpcode);
+        }
+    }
+
+    private int getLocal(int register) {
+        return parameterCount + 2 + register;
+    }
+
+    private int getFuelArrayLocal() {
+        return parameterCount;
+    }
+
+    private int getFuelLocal() {
+        return parameterCount + 1;
+    }
+
+    private void emitBranch(int branchOpcode, int address, int codeOffset) throws UncompilableMethod {
+        branchOffsetToTarget.put(code.size(), address + codeOffset);
+        code.write(branchOpcode);
+        code.write(0);
+        code.write(0);
+    }
+
+    private void emitFuelCheck(int visits) throws UncompilableMethod {
+        int fuel = getFuelLocal();
+        if ((fuel <= 0xff) && (visits <= Byte.MAX_VALUE)) {
+            code.write(IINC);
+            code.write(fuel);
+            code.write(-visits);
+        } else if ((fuel <= 0xffff) && (visits <= Short.MAX_VALUE)) {
+            code.write(WIDE);
+            code.write(IINC);
+            code.write(fuel >> 8);
+            code.write(fuel);
+            code.write(-visits >> 8);
+            code.write(-visits);
+        } else {
+            throw new UncompilableMethod(methodDescriptor, "method too large");
+        }
+        emitLocal(ILOAD, fuel);
+        // Skip over the throw
+        code.write(IFGE);
+        code.write(0);
+        code.write(5);
+        code.write(ACONST_NULL);
+        code.write(ATHROW);
+    }
+
+    private void emitInt(int value) {
+        if ((value >= -1) && (value <= 5)) {
+            code.write(ICONST_0 + value);
+        } else if ((value >= Byte.MIN_VALUE) && (value <= Byte.MAX_VALUE)) {
+            code.write(BIPUSH);
+            code.write(value);
+        } else if ((value >= Short.MIN_VALUE) && (value <= Short.MAX_VALUE)) {
+            code.write(SIPUSH);
+            code.write(value >> 8);
+            code.write(value);
+        } else {
+            int index = getIntegerIndex(value);
+            if (index <= 0xff) {
+                code.write(LDC);
+                code.write(index);
+            } else {
+                code.write(LDC_W);
+                code.write(index >> 8);
+                code.write(index);
+            }
+        }
+    }
+
+    private void emitLocal(int loadOrStore, int local) throws UncompilableMethod {
+        if (local <= 0xff) {
+            code.write(loadOrStore);
+            code.write(local);
+        } else if (local <= 0xffff) {
+            code.write(WIDE);
+            code.write(loadOrStore);
+            code.write(local >> 8);
+            code.write(local);
+        } else {
+            throw new UncompilableMethod(methodDescriptor, "too many registers");
+        }
+    }
+
+    private int getUtf8Index(String value) throws IOException {
+        if (utf8ToIndex.containsKey(value)) {
+            return utf8ToIndex.get(value);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(1);
+        out.writeUTF(value);
+
+        int index = addConstant(bytes.toByteArray());
+        utf8ToIndex.put(value, index);
+
+        return index;
+    }
+
+    private int getClassIndex(String internalName) throws IOException {
+        int nameIndex = getUtf8Index(internalName);
+
+        return addConstant(new byte[] { 7, (byte) (nameIndex >> 8), (byte) nameIndex });
+    }
+
+    private int getIntegerIndex(int value) {
+        if (integerToIndex.containsKey(value)) {
+            return integerToIndex.get(value);
+        }
+
+        int index = addConstant(new byte[] { 3, (byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8),
+                        (byte) value });
+        integerToIndex.put(value, index);
+
+        return index;
+    }
+
+    private int addConstant(byte[] constant) {
+        constantPool.add(constant);
+
+        // Constant pool indexes start at 1
+        return constantPool.size();
+    }
+
+    private byte[] buildClassFile(String className, String methodName, byte[] codeBytes) throws UncompilableMethod {
+        int maxLocals = getLocal(registerCount);
+        if ((codeBytes.length > 0xffff) || (maxLocals > 0xffff)) {
+            throw new UncompilableMethod(methodDescriptor, "method too large");
+        }
+
+        StringBuilder descriptor = new StringBuilder("(");
+        for (int i = 0; i < parameterCount; i++) {
+            descriptor.append('I');
+        }
+        descriptor.append("[I)").append(returnType);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            int thisClass = getClassIndex(className);
+            int superClass = getClassIndex("java/lang/Object");
+            int name = getUtf8Index(methodName);
+            int type = getUtf8Index(descriptor.toString());
+            int codeName = getUtf8Index("Code");
+
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(CLASS_FILE_VERSION);
+            out.writeShort(constantPool.size() + 1);
+            for (byte[] constant : constantPool) {
+                out.write(constant);
+            }
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            // Interfaces and fields
+            out.writeShort(0);
+            out.writeShort(0);
+
+            out.writeShort(1);
+            out.writeShort(ACC_PUBLIC | ACC_STATIC);
+            out.writeShort(name);
+            out.writeShort(type);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            // Max stack, max locals, code length, code, exception table length, attributes count
+            out.writeInt(2 + 2 + 4 + codeBytes.length + 2 + 2);
+            out.writeShort(MAX_STACK);
+            out.writeShort(maxLocals);
+            out.writeInt(codeBytes.length);
+            out.write(codeBytes);
+            out.writeShort(0);
+            out.writeShort(0);
+
+            // Class attributes
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new UncompilableMethod(methodDescriptor, e.toString());
+        }
+
+        return bytes.toByteArray();
+    }
+
+}
@@ -0,0 +1,236 @@
+package org.cf.smalivm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.cf.util.Utils;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.Field;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodParameter;
+import org.jf.dexlib2.util.ReferenceUtil;
+
+/**
+ * Signatures, fields, and hierarchy of a class without any method bodies. Headers are cheap to build, so they're used
+ * for questions which don't need instructions.
+ *
+ * @author cfenton
+ *
+ */
+public class ClassHeader {
+
+    public static class MethodHeader {
+
+        private final int accessFlags;
+        private final boolean hasImplementation;
+        private final List<String> parameterTypes;
+
+        private MethodHeader(int accessFlags, boolean hasImplementation, List<String> parameterTypes) {
+            this.accessFlags = accessFlags;
+            this.hasImplementation = hasImplementation;
+            this.parameterTypes = parameterTypes;
+        }
+
+        public int getAccessFlags() {
+            return accessFlags;
+        }
+
+        /**
+         *
+         * @return list of Smali style parameter types, including instance reference for non-static methods
+         */
+        public List<String> getParameterTypes() {
+            return parameterTypes;
+        }
+
+        public boolean hasImplementation() {
+            return hasImplementation;
+        }
+
+        public boolean isNative() {
+            return (accessFlags & AccessFlags.NATIVE.getValue()) != 0;
+        }
+
+    }
+
+    private final String className;
+    private final int accessFlags;
+    private final String superclass;
+    private final List<String> interfaces;
+    private final List<String> fieldNameAndTypes;
+    private final Map<String, MethodHeader> methodDescriptorToMethod;
+
+    private ClassHeader(String className, int accessFlags, String superclass, List<String> interfaces,
+                    List<String> fieldNameAndTypes, Map<String, MethodHeader> methodDescriptorToMethod) {
+        this.className = className;
+        this.accessFlags = accessFlags;
+        this.superclass = superclass;
+        this.interfaces = interfaces;
+        this.fieldNameAndTypes = fieldNameAndTypes;
+        this.methodDescriptorToMethod = methodDescriptorToMethod;
+    }
+
+    public int getAccessFlags() {
+        return accessFlags;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     *
+     * @return field names and types, e.g. "someField:I"
+     */
+    public List<String> getFieldNameAndTypes() {
+        return fieldNameAndTypes;
+    }
+
+    public List<String> getInterfaces() {
+        return interfaces;
+    }
+
+    /**
+     *
+     * @param methodDescriptor
+     * @return method header, or null if the class doesn't define the method
+     */
+    public MethodHeader getMethod(String methodDescriptor) {
+        return methodDescriptorToMethod.get(methodDescriptor);
+    }
+
+    public Set<String> getMethodDescriptors() {
+        return methodDescriptorToMethod.keySet();
+    }
+
+    /**
+     *
+     * @return superclass, or null if there is none
+     */
+    public String getSuperclass() {
+        return superclass;
+    }
+
+    /**
+     * Build a header from a compiled class definition. Dex backed class definitions don't read method code until it's
+     * asked for, so this is cheap.
+     *
+     * @param classDef
+     * @return header for classDef
+     */
+    public static ClassHeader fromClassDef(ClassDef classDef) {
+        String className = classDef.getType();
+        List<String> fieldNameAndTypes = new LinkedList<String>();
+        for (Field field : classDef.getFields()) {
+            fieldNameAndTypes.add(field.getName() + ":" + field.getType());
+        }
+
+        Map<String, MethodHeader> methods = new HashMap<String, MethodHeader>();
+        for (Method method : classDef.getMethods()) {
+            List<String> parameterTypes = new LinkedList<String>();
+            for (MethodParameter parameter : method.getParameters()) {
+                parameterTypes.add(parameter.getType());
+            }
+            addMethod(methods, ReferenceUtil.getMethodDescriptor(method), method.getAccessFlags(),
+                            null != method.getImplementation(), parameterTypes);
+        }
+
+        return new ClassHeader(className, classDef.getAccessFlags(), classDef.getSuperclass(),
+                        new ArrayList<String>(classDef.getInterfaces()), fieldNameAndTypes, methods);
+    }
+
+    /**
+     * Build a header by scanning Smali directives. Method bodies are skipped without being parsed.
+     *
+     * @param is
+     * @return header for the Smali class
+     * @throws IOException
+     */
+    public static ClassHeader fromSmali(InputStream is) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+        String className = null;
+        int classAccessFlags = 0;
+        String superclass = null;
+        List<String> interfaces = new LinkedList<String>();
+        List<String> fieldNameAndTypes = new LinkedList<String>();
+        Map<String, MethodHeader> methods = new HashMap<String, MethodHeader>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (!line.startsWith(".")) {
+                continue;
+            }
+
+            String[] tokens = line.split("\\s+");
+            String directive = tokens[0];
+            if (".class".equals(directive)) {
+                classAccessFlags = getAccessFlags(tokens);
+                className = tokens[tokens.length - 1];
+            } else if (".super".equals(directive)) {
+                superclass = tokens[1];
+            } else if (".implements".equals(directive)) {
+                interfaces.add(tokens[1]);
+            } else if (".field".equals(directive)) {
+                fieldNameAndTypes.add(tokens[getFlagCount(tokens) + 1]);
+            } else if (".method".equals(directive)) {
+                int accessFlags = getAccessFlags(tokens);
+                String methodSignature = tokens[getFlagCount(tokens) + 1];
+                boolean hasImplementation = (accessFlags & (AccessFlags.ABSTRACT.getValue() | AccessFlags.NATIVE
+                                .getValue())) == 0;
+                addMethod(methods, className + "->" + methodSignature, accessFlags, hasImplementation,
+                                Utils.getParameterTypes(methodSignature));
+            }
+        }
+        reader.close();
+
+        if (null == className) {
+            throw new IOException("Missing class directive.");
+        }
+
+        return new ClassHeader(className, classAccessFlags, superclass, interfaces, fieldNameAndTypes, methods);
+    }
+
+    private static void addMethod(Map<String, MethodHeader> methods, String methodDescriptor, int accessFlags,
+                    boolean hasImplementation, List<String> parameterTypes) {
+        boolean isStatic = ((accessFlags & AccessFlags.STATIC.getValue()) != 0);
+        if (!isStatic) {
+            // First "parameter" for non-static methods is instance ref
+            String className = methodDescriptor.substring(0, methodDescriptor.indexOf("->"));
+            parameterTypes.add(0, className);
+        }
+        methods.put(methodDescriptor, new MethodHeader(accessFlags, hasImplementation, Collections
+                        .unmodifiableList(parameterTypes)));
+    }
+
+    private static int getAccessFlags(String[] tokens) {
+        int accessFlags = 0;
+        for (int i = 1; i <= getFlagCount(tokens); i++) {
+            accessFlags |= AccessFlags.getAccessFlag(tokens[i]).getValue();
+        }
+
+        return accessFlags;
+    }
+
+    private static int getFlagCount(String[] tokens) {
+        int count = 0;
+        for (int i = 1; i < tokens.length; i++) {
+            if (null == AccessFlags.getAccessFlag(tokens[i])) {
+                break;
+            }
+            count++;
+        }
+
+        return count;
+    }
+
+}
@@ -0,0 +1,266 @@
+package org.cf.smalivm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.cf.smalivm.exception.UnknownAncestors;
+import org.cf.util.SmaliClassUtils;
+
+/**
+ * Supertype closures and virtual method targets of local and Java classes. Each is computed once per class, the first
+ * time it's needed, and is cached for the life of the class manager. Both depend only on class headers and the
+ * runtime class path, which don't change.
+ *
+ * @author cfenton
+ *
+ */
+public class ClassHierarchy {
+
+    private static class Ancestors {
+
+        private final Set<String> classNames;
+        // First ancestor whose own ancestors couldn't be found, or null if the closure is complete
+        private final String unknownClassName;
+
+        private Ancestors(Set<String> classNames, String unknownClassName) {
+            this.classNames = classNames;
+            this.unknownClassName = unknownClassName;
+        }
+
+    }
+
+    // ConcurrentHashMap doesn't allow null values, so this marks unresolvable targets
+    private static final String NO_TARGET = "";
+    private static final String OBJECT_CLASS = "Ljava/lang/Object;";
+
+    private final SmaliClassManager classManager;
+    private final ConcurrentMap<String, Ancestors> classNameToAncestors;
+    private final ConcurrentMap<String, ConcurrentMap<String, String>> classNameToVirtualTargets;
+
+    ClassHierarchy(SmaliClassManager classManager) {
+        this.classManager = classManager;
+        classNameToAncestors = new ConcurrentHashMap<String, Ancestors>();
+        classNameToVirtualTargets = new ConcurrentHashMap<String, ConcurrentMap<String, String>>();
+    }
+
+    /**
+     * Find the closest class which both classes extend. Interfaces are not considered, so this is the same for any
+     * order of arguments.
+     *
+     * @param className1
+     *            non-array, non-primitive Smali type
+     * @param className2
+     *            non-array, non-primitive Smali type
+     * @return closest common superclass, or java.lang.Object if some ancestors are unknown
+     */
+    public String getCommonSuperclass(String className1, String className2) {
+        try {
+            String current = className1;
+            while (null != current) {
+                if (isInstance(className2, current)) {
+                    return current;
+                }
+                current = getSuperclass(current);
+            }
+        } catch (UnknownAncestors e) {
+            // Fall through
+        }
+
+        return OBJECT_CLASS;
+    }
+
+    /**
+     *
+     * @param className
+     * @return superclass and interfaces of className
+     * @throws UnknownAncestors
+     *             if className is neither local nor available at runtime
+     */
+    public Set<String> getParents(String className) throws UnknownAncestors {
+        Set<String> parents = new HashSet<String>();
+        if (classManager.isLocalClass(className)) {
+            ClassHeader header = classManager.getClassHeader(className);
+            parents.addAll(header.getInterfaces());
+            if (null != header.getSuperclass()) {
+                parents.add(header.getSuperclass());
+            }
+        } else {
+            String javaClass = SmaliClassUtils.smaliClassToJava(className);
+            try {
+                Class<?> klazz = Class.forName(javaClass);
+                Class<?>[] interfaces = klazz.getInterfaces();
+                for (Class<?> interFace : interfaces) {
+                    parents.add(SmaliClassUtils.javaClassToSmali(interFace));
+                }
+                Class<?> superklazz = klazz.getSuperclass();
+                if (null != superklazz) {
+                    parents.add(SmaliClassUtils.javaClassToSmali(superklazz));
+                }
+            } catch (ClassNotFoundException e) {
+                throw new UnknownAncestors(className);
+            }
+        }
+
+        return parents;
+    }
+
+    /**
+     *
+     * @param childType
+     *            non-array, non-primitive Smali type
+     * @param targetType
+     *            non-array, non-primitive Smali type
+     * @return true if targetType is childType or one of its ancestors
+     * @throws UnknownAncestors
+     *             if targetType isn't a known ancestor and some ancestors of childType are unknown
+     */
+    public boolean isInstance(String childType, String targetType) throws UnknownAncestors {
+        if (childType.equals(targetType)) {
+            return true;
+        }
+
+        Ancestors ancestors = getAncestors(childType);
+        if (ancestors.classNames.contains(targetType)) {
+            return true;
+        }
+        if (null != ancestors.unknownClassName) {
+            throw new UnknownAncestors(ancestors.unknownClassName);
+        }
+
+        return false;
+    }
+
+    /**
+     * Find the method which would be executed by a virtual call to methodSignature on an instance of className.
+     *
+     * @param className
+     *            receiver type
+     * @param methodSignature
+     *            method name, parameters, and return type, e.g. "someMethod(I)V"
+     * @return method descriptor of the local or safe Java implementation, or null if there isn't one
+     */
+    public String resolveVirtualMethod(String className, String methodSignature) {
+        return resolveVirtualMethod(className, methodSignature, new HashSet<String>());
+    }
+
+    private String getSuperclass(String className) throws UnknownAncestors {
+        if (classManager.isLocalClass(className)) {
+            return classManager.getClassHeader(className).getSuperclass();
+        }
+
+        try {
+            Class<?> superklazz = Class.forName(SmaliClassUtils.smaliClassToJava(className)).getSuperclass();
+
+            return null == superklazz ? null : SmaliClassUtils.javaClassToSmali(superklazz);
+        } catch (ClassNotFoundException e) {
+            throw new UnknownAncestors(className);
+        }
+    }
+
+    private Ancestors getAncestors(String className) {
+        Ancestors ancestors = classNameToAncestors.get(className);
+        if (null != ancestors) {
+            return ancestors;
+        }
+
+        Set<String> classNames = new HashSet<String>();
+        String unknownClassName = null;
+        Queue<String> queue = new LinkedList<String>();
+        queue.add(className);
+        while (!queue.isEmpty()) {
+            String current = queue.remove();
+            Set<String> parents;
+            try {
+                parents = getParents(current);
+            } catch (UnknownAncestors e) {
+                if (null == unknownClassName) {
+                    unknownClassName = current;
+                }
+                continue;
+            }
+
+            for (String parent : parents) {
+                if (classNames.add(parent)) {
+                    queue.add(parent);
+                }
+            }
+        }
+        ancestors = new Ancestors(Collections.unmodifiableSet(classNames), unknownClassName);
+        classNameToAncestors.putIfAbsent(className, ancestors);
+
+        return ancestors;
+    }
+
+    private ConcurrentMap<String, String> getVirtualTargets(String className) {
+        ConcurrentMap<String, String> targets = classNameToVirtualTargets.get(className);
+        if (null == targets) {
+            targets = new ConcurrentHashMap<String, String>();
+            ConcurrentMap<String, String> existing = classNameToVirtualTargets.putIfAbsent(className, targets);
+            if (null != existing) {
+                targets = existing;
+            }
+        }
+
+        return targets;
+    }
+
+    private String resolveVirtualMethod(String className, String methodSignature, Set<String> visited) {
+        ConcurrentMap<String, String> targets = getVirtualTargets(className);
+        String target = targets.get(methodSignature);
+        if (null == target) {
+            // Results for a class don't depend on what was visited unless the hierarchy has a cycle
+            target = findVirtualMethod(className, methodSignature, visited);
+            targets.putIfAbsent(methodSignature, null == target ? NO_TARGET : target);
+        }
+
+        return NO_TARGET.equals(target) ? null : target;
+    }
+
+    private String findVirtualMethod(String className, String methodSignature, Set<String> visited) {
+        visited.add(className);
+        StringBuilder sb = new StringBuilder(className);
+        sb.append("->").append(methodSignature);
+        String methodDescriptor = sb.toString();
+
+        boolean isLocalMethod = classManager.isLocalMethod(methodDescriptor);
+        if ((isLocalMethod && classManager.methodHasImplementation(methodDescriptor))) {
+            return methodDescriptor;
+        }
+
+        if (MethodReflector.isSafe(methodDescriptor) && MethodReflector.methodExists(methodDescriptor)) {
+            return methodDescriptor;
+        }
+
+        if (!classManager.isLocalClass(className)) {
+            // Can't trace any further up.
+            // Note, also checked if this is white-listed Java API
+            return null;
+        }
+
+        ClassHeader header = classManager.getClassHeader(className);
+        List<String> parents = new ArrayList<String>(header.getInterfaces());
+        if (null != header.getSuperclass()) {
+            parents.add(header.getSuperclass());
+        }
+
+        for (String parent : parents) {
+            if (visited.contains(parent)) {
+                continue;
+            }
+            String target = resolveVirtualMethod(parent, methodSignature, visited);
+            if (null != target) {
+                return target;
+            }
+        }
+
+        return null;
+    }
+
+}
@@ -0,0 +1,119 @@
+package org.cf.smalivm;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Limits on the wall-clock time and heap growth of executing a method, and of a whole run which executes many
+ * methods. Budgets are checked between instructions, and a limit of 0 means there is no limit.
+ *
+ * Heap growth is measured as the bytes allocated by the thread which created the budget, so it doesn't depend on when
+ * garbage is collected or what other threads do. Methods must be executed on that thread for heap budgets to mean
+ * anything, so they can't be used with more than one thread.
+ *
+ * @author cfenton
+ *
+ */
+public class ExecutionBudget {
+
+    private static final ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+
+    public static final ExecutionBudget UNLIMITED = new ExecutionBudget(0, 0, 0, 0);
+
+    private final long maxMethodMillis;
+    private final long maxMethodHeapGrowth;
+    private final long maxRunMillis;
+    private final long maxRunHeapGrowth;
+    private final long runStartMillis;
+    private final long threadId;
+    private final long runStartHeap;
+
+    /**
+     * Create a budget whose run starts now.
+     *
+     * @param maxMethodMillis
+     * @param maxMethodHeapGrowth
+     *            in bytes
+     * @param maxRunMillis
+     * @param maxRunHeapGrowth
+     *            in bytes
+     * @throws IllegalArgumentException
+     *             if there's a heap budget but the JVM can't measure the allocation of a thread
+     */
+    public ExecutionBudget(long maxMethodMillis, long maxMethodHeapGrowth, long maxRunMillis, long maxRunHeapGrowth) {
+        this.maxMethodMillis = maxMethodMillis;
+        this.maxMethodHeapGrowth = maxMethodHeapGrowth;
+        this.maxRunMillis = maxRunMillis;
+        this.maxRunHeapGrowth = maxRunHeapGrowth;
+        runStartMillis = System.currentTimeMillis();
+        threadId = Thread.currentThread().getId();
+        if (hasHeapBudget()) {
+            if (!(THREAD_BEAN instanceof com.sun.management.ThreadMXBean)
+                            || !((com.sun.management.ThreadMXBean) THREAD_BEAN).isThreadAllocatedMemorySupported()) {
+                throw new IllegalArgumentException("Heap budgets need a JVM which measures thread allocation");
+            }
+            ((com.sun.management.ThreadMXBean) THREAD_BEAN).setThreadAllocatedMemoryEnabled(true);
+        }
+        runStartHeap = getAllocatedHeap();
+    }
+
+    /**
+     * @return bytes allocated by the budget's thread, or 0 if there's no heap budget
+     */
+    public long getAllocatedHeap() {
+        if (!hasHeapBudget()) {
+            return 0;
+        }
+
+        return ((com.sun.management.ThreadMXBean) THREAD_BEAN).getThreadAllocatedBytes(threadId);
+    }
+
+    public boolean hasHeapBudget() {
+        return (maxMethodHeapGrowth > 0) || (maxRunHeapGrowth > 0);
+    }
+
+    public boolean isUnlimited() {
+        return (maxMethodMillis <= 0) && (maxMethodHeapGrowth <= 0) && (maxRunMillis <= 0) && (maxRunHeapGrowth <= 0);
+    }
+
+    /**
+     *
+     * @return true if no more methods should be executed in this run
+     */
+    public boolean isRunExhausted() {
+        return getExceededRunBudget(System.currentTimeMillis(), getAllocatedHeap()) != null;
+    }
+
+    /**
+     *
+     * @param methodStartMillis
+     *            time when the method started executing
+     * @param methodStartHeap
+     *            {@link #getAllocatedHeap()} when the method started executing
+     * @return name of the exceeded budget, or null if execution may continue
+     */
+    String getExceededBudget(long methodStartMillis, long methodStartHeap) {
+        long now = System.currentTimeMillis();
+        long allocatedHeap = getAllocatedHeap();
+        if ((maxMethodMillis > 0) && ((now - methodStartMillis) > maxMethodMillis)) {
+            return "max method time";
+        }
+        if ((maxMethodHeapGrowth > 0) && ((allocatedHeap - methodStartHeap) > maxMethodHeapGrowth)) {
+            return "max method heap growth";
+        }
+
+        return getExceededRunBudget(now, allocatedHeap);
+    }
+
+    private String getExceededRunBudget(long now, long allocatedHeap) {
+        if ((maxRunMillis > 0) && ((now - runStartMillis) > maxRunMillis)) {
+            return "max run time";
+        }
+        if ((maxRunHeapGrowth > 0) && ((allocatedHeap - runStartHeap) > maxRunHeapGrowth)) {
+            return "max run heap growth";
+        }
+
+        return null;
+    }
+
+}
@@ -0,0 +1,216 @@
+package org.cf.smalivm;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cf.smalivm.context.HeapItem;
+import org.cf.smalivm.context.MethodState;
+import org.cf.smalivm.exception.UncompilableMethod;
+import org.cf.util.Utils;
+import org.jf.dexlib2.builder.MutableMethodImplementation;
+import org.jf.dexlib2.writer.builder.BuilderMethod;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Optional tier which compiles hot invoked methods to JVM bytecode. Once a method has been executed concretely enough
+ * times, it's translated with {@link BytecodeTranslator} and loaded by its own class loader, which can't see any class
+ * but the bootstrap ones. Later calls with known arguments run the compiled method instead of interpreting each op.
+ * Methods which can't be translated or verified are remembered so they aren't tried again.
+ *
+ * @author cfenton
+ */
+public class MethodCompiler {
+
+    public static class CompiledMethod {
+
+        private final Method method;
+        private final String returnType;
+        private final int returnAddress;
+
+        CompiledMethod(Method method, String returnType, int returnAddress) {
+            this.method = method;
+            this.returnType = returnType;
+            this.returnAddress = returnAddress;
+        }
+
+        public String getReturnType() {
+            return returnType;
+        }
+
+        /**
+         * @return address of a return instruction in the method, to use as the terminating address
+         */
+        public int getReturnAddress() {
+            return returnAddress;
+        }
+
+        /**
+         * Run the compiled method with the method state's parameters, which must all be known.
+         *
+         * @param mState
+         * @param fuel
+         *            single element holding the visits to allow before giving up, which holds the visits left once
+         *            the method returns
+         * @return return value, or null for void methods
+         * @throws Exception
+         *             if the method throws or runs out of fuel, in which case the method should be executed by the
+         *             virtual machine instead
+         */
+        public Object execute(MethodState mState, int[] fuel) throws Exception {
+            Class<?>[] parameterClasses = method.getParameterTypes();
+            Object[] arguments = new Object[parameterClasses.length];
+            for (int i = 0; i < (arguments.length - 1); i++) {
+                HeapItem item = mState.peekParameter(mState.getParameterStart() + i);
+                Object value = Utils.getIntegerValue(item.getValue());
+                if (!(value instanceof Integer)) {
+                    throw new IllegalArgumentException("Parameter " + i + " isn't an int: " + item);
+                }
+                arguments[i] = value;
+            }
+            arguments[arguments.length - 1] = fuel;
+
+            try {
+                return method.invoke(null, arguments);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                } else if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                }
+
+                throw e;
+            }
+        }
+
+    }
+
+    private static class IsolatedClassLoader extends ClassLoader {
+
+        IsolatedClassLoader() {
+            // Only bootstrap classes are visible
+            super(null);
+        }
+
+        Class<?> define(String className, byte[] classBytes) {
+            return defineClass(className, classBytes, 0, classBytes.length);
+        }
+
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(MethodCompiler.class.getSimpleName());
+
+    private static final String CLASS_NAME = "CompiledMethod";
+    private static final String METHOD_NAME = "execute";
+
+    private final SmaliClassManager classManager;
+    private final int compileThreshold;
+    private final ConcurrentMap<String, AtomicInteger> methodToExecutionCount;
+    private final ConcurrentMap<String, CompiledMethod> methodToCompiled;
+    private final Set<String> uncompilableMethods;
+
+    /**
+     * @param classManager
+     * @param compileThreshold
+     *            concrete executions of a method before it's compiled
+     */
+    public MethodCompiler(SmaliClassManager classManager, int compileThreshold) {
+        this.classManager = classManager;
+        this.compileThreshold = compileThreshold;
+        methodToExecutionCount = new ConcurrentHashMap<String, AtomicInteger>();
+        methodToCompiled = new ConcurrentHashMap<String, CompiledMethod>();
+        uncompilableMethods = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+
+    /**
+     * Count a concrete execution of the method, and compile it if it's now hot.
+     *
+     * @param methodDescriptor
+     * @return compiled method, or null if the method isn't hot yet or can't be compiled
+     */
+    public CompiledMethod getCompiledMethod(String methodDescriptor) {
+        CompiledMethod compiledMethod = methodToCompiled.get(methodDescriptor);
+        if ((compiledMethod != null) || uncompilableMethods.contains(methodDescriptor)) {
+            return compiledMethod;
+        }
+
+        AtomicInteger count = methodToExecutionCount.get(methodDescriptor);
+        if (count == null) {
+            AtomicInteger newCount = new AtomicInteger();
+            count = methodToExecutionCount.putIfAbsent(methodDescriptor, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        // Only the thread which reaches the threshold compiles
+        if (count.incrementAndGet() != compileThreshold) {
+            return null;
+        }
+
+        try {
+            compiledMethod = compile(methodDescriptor);
+            methodToCompiled.put(methodDescriptor, compiledMethod);
+            if (log.isDebugEnabled()) {
+                log.debug("Compiled " + methodDescriptor);
+            }
+        } catch (UncompilableMethod e) {
+            uncompilableMethods.add(methodDescriptor);
+            if (log.isDebugEnabled()) {
+                log.debug(e.toString());
+            }
+        }
+
+        return compiledMethod;
+    }
+
+    /**
+     * Don't compile the method until it's invalidated, e.g. because it's executed from a private implementation which
+     * may not match the method's own.
+     *
+     * @param methodDescriptor
+     */
+    public void exclude(String methodDescriptor) {
+        uncompilableMethods.add(methodDescriptor);
+        methodToCompiled.remove(methodDescriptor);
+    }
+
+    /**
+     * Forget everything about the method because its implementation changed.
+     *
+     * @param methodDescriptor
+     */
+    public void invalidate(String methodDescriptor) {
+        uncompilableMethods.remove(methodDescriptor);
+        methodToCompiled.remove(methodDescriptor);
+        methodToExecutionCount.remove(methodDescriptor);
+    }
+
+    private CompiledMethod compile(String methodDescriptor) throws UncompilableMethod {
+        BuilderMethod method = classManager.getMethod(methodDescriptor);
+        BytecodeTranslator translator;
+        byte[] classBytes;
+        // Implementations are shared between virtual machines and even reading them may modify them
+        synchronized (method) {
+            translator = new BytecodeTranslator(method, (MutableMethodImplementation) method.getImplementation());
+            classBytes = translator.translate(CLASS_NAME, METHOD_NAME);
+        }
+
+        try {
+            Class<?> klazz = new IsolatedClassLoader().define(CLASS_NAME, classBytes);
+            // Initializing verifies the class now rather than on the first call
+            Class.forName(CLASS_NAME, true, klazz.getClassLoader());
+            Method compiledMethod = klazz.getMethod(METHOD_NAME, translator.getParameterClasses());
+
+            return new CompiledMethod(compiledMethod, translator.getReturnType(), translator.getReturnAddress());
+        } catch (LinkageError | ReflectiveOperationException e) {
+            throw new UncompilableMethod(methodDescriptor, e.toString());
+        }
+    }
+
+}
@@ -6,14 +6,28 @@ import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.hash.TIntIntHashMap;
 
 import java.util.ArrayDeque;
+import java.util.Collections;
 import java.util.Deque;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.cf.smalivm.context.ExecutionContext;
 import org.cf.smalivm.context.ExecutionGraph;
 import org.cf.smalivm.context.ExecutionNode;
+import org.cf.smalivm.context.HeapItem;
+import org.cf.smalivm.context.MethodState;
 import org.cf.smalivm.exception.MaxAddressVisitsExceeded;
+import org.cf.smalivm.exception.MaxBudgetExceeded;
 import org.cf.smalivm.exception.MaxCallDepthExceeded;
 import org.cf.smalivm.exception.MaxMethodVisitsExceeded;
+import org.cf.smalivm.opcode.ExecutionContextOp;
+import org.cf.smalivm.opcode.InvokeOp;
+import org.cf.smalivm.opcode.MethodStateOp;
 import org.cf.smalivm.opcode.Op;
 import org.cf.util.SmaliClassUtils;
 import org.jf.dexlib2.iface.ExceptionHandler;
@@ -23,73 +37,578 @@ import org.slf4j.LoggerFactory;
 
 public class MethodExecutor {
 
+    /**
+     * Explores the subtree below a node. Whenever a node has several children, e.g. a branch with an unknown condition,
+     * all but the first are forked as new tasks so idle workers may steal them. Subtrees only write to their own nodes
+     * and contexts and read from their ancestors'. Ops are shared by every subtree, so anything which depends on how an
+     * op was executed, such as its side effect level, is kept in the node's context rather than the op.
+     */
+    private class ExploreTask extends RecursiveAction {
+
+        private static final long serialVersionUID = -1906381245376108155L;
+
+        private final ExecutionGraph graph;
+        private final ExecutionNode startNode;
+        private final TIntIntMap addressToVisitCount;
+        private final AtomicReference<Exception> failure;
+
+        private ExploreTask(ExecutionGraph graph, ExecutionNode startNode, TIntIntMap addressToVisitCount,
+                        AtomicReference<Exception> failure) {
+            this.graph = graph;
+            this.startNode = startNode;
+            this.addressToVisitCount = addressToVisitCount;
+            this.failure = failure;
+        }
+
+        @Override
+        protected void compute() {
+            List<ExploreTask> forkedTasks = new LinkedList<ExploreTask>();
+            Deque<ExecutionNode> executeStack = new ArrayDeque<ExecutionNode>();
+            executeStack.push(startNode);
+            ExecutionNode currentNode;
+            while ((null == failure.get()) && ((currentNode = executeStack.poll()) != null)) {
+                List<ExecutionNode> children;
+                try {
+                    children = visit(graph, currentNode, addressToVisitCount);
+                } catch (MaxAddressVisitsExceeded | MaxMethodVisitsExceeded | MaxBudgetExceeded e) {
+                    failure.compareAndSet(null, e);
+                    break;
+                }
+
+                for (int i = 1; i < children.size(); i++) {
+                    ExploreTask task = new ExploreTask(graph, children.get(i), addressToVisitCount, failure);
+                    task.fork();
+                    forkedTasks.add(task);
+                }
+                if (!children.isEmpty()) {
+                    executeStack.push(children.get(0));
+                }
+            }
+
+            for (ExploreTask task : forkedTasks) {
+                task.join();
+            }
+        }
+
+    }
+
+    /**
+     * A method being executed on the explicit frame stack. Invoking a local method pushes a new frame instead of
+     * recursing, so call depth is not limited by the thread's stack.
+     */
+    private static class Frame {
+
+        private final ExecutionGraph graph;
+        private final Deque<ExecutionNode> executeStack;
+        private final TIntIntMap addressToVisitCount;
+        // Null for the first frame
+        private final ExecutionNode invokeNode;
+        private final InvokeOp.LocalInvocation invocation;
+
+        private Frame(ExecutionGraph graph, ExecutionNode invokeNode, InvokeOp.LocalInvocation invocation) {
+            this.graph = graph;
+            this.invokeNode = invokeNode;
+            this.invocation = invocation;
+            executeStack = new ArrayDeque<ExecutionNode>();
+            executeStack.push(graph.getRoot());
+            addressToVisitCount = new TIntIntHashMap();
+        }
+
+    }
+
     private static Logger log = LoggerFactory.getLogger(MethodExecutor.class.getSimpleName());
 
+    // Checking the budget reads the clock and heap size, so only check every this many visits. Must be a power of 2.
+    private static final int BUDGET_CHECK_INTERVAL = 64;
+
     private final VirtualMachine vm;
-    private int totalVisits;
+    // Null if execution is on the calling thread
+    private final ForkJoinPool pool;
+    private final AtomicInteger totalVisits;
+    // Set when a method is executed from a start or root entry point, invoked methods share its budget
+    private volatile long methodStartMillis;
+    private volatile long methodStartHeap;
 
     MethodExecutor(VirtualMachine vm) {
+        this(vm, 1);
+    }
+
+    /**
+     *
+     * @param vm
+     * @param threadCount
+     *            number of threads used to explore independent paths of a method, or 1 to use only the calling thread
+     */
+    MethodExecutor(VirtualMachine vm, int threadCount) {
         this.vm = vm;
-        totalVisits = 0;
+        pool = threadCount > 1 ? new ForkJoinPool(threadCount) : null;
+        totalVisits = new AtomicInteger();
     }
 
     private void resetTotalVisits() {
-        totalVisits = 0;
+        totalVisits.set(0);
     }
 
     ExecutionGraph execute(ExecutionGraph graph) throws MaxAddressVisitsExceeded, MaxCallDepthExceeded,
-                    MaxMethodVisitsExceeded {
-        TIntIntMap addressToVisitCount = new TIntIntHashMap();
-        String methodDescriptor = graph.getMethodDescriptor();
-        List<? extends TryBlock<? extends ExceptionHandler>> tryBlocks = vm.getClassManager().getTryBlocks(
-                        methodDescriptor);
+                    MaxMethodVisitsExceeded, MaxBudgetExceeded {
+        startMethod(graph);
+        ExecutionGraph concreteGraph = executeConcretely(graph);
+        if (concreteGraph != null) {
+            return concreteGraph;
+        }
+
+        if (null != pool) {
+            executeInParallel(graph, graph.getRoot(), new TIntIntHashMap());
 
-        ExecutionNode currentNode = graph.getRoot();
-        int callDepth = currentNode.getCallDepth();
+            return graph;
+        }
+
+        return executeFrames(graph);
+    }
+
+    private void startMethod(ExecutionGraph graph) throws MaxCallDepthExceeded {
+        String methodDescriptor = graph.getMethodDescriptor();
+        int callDepth = graph.getRoot().getCallDepth();
         if (log.isInfoEnabled()) {
             log.info("Executing " + methodDescriptor + ", depth=" + callDepth);
         }
-        if (currentNode.getCallDepth() > vm.getMaxCallDepth()) {
+        if (callDepth > vm.getMaxCallDepth()) {
             throw new MaxCallDepthExceeded(methodDescriptor);
         }
 
         if (callDepth == 0) {
             // This is a start or root entry point.
             resetTotalVisits();
+            if (!vm.getExecutionBudget().isUnlimited()) {
+                methodStartMillis = System.currentTimeMillis();
+                methodStartHeap = vm.getExecutionBudget().getAllocatedHeap();
+            }
         }
+    }
 
-        Deque<ExecutionNode> executeStack = new ArrayDeque<ExecutionNode>();
-        executeStack.push(currentNode);
-        while ((currentNode = executeStack.poll()) != null) {
-            totalVisits += 1;
-            checkMaxVisits(currentNode, methodDescriptor, addressToVisitCount);
+    /*
+     * Execute a method and every local method it invokes on an explicit stack of frames. Nodes are visited in the
+     * same order as recursive invocation would visit them: an invoked method runs to completion before its caller
+     * continues.
+     */
+    private ExecutionGraph executeFrames(ExecutionGraph graph) throws MaxAddressVisitsExceeded,
+                    MaxMethodVisitsExceeded, MaxBudgetExceeded {
+        Deque<Frame> frames = new ArrayDeque<Frame>();
+        frames.push(new Frame(graph, null, null));
+        while (true) {
+            Frame frame = frames.peek();
+            ExecutionNode currentNode = frame.executeStack.poll();
+            if (currentNode == null) {
+                frames.pop();
+                if (frame.invocation == null) {
+                    return frame.graph;
+                }
+                returnToCaller(frames.peek(), frame.invokeNode, frame.invocation, frame.graph);
+                continue;
+            }
 
-            int[] childAddresses = new int[0];
             try {
-                childAddresses = currentNode.execute();
-            } catch (Exception ex) {
+                Frame calleeFrame = step(frame, currentNode);
+                if (calleeFrame != null) {
+                    frames.push(calleeFrame);
+                }
+            } catch (MaxAddressVisitsExceeded | MaxMethodVisitsExceeded | MaxBudgetExceeded e) {
+                frames.pop();
+                if (frame.invocation == null) {
+                    throw e;
+                }
                 if (log.isWarnEnabled()) {
-                    log.warn(currentNode + " generated an exception:", ex);
+                    log.warn(e.toString());
                 }
-                childAddresses = currentNode.getOp().getPossibleChildren();
-                int[] catchAddresses = getCatchAddresses(ex, currentNode.getAddress(), tryBlocks);
-                addChildrenToGraph(graph, catchAddresses, currentNode);
+                returnToCaller(frames.peek(), frame.invokeNode, frame.invocation, null);
             }
-            addChildrenToGraph(graph, childAddresses, currentNode);
+        }
+    }
+
+    /*
+     * Visit a node of the top frame. Local invocations are not executed here, but set up as a new frame.
+     *
+     * @return frame of the invoked method, or null if nothing was invoked
+     */
+    private Frame step(Frame frame, ExecutionNode node) throws MaxAddressVisitsExceeded, MaxMethodVisitsExceeded,
+                    MaxBudgetExceeded {
+        if (!(node.getOp() instanceof InvokeOp)) {
+            frame.executeStack.addAll(visit(frame.graph, node, frame.addressToVisitCount));
+
+            return null;
+        }
+
+        countVisit(frame.graph, node, frame.addressToVisitCount);
+        InvokeOp.LocalInvocation invocation = null;
+        int[] childAddresses;
+        try {
+            invocation = ((InvokeOp) node.getOp()).prepare(node.getContext());
+            childAddresses = node.getOp().getPossibleChildren();
+        } catch (Exception ex) {
+            childAddresses = handleException(frame.graph, node, ex);
+        }
+        if (invocation == null) {
+            chargeSummarizedVisits(frame.graph, node);
+            frame.executeStack.addAll(finishVisit(frame.graph, node, childAddresses));
 
-            executeStack.addAll(currentNode.getChildren());
+            return null;
         }
 
+        ExecutionGraph calleeGraph;
+        try {
+            calleeGraph = vm.prepareExecution(invocation.getMethodDescriptor(), invocation.getCalleeContext(),
+                            invocation.getCallerContext());
+        } catch (Exception ex) {
+            childAddresses = handleException(frame.graph, node, ex);
+            frame.executeStack.addAll(finishVisit(frame.graph, node, childAddresses));
+
+            return null;
+        }
+
+        try {
+            startMethod(calleeGraph);
+        } catch (MaxCallDepthExceeded e) {
+            if (log.isWarnEnabled()) {
+                log.warn(e.toString());
+            }
+            returnToCaller(frame, node, invocation, null);
+
+            return null;
+        }
+
+        ExecutionGraph concreteGraph = executeConcretely(calleeGraph);
+        if (concreteGraph != null) {
+            returnToCaller(frame, node, invocation, concreteGraph);
+
+            return null;
+        }
+
+        return new Frame(calleeGraph, node, invocation);
+    }
+
+    /*
+     * Apply the result of an invoked method to the caller and continue with the invoke node's children.
+     */
+    private void returnToCaller(Frame caller, ExecutionNode invokeNode, InvokeOp.LocalInvocation invocation,
+                    ExecutionGraph result) {
+        int[] childAddresses;
+        try {
+            vm.finishExecution(invocation.getMethodDescriptor(), result, invocation.getCalleeContext(),
+                            invocation.getCallerContext(), invocation.getParameterRegisters());
+            invocation.finish(result);
+            childAddresses = invokeNode.getOp().getPossibleChildren();
+        } catch (Exception ex) {
+            childAddresses = handleException(caller.graph, invokeNode, ex);
+        }
+        caller.executeStack.addAll(finishVisit(caller.graph, invokeNode, childAddresses));
+    }
+
+    private void executeInParallel(ExecutionGraph graph, ExecutionNode rootNode, TIntIntMap addressToVisitCount)
+                    throws MaxAddressVisitsExceeded, MaxMethodVisitsExceeded, MaxBudgetExceeded {
+        AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        ExploreTask task = new ExploreTask(graph, rootNode, addressToVisitCount, failure);
+        if (ForkJoinTask.inForkJoinPool()) {
+            // Invoked method of a path already being explored, forked tasks go to the same pool
+            task.invoke();
+        } else {
+            pool.invoke(task);
+        }
+
+        Exception e = failure.get();
+        if (e instanceof MaxAddressVisitsExceeded) {
+            throw (MaxAddressVisitsExceeded) e;
+        } else if (e instanceof MaxMethodVisitsExceeded) {
+            throw (MaxMethodVisitsExceeded) e;
+        } else if (e instanceof MaxBudgetExceeded) {
+            throw (MaxBudgetExceeded) e;
+        }
+    }
+
+    /*
+     * Execute an invoked method whose arguments are all known along its only path, in a single context which every op
+     * updates in place. No node or context is built per instruction. Unknown values which don't decide a branch are
+     * handled the same as when exploring, so this only gives up when the path would fork, an op throws or can't
+     * continue, a local method is invoked, or the visit limits are reached. The caller then explores the method.
+     *
+     * @return graph with the root node and one terminating node holding the final state, or null if the method must be
+     * explored
+     */
+    private ExecutionGraph executeConcretely(ExecutionGraph graph) {
+        ExecutionNode rootNode = graph.getRoot();
+        if ((rootNode.getCallDepth() == 0) || !allParametersKnown(rootNode.getContext().getMethodState())) {
+            // Root methods are explored fully so they can be optimized
+            return null;
+        }
+
+        MethodCompiler methodCompiler = vm.getMethodCompiler();
+        if (methodCompiler != null) {
+            MethodCompiler.CompiledMethod compiledMethod = methodCompiler.getCompiledMethod(graph
+                            .getMethodDescriptor());
+            if ((compiledMethod != null) && executeCompiled(graph, compiledMethod)) {
+                return graph;
+            }
+        }
+
+        ExecutionContext ectx = rootNode.getContext().getChild();
+        TIntIntMap addressToVisitCount = new TIntIntHashMap();
+        // No node is built per op, so the context keeps the highest side effect level of every op
+        SideEffect.Level highestLevel = SideEffect.Level.NONE;
+        int visits = 0;
+        Op op = rootNode.getOp();
+        try {
+            while (true) {
+                visits++;
+                int totalVisitCount = totalVisits.incrementAndGet();
+                int addressVisitCount = addressToVisitCount.adjustOrPutValue(op.getAddress(), 1, 1);
+                if ((totalVisitCount > vm.getMaxMethodVisits()) || (addressVisitCount > vm.getMaxAddressVisits())) {
+                    return abandonConcreteExecution(graph, visits, "visit limit");
+                }
+                if (((totalVisitCount & (BUDGET_CHECK_INTERVAL - 1)) == 0) && !vm.getExecutionBudget().isUnlimited()
+                                && (vm.getExecutionBudget().getExceededBudget(methodStartMillis, methodStartHeap) != null)) {
+                    return abandonConcreteExecution(graph, visits, "budget");
+                }
+                ectx.setOpSideEffectLevel(null);
+                ectx.setSummarizedVisits(0);
+                int[] childAddresses;
+                if (op instanceof InvokeOp) {
+                    if (((InvokeOp) op).prepare(ectx) != null) {
+                        return abandonConcreteExecution(graph, visits, "local invocation");
+                    }
+                    childAddresses = op.getPossibleChildren();
+                } else if (op instanceof MethodStateOp) {
+                    childAddresses = ((MethodStateOp) op).execute(ectx.getMethodState());
+                } else {
+                    childAddresses = ((ExecutionContextOp) op).execute(ectx);
+                }
+                int summarizedVisits = ectx.getSummarizedVisits();
+                if (summarizedVisits > 0) {
+                    visits += summarizedVisits;
+                    if (totalVisits.addAndGet(summarizedVisits) > vm.getMaxMethodVisits()) {
+                        return abandonConcreteExecution(graph, visits, "visit limit");
+                    }
+                }
+                SideEffect.Level level = ectx.getOpSideEffectLevel();
+                if (level == null) {
+                    level = op.sideEffectLevel();
+                }
+                if (level.getValue() > highestLevel.getValue()) {
+                    highestLevel = level;
+                }
+
+                if (childAddresses.length == 0) {
+                    break;
+                } else if ((childAddresses.length > 1) || graph.isTerminatingAddress(op.getAddress())) {
+                    return abandonConcreteExecution(graph, visits, op.toString());
+                }
+                op = graph.getTemplateNode(childAddresses[0]).getOp();
+            }
+        } catch (Exception e) {
+            return abandonConcreteExecution(graph, visits, e.toString());
+        }
+
+        recordVisits(ectx, visits);
+        ExecutionNode terminatingNode = new ExecutionNode(op);
+        ectx.setOpSideEffectLevel(highestLevel);
+        terminatingNode.setContext(ectx);
+        terminatingNode.setParent(rootNode);
+        graph.addNode(terminatingNode);
+        graph.updateConsensus(terminatingNode);
+
         return graph;
     }
 
-    private static void addChildrenToGraph(ExecutionGraph graph, int[] childAddresses, ExecutionNode parentNode) {
+    /*
+     * Run the compiled method and add a terminating node with its return value. Compiled methods can't touch fields,
+     * invoke, or get arrays as parameters, so the return value is the only change to the state. The fuel is what's left
+     * of the method visits, so a compiled loop runs about as long as an interpreted one could.
+     *
+     * @return true if the method ran, or false if it must be executed by ops instead
+     */
+    private boolean executeCompiled(ExecutionGraph graph, MethodCompiler.CompiledMethod compiledMethod) {
+        ExecutionNode rootNode = graph.getRoot();
+        ExecutionContext ectx = rootNode.getContext().getChild();
+        int fuel = vm.getMaxMethodVisits() - totalVisits.get();
+        int[] fuelLeft = new int[] { fuel };
+        Object result;
+        try {
+            result = compiledMethod.execute(ectx.getMethodState(), fuelLeft);
+        } catch (Exception e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Executing " + graph.getMethodDescriptor() + " by ops instead of compiled: " + e);
+            }
+
+            return false;
+        }
+        // Compiled methods use up fuel for each instruction, which is what executing their ops would have counted
+        totalVisits.addAndGet(fuel - fuelLeft[0]);
+        recordVisits(ectx, fuel - fuelLeft[0]);
+
+        if (!"V".equals(compiledMethod.getReturnType())) {
+            ectx.getMethodState().assignReturnRegister(result, compiledMethod.getReturnType());
+        }
+        ExecutionNode terminatingNode = new ExecutionNode(graph.getTemplateNode(compiledMethod.getReturnAddress())
+                        .getOp());
+        terminatingNode.setContext(ectx);
+        terminatingNode.setParent(rootNode);
+        graph.addNode(terminatingNode);
+        graph.updateConsensus(terminatingNode);
+
+        return true;
+    }
+
+    private ExecutionGraph abandonConcreteExecution(ExecutionGraph graph, int visits, String reason) {
+        // Exploring the method counts these visits again
+        totalVisits.addAndGet(-visits);
+        if (log.isDebugEnabled()) {
+            log.debug("Exploring " + graph.getMethodDescriptor() + " instead of executing concretely: " + reason);
+        }
+
+        return null;
+    }
+
+    private static boolean allParametersKnown(MethodState mState) {
+        for (int parameterRegister = mState.getParameterStart(); parameterRegister < mState.getRegisterCount();) {
+            HeapItem item = mState.peekParameter(parameterRegister);
+            if (item.isUnknown()) {
+                return false;
+            }
+            String type = item.getType();
+            parameterRegister += "J".equals(type) || "D".equals(type) ? 2 : 1;
+        }
+
+        return true;
+    }
+
+    /**
+     * Execute a node and add its children to the graph.
+     *
+     * @return children to explore, which is none if the node was merged with an equivalent node
+     */
+    private List<ExecutionNode> visit(ExecutionGraph graph, ExecutionNode node, TIntIntMap addressToVisitCount)
+                    throws MaxAddressVisitsExceeded, MaxMethodVisitsExceeded, MaxBudgetExceeded {
+        countVisit(graph, node, addressToVisitCount);
+
+        int[] childAddresses;
+        try {
+            childAddresses = node.execute();
+        } catch (Exception ex) {
+            childAddresses = handleException(graph, node, ex);
+        }
+        chargeSummarizedVisits(graph, node);
+
+        return finishVisit(graph, node, childAddresses);
+    }
+
+    private void countVisit(ExecutionGraph graph, ExecutionNode node, TIntIntMap addressToVisitCount)
+                    throws MaxAddressVisitsExceeded, MaxMethodVisitsExceeded, MaxBudgetExceeded {
+        int visits = totalVisits.incrementAndGet();
+        recordVisits(node.getContext(), 1);
+        checkMaxVisits(node, graph.getMethodDescriptor(), addressToVisitCount);
+        if ((visits & (BUDGET_CHECK_INTERVAL - 1)) == 0) {
+            checkBudget(node, graph.getMethodDescriptor());
+        }
+    }
+
+    /*
+     * Charge the visits of invoked methods whose summaries the node's op used, as if they had been executed.
+     */
+    private void chargeSummarizedVisits(ExecutionGraph graph, ExecutionNode node) throws MaxMethodVisitsExceeded {
+        int visits = node.getContext().getSummarizedVisits();
+        if (visits == 0) {
+            return;
+        }
+        recordVisits(node.getContext(), visits);
+        if (totalVisits.addAndGet(visits) > vm.getMaxMethodVisits()) {
+            throw new MaxMethodVisitsExceeded(node, graph.getMethodDescriptor());
+        }
+    }
+
+    private static void recordVisits(ExecutionContext ectx, int visits) {
+        MethodSummaryCache.Recorder recorder = ectx.getSummaryRecorder();
+        if (recorder != null) {
+            recorder.recordVisits(visits);
+        }
+    }
+
+    /*
+     * Add any catch handlers for the exception as children.
+     *
+     * @return addresses of the remaining children
+     */
+    private int[] handleException(ExecutionGraph graph, ExecutionNode node, Exception ex) {
+        if (log.isWarnEnabled()) {
+            log.warn(node + " generated an exception:", ex);
+        }
+        if (!node.isMerged()) {
+            int[] catchAddresses = getCatchAddresses(ex, node.getAddress(), graph.getTryBlocks());
+            addChildrenToGraph(graph, catchAddresses, node);
+        }
+
+        return node.getOp().getPossibleChildren();
+    }
+
+    private List<ExecutionNode> finishVisit(ExecutionGraph graph, ExecutionNode node, int[] childAddresses) {
+        graph.updateConsensus(node);
+        if (node.isMerged()) {
+            // Children are shared with the equivalent node, which explores them
+            return Collections.emptyList();
+        }
+        addChildrenToGraph(graph, childAddresses, node);
+
+        return node.getChildren();
+    }
+
+    private void addChildrenToGraph(ExecutionGraph graph, int[] childAddresses, ExecutionNode parentNode) {
         // Each visit adds a new ExecutionNode to the pile. These piles can be inspected for register or field
         // consensus, or other optimizations.
+        List<ExecutionNode> childNodes = new LinkedList<ExecutionNode>();
         for (int address : childAddresses) {
             Op childOp = graph.getTemplateNode(address).getOp();
-            ExecutionNode childNode = parentNode.getChild(childOp);
-            graph.addNode(childNode);
+            childNodes.add(parentNode.getChild(childOp));
+        }
+
+        // Widening looks for branches in the last iteration, so all children must be added to the parent first
+        for (ExecutionNode childNode : childNodes) {
+            if ((vm.getLoopWideningThreshold() > 0) && graph.isLoopHead(childNode.getAddress())) {
+                widenLoop(childNode);
+            }
+            graph.addNodeAndMerge(childNode);
+        }
+    }
+
+    /*
+     * If a loop head has been reached enough times on this path, and the last iteration branched so the loop may not
+     * end, make everything the iteration changed unknown. Once an iteration changes nothing, the path is merged with
+     * the previous iteration, which explores the rest. Loops with known bounds never branch and are left alone.
+     */
+    private void widenLoop(ExecutionNode node) {
+        int address = node.getAddress();
+        ExecutionNode previous = null;
+        boolean isBranched = false;
+        int iterations = 0;
+        ExecutionNode current = node.getParent();
+        while ((current != null) && (iterations < vm.getLoopWideningThreshold())) {
+            if ((previous == null) && (current.getChildren().size() > 1)) {
+                isBranched = true;
+            }
+            if (current.getAddress() == address) {
+                if (previous == null) {
+                    previous = current;
+                }
+                iterations++;
+            }
+            current = current.getParent();
+        }
+
+        if ((iterations < vm.getLoopWideningThreshold()) || !isBranched || (previous.getParent() == null)) {
+            return;
+        }
+
+        int widenedCount = node.getContext().widen(previous.getContext());
+        if (widenedCount == 0) {
+            node.mergeInto(previous);
+        } else if (log.isDebugEnabled()) {
+            log.debug("Widened " + widenedCount + " values at loop head " + node);
         }
     }
 
@@ -119,20 +638,35 @@ public class MethodExecutor {
         return addresses.toArray();
     }
 
+    private void checkBudget(ExecutionNode node, String methodDescriptor) throws MaxBudgetExceeded {
+        ExecutionBudget budget = vm.getExecutionBudget();
+        if (budget.isUnlimited()) {
+            return;
+        }
+
+        String exceededBudget = budget.getExceededBudget(methodStartMillis, methodStartHeap);
+        if (exceededBudget != null) {
+            throw new MaxBudgetExceeded(node, methodDescriptor, exceededBudget);
+        }
+    }
+
     private void checkMaxVisits(ExecutionNode node, String methodDescriptor, TIntIntMap addressToVisitCount)
                     throws MaxAddressVisitsExceeded, MaxMethodVisitsExceeded {
-        if (totalVisits > vm.getMaxMethodVisits()) {
+        if (totalVisits.get() > vm.getMaxMethodVisits()) {
             throw new MaxMethodVisitsExceeded(node, methodDescriptor);
         }
 
         int address = node.getAddress();
-        int visitCount = addressToVisitCount.get(address);
-        if (visitCount > vm.getMaxAddressVisits()) {
-            throw new MaxAddressVisitsExceeded(node, methodDescriptor);
-        }
-        boolean adjusted = addressToVisitCount.adjustValue(address, 1);
-        if (!adjusted) {
-            addressToVisitCount.put(address, 1);
+        // May be shared by several exploring threads
+        synchronized (addressToVisitCount) {
+            int visitCount = addressToVisitCount.get(address);
+            if (visitCount > vm.getMaxAddressVisits()) {
+                throw new MaxAddressVisitsExceeded(node, methodDescriptor);
+            }
+            boolean adjusted = addressToVisitCount.adjustValue(address, 1);
+            if (!adjusted) {
+                addressToVisitCount.put(address, 1);
+            }
         }
     }
 
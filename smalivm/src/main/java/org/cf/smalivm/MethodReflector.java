@@ -1,18 +1,27 @@
 package org.cf.smalivm;
 
 import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationTargetException;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.beanutils.ConstructorUtils;
 import org.apache.commons.beanutils.MethodUtils;
+import org.apache.commons.lang3.ClassUtils;
+import org.cf.smalivm.SymbolTable.Symbol;
 import org.cf.smalivm.context.HeapItem;
 import org.cf.smalivm.context.MethodState;
 import org.cf.smalivm.type.UnknownValue;
+import org.cf.util.ClassIndex;
 import org.cf.util.ConfigLoader;
+import org.cf.util.SmaliClassUtils;
 import org.cf.util.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,21 +30,22 @@ public class MethodReflector {
 
     private static Logger log = LoggerFactory.getLogger(MethodReflector.class.getSimpleName());
 
-    private static final String SAFE_CLASSES_PATH = "safe_classes.cfg";
     private static final String SAFE_METHODS_PATH = "safe_methods.cfg";
     private static final String UNSAFE_METHODS_PATH = "unsafe_methods.cfg";
 
-    private static Set<String> SafeClasses;
     private static Set<String> SafeMethods;
     private static Set<String> UnsafeMethods;
 
+    // Resolved method handles by method descriptor. Descriptors which can't be resolved map to NoHandle.
+    private static final ConcurrentMap<String, MethodHandle> descriptorToHandle = new ConcurrentHashMap<String, MethodHandle>();
+    private static final MethodHandle NoHandle = MethodHandles.constant(Object.class, null);
+
     static {
         try {
-            loadSafeClasses();
             loadSafeMethods();
             loadUnsafeMethods();
         } catch (Exception e) {
-            log.warn("Error loading safe class definitions.", e);
+            log.warn("Error loading safe method definitions.", e);
         }
     }
 
@@ -44,14 +54,14 @@ public class MethodReflector {
     }
 
     public static boolean isSafe(String typeDescriptor) {
-        String[] parts = typeDescriptor.split("->");
-        String className = parts[0];
+        Symbol symbol = SymbolTable.getSymbol(typeDescriptor);
+        String className = symbol.getClassName();
 
-        if (SafeClasses.contains(className) && !UnsafeMethods.contains(typeDescriptor)) {
+        if (ClassIndex.getInstance().isSafe(className) && !UnsafeMethods.contains(typeDescriptor)) {
             return true;
         }
 
-        if (parts.length > 1) {
+        if (!symbol.isClass()) {
             // It's a method name
             if (SafeMethods.contains(typeDescriptor)) {
                 return true;
@@ -61,10 +71,93 @@ public class MethodReflector {
         return false;
     }
 
-    private static void loadSafeClasses() throws IOException {
-        // Methods from safe classes must not have any side effects, e.g. any IO.
-        List<String> lines = ConfigLoader.loadConfig(SAFE_CLASSES_PATH);
-        SafeClasses = new HashSet<String>(lines);
+    /**
+     *
+     * @param methodDescriptor
+     * @return true if the method or constructor is public and available at runtime
+     */
+    public static boolean methodExists(String methodDescriptor) {
+        return null != getMethodHandle(methodDescriptor);
+    }
+
+    /**
+     * Resolve the method handle for a descriptor once and cache it, so reflected calls don't search for the method
+     * every time.
+     *
+     * @param methodDescriptor
+     * @return method handle, or null if the method can't be resolved
+     */
+    static MethodHandle getMethodHandle(String methodDescriptor) {
+        MethodHandle handle = descriptorToHandle.get(methodDescriptor);
+        if (null == handle) {
+            handle = lookupMethodHandle(methodDescriptor);
+            descriptorToHandle.putIfAbsent(methodDescriptor, null == handle ? NoHandle : handle);
+        }
+
+        return NoHandle == handle ? null : handle;
+    }
+
+    private static boolean canInvoke(MethodHandle handle, Object[] args) {
+        MethodType type = handle.type();
+        if (type.parameterCount() != args.length) {
+            return false;
+        }
+
+        for (int i = 0; i < args.length; i++) {
+            Class<?> parameterType = type.parameterType(i);
+            if (null == args[i]) {
+                if (parameterType.isPrimitive()) {
+                    return false;
+                }
+            } else if (!ClassUtils.isAssignable(args[i].getClass(), parameterType, true)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static Class<?> getJavaClass(String smaliType) throws ClassNotFoundException {
+        String javaType = SmaliClassUtils.smaliClassToJava(smaliType);
+        if (SmaliClassUtils.isPrimitiveType(smaliType)) {
+            return SmaliClassUtils.getPrimitiveType(javaType);
+        }
+
+        return Class.forName(javaType);
+    }
+
+    private static Object invoke(MethodHandle handle, Object[] args) throws InvocationTargetException {
+        try {
+            return handle.invokeWithArguments(args);
+        } catch (Throwable e) {
+            // Arguments were checked, so anything thrown is from the method itself
+            throw new InvocationTargetException(e);
+        }
+    }
+
+    private static MethodHandle lookupMethodHandle(String methodDescriptor) {
+        Symbol method = SymbolTable.getSymbol(methodDescriptor);
+        try {
+            Class<?> klazz = getJavaClass(method.getClassName());
+            List<String> parameterTypes = method.getParameterTypes();
+            Class<?>[] params = new Class<?>[parameterTypes.size()];
+            for (int i = 0; i < params.length; i++) {
+                params[i] = getJavaClass(parameterTypes.get(i));
+            }
+
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            if ("<init>".equals(method.getName())) {
+                return lookup.unreflectConstructor(klazz.getConstructor(params));
+            }
+
+            return lookup.unreflect(klazz.getMethod(method.getName(), params));
+        } catch (ClassNotFoundException | NoSuchMethodException | SecurityException | IllegalAccessException e) {
+            if (log.isTraceEnabled()) {
+                log.trace("No method handle for " + methodDescriptor + ": " + e);
+            }
+
+            return null;
+        }
     }
 
     private static void loadSafeMethods() throws IOException {
@@ -91,11 +184,11 @@ public class MethodReflector {
         this.parameterTypes = parameterTypes;
         this.isStatic = isStatic;
 
-        String[] parts = methodDescriptor.split("->");
+        Symbol method = SymbolTable.getSymbol(methodDescriptor);
         // ClassUtils expects "Ljava.lang.Class;"
-        smaliClassName = parts[0];
+        smaliClassName = method.getClassName();
         javaIshClassName = smaliClassName.replaceAll("/", ".");
-        methodName = parts[1].substring(0, parts[1].indexOf("("));
+        methodName = method.getName();
     }
 
     public void reflect(MethodState calleeContext) {
@@ -105,33 +198,26 @@ public class MethodReflector {
 
         Object resultValue = null;
         try {
-            // Class<?> clazz = ClassUtils.getClass(javaIshClassName, false);
-            // Strip leading 'L' and trailing ';' from smali type descriptor
-            Class<?> clazz = Class.forName(javaIshClassName.substring(1, javaIshClassName.length() - 1));
             Object[] args = getArguments(calleeContext);
-            if ("<init>".equals(methodName)) {
-                // This class is used by the JVM to do instance initialization, i.e. newInstance. Can't just reflect it.
+            MethodHandle handle = getMethodHandle(methodDescriptor);
+            boolean isInitializer = "<init>".equals(methodName);
+            Object[] handleArgs = args;
+            if (!isStatic && !isInitializer) {
+                handleArgs = new Object[args.length + 1];
+                handleArgs[0] = calleeContext.peekRegister(0).getValue();
+                System.arraycopy(args, 0, handleArgs, 1, args.length);
+            }
+
+            if ((null != handle) && canInvoke(handle, handleArgs)) {
                 if (log.isDebugEnabled()) {
-                    log.debug("Reflecting " + methodDescriptor + ", clazz=" + clazz + " args=" + Arrays.toString(args));
+                    log.debug("Reflecting " + methodDescriptor + " with handle, args=" + Arrays.toString(handleArgs));
                 }
-                resultValue = ConstructorUtils.invokeConstructor(clazz, args);
-                // kind of a hack. store newly init'ed value here
-                calleeContext.assignParameter(0, new HeapItem(resultValue, smaliClassName));
-            } else {
-                if (isStatic) {
-                    if (log.isDebugEnabled()) {
-                        log.debug("Reflecting " + methodDescriptor + ", clazz=" + clazz + " args="
-                                        + Arrays.toString(args));
-                    }
-                    resultValue = MethodUtils.invokeStaticMethod(clazz, methodName, args);
-                } else {
-                    HeapItem targetItem = calleeContext.peekRegister(0);
-                    if (log.isDebugEnabled()) {
-                        log.debug("Reflecting " + methodDescriptor + ", target=" + targetItem + " args="
-                                        + Arrays.toString(args));
-                    }
-                    resultValue = MethodUtils.invokeMethod(targetItem.getValue(), methodName, args);
+                resultValue = invoke(handle, handleArgs);
+                if (isInitializer) {
+                    calleeContext.assignParameter(0, new HeapItem(resultValue, smaliClassName));
                 }
+            } else {
+                resultValue = reflectWithoutHandle(calleeContext, args);
             }
         } catch (NullPointerException | ClassNotFoundException | NoSuchMethodException | SecurityException
                         | InstantiationException | IllegalAccessException | IllegalArgumentException
@@ -153,6 +239,39 @@ public class MethodReflector {
         }
     }
 
+    private Object reflectWithoutHandle(MethodState calleeContext, Object[] args) throws ClassNotFoundException,
+                    NoSuchMethodException, IllegalAccessException, InvocationTargetException, InstantiationException {
+        Object resultValue;
+        // Class<?> clazz = ClassUtils.getClass(javaIshClassName, false);
+        // Strip leading 'L' and trailing ';' from smali type descriptor
+        Class<?> clazz = Class.forName(javaIshClassName.substring(1, javaIshClassName.length() - 1));
+        if ("<init>".equals(methodName)) {
+            // This class is used by the JVM to do instance initialization, i.e. newInstance. Can't just reflect it.
+            if (log.isDebugEnabled()) {
+                log.debug("Reflecting " + methodDescriptor + ", clazz=" + clazz + " args=" + Arrays.toString(args));
+            }
+            resultValue = ConstructorUtils.invokeConstructor(clazz, args);
+            // kind of a hack. store newly init'ed value here
+            calleeContext.assignParameter(0, new HeapItem(resultValue, smaliClassName));
+        } else {
+            if (isStatic) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Reflecting " + methodDescriptor + ", clazz=" + clazz + " args=" + Arrays.toString(args));
+                }
+                resultValue = MethodUtils.invokeStaticMethod(clazz, methodName, args);
+            } else {
+                HeapItem targetItem = calleeContext.peekRegister(0);
+                if (log.isDebugEnabled()) {
+                    log.debug("Reflecting " + methodDescriptor + ", target=" + targetItem + " args="
+                                    + Arrays.toString(args));
+                }
+                resultValue = MethodUtils.invokeMethod(targetItem.getValue(), methodName, args);
+            }
+        }
+
+        return resultValue;
+    }
+
     private Object[] getArguments(MethodState mState) {
         int offset = 0;
         if (!isStatic) {
@@ -0,0 +1,404 @@
+package org.cf.smalivm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cf.smalivm.SymbolTable.Symbol;
+import org.cf.smalivm.context.ExecutionContext;
+import org.cf.smalivm.context.HeapItem;
+import org.cf.smalivm.context.MethodState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Summaries of local method executions which may stand in for executing the method again. A summary is keyed by the
+ * method and its arguments and is only reused if the caller has the same classes initialized, and the same values for
+ * every static field, that the original execution read.
+ *
+ * Only executions which didn't initialize classes or assign static fields are summarized, and all arguments, field
+ * values, and results must be unknown, null, or values of immutable classes so they can be compared by value.
+ *
+ * Using a summary costs the visits of the execution it stands in for, and is only allowed if the execution's own
+ * invocations would fit within the call depth limit, so limits are reached the same way whether or not a summary is
+ * used.
+ *
+ * @author cfenton
+ *
+ */
+public class MethodSummaryCache {
+
+    /**
+     * Collects the class state a method execution depends on, and how many visits and how deep the invocations of the
+     * execution took. Recorders of invoked methods forward everything to the recorder of their caller so the caller's
+     * summary includes it.
+     */
+    public static class Recorder {
+
+        private final Recorder parent;
+        private final Map<String, SideEffect.Level> classNameToLevel;
+        private final Map<Symbol, Object> fieldToKey;
+        private boolean isSummarizable;
+        // Counted by every exploring thread, so not guarded by the recorder's lock
+        private final AtomicInteger visits;
+        private int invocationDepth;
+
+        public Recorder(Recorder parent) {
+            this.parent = parent;
+            classNameToLevel = new HashMap<String, SideEffect.Level>();
+            fieldToKey = new HashMap<Symbol, Object>();
+            isSummarizable = true;
+            visits = new AtomicInteger();
+        }
+
+        // Recorders are chained as deep as the call stack, so the chain is walked rather than recursed.
+
+        public void invalidate() {
+            for (Recorder recorder = this; recorder != null; recorder = recorder.parent) {
+                synchronized (recorder) {
+                    recorder.isSummarizable = false;
+                }
+            }
+        }
+
+        public synchronized boolean isSummarizable() {
+            return isSummarizable;
+        }
+
+        /**
+         * Count visits of the method's own ops. Visits of invoked methods are added once they finish, see
+         * {@link #recordInvocation(Recorder)}.
+         *
+         * @param visitCount
+         */
+        public void recordVisits(int visitCount) {
+            visits.addAndGet(visitCount);
+        }
+
+        /**
+         * Add the visits and invocation depth of an invoked method which finished executing.
+         *
+         * @param calleeRecorder
+         */
+        public void recordInvocation(Recorder calleeRecorder) {
+            recordVisits(calleeRecorder.visits.get());
+            recordInvocationDepth(calleeRecorder.getInvocationDepth() + 1);
+        }
+
+        private synchronized int getInvocationDepth() {
+            return invocationDepth;
+        }
+
+        private synchronized void recordInvocationDepth(int depth) {
+            invocationDepth = Math.max(invocationDepth, depth);
+        }
+
+        public void recordFieldRead(Symbol field, HeapItem item) {
+            if (!item.isComparable()) {
+                invalidate();
+                return;
+            }
+
+            Object key = item.getComparisonKey();
+            for (Recorder recorder = this; recorder != null; recorder = recorder.parent) {
+                synchronized (recorder) {
+                    recorder.fieldToKey.put(field, key);
+                }
+            }
+        }
+
+        public void recordInitializedClass(String className, SideEffect.Level level) {
+            for (Recorder recorder = this; recorder != null; recorder = recorder.parent) {
+                synchronized (recorder) {
+                    recorder.classNameToLevel.put(className, level);
+                }
+            }
+        }
+
+        /**
+         * Record the dependencies of a summary used in place of executing an invoked method.
+         *
+         * @param summary
+         */
+        public void recordSummary(Summary summary) {
+            for (Recorder recorder = this; recorder != null; recorder = recorder.parent) {
+                synchronized (recorder) {
+                    recorder.classNameToLevel.putAll(summary.classNameToLevel);
+                    recorder.fieldToKey.putAll(summary.fieldToKey);
+                }
+            }
+            // Visits are counted by the executor, which charges them like any other visit
+            recordInvocationDepth(summary.invocationDepth + 1);
+        }
+
+    }
+
+    public static class Summary {
+
+        private final Map<String, SideEffect.Level> classNameToLevel;
+        private final Map<Symbol, Object> fieldToKey;
+        private final HeapItem[] parameterItems;
+        private final HeapItem returnItem;
+        private final SideEffect.Level sideEffectLevel;
+        private final int visits;
+        private final int invocationDepth;
+
+        private Summary(Recorder recorder, HeapItem returnItem, HeapItem[] parameterItems,
+                        SideEffect.Level sideEffectLevel) {
+            synchronized (recorder) {
+                classNameToLevel = new HashMap<String, SideEffect.Level>(recorder.classNameToLevel);
+                fieldToKey = new HashMap<Symbol, Object>(recorder.fieldToKey);
+                invocationDepth = recorder.invocationDepth;
+            }
+            visits = recorder.visits.get();
+            this.returnItem = returnItem;
+            this.parameterItems = parameterItems;
+            this.sideEffectLevel = sideEffectLevel;
+        }
+
+        Summary(Map<String, SideEffect.Level> classNameToLevel, HeapItem returnItem, HeapItem[] parameterItems,
+                        SideEffect.Level sideEffectLevel, int visits, int invocationDepth) {
+            this.classNameToLevel = classNameToLevel;
+            fieldToKey = new HashMap<Symbol, Object>();
+            this.returnItem = returnItem;
+            this.parameterItems = parameterItems;
+            this.sideEffectLevel = sideEffectLevel;
+            this.visits = visits;
+            this.invocationDepth = invocationDepth;
+        }
+
+        /**
+         * @return how deep the method's own invocations went, or 0 if it invoked no local methods
+         */
+        public int getInvocationDepth() {
+            return invocationDepth;
+        }
+
+        /**
+         *
+         * @param parameterIndex
+         * @return consensus of the mutable parameter after execution, or null if the parameter type is immutable
+         */
+        public HeapItem getParameterItem(int parameterIndex) {
+            return copy(parameterItems[parameterIndex]);
+        }
+
+        /**
+         *
+         * @return return value consensus, or null if the method returns void
+         */
+        public HeapItem getReturnItem() {
+            return copy(returnItem);
+        }
+
+        public SideEffect.Level getSideEffectLevel() {
+            return sideEffectLevel;
+        }
+
+        /**
+         * @return visits of executing the method, including every method it invoked
+         */
+        public int getVisits() {
+            return visits;
+        }
+
+        Map<String, SideEffect.Level> getClassNameToLevel() {
+            return classNameToLevel;
+        }
+
+        /**
+         * @return true if the call had no side effects, read no static fields, and changed no arguments
+         */
+        boolean isPure() {
+            if ((sideEffectLevel != SideEffect.Level.NONE) || !fieldToKey.isEmpty()) {
+                return false;
+            }
+            for (HeapItem item : parameterItems) {
+                if (item != null) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        boolean isSatisfiedBy(ExecutionContext callerContext) {
+            for (Map.Entry<String, SideEffect.Level> entry : classNameToLevel.entrySet()) {
+                String className = entry.getKey();
+                if (!callerContext.isClassInitialized(className)
+                                || (callerContext.getClassStateSideEffectLevel(className) != entry.getValue())) {
+                    return false;
+                }
+            }
+
+            for (Map.Entry<Symbol, Object> entry : fieldToKey.entrySet()) {
+                Symbol field = entry.getKey();
+                String className = field.getClassName();
+                if (!callerContext.isClassInitialized(className)) {
+                    return false;
+                }
+
+                HeapItem item = callerContext.peekClassState(className).peekField(field.getMemberSignature());
+                if (!item.isComparable() || !item.getComparisonKey().equals(entry.getValue())) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private static HeapItem copy(HeapItem item) {
+            if (item == null) {
+                return null;
+            }
+
+            // Unknown values are compared by identity and must not be shared between heap items
+            return item.isUnknown() ? HeapItem.newUnknown(item.getType()) : new HeapItem(item.getValue(),
+                            item.getType());
+        }
+
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(MethodSummaryCache.class.getSimpleName());
+
+    // Calls with equal arguments but different class state each get a summary, up to this many
+    private static final int MAX_SUMMARIES_PER_KEY = 16;
+
+    // Summaries may be added and read by several exploring threads
+    private final ConcurrentMap<List<Object>, List<Summary>> keyToSummaries;
+    private final PureCallCache pureCallCache;
+
+    /**
+     *
+     * @param pureCallCache
+     *            cache shared with other machines to look up and add pure calls to, or null
+     */
+    MethodSummaryCache(PureCallCache pureCallCache) {
+        keyToSummaries = new ConcurrentHashMap<List<Object>, List<Summary>>();
+        this.pureCallCache = pureCallCache;
+    }
+
+    /**
+     *
+     * @param methodDescriptor
+     * @param calleeMethodState
+     *            method state with the arguments assigned to the parameters
+     * @return key for the call, or null if any argument can't be compared by value
+     */
+    public List<Object> buildKey(String methodDescriptor, MethodState calleeMethodState) {
+        List<Object> key = new ArrayList<Object>();
+        key.add(methodDescriptor);
+        for (int parameterRegister = calleeMethodState.getParameterStart(); parameterRegister < calleeMethodState
+                        .getRegisterCount();) {
+            HeapItem item = calleeMethodState.peekParameter(parameterRegister);
+            if (!item.isComparable()) {
+                return null;
+            }
+            key.add(item.getComparisonKey());
+
+            String type = item.getType();
+            parameterRegister += "J".equals(type) || "D".equals(type) ? 2 : 1;
+        }
+
+        return key;
+    }
+
+    /**
+     *
+     * @param key
+     * @param callerContext
+     * @return summary for the call which is valid in the caller's class state, or null if there is none
+     */
+    public Summary getSummary(List<Object> key, ExecutionContext callerContext) {
+        List<Summary> summaries = keyToSummaries.get(key);
+        if (summaries != null) {
+            for (Summary summary : summaries) {
+                if (summary.isSatisfiedBy(callerContext)) {
+                    if (log.isTraceEnabled()) {
+                        log.trace("Using summary for " + key);
+                    }
+
+                    return summary;
+                }
+            }
+        }
+
+        return pureCallCache == null ? null : pureCallCache.getSummary(key, callerContext);
+    }
+
+    /**
+     * Remove all summaries of a method, e.g. after its implementation changes.
+     *
+     * @param methodDescriptor
+     */
+    public void invalidate(String methodDescriptor) {
+        Iterator<List<Object>> iterator = keyToSummaries.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (methodDescriptor.equals(iterator.next().get(0))) {
+                iterator.remove();
+            }
+        }
+        if (pureCallCache != null) {
+            pureCallCache.invalidate(methodDescriptor);
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (List<Summary> summaries : keyToSummaries.values()) {
+            size += summaries.size();
+        }
+
+        return size;
+    }
+
+    /**
+     * Summarize an execution if the recorder and results allow it.
+     *
+     * @param key
+     * @param recorder
+     *            recorder of the execution
+     * @param returnItem
+     *            return value consensus, or null if the method returns void
+     * @param parameterItems
+     *            consensus of each mutable parameter, or null for immutable parameter types
+     * @param sideEffectLevel
+     */
+    public void putSummary(List<Object> key, Recorder recorder, HeapItem returnItem, HeapItem[] parameterItems,
+                    SideEffect.Level sideEffectLevel) {
+        if (!recorder.isSummarizable()) {
+            return;
+        }
+        if ((returnItem != null) && !returnItem.isComparable()) {
+            return;
+        }
+        for (HeapItem item : parameterItems) {
+            if ((item != null) && !item.isComparable()) {
+                return;
+            }
+        }
+
+        List<Summary> summaries = keyToSummaries.get(key);
+        if (summaries == null) {
+            summaries = new CopyOnWriteArrayList<Summary>();
+            List<Summary> existing = keyToSummaries.putIfAbsent(key, summaries);
+            if (existing != null) {
+                summaries = existing;
+            }
+        }
+        Summary summary = new Summary(recorder, returnItem, parameterItems, sideEffectLevel);
+        if (summaries.size() < MAX_SUMMARIES_PER_KEY) {
+            summaries.add(summary);
+        }
+        if (pureCallCache != null) {
+            pureCallCache.putSummary(key, summary);
+        }
+    }
+
+}
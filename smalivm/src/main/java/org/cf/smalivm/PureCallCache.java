@@ -0,0 +1,533 @@
+package org.cf.smalivm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.cf.smalivm.context.ExecutionContext;
+import org.cf.smalivm.context.HeapItem;
+import org.cf.smalivm.exception.UnknownAncestors;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.builder.BuilderInstruction;
+import org.jf.dexlib2.builder.MutableMethodImplementation;
+import org.jf.dexlib2.iface.ExceptionHandler;
+import org.jf.dexlib2.iface.TryBlock;
+import org.jf.dexlib2.iface.instruction.FiveRegisterInstruction;
+import org.jf.dexlib2.iface.instruction.NarrowLiteralInstruction;
+import org.jf.dexlib2.iface.instruction.OffsetInstruction;
+import org.jf.dexlib2.iface.instruction.OneRegisterInstruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.iface.instruction.RegisterRangeInstruction;
+import org.jf.dexlib2.iface.instruction.SwitchElement;
+import org.jf.dexlib2.iface.instruction.ThreeRegisterInstruction;
+import org.jf.dexlib2.iface.instruction.TwoRegisterInstruction;
+import org.jf.dexlib2.iface.instruction.VariableRegisterInstruction;
+import org.jf.dexlib2.iface.instruction.WideLiteralInstruction;
+import org.jf.dexlib2.iface.instruction.formats.ArrayPayload;
+import org.jf.dexlib2.iface.instruction.formats.PackedSwitchPayload;
+import org.jf.dexlib2.iface.instruction.formats.SparseSwitchPayload;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.iface.reference.Reference;
+import org.jf.dexlib2.util.ReferenceUtil;
+import org.jf.dexlib2.writer.builder.BuilderMethod;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Results of pure local method calls, shared by every virtual machine and call site and saved to a file so later runs
+ * can reuse them. A call is pure if it has no side effects, reads no static fields, and doesn't change its arguments.
+ * Its arguments and result must be known and of immutable types.
+ *
+ * Results are keyed by the method, a hash of its body, and its arguments. The hash covers the bodies of every
+ * non-framework method the method may invoke, so a result saved for one build of an app is only used for another if
+ * none of the code it ran has changed. Methods which invoke virtual methods of non-framework classes aren't cached
+ * because the invoked body isn't known until execution. The same goes for virtual methods of framework classes which
+ * a non-framework class may override, e.g. Object.toString(), so only final or never extended ones are allowed.
+ *
+ * @author cfenton
+ */
+public class PureCallCache {
+
+    private static final Logger log = LoggerFactory.getLogger(PureCallCache.class.getSimpleName());
+
+    private static final String FILE_MAGIC = "simplify-pure-calls";
+    private static final int FILE_VERSION = 2;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // Written as modified UTF-8, which is limited to 65535 bytes
+    private static final int MAX_STRING_LENGTH = 8192;
+    // Memoized in place of the hash of methods which can't be cached
+    private static final String NO_HASH = "";
+
+    private static boolean isPersistable(Object value) {
+        if (value instanceof String) {
+            return ((String) value).length() <= MAX_STRING_LENGTH;
+        }
+
+        return (value == null) || (value instanceof Integer) || (value instanceof Long) || (value instanceof Short)
+                        || (value instanceof Byte) || (value instanceof Float) || (value instanceof Double)
+                        || (value instanceof Boolean) || (value instanceof Character);
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        char tag = (char) in.readByte();
+        switch (tag) {
+        case 'N':
+            return null;
+        case 'L':
+            return in.readUTF();
+        case 'I':
+            return in.readInt();
+        case 'J':
+            return in.readLong();
+        case 'S':
+            return in.readShort();
+        case 'B':
+            return in.readByte();
+        case 'F':
+            return in.readFloat();
+        case 'D':
+            return in.readDouble();
+        case 'Z':
+            return in.readBoolean();
+        case 'C':
+            return in.readChar();
+        default:
+            throw new IOException("Unknown value tag " + tag);
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte('N');
+        } else if (value instanceof String) {
+            out.writeByte('L');
+            out.writeUTF((String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte('I');
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte('J');
+            out.writeLong((Long) value);
+        } else if (value instanceof Short) {
+            out.writeByte('S');
+            out.writeShort((Short) value);
+        } else if (value instanceof Byte) {
+            out.writeByte('B');
+            out.writeByte((Byte) value);
+        } else if (value instanceof Float) {
+            out.writeByte('F');
+            out.writeFloat((Float) value);
+        } else if (value instanceof Double) {
+            out.writeByte('D');
+            out.writeDouble((Double) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte('Z');
+            out.writeBoolean((Boolean) value);
+        } else {
+            out.writeByte('C');
+            out.writeChar((Character) value);
+        }
+    }
+
+    private final SmaliClassManager classManager;
+    private final ConcurrentMap<List<Object>, MethodSummaryCache.Summary> keyToSummary;
+    private final ConcurrentMap<String, String> methodToBodyHash;
+    private final ConcurrentMap<String, Boolean> frameworkClassToNeverOverridden;
+
+    public PureCallCache(SmaliClassManager classManager) {
+        this.classManager = classManager;
+        keyToSummary = new ConcurrentHashMap<List<Object>, MethodSummaryCache.Summary>();
+        methodToBodyHash = new ConcurrentHashMap<String, String>();
+        frameworkClassToNeverOverridden = new ConcurrentHashMap<String, Boolean>();
+    }
+
+    /**
+     *
+     * @param key
+     *            summary key of the call
+     * @param callerContext
+     * @return summary of an earlier call which is valid in the caller's class state, or null if there is none
+     */
+    public MethodSummaryCache.Summary getSummary(List<Object> key, ExecutionContext callerContext) {
+        List<Object> pureKey = buildPureKey(key);
+        if (pureKey == null) {
+            return null;
+        }
+
+        MethodSummaryCache.Summary summary = keyToSummary.get(pureKey);
+        if ((summary == null) || !summary.isSatisfiedBy(callerContext)) {
+            return null;
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("Using pure call result for " + key);
+        }
+
+        return summary;
+    }
+
+    /**
+     * Keep the summary if the call was pure.
+     *
+     * @param key
+     *            summary key of the call
+     * @param summary
+     */
+    public void putSummary(List<Object> key, MethodSummaryCache.Summary summary) {
+        if (!summary.isPure()) {
+            return;
+        }
+        HeapItem returnItem = summary.getReturnItem();
+        if ((returnItem != null) && (returnItem.isUnknown() || !isPersistable(returnItem.getValue()))) {
+            return;
+        }
+
+        List<Object> pureKey = buildPureKey(key);
+        if (pureKey != null) {
+            keyToSummary.putIfAbsent(pureKey, summary);
+        }
+    }
+
+    /**
+     * Forget body hashes after a method's implementation changes. Hashes of its callers include it, so all are
+     * forgotten. Results are kept, since they're only found again for matching hashes.
+     *
+     * @param methodDescriptor
+     */
+    public void invalidate(String methodDescriptor) {
+        methodToBodyHash.clear();
+    }
+
+    public int size() {
+        return keyToSummary.size();
+    }
+
+    /**
+     * Add the results saved in a file.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (!FILE_MAGIC.equals(in.readUTF()) || (in.readInt() != FILE_VERSION)) {
+                throw new IOException(file + " isn't a pure call cache of this version");
+            }
+
+            int entryCount = in.readInt();
+            for (int i = 0; i < entryCount; i++) {
+                List<Object> pureKey = new ArrayList<Object>();
+                pureKey.add(in.readUTF());
+                pureKey.add(in.readUTF());
+                int argumentCount = in.readInt();
+                for (int j = 0; j < argumentCount; j++) {
+                    String type = in.readUTF();
+                    pureKey.add(Arrays.asList(type, readValue(in)));
+                }
+
+                Map<String, SideEffect.Level> classNameToLevel = new HashMap<String, SideEffect.Level>();
+                int classCount = in.readInt();
+                for (int j = 0; j < classCount; j++) {
+                    String className = in.readUTF();
+                    classNameToLevel.put(className, readLevel(in));
+                }
+
+                HeapItem returnItem = null;
+                if (in.readBoolean()) {
+                    String type = in.readUTF();
+                    returnItem = new HeapItem(readValue(in), type);
+                }
+                SideEffect.Level sideEffectLevel = readLevel(in);
+                int visits = in.readInt();
+                int invocationDepth = in.readInt();
+
+                keyToSummary.put(pureKey, new MethodSummaryCache.Summary(classNameToLevel, returnItem,
+                                new HeapItem[argumentCount], sideEffectLevel, visits, invocationDepth));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write every result, including those loaded, to a file.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void save(File file) throws IOException {
+        // Snapshot so the count matches the entries written
+        Map<List<Object>, MethodSummaryCache.Summary> entries = new HashMap<List<Object>, MethodSummaryCache.Summary>(
+                        keyToSummary);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeUTF(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<List<Object>, MethodSummaryCache.Summary> entry : entries.entrySet()) {
+                List<Object> pureKey = entry.getKey();
+                out.writeUTF((String) pureKey.get(0));
+                out.writeUTF((String) pureKey.get(1));
+                out.writeInt(pureKey.size() - 2);
+                for (Object argumentKey : pureKey.subList(2, pureKey.size())) {
+                    List<?> typeAndValue = (List<?>) argumentKey;
+                    out.writeUTF((String) typeAndValue.get(0));
+                    writeValue(out, typeAndValue.get(1));
+                }
+
+                MethodSummaryCache.Summary summary = entry.getValue();
+                Map<String, SideEffect.Level> classNameToLevel = summary.getClassNameToLevel();
+                out.writeInt(classNameToLevel.size());
+                for (Map.Entry<String, SideEffect.Level> classEntry : classNameToLevel.entrySet()) {
+                    out.writeUTF(classEntry.getKey());
+                    out.writeUTF(classEntry.getValue().name());
+                }
+
+                HeapItem returnItem = summary.getReturnItem();
+                out.writeBoolean(returnItem != null);
+                if (returnItem != null) {
+                    out.writeUTF(returnItem.getType());
+                    writeValue(out, returnItem.getValue());
+                }
+                out.writeUTF(summary.getSideEffectLevel().name());
+                out.writeInt(summary.getVisits());
+                out.writeInt(summary.getInvocationDepth());
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static SideEffect.Level readLevel(DataInputStream in) throws IOException {
+        try {
+            return SideEffect.Level.valueOf(in.readUTF());
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /*
+     * @return summary key with the body hash after the method descriptor, or null if any argument can't be saved or
+     * the method can't be hashed
+     */
+    private List<Object> buildPureKey(List<Object> key) {
+        for (Object argumentKey : key.subList(1, key.size())) {
+            if (!isPersistable(((List<?>) argumentKey).get(1))) {
+                return null;
+            }
+        }
+
+        String methodDescriptor = (String) key.get(0);
+        String bodyHash = methodToBodyHash.get(methodDescriptor);
+        if (bodyHash == null) {
+            bodyHash = computeBodyHash(methodDescriptor);
+            methodToBodyHash.put(methodDescriptor, bodyHash);
+        }
+        if (bodyHash.isEmpty()) {
+            return null;
+        }
+
+        List<Object> pureKey = new ArrayList<Object>(key.size() + 1);
+        pureKey.add(methodDescriptor);
+        pureKey.add(bodyHash);
+        pureKey.addAll(key.subList(1, key.size()));
+
+        return pureKey;
+    }
+
+    private String computeBodyHash(String methodDescriptor) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            return NO_HASH;
+        }
+
+        Set<String> hashed = new HashSet<String>();
+        Deque<String> stack = new ArrayDeque<String>();
+        stack.push(methodDescriptor);
+        while (!stack.isEmpty()) {
+            String current = stack.pop();
+            if (!hashed.add(current)) {
+                continue;
+            }
+            if (!classManager.methodHasImplementation(current)) {
+                return NO_HASH;
+            }
+
+            StringBuilder sb = new StringBuilder(current).append('\n');
+            List<String> callees = new ArrayList<String>();
+            BuilderMethod method = classManager.getMethod(current);
+            // Implementations are shared between virtual machines and even reading them may modify them
+            synchronized (method) {
+                if (!appendImplementation(sb, (MutableMethodImplementation) method.getImplementation(), callees)) {
+                    return NO_HASH;
+                }
+            }
+            digest.update(sb.toString().getBytes(UTF_8));
+
+            // Reverse so callees are hashed in the order they're invoked
+            for (int i = callees.size() - 1; i >= 0; i--) {
+                stack.push(callees.get(i));
+            }
+        }
+
+        StringBuilder hash = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hash.append(String.format("%02x", b));
+        }
+
+        return hash.toString();
+    }
+
+    /*
+     * Append a description of every instruction and try block, and collect the non-framework methods invoked.
+     *
+     * @return false if a virtual method of a non-framework class is invoked
+     */
+    private boolean appendImplementation(StringBuilder sb, MutableMethodImplementation implementation,
+                    List<String> callees) {
+        sb.append(implementation.getRegisterCount()).append('\n');
+        for (BuilderInstruction instruction : implementation.getInstructions()) {
+            sb.append(instruction.getOpcode().name);
+            if (instruction instanceof OneRegisterInstruction) {
+                sb.append(" v").append(((OneRegisterInstruction) instruction).getRegisterA());
+            }
+            if (instruction instanceof TwoRegisterInstruction) {
+                sb.append(" v").append(((TwoRegisterInstruction) instruction).getRegisterB());
+            }
+            if (instruction instanceof ThreeRegisterInstruction) {
+                sb.append(" v").append(((ThreeRegisterInstruction) instruction).getRegisterC());
+            }
+            if (instruction instanceof FiveRegisterInstruction) {
+                FiveRegisterInstruction instr = (FiveRegisterInstruction) instruction;
+                sb.append(" {").append(instr.getRegisterC()).append(',').append(instr.getRegisterD()).append(',')
+                                .append(instr.getRegisterE()).append(',').append(instr.getRegisterF()).append(',')
+                                .append(instr.getRegisterG()).append('}');
+            }
+            if (instruction instanceof RegisterRangeInstruction) {
+                sb.append(" {").append(((RegisterRangeInstruction) instruction).getStartRegister()).append("..}");
+            }
+            if (instruction instanceof VariableRegisterInstruction) {
+                sb.append(" #").append(((VariableRegisterInstruction) instruction).getRegisterCount());
+            }
+            if (instruction instanceof NarrowLiteralInstruction) {
+                sb.append(' ').append(((NarrowLiteralInstruction) instruction).getNarrowLiteral());
+            } else if (instruction instanceof WideLiteralInstruction) {
+                sb.append(' ').append(((WideLiteralInstruction) instruction).getWideLiteral());
+            }
+            if (instruction instanceof OffsetInstruction) {
+                sb.append(" +").append(((OffsetInstruction) instruction).getCodeOffset());
+            }
+            if (instruction instanceof ArrayPayload) {
+                ArrayPayload payload = (ArrayPayload) instruction;
+                sb.append(' ').append(payload.getElementWidth()).append(payload.getArrayElements());
+            }
+            if ((instruction instanceof PackedSwitchPayload) || (instruction instanceof SparseSwitchPayload)) {
+                List<? extends SwitchElement> elements = instruction instanceof PackedSwitchPayload ? ((PackedSwitchPayload) instruction)
+                                .getSwitchElements() : ((SparseSwitchPayload) instruction).getSwitchElements();
+                for (SwitchElement element : elements) {
+                    sb.append(' ').append(element.getKey()).append(':').append(element.getOffset());
+                }
+            }
+            if (instruction instanceof ReferenceInstruction) {
+                Reference reference = ((ReferenceInstruction) instruction).getReference();
+                sb.append(' ').append(ReferenceUtil.getReferenceString(reference));
+                if ((reference instanceof MethodReference) && !collectCallee(instruction, (MethodReference) reference,
+                                callees)) {
+                    return false;
+                }
+            }
+            sb.append('\n');
+        }
+
+        for (TryBlock<? extends ExceptionHandler> tryBlock : implementation.getTryBlocks()) {
+            sb.append("try ").append(tryBlock.getStartCodeAddress()).append(' ').append(tryBlock.getCodeUnitCount());
+            for (ExceptionHandler handler : tryBlock.getExceptionHandlers()) {
+                sb.append(' ').append(handler.getExceptionType()).append(':').append(handler.getHandlerCodeAddress());
+            }
+            sb.append('\n');
+        }
+
+        return true;
+    }
+
+    private boolean collectCallee(BuilderInstruction instruction, MethodReference reference, List<String> callees) {
+        String className = reference.getDefiningClass();
+        String opName = instruction.getOpcode().name;
+        boolean isVirtual = opName.startsWith("invoke-virtual") || opName.startsWith("invoke-interface");
+        if (classManager.isFramework(className)) {
+            // Framework methods are the same for every build, unless a local class may override them
+            return !isVirtual || isNeverOverridden(className);
+        }
+        if (!classManager.isLocalClass(className)) {
+            // Unknown methods make the result unknown
+            return true;
+        }
+
+        if (isVirtual || opName.startsWith("invoke-super")) {
+            return false;
+        }
+
+        String callee = ReferenceUtil.getMethodDescriptor(reference);
+        if (classManager.isLocalMethod(callee)) {
+            callees.add(callee);
+        }
+
+        return true;
+    }
+
+    private boolean isNeverOverridden(String frameworkClassName) {
+        Boolean result = frameworkClassToNeverOverridden.get(frameworkClassName);
+        if (result != null) {
+            return result;
+        }
+
+        result = isFinal(frameworkClassName) || !hasNonFrameworkDescendant(frameworkClassName);
+        frameworkClassToNeverOverridden.put(frameworkClassName, result);
+
+        return result;
+    }
+
+    private boolean isFinal(String className) {
+        ClassHeader header = classManager.getClassHeader(className);
+
+        return (header != null) && ((header.getAccessFlags() & AccessFlags.FINAL.getValue()) != 0);
+    }
+
+    private boolean hasNonFrameworkDescendant(String className) {
+        ClassHierarchy classHierarchy = classManager.getClassHierarchy();
+        for (String nonFrameworkClassName : classManager.getNonFrameworkClassNames()) {
+            try {
+                if (classHierarchy.isInstance(nonFrameworkClassName, className)) {
+                    return true;
+                }
+            } catch (UnknownAncestors e) {
+                // May be a descendant
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+}
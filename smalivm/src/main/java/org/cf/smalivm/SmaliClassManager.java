@@ -3,33 +3,46 @@ package org.cf.smalivm;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Field;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+import org.cf.smalivm.ClassHeader.MethodHeader;
 import org.cf.smalivm.exception.UnknownAncestors;
+import org.cf.util.ClassIndex;
 import org.cf.util.Dexifier;
+import org.cf.util.FrameworkArchive;
 import org.cf.util.SmaliClassUtils;
 import org.cf.util.SmaliFileFactory;
-import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.iface.ClassDef;
 import org.jf.dexlib2.iface.ExceptionHandler;
 import org.jf.dexlib2.iface.MethodImplementation;
 import org.jf.dexlib2.iface.TryBlock;
 import org.jf.dexlib2.util.ReferenceUtil;
 import org.jf.dexlib2.writer.builder.BuilderClassDef;
-import org.jf.dexlib2.writer.builder.BuilderField;
 import org.jf.dexlib2.writer.builder.BuilderMethod;
-import org.jf.dexlib2.writer.builder.BuilderMethodParameter;
 import org.jf.dexlib2.writer.builder.DexBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * The class manager is responsible for loading Smali files into Dexlib2 objects and making them available.
+ * The class manager is responsible for loading Smali files, or classes from DEX and APK files, into Dexlib2 objects and
+ * making them available.
+ *
+ * Class headers, i.e. signatures, fields, and hierarchy, are loaded separately from method bodies and are cheap. Full
+ * classes are only loaded when a method implementation or class definition is needed.
+ *
+ * Classes may be loaded from multiple threads. Parsing is done concurrently, but interning into a DexBuilder is
+ * guarded by the builder's monitor since DexBuilder is not thread safe.
  *
  * @author cfenton
  *
@@ -42,40 +55,44 @@ public class SmaliClassManager {
     private final DexBuilder frameworkDexBuilder = DexBuilder.makeDexBuilder();
 
     private final Map<String, SmaliFile> classNameToSmaliFile;
+    private final ConcurrentMap<String, SmaliFile> frameworkClassNameToSmaliFile;
     private final DexBuilder dexBuilder;
     private final Map<String, BuilderClassDef> classNameToClassDef;
     private final Map<String, BuilderMethod> methodDescriptorToMethod;
-    private final Map<String, List<String>> methodDescriptorToParameterTypes;
     private final Map<String, List<? extends TryBlock<? extends ExceptionHandler>>> methodDescriptorToTryBlocks;
-    private final Map<String, List<String>> classNameToFieldNameAndType;
+    private final Map<String, ClassHeader> classNameToHeader;
+    private final ClassHierarchy classHierarchy;
     private final SmaliFileFactory smaliFileFactory;
+    // Built on first use, input classes don't change after construction
+    private volatile Set<String> classNames;
 
     /**
      *
      * @param smaliPath
-     *            Path to Smali file or folder
+     *            Path to Smali file or folder, or DEX or APK file
      * @param dexBuilder
      * @throws IOException
      */
     public SmaliClassManager(File smaliPath, DexBuilder dexBuilder) throws IOException {
         smaliFileFactory = new SmaliFileFactory();
         Set<SmaliFile> smaliFiles = smaliFileFactory.getSmaliFiles(smaliPath);
-        classNameToSmaliFile = new HashMap<String, SmaliFile>();
+        classNameToSmaliFile = new ConcurrentHashMap<String, SmaliFile>();
+        frameworkClassNameToSmaliFile = new ConcurrentHashMap<String, SmaliFile>();
         for (SmaliFile smaliFile : smaliFiles) {
             classNameToSmaliFile.put(smaliFile.getClassName(), smaliFile);
         }
         this.dexBuilder = dexBuilder;
-        classNameToClassDef = new HashMap<String, BuilderClassDef>();
-        methodDescriptorToMethod = new HashMap<String, BuilderMethod>();
-        methodDescriptorToParameterTypes = new HashMap<String, List<String>>();
-        methodDescriptorToTryBlocks = new HashMap<String, List<? extends TryBlock<? extends ExceptionHandler>>>();
-        classNameToFieldNameAndType = new HashMap<String, List<String>>();
+        classNameToClassDef = new ConcurrentHashMap<String, BuilderClassDef>();
+        methodDescriptorToMethod = new ConcurrentHashMap<String, BuilderMethod>();
+        methodDescriptorToTryBlocks = new ConcurrentHashMap<String, List<? extends TryBlock<? extends ExceptionHandler>>>();
+        classNameToHeader = new ConcurrentHashMap<String, ClassHeader>();
+        classHierarchy = new ClassHierarchy(this);
     }
 
     /**
      *
      * @param smaliPath
-     *            Path to Smali file or folder
+     *            Path to Smali file or folder, or DEX or APK file
      * @throws IOException
      */
     public SmaliClassManager(String smaliPath) throws IOException {
@@ -85,7 +102,7 @@ public class SmaliClassManager {
     /**
      *
      * @param smaliPath
-     *            Path to Smali file or folder
+     *            Path to Smali file or folder, or DEX or APK file
      * @param dexBuilder
      * @throws IOException
      */
@@ -109,10 +126,18 @@ public class SmaliClassManager {
     /**
      * Does not load any Smali files.
      *
-     * @return all local class names, including framework
+     * @return all local class names, including framework, as an unmodifiable set
      */
     public Set<String> getClassNames() {
-        return classNameToSmaliFile.keySet();
+        Set<String> result = classNames;
+        if (null == result) {
+            Set<String> names = new HashSet<String>(classNameToSmaliFile.keySet());
+            names.addAll(ClassIndex.getInstance().getClassNames(ClassIndex.FRAMEWORK));
+            result = Collections.unmodifiableSet(names);
+            classNames = result;
+        }
+
+        return result;
     }
 
     /**
@@ -132,19 +157,43 @@ public class SmaliClassManager {
     }
 
     public boolean isFramework(String typeName) {
-        String className = typeName.split("->")[0];
+        String className = SymbolTable.getClassName(typeName);
 
         return smaliFileFactory.isFrameworkClass(className);
     }
 
     public boolean isSafeFramework(String typeName) {
-        String className = typeName.split("->")[0];
+        String className = SymbolTable.getClassName(typeName);
 
         return smaliFileFactory.isSafeFrameworkClass(className);
     }
 
+    /**
+     *
+     * @return names of all classes with at least a loaded header
+     */
     public Set<String> getLoadedClassNames() {
-        return classNameToClassDef.keySet();
+        return classNameToHeader.keySet();
+    }
+
+    /**
+     *
+     * @return cached supertypes and virtual method targets of known classes
+     */
+    public ClassHierarchy getClassHierarchy() {
+        return classHierarchy;
+    }
+
+    /**
+     * Loads the class header if it has not been loaded. Does not load method bodies.
+     *
+     * @param className
+     * @return signatures, fields, and hierarchy of the given class name
+     */
+    public ClassHeader getClassHeader(String className) {
+        loadClassHeaderIfNecessary(className);
+
+        return classNameToHeader.get(className);
     }
 
     /**
@@ -153,9 +202,7 @@ public class SmaliClassManager {
      * @return
      */
     public List<String> getFieldNameAndTypes(String className) {
-        loadClassIfNecessary(className);
-
-        return classNameToFieldNameAndType.get(className);
+        return getClassHeader(className).getFieldNameAndTypes();
     }
 
     /**
@@ -188,16 +235,7 @@ public class SmaliClassManager {
      * @return set of all method descriptors for given className
      */
     public Set<String> getMethodDescriptors(String className) {
-        loadClassIfNecessary(className);
-
-        BuilderClassDef classDef = getClass(className);
-        Set<String> methodNames = new HashSet<String>();
-        for (BuilderMethod method : classDef.getMethods()) {
-            String methodName = ReferenceUtil.getMethodDescriptor(method);
-            methodNames.add(methodName);
-        }
-
-        return methodNames;
+        return new HashSet<String>(getClassHeader(className).getMethodDescriptors());
     }
 
     /**
@@ -206,9 +244,12 @@ public class SmaliClassManager {
      * @return list of Smali style parameter types
      */
     public List<String> getParameterTypes(String methodDescriptor) {
-        loadClassIfNecessary(methodDescriptor);
+        MethodHeader method = getMethodHeader(methodDescriptor);
+        if (null == method) {
+            return null;
+        }
 
-        return methodDescriptorToParameterTypes.get(methodDescriptor);
+        return method.getParameterTypes();
     }
 
     /**
@@ -222,13 +263,34 @@ public class SmaliClassManager {
         return methodDescriptorToTryBlocks.get(methodDescriptor);
     }
 
+    /**
+     * Replace the implementation of a loaded method, e.g. with an optimized copy. Implementations are final in
+     * BuilderMethod, so this uses reflection.
+     *
+     * @param methodDescriptor
+     * @param implementation
+     */
+    public void setImplementation(String methodDescriptor, MethodImplementation implementation) {
+        BuilderMethod method = getMethod(methodDescriptor);
+        synchronized (method) {
+            try {
+                Field f = BuilderMethod.class.getDeclaredField("methodImplementation");
+                f.setAccessible(true);
+                f.set(method, implementation);
+            } catch (NoSuchFieldException | IllegalAccessException e) {
+                throw new RuntimeException("Unable to set implementation of " + methodDescriptor, e);
+            }
+        }
+        methodDescriptorToTryBlocks.put(methodDescriptor, implementation.getTryBlocks());
+    }
+
     /**
      *
      * @param className
      * @return true if the Smali file for the className was available at runtime
      */
     public boolean isLocalClass(String className) {
-        return classNameToSmaliFile.containsKey(className);
+        return classNameToSmaliFile.containsKey(className) || smaliFileFactory.isFrameworkClass(className);
     }
 
     /**
@@ -237,13 +299,12 @@ public class SmaliClassManager {
      * @return true if {@link=isLocalClass} is true, and method is defined for class
      */
     public boolean isLocalMethod(String methodDescriptor) {
-        String[] parts = methodDescriptor.split("->");
-        String className = parts[0];
+        String className = SymbolTable.getClassName(methodDescriptor);
         if (!isLocalClass(className)) {
             return false;
         }
 
-        return getMethod(methodDescriptor) != null;
+        return getMethodHeader(methodDescriptor) != null;
     }
 
     /**
@@ -252,9 +313,7 @@ public class SmaliClassManager {
      * @return true if method has implementation (not abstract or native), false otherwise
      */
     public boolean methodHasImplementation(String methodDescriptor) {
-        BuilderMethod method = getMethod(methodDescriptor);
-
-        return null != method.getImplementation();
+        return getMethodHeader(methodDescriptor).hasImplementation();
     }
 
     /**
@@ -263,50 +322,23 @@ public class SmaliClassManager {
      * @return true if method is native, false otherwise
      */
     public boolean isNativeMethod(String methodDescriptor) {
-        BuilderMethod method = getMethod(methodDescriptor);
-
-        return (method.getAccessFlags() & AccessFlags.NATIVE.getValue()) == AccessFlags.NATIVE.getValue();
+        return getMethodHeader(methodDescriptor).isNative();
     }
 
-    private void addFieldNameAndTypes(BuilderClassDef classDef) {
-        String className = ReferenceUtil.getReferenceString(classDef);
-        Collection<BuilderField> fields = classDef.getFields();
-        List<String> fieldNameAndTypes = new LinkedList<String>();
-        for (BuilderField field : fields) {
-            String fieldDescriptor = ReferenceUtil.getFieldDescriptor(field);
-            String fieldNameAndType = fieldDescriptor.split("->")[1];
-            fieldNameAndTypes.add(fieldNameAndType);
-        }
-        classNameToFieldNameAndType.put(className, fieldNameAndTypes);
+    private MethodHeader getMethodHeader(String methodDescriptor) {
+        String className = SymbolTable.getClassName(methodDescriptor);
+
+        return getClassHeader(className).getMethod(methodDescriptor);
     }
 
     private void addMethods(BuilderClassDef classDef) {
         for (BuilderMethod method : classDef.getMethods()) {
             String methodDescriptor = ReferenceUtil.getMethodDescriptor(method);
             methodDescriptorToMethod.put(methodDescriptor, method);
-            addParameterTypes(method);
             addTryBlocks(method);
         }
     }
 
-    private void addParameterTypes(BuilderMethod method) {
-        List<? extends BuilderMethodParameter> builderParameters = method.getParameters();
-        List<String> parameterTypes = new LinkedList<String>();
-        for (BuilderMethodParameter builderParameter : builderParameters) {
-            parameterTypes.add(builderParameter.getType());
-        }
-
-        int accessFlags = method.getAccessFlags();
-        boolean isStatic = ((accessFlags & AccessFlags.STATIC.getValue()) != 0);
-        if (!isStatic) {
-            // First "parameter" for non-static methods is instance ref
-            parameterTypes.add(0, method.getDefiningClass());
-        }
-
-        String methodDescriptor = ReferenceUtil.getMethodDescriptor(method);
-        methodDescriptorToParameterTypes.put(methodDescriptor, parameterTypes);
-    }
-
     private void addTryBlocks(BuilderMethod method) {
         String methodDescriptor = ReferenceUtil.getMethodDescriptor(method);
         MethodImplementation implementation = method.getImplementation();
@@ -317,31 +349,162 @@ public class SmaliClassManager {
     }
 
     private void loadClassIfNecessary(String typeDescriptor) {
-        String[] parts = typeDescriptor.split("->");
-        String className = parts[0];
-        if (getLoadedClassNames().contains(className)) {
+        String className = SymbolTable.getClassName(typeDescriptor);
+        if (classNameToClassDef.containsKey(className)) {
             return;
         }
 
+        SmaliFile smaliFile = getSmaliFile(className);
+        if (null == smaliFile) {
+            if (log.isErrorEnabled()) {
+                log.error("No Smali file for class necessary for " + typeDescriptor);
+            }
+            System.exit(-1);
+            return;
+        }
+
+        // Lock per file so different classes may be loaded concurrently
+        synchronized (smaliFile) {
+            if (classNameToClassDef.containsKey(className)) {
+                return;
+            }
+
+            BuilderClassDef classDef;
+            try {
+                boolean isFramework = smaliFileFactory.isFrameworkClass(className);
+                ClassDef compiledClassDef = smaliFile.getClassDef();
+                if ((null == compiledClassDef) && isFramework) {
+                    compiledClassDef = FrameworkArchive.getClassDef(className);
+                }
+
+                if (null != compiledClassDef) {
+                    classDef = Dexifier.dexifyClassDef(compiledClassDef, isFramework ? frameworkDexBuilder
+                                    : dexBuilder);
+                } else {
+                    InputStream is = smaliFile.open();
+                    classDef = Dexifier.dexifySmaliFile(smaliFile.getPath(), is, isFramework ? frameworkDexBuilder
+                                    : dexBuilder);
+                    is.close();
+                }
+            } catch (Exception e) {
+                if (log.isErrorEnabled()) {
+                    log.error("Error while loading class necessary for " + typeDescriptor, e);
+                }
+                System.exit(-1);
+                return;
+            }
+
+            addMethods(classDef);
+            if (!classNameToHeader.containsKey(className)) {
+                classNameToHeader.put(className, ClassHeader.fromClassDef(classDef));
+            }
+            // Add class def last since it marks the class as loaded
+            classNameToClassDef.put(className, classDef);
+        }
+    }
+
+    private SmaliFile getSmaliFile(String className) {
         SmaliFile smaliFile = classNameToSmaliFile.get(className);
-        BuilderClassDef classDef;
-        try {
-            boolean isFramework = smaliFileFactory.isFrameworkClass(className);
-            InputStream is = smaliFile.open();
-            classDef = Dexifier
-                            .dexifySmaliFile(smaliFile.getPath(), is, isFramework ? frameworkDexBuilder : dexBuilder);
-            is.close();
-        } catch (Exception e) {
+        if (null != smaliFile) {
+            return smaliFile;
+        }
+
+        smaliFile = frameworkClassNameToSmaliFile.get(className);
+        if (null != smaliFile) {
+            return smaliFile;
+        }
+
+        smaliFile = smaliFileFactory.getFrameworkSmaliFile(className);
+        if (null == smaliFile) {
+            return null;
+        }
+        // Smali file is used as a load lock, so every thread must get the same instance
+        SmaliFile existing = frameworkClassNameToSmaliFile.putIfAbsent(className, smaliFile);
+
+        return null == existing ? smaliFile : existing;
+    }
+
+    private void loadClassHeaderIfNecessary(String typeDescriptor) {
+        String className = SymbolTable.getClassName(typeDescriptor);
+        if (classNameToHeader.containsKey(className)) {
+            return;
+        }
+
+        SmaliFile smaliFile = getSmaliFile(className);
+        if (null == smaliFile) {
             if (log.isErrorEnabled()) {
-                log.error("Error while loading class necessary for " + typeDescriptor, e);
+                log.error("No Smali file for class header necessary for " + typeDescriptor);
             }
             System.exit(-1);
             return;
         }
 
-        classNameToClassDef.put(className, classDef);
-        addMethods(classDef);
-        addFieldNameAndTypes(classDef);
+        synchronized (smaliFile) {
+            if (classNameToHeader.containsKey(className)) {
+                return;
+            }
+
+            ClassHeader header;
+            try {
+                ClassDef compiledClassDef = smaliFile.getClassDef();
+                if ((null == compiledClassDef) && smaliFileFactory.isFrameworkClass(className)) {
+                    compiledClassDef = FrameworkArchive.getClassDef(className);
+                }
+
+                if (null != compiledClassDef) {
+                    header = ClassHeader.fromClassDef(compiledClassDef);
+                } else {
+                    InputStream is = smaliFile.open();
+                    header = ClassHeader.fromSmali(is);
+                    is.close();
+                }
+            } catch (Exception e) {
+                if (log.isErrorEnabled()) {
+                    log.error("Error while loading class header necessary for " + typeDescriptor, e);
+                }
+                System.exit(-1);
+                return;
+            }
+
+            classNameToHeader.put(className, header);
+        }
+    }
+
+    /**
+     * Load classes using a pool of threads. Classes which are already loaded are skipped.
+     *
+     * @param classNames
+     * @param threadCount
+     *            number of loader threads, if less than 2, classes are loaded on the calling thread
+     * @throws InterruptedException
+     */
+    public void loadClasses(Collection<String> classNames, int threadCount) throws InterruptedException {
+        long startTime = System.currentTimeMillis();
+        if (threadCount < 2) {
+            for (String className : classNames) {
+                loadClassIfNecessary(className);
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+            for (final String className : classNames) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        loadClassIfNecessary(className);
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+
+        if (log.isDebugEnabled()) {
+            long totalTime = System.currentTimeMillis() - startTime;
+            StringBuilder sb = new StringBuilder();
+            sb.append("Loaded ").append(classNames.size()).append(" classes with ").append(threadCount)
+                            .append(" threads in ").append(totalTime).append(" ms.");
+            log.debug(sb.toString());
+        }
     }
 
     public boolean isInstance(Class<?> childClass, Class<?> targetClass) throws UnknownAncestors {
@@ -369,57 +532,7 @@ public class SmaliClassManager {
             baseTarget = SmaliClassUtils.javaClassToSmali(SmaliClassUtils.smaliPrimitiveToJavaWrapper(baseTarget));
         }
 
-        return isInstance(baseChild, baseTarget, new HashSet<String>());
-    }
-
-    private boolean isInstance(String childType, String targetType, Set<String> visited) throws UnknownAncestors {
-        if (childType.equals(targetType)) {
-            return true;
-        }
-
-        Set<String> parents = getAncestors(childType);
-        for (String parent : parents) {
-            if (visited.contains(parent)) {
-                continue;
-            }
-            visited.add(parent);
-
-            if (parent.equals(targetType)) {
-                return true;
-            } else if (isInstance(parent, targetType, visited)) {
-                return true;
-            }
-        }
-
-        return false;
-    }
-
-    private Set<String> getAncestors(String className) throws UnknownAncestors {
-        Set<String> parents = new HashSet<String>();
-        if (isLocalClass(className)) {
-            BuilderClassDef classDef = getClass(className);
-            parents.addAll(classDef.getInterfaces());
-            if (null != classDef.getSuperclass()) {
-                parents.add(classDef.getSuperclass());
-            }
-        } else {
-            String javaClass = SmaliClassUtils.smaliClassToJava(className);
-            try {
-                Class<?> klazz = Class.forName(javaClass);
-                Class<?>[] interfaces = klazz.getInterfaces();
-                for (Class<?> interFace : interfaces) {
-                    parents.add(SmaliClassUtils.javaClassToSmali(interFace));
-                }
-                Class<?> superklazz = klazz.getSuperclass();
-                if (null != superklazz) {
-                    parents.add(SmaliClassUtils.javaClassToSmali(superklazz));
-                }
-            } catch (ClassNotFoundException e) {
-                throw new UnknownAncestors(className);
-            }
-        }
-
-        return parents;
+        return classHierarchy.isInstance(baseChild, baseTarget);
     }
 
 }
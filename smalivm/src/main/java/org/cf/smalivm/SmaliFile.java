@@ -9,20 +9,27 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URISyntaxException;
+import java.net.URL;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.zip.ZipFile;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.jf.dexlib2.iface.ClassDef;
 
 public class SmaliFile {
 
     private static final Pattern CLASS_PATTERN = Pattern.compile(" (L[^;]+;)");
+    private static final String REFLIB_PATH = "reflib.zip";
+
+    private static ZipFile reflib;
 
     private final String path;
     private final String className;
+    private ClassDef classDef;
     private boolean isResource;
     private boolean isSafeFramework;
 
@@ -35,6 +42,18 @@ public class SmaliFile {
         this.className = className;
     }
 
+    /**
+     * A class compiled in a DEX or APK. It's converted to builder form only when the class is loaded.
+     *
+     * @param path
+     *            path of containing DEX or APK
+     * @param classDef
+     */
+    public SmaliFile(String path, ClassDef classDef) {
+        this(path, classDef.getType());
+        this.classDef = classDef;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (!(obj instanceof SmaliFile)) {
@@ -48,6 +67,14 @@ public class SmaliFile {
         return new EqualsBuilder().append(className, rhs.className).isEquals();
     }
 
+    /**
+     *
+     * @return compiled class definition, or null if this is a Smali file
+     */
+    public ClassDef getClassDef() {
+        return classDef;
+    }
+
     public String getClassName() {
         return className;
     }
@@ -73,22 +100,42 @@ public class SmaliFile {
         return isSafeFramework;
     }
 
-    private static ZipInputStream getReflibStream() {
-        InputStream is = SmaliFile.class.getClassLoader().getResourceAsStream("reflib.zip");
+    private static synchronized ZipFile getReflib() throws URISyntaxException, IOException {
+        if (null != reflib) {
+            return reflib;
+        }
+
+        URL url = SmaliFile.class.getClassLoader().getResource(REFLIB_PATH);
+        if (null == url) {
+            throw new FileNotFoundException("Unable to find " + REFLIB_PATH);
+        }
+
+        File reflibFile;
+        if ("file".equals(url.getProtocol())) {
+            reflibFile = new File(url.toURI());
+        } else {
+            // Resource is inside a jar. ZipFile needs a real file for random access, so extract it once.
+            reflibFile = File.createTempFile("reflib", ".zip");
+            reflibFile.deleteOnExit();
+            InputStream is = url.openStream();
+            FileUtils.copyInputStreamToFile(is, reflibFile);
+            is.close();
+        }
+        // ZipFile indexes the central directory once, so each entry lookup is a hash lookup
+        reflib = new ZipFile(reflibFile);
 
-        return new ZipInputStream(is);
+        return reflib;
     }
 
     public InputStream open() throws URISyntaxException, IOException {
         if (isResource) {
-            ZipInputStream zis = getReflibStream();
-            for (ZipEntry ze; (ze = zis.getNextEntry()) != null;) {
-                if (ze.getName().equals(getPath())) {
-                    return zis;
-                }
+            ZipFile zipFile = getReflib();
+            ZipEntry ze = zipFile.getEntry(getPath());
+            if (null == ze) {
+                return null;
             }
 
-            return null;
+            return zipFile.getInputStream(ze);
         } else {
             return new FileInputStream(new File(path));
         }
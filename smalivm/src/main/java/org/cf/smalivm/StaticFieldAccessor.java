@@ -3,6 +3,7 @@ package org.cf.smalivm;
 import java.lang.reflect.Field;
 
 import org.apache.commons.lang3.reflect.FieldUtils;
+import org.cf.smalivm.SymbolTable.Symbol;
 import org.cf.smalivm.context.ClassState;
 import org.cf.smalivm.context.ExecutionContext;
 import org.cf.smalivm.context.HeapItem;
@@ -15,17 +16,24 @@ public class StaticFieldAccessor {
     private static Logger log = LoggerFactory.getLogger(StaticFieldAccessor.class.getSimpleName());
 
     public static HeapItem getField(VirtualMachine vm, ExecutionContext ectx, String fieldDescriptor) {
-        String[] parts = fieldDescriptor.split("->");
-        String className = parts[0];
-        String fieldNameAndType = parts[1];
-        parts = fieldNameAndType.split(":");
-        String fieldName = parts[0];
-        String fieldType = parts[1];
+        return getField(vm, ectx, SymbolTable.getSymbol(fieldDescriptor));
+    }
+
+    public static HeapItem getField(VirtualMachine vm, ExecutionContext ectx, Symbol fieldSymbol) {
+        String fieldDescriptor = fieldSymbol.getDescriptor();
+        String className = fieldSymbol.getClassName();
+        String fieldNameAndType = fieldSymbol.getMemberSignature();
+        String fieldName = fieldSymbol.getName();
+        String fieldType = fieldSymbol.getType();
 
         HeapItem fieldItem;
         if (vm.isLocalClass(className)) {
             ClassState cState = ectx.readClassState(className);
             fieldItem = cState.peekField(fieldNameAndType);
+            MethodSummaryCache.Recorder recorder = ectx.getSummaryRecorder();
+            if (recorder != null) {
+                recorder.recordFieldRead(fieldSymbol, fieldItem);
+            }
         } else if (MethodReflector.isSafe(className)) {
             // Use reflection
             try {
@@ -52,12 +60,21 @@ public class StaticFieldAccessor {
     }
 
     public static void putField(VirtualMachine vm, ExecutionContext ectx, String fieldDescriptor, HeapItem putItem) {
-        String[] parts = fieldDescriptor.split("->");
-        String className = parts[0];
-        String fieldNameAndType = parts[1];
+        putField(vm, ectx, SymbolTable.getSymbol(fieldDescriptor), putItem);
+    }
+
+    public static void putField(VirtualMachine vm, ExecutionContext ectx, Symbol field, HeapItem putItem) {
+        String fieldDescriptor = field.getDescriptor();
+        String className = field.getClassName();
+        String fieldNameAndType = field.getMemberSignature();
         if (vm.isLocalClass(className)) {
             ClassState cState = ectx.readClassState(className);
             cState.assignField(fieldNameAndType, putItem);
+            MethodSummaryCache.Recorder recorder = ectx.getSummaryRecorder();
+            if (recorder != null) {
+                // Assignments change the class state of the caller
+                recorder.invalidate();
+            }
         } else {
             if (log.isWarnEnabled()) {
                 log.warn("Ignoring non-local static assignment: " + fieldDescriptor + " = " + putItem);
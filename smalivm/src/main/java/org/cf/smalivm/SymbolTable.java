@@ -0,0 +1,237 @@
+package org.cf.smalivm;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.cf.util.Utils;
+
+/**
+ * Global table of interned class, field, and method descriptors. Each descriptor is parsed once and given a dense
+ * integer ID, so hot paths don't need to split descriptors and may key on IDs instead of strings.
+ *
+ * Member descriptors without a class, e.g. "someField:I" or "someMethod(I)V", may also be interned.
+ *
+ * @author cfenton
+ *
+ */
+public class SymbolTable {
+
+    public static class Symbol {
+
+        private final int id;
+        private final String descriptor;
+        private final Symbol classSymbol;
+        private final String memberSignature;
+        private final String name;
+        private final String type;
+        private final List<String> parameterTypes;
+        private final int parameterSize;
+
+        private Symbol(int id, String descriptor, Symbol classSymbol, String memberSignature, String name,
+                        String type, List<String> parameterTypes) {
+            this.id = id;
+            this.descriptor = descriptor;
+            this.classSymbol = null == classSymbol ? this : classSymbol;
+            this.memberSignature = memberSignature;
+            this.name = name;
+            this.type = type;
+            this.parameterTypes = parameterTypes;
+            parameterSize = null == parameterTypes ? 0 : Utils.getRegisterSize(parameterTypes);
+        }
+
+        /**
+         *
+         * @return ID of the class, or -1 for member descriptors without a class
+         */
+        public int getClassId() {
+            return null == classSymbol.getClassName() ? -1 : classSymbol.id;
+        }
+
+        /**
+         *
+         * @return class name, or null for member descriptors without a class
+         */
+        public String getClassName() {
+            if (this == classSymbol) {
+                return isClass() ? descriptor : null;
+            }
+
+            return classSymbol.descriptor;
+        }
+
+        public String getDescriptor() {
+            return descriptor;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        /**
+         *
+         * @return everything after "->", e.g. "someField:I" or "someMethod(I)V", or null for classes
+         */
+        public String getMemberSignature() {
+            return memberSignature;
+        }
+
+        /**
+         *
+         * @return field or method name, or null for classes
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         *
+         * @return method parameter types, excluding instance reference, or null if not a method
+         */
+        public List<String> getParameterTypes() {
+            return parameterTypes;
+        }
+
+        /**
+         *
+         * @return number of registers used by method parameters, excluding instance reference
+         */
+        public int getParameterSize() {
+            return parameterSize;
+        }
+
+        /**
+         *
+         * @return field type, method return type, or null for classes
+         */
+        public String getType() {
+            return type;
+        }
+
+        public boolean isClass() {
+            return null == memberSignature;
+        }
+
+        public boolean isField() {
+            return (null != memberSignature) && (null == parameterTypes);
+        }
+
+        public boolean isMethod() {
+            return null != parameterTypes;
+        }
+
+        @Override
+        public String toString() {
+            return descriptor;
+        }
+
+    }
+
+    private static final ConcurrentMap<String, Symbol> descriptorToSymbol = new ConcurrentHashMap<String, Symbol>();
+    private static final Object lock = new Object();
+
+    // Published before the descriptor map, so any ID a reader has is visible
+    private static volatile Symbol[] idToSymbol = new Symbol[1024];
+    private static int size;
+
+    /**
+     *
+     * @param descriptor
+     * @return ID of the interned descriptor
+     */
+    public static int getId(String descriptor) {
+        return getSymbol(descriptor).getId();
+    }
+
+    /**
+     *
+     * @param descriptor
+     *            class, field, or method descriptor
+     * @return class name of the descriptor
+     */
+    public static String getClassName(String descriptor) {
+        return getSymbol(descriptor).getClassName();
+    }
+
+    /**
+     *
+     * @param id
+     * @return symbol for a previously interned ID
+     */
+    public static Symbol getSymbol(int id) {
+        return idToSymbol[id];
+    }
+
+    /**
+     * Intern the descriptor if it has not been interned.
+     *
+     * @param descriptor
+     * @return symbol for the descriptor
+     */
+    public static Symbol getSymbol(String descriptor) {
+        Symbol symbol = descriptorToSymbol.get(descriptor);
+        if (null != symbol) {
+            return symbol;
+        }
+
+        synchronized (lock) {
+            symbol = descriptorToSymbol.get(descriptor);
+            if (null != symbol) {
+                return symbol;
+            }
+
+            symbol = parse(descriptor);
+            Symbol[] symbols = idToSymbol;
+            if (symbol.id == symbols.length) {
+                symbols = Arrays.copyOf(symbols, symbols.length * 2);
+            }
+            symbols[symbol.id] = symbol;
+            idToSymbol = symbols;
+            size++;
+            descriptorToSymbol.put(descriptor, symbol);
+        }
+
+        return symbol;
+    }
+
+    /**
+     *
+     * @return number of interned descriptors
+     */
+    public static int size() {
+        return size;
+    }
+
+    private static Symbol parse(String descriptor) {
+        Symbol classSymbol = null;
+        String memberSignature = descriptor;
+        int arrowIndex = descriptor.indexOf("->");
+        if (arrowIndex >= 0) {
+            // Class must be interned before the member to get its ID
+            classSymbol = getSymbol(descriptor.substring(0, arrowIndex));
+            memberSignature = descriptor.substring(arrowIndex + 2);
+        }
+
+        int parenIndex = memberSignature.indexOf('(');
+        if (parenIndex >= 0) {
+            String name = memberSignature.substring(0, parenIndex);
+            String returnType = memberSignature.substring(memberSignature.lastIndexOf(')') + 1);
+            List<String> parameterTypes = Collections.unmodifiableList(Utils.getParameterTypes(memberSignature));
+
+            return new Symbol(size, descriptor, classSymbol, memberSignature, name, returnType, parameterTypes);
+        }
+
+        int colonIndex = memberSignature.indexOf(':');
+        if (colonIndex >= 0) {
+            String name = memberSignature.substring(0, colonIndex);
+            String type = memberSignature.substring(colonIndex + 1);
+
+            return new Symbol(size, descriptor, classSymbol, memberSignature, name, type, null);
+        }
+
+        return new Symbol(size, descriptor, null, null, null, null, null);
+    }
+
+}
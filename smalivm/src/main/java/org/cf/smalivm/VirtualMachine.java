@@ -2,9 +2,9 @@ package org.cf.smalivm;
 
 import gnu.trove.list.TIntList;
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.cf.smalivm.context.ClassState;
 import org.cf.smalivm.context.ExecutionContext;
@@ -13,21 +13,110 @@ import org.cf.smalivm.context.ExecutionNode;
 import org.cf.smalivm.context.HeapItem;
 import org.cf.smalivm.context.MethodState;
 import org.cf.smalivm.exception.MaxAddressVisitsExceeded;
+import org.cf.smalivm.exception.MaxBudgetExceeded;
 import org.cf.smalivm.exception.MaxCallDepthExceeded;
 import org.cf.smalivm.exception.MaxMethodVisitsExceeded;
 import org.cf.smalivm.type.LocalInstance;
 import org.cf.util.ImmutableUtils;
 import org.cf.util.Utils;
 import org.jf.dexlib2.AccessFlags;
-import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.builder.MutableMethodImplementation;
 import org.jf.dexlib2.writer.builder.BuilderMethod;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class VirtualMachine {
 
+    /**
+     * Limits and optional features of a virtual machine. Anything not set keeps its default.
+     */
+    public static class Options {
+
+        private int maxAddressVisits = DEFAULT_MAX_ADDRESS_VISITS;
+        private int maxCallDepth = DEFAULT_MAX_CALL_DEPTH;
+        private int maxMethodVisits = DEFAULT_MAX_METHOD_VISITS;
+        private int executorThreads = 1;
+        private int loopWideningThreshold = 0;
+        private ExecutionBudget executionBudget = ExecutionBudget.UNLIMITED;
+        private int compileThreshold = 0;
+        private PureCallCache pureCallCache;
+
+        public Options setMaxAddressVisits(int maxAddressVisits) {
+            this.maxAddressVisits = maxAddressVisits;
+
+            return this;
+        }
+
+        public Options setMaxCallDepth(int maxCallDepth) {
+            this.maxCallDepth = maxCallDepth;
+
+            return this;
+        }
+
+        public Options setMaxMethodVisits(int maxMethodVisits) {
+            this.maxMethodVisits = maxMethodVisits;
+
+            return this;
+        }
+
+        /**
+         * @param executorThreads
+         *            threads used to explore independent paths of a method in parallel, or 1 to explore them in order
+         *            on the calling thread
+         */
+        public Options setExecutorThreads(int executorThreads) {
+            this.executorThreads = executorThreads;
+
+            return this;
+        }
+
+        /**
+         * @param loopWideningThreshold
+         *            iterations of a loop with an unknown bound after which values it changes are made unknown, or 0
+         *            to never widen
+         */
+        public Options setLoopWideningThreshold(int loopWideningThreshold) {
+            this.loopWideningThreshold = loopWideningThreshold;
+
+            return this;
+        }
+
+        /**
+         * @param executionBudget
+         *            time and heap limits for each executed method and for the run, may be shared by several machines
+         */
+        public Options setExecutionBudget(ExecutionBudget executionBudget) {
+            this.executionBudget = executionBudget;
+
+            return this;
+        }
+
+        /**
+         * @param compileThreshold
+         *            concrete executions of an invoked method after which it's compiled to JVM bytecode, or 0 to never
+         *            compile
+         */
+        public Options setCompileThreshold(int compileThreshold) {
+            this.compileThreshold = compileThreshold;
+
+            return this;
+        }
+
+        /**
+         * @param pureCallCache
+         *            results of pure calls, may be shared by several machines, or null to only keep summaries for this
+         *            machine
+         */
+        public Options setPureCallCache(PureCallCache pureCallCache) {
+            this.pureCallCache = pureCallCache;
+
+            return this;
+        }
+
+    }
+
     private static String getClassNameFromMethodDescriptor(String methodDescriptor) {
-        return methodDescriptor.split("->", 2)[0];
+        return SymbolTable.getClassName(methodDescriptor);
     }
 
     private static HeapItem getMutableParameterConsensus(TIntList addressList, ExecutionGraph graph,
@@ -62,21 +151,45 @@ public class VirtualMachine {
     private final int maxCallDepth;
     private final int maxAddressVisits;
     private final int maxMethodVisits;
+    private final int loopWideningThreshold;
+    private final ExecutionBudget executionBudget;
     private final MethodExecutor methodExecutor;
+    private final MethodSummaryCache methodSummaryCache;
+    private final MethodCompiler methodCompiler;
     private final SmaliClassManager classManager;
-    private final Map<BuilderMethod, ExecutionGraph> methodToTemplateContextGraph;
+    private final ConcurrentMap<BuilderMethod, ExecutionGraph> methodToTemplateContextGraph;
 
     public VirtualMachine(SmaliClassManager manager) {
-        this(manager, DEFAULT_MAX_ADDRESS_VISITS, DEFAULT_MAX_CALL_DEPTH, DEFAULT_MAX_METHOD_VISITS);
+        this(manager, new Options());
     }
 
     public VirtualMachine(SmaliClassManager manager, int maxAddressVisits, int maxCallDepth, int maxMethodVisits) {
+        this(manager, new Options().setMaxAddressVisits(maxAddressVisits).setMaxCallDepth(maxCallDepth)
+                        .setMaxMethodVisits(maxMethodVisits));
+    }
+
+    /**
+     *
+     * @param manager
+     * @param options
+     * @throws IllegalArgumentException
+     *             if the budget has a heap limit and there's more than one executor thread
+     */
+    public VirtualMachine(SmaliClassManager manager, Options options) {
+        if (options.executionBudget.hasHeapBudget() && (options.executorThreads > 1)) {
+            throw new IllegalArgumentException("Heap budgets can't be measured with more than one executor thread");
+        }
         this.classManager = manager;
-        this.maxAddressVisits = maxAddressVisits;
-        this.maxMethodVisits = maxMethodVisits;
-        this.maxCallDepth = maxCallDepth;
-        methodExecutor = new MethodExecutor(this);
-        methodToTemplateContextGraph = new HashMap<BuilderMethod, ExecutionGraph>();
+        this.maxAddressVisits = options.maxAddressVisits;
+        this.maxMethodVisits = options.maxMethodVisits;
+        this.maxCallDepth = options.maxCallDepth;
+        this.loopWideningThreshold = options.loopWideningThreshold;
+        this.executionBudget = options.executionBudget;
+        methodExecutor = new MethodExecutor(this, options.executorThreads);
+        methodSummaryCache = new MethodSummaryCache(options.pureCallCache);
+        methodCompiler = options.compileThreshold > 0 ? new MethodCompiler(manager, options.compileThreshold) : null;
+        // Invoked methods may be executed from several threads
+        methodToTemplateContextGraph = new ConcurrentHashMap<BuilderMethod, ExecutionGraph>();
     }
 
     public ExecutionGraph execute(String methodDescriptor) {
@@ -94,22 +207,11 @@ public class VirtualMachine {
 
     public ExecutionGraph execute(String methodDescriptor, ExecutionContext calleeContext,
                     ExecutionContext callerContext, int[] parameterRegisters) {
-        if (callerContext != null) {
-            inheritClassStates(callerContext, calleeContext);
-        }
-
-        String className = getClassNameFromMethodDescriptor(methodDescriptor);
-        calleeContext.staticallyInitializeClassIfNecessary(className);
-
-        ExecutionGraph graph = getInstructionGraphClone(methodDescriptor);
-        ExecutionNode rootNode = new ExecutionNode(graph.getRoot());
-        rootNode.setContext(calleeContext);
-        graph.addNode(rootNode);
-
+        ExecutionGraph graph = prepareExecution(methodDescriptor, calleeContext, callerContext);
         ExecutionGraph result = null;
         try {
             result = methodExecutor.execute(graph);
-        } catch (MaxCallDepthExceeded | MaxAddressVisitsExceeded | MaxMethodVisitsExceeded e) {
+        } catch (MaxCallDepthExceeded | MaxAddressVisitsExceeded | MaxMethodVisitsExceeded | MaxBudgetExceeded e) {
             if (log.isWarnEnabled()) {
                 log.warn(e.toString());
             }
@@ -123,28 +225,74 @@ public class VirtualMachine {
         // }
         // }
 
-        if ((result != null) && (callerContext != null)) {
-            collapseMultiverse(methodDescriptor, graph, calleeContext, callerContext, parameterRegisters);
-        }
+        finishExecution(methodDescriptor, result, calleeContext, callerContext, parameterRegisters);
 
         return result;
     }
 
+    /**
+     * Set up the callee context and build a graph with a root node which is ready to be executed.
+     */
+    ExecutionGraph prepareExecution(String methodDescriptor, ExecutionContext calleeContext,
+                    ExecutionContext callerContext) {
+        if (callerContext != null) {
+            inheritClassStates(callerContext, calleeContext);
+        }
+
+        String className = getClassNameFromMethodDescriptor(methodDescriptor);
+        calleeContext.staticallyInitializeClassIfNecessary(className);
+
+        ExecutionGraph graph = getInstructionGraphClone(methodDescriptor);
+        ExecutionNode rootNode = new ExecutionNode(graph.getRoot());
+        rootNode.setContext(calleeContext);
+        graph.addNode(rootNode);
+
+        return graph;
+    }
+
+    /**
+     * Propagate the effects of an executed method back to the caller.
+     *
+     * @param result
+     *            executed graph, or null if there was a problem executing the method
+     */
+    void finishExecution(String methodDescriptor, ExecutionGraph result, ExecutionContext calleeContext,
+                    ExecutionContext callerContext, int[] parameterRegisters) {
+        if ((result != null) && (callerContext != null)) {
+            collapseMultiverse(methodDescriptor, result, calleeContext, callerContext, parameterRegisters);
+        }
+    }
+
     public SmaliClassManager getClassManager() {
         return classManager;
     }
 
+    public MethodSummaryCache getMethodSummaryCache() {
+        return methodSummaryCache;
+    }
+
+    /**
+     * @return compiler for hot invoked methods, or null if they're never compiled
+     */
+    public MethodCompiler getMethodCompiler() {
+        return methodCompiler;
+    }
+
+    public ExecutionBudget getExecutionBudget() {
+        return executionBudget;
+    }
+
     public ExecutionGraph getInstructionGraphClone(String methodDescriptor) {
-        BuilderMethod method = classManager.getMethod(methodDescriptor);
-        if (!methodToTemplateContextGraph.containsKey(method)) {
-            updateInstructionGraph(methodDescriptor);
-        }
-        ExecutionGraph graph = methodToTemplateContextGraph.get(method);
+        ExecutionGraph graph = getInstructionGraph(methodDescriptor);
         ExecutionGraph clone = new ExecutionGraph(graph);
 
         return clone;
     }
 
+    public int getLoopWideningThreshold() {
+        return loopWideningThreshold;
+    }
+
     public int getMaxAddressVisits() {
         return maxAddressVisits;
     }
@@ -164,8 +312,8 @@ public class VirtualMachine {
         }
 
         BuilderMethod method = classManager.getMethod(methodDescriptor);
-        MethodImplementation impl = method.getImplementation();
-        int registerCount = impl.getRegisterCount();
+        // Template may be built from an implementation other than the method's, e.g. one being optimized
+        int registerCount = getInstructionGraph(methodDescriptor).getRegisterCount();
         List<String> parameterTypes = classManager.getParameterTypes(methodDescriptor);
         int parameterSize = Utils.getRegisterSize(parameterTypes);
         int accessFlags = method.getAccessFlags();
@@ -199,10 +347,50 @@ public class VirtualMachine {
         return classManager.isLocalClass(classDescriptor) && !MethodReflector.isSafe(classDescriptor);
     }
 
+    /**
+     * Remove the template graph for the method, so it's rebuilt from the method's implementation when next needed.
+     *
+     * @param methodDescriptor
+     */
+    public void removeInstructionGraph(String methodDescriptor) {
+        BuilderMethod method = classManager.getMethod(methodDescriptor);
+        methodToTemplateContextGraph.remove(method);
+        methodSummaryCache.invalidate(methodDescriptor);
+        if (methodCompiler != null) {
+            methodCompiler.invalidate(methodDescriptor);
+        }
+    }
+
     public void updateInstructionGraph(String methodDescriptor) {
         BuilderMethod method = classManager.getMethod(methodDescriptor);
-        ExecutionGraph graph = new ExecutionGraph(this, method);
+        ExecutionGraph graph;
+        // Implementations are shared between virtual machines and even reading them may modify them
+        synchronized (method) {
+            graph = new ExecutionGraph(this, method);
+        }
         methodToTemplateContextGraph.put(method, graph);
+        methodSummaryCache.invalidate(methodDescriptor);
+        if (methodCompiler != null) {
+            methodCompiler.invalidate(methodDescriptor);
+        }
+    }
+
+    /**
+     * Build the template graph for the method from the given implementation rather than the method's own.
+     *
+     * @param methodDescriptor
+     * @param implementation
+     *            implementation owned by the caller
+     */
+    public void updateInstructionGraph(String methodDescriptor, MutableMethodImplementation implementation) {
+        BuilderMethod method = classManager.getMethod(methodDescriptor);
+        ExecutionGraph graph = new ExecutionGraph(this, method, implementation);
+        methodToTemplateContextGraph.put(method, graph);
+        methodSummaryCache.invalidate(methodDescriptor);
+        if (methodCompiler != null) {
+            // Compiled code would come from the method's implementation rather than this one
+            methodCompiler.exclude(methodDescriptor);
+        }
     }
 
     public void addTemplateClassState(ExecutionContext ectx, String className) {
@@ -210,7 +398,7 @@ public class VirtualMachine {
         ClassState cState = new ClassState(ectx, className, fieldNameAndTypes.size());
         ectx.setClassState(className, cState, SideEffect.Level.NONE);
         for (String fieldNameAndType : fieldNameAndTypes) {
-            String type = fieldNameAndType.split(":")[1];
+            String type = SymbolTable.getSymbol(fieldNameAndType).getType();
             cState.pokeField(fieldNameAndType, HeapItem.newUnknown(type));
         }
     }
@@ -239,7 +427,8 @@ public class VirtualMachine {
             }
         }
 
-        for (String currentClassName : classManager.getClassNames()) {
+        // Initialized classes always have a class state, so their headers are loaded
+        for (String currentClassName : classManager.getLoadedClassNames()) {
             if (!callerContext.isClassInitialized(currentClassName)
                             && !calleeContext.isClassInitialized(currentClassName)) {
                 continue;
@@ -262,6 +451,22 @@ public class VirtualMachine {
         }
     }
 
+    private ExecutionGraph getInstructionGraph(String methodDescriptor) {
+        BuilderMethod method = classManager.getMethod(methodDescriptor);
+        ExecutionGraph graph = methodToTemplateContextGraph.get(method);
+        if (null == graph) {
+            synchronized (method) {
+                graph = new ExecutionGraph(this, method);
+            }
+            ExecutionGraph existing = methodToTemplateContextGraph.putIfAbsent(method, graph);
+            if (null != existing) {
+                graph = existing;
+            }
+        }
+
+        return graph;
+    }
+
     private void inheritClassStates(ExecutionContext parent, ExecutionContext child) {
         for (String className : classManager.getLoadedClassNames()) {
             if (!parent.isClassInitialized(className)) {
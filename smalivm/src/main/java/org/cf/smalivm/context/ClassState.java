@@ -1,37 +1,44 @@
 package org.cf.smalivm.context;
 
-import gnu.trove.set.hash.THashSet;
+import gnu.trove.iterator.TIntIterator;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+
+import org.cf.smalivm.SymbolTable;
 
 public class ClassState extends BaseState {
 
     private final String className;
-    private final THashSet<String> fieldNameAndTypes;
+    // Symbol IDs of field names and types, shared with the parent until the first new field is added
+    private TIntSet fieldIds;
+    private boolean sharesFieldIds;
 
     public ClassState(ExecutionContext ectx, String className, int fieldCount) {
         super(ectx, fieldCount);
 
-        fieldNameAndTypes = new THashSet<String>();
+        fieldIds = new TIntHashSet();
         this.className = className;
     }
 
-    private ClassState(ClassState parent, ExecutionContext childContext, THashSet<String> fieldNameAndTypes) {
-        super(childContext, fieldNameAndTypes.size());
+    private ClassState(ClassState parent, ExecutionContext childContext, TIntSet fieldIds) {
+        super(childContext, fieldIds.size());
 
-        this.fieldNameAndTypes = fieldNameAndTypes;
+        this.fieldIds = fieldIds;
+        sharesFieldIds = true;
         this.className = parent.className;
     }
 
     public ClassState(ClassState other, ExecutionContext ectx) {
         super(other, ectx);
 
-        fieldNameAndTypes = new THashSet<String>(other.fieldNameAndTypes);
+        fieldIds = new TIntHashSet(other.fieldIds);
         className = other.className;
     }
 
     public void assignField(String fieldNameAndType, Object value) {
         int register = 0;
         String heapKey = getKey(fieldNameAndType);
-        String type = fieldNameAndType.split(":")[1];
+        String type = SymbolTable.getSymbol(fieldNameAndType).getType();
         assignRegister(register, new HeapItem(value, type), heapKey);
     }
 
@@ -55,7 +62,7 @@ public class ClassState extends BaseState {
     public void pokeField(String fieldNameAndType, Object value) {
         int register = 0;
         String heapKey = getKey(fieldNameAndType);
-        String type = fieldNameAndType.split(":")[1];
+        String type = SymbolTable.getSymbol(fieldNameAndType).getType();
         pokeRegister(register, new HeapItem(value, type), heapKey);
     }
 
@@ -66,7 +73,15 @@ public class ClassState extends BaseState {
     }
 
     private String getKey(String fieldNameAndType) {
-        fieldNameAndTypes.add(fieldNameAndType);
+        int fieldId = SymbolTable.getId(fieldNameAndType);
+        if (!fieldIds.contains(fieldId)) {
+            if (sharesFieldIds) {
+                // Parallel subtrees may have children of the same state, so never write to the parent's set
+                fieldIds = new TIntHashSet(fieldIds);
+                sharesFieldIds = false;
+            }
+            fieldIds.add(fieldId);
+        }
         StringBuilder sb = new StringBuilder(className);
         sb.append("->").append(fieldNameAndType);
 
@@ -76,7 +91,9 @@ public class ClassState extends BaseState {
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder("Fields:\n");
-        for (String fieldNameAndType : fieldNameAndTypes) {
+        TIntIterator iterator = fieldIds.iterator();
+        while (iterator.hasNext()) {
+            String fieldNameAndType = SymbolTable.getSymbol(iterator.next()).getDescriptor();
             sb.append(fieldNameAndType).append(" = ").append(peekField(fieldNameAndType)).append('\n');
         }
         sb.setLength(sb.length() - 1);
@@ -86,7 +103,7 @@ public class ClassState extends BaseState {
     }
 
     ClassState getChild(ExecutionContext childContext) {
-        ClassState child = new ClassState(this, childContext, fieldNameAndTypes);
+        ClassState child = new ClassState(this, childContext, fieldIds);
 
         return child;
     }
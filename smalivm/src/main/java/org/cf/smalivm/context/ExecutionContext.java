@@ -1,12 +1,20 @@
 package org.cf.smalivm.context;
 
-import gnu.trove.map.TMap;
-import gnu.trove.map.hash.THashMap;
-import gnu.trove.set.hash.THashSet;
-
+import gnu.trove.iterator.TIntIterator;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
+import org.cf.smalivm.MethodSummaryCache;
 import org.cf.smalivm.SideEffect;
+import org.cf.smalivm.SymbolTable;
 import org.cf.smalivm.VirtualMachine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,13 +25,22 @@ public class ExecutionContext {
     private static final Logger log = LoggerFactory.getLogger(ExecutionContext.class.getSimpleName());
 
     private int callDepth;
-    private final TMap<String, SideEffect.Level> classNameToSideEffectLevel;
-    private final TMap<String, ClassState> classNameToState;
+    // Class state maps are keyed by class symbol ID, see SymbolTable
+    private final TIntObjectMap<SideEffect.Level> classIdToSideEffectLevel;
+    private final TIntObjectMap<ClassState> classIdToState;
     private final Heap heap;
-    private final Set<String> initializedClasses;
+    private final TIntSet initializedClassIds;
 
     private MethodState mState;
+    // Highest side effect level of the ops executed in this context, or null if it's the op's own level
+    private SideEffect.Level opSideEffectLevel;
+    // Visits of invoked methods which the op used summaries of rather than executing them
+    private int summarizedVisits;
     private ExecutionContext parent;
+    // Null unless executing an invoked method
+    private MethodSummaryCache.Recorder summaryRecorder;
+    // Values made unknown by loop widening before this context's op executed, or null
+    private Map<String, HeapItem> widenedItems;
     private final VirtualMachine vm;
 
     public ExecutionContext(ExecutionContext other) {
@@ -31,24 +48,25 @@ public class ExecutionContext {
         if (other.mState != null) {
             mState = new MethodState(other.mState, this);
         }
-        classNameToState = new THashMap<String, ClassState>(other.classNameToState.size());
-        classNameToSideEffectLevel = new THashMap<String, SideEffect.Level>(classNameToState.size());
-        for (String className : other.classNameToState.keySet()) {
-            ClassState otherClassState = other.peekClassState(className);
+        classIdToState = new TIntObjectHashMap<ClassState>(other.classIdToState.size());
+        classIdToSideEffectLevel = new TIntObjectHashMap<SideEffect.Level>(classIdToState.size());
+        for (int classId : other.classIdToState.keys()) {
+            ClassState otherClassState = other.peekClassState(classId);
             ClassState cState = new ClassState(otherClassState, this);
-            SideEffect.Level otherLevel = other.getClassStateSideEffectLevel(className);
-            setClassState(className, cState, otherLevel);
+            SideEffect.Level otherLevel = other.getClassStateSideEffectLevel(classId);
+            setClassState(classId, cState, otherLevel);
         }
-        initializedClasses = new THashSet<String>(other.initializedClasses);
+        initializedClassIds = new TIntHashSet(other.initializedClassIds);
         heap = new Heap(other.getHeap());
         callDepth = other.getCallDepth();
+        summaryRecorder = other.summaryRecorder;
     }
 
     public ExecutionContext(VirtualMachine vm) {
         this.vm = vm;
-        classNameToState = new THashMap<String, ClassState>(0);
-        classNameToSideEffectLevel = new THashMap<String, SideEffect.Level>(0);
-        initializedClasses = new THashSet<String>(0);
+        classIdToState = new TIntObjectHashMap<ClassState>(0);
+        classIdToSideEffectLevel = new TIntObjectHashMap<SideEffect.Level>(0);
+        initializedClassIds = new TIntHashSet(0);
         heap = new Heap();
         callDepth = 0;
     }
@@ -62,6 +80,7 @@ public class ExecutionContext {
         child.setCallDepth(callDepth);
         child.setParent(this);
         child.getHeap().setParent(this.getHeap());
+        child.setSummaryRecorder(summaryRecorder);
 
         // Almost every op access the method state
         MethodState childMethodState = getMethodState().getChild(child);
@@ -70,7 +89,105 @@ public class ExecutionContext {
         return child;
     }
 
+    /**
+     * Build a key for the method and class state visible from this context. Contexts with equal keys behave the same
+     * for any remaining execution, so paths reaching the same address with equal keys may be merged.
+     *
+     * @return state key, or null if the state has values which can't be compared, e.g. mutable objects which may be
+     *         aliased
+     */
+    public Object getStateKey() {
+        Map<String, HeapItem> visibleItems = heap.getVisibleItems();
+        Map<String, Object> heapKeyToItemKey = new HashMap<String, Object>(visibleItems.size());
+        for (Map.Entry<String, HeapItem> entry : visibleItems.entrySet()) {
+            HeapItem item = entry.getValue();
+            if (!item.isComparable()) {
+                return null;
+            }
+            heapKeyToItemKey.put(entry.getKey(), item.getComparisonKey());
+        }
+
+        TIntSet classIds = new TIntHashSet();
+        ExecutionContext ancestor = this;
+        do {
+            classIds.addAll(ancestor.classIdToState.keySet());
+            classIds.addAll(ancestor.initializedClassIds);
+            ancestor = ancestor.getParent();
+        } while (ancestor != null);
+
+        Map<Integer, Object> classIdToClassKey = new HashMap<Integer, Object>(classIds.size());
+        for (int classId : classIds.toArray()) {
+            Object classKey = Arrays.asList(isClassInitialized(classId), getClassStateSideEffectLevel(classId));
+            classIdToClassKey.put(classId, classKey);
+        }
+
+        return Arrays.asList(heapKeyToItemKey, classIdToClassKey);
+    }
+
+    /**
+     * Make every register and field whose value differs from the value visible from an earlier context unknown. This
+     * is used to widen the state at the head of a loop which may never terminate.
+     *
+     * @param earlier
+     *            context of the node at the same address in the previous iteration, must have a parent
+     * @return number of values which were made unknown
+     */
+    public int widen(ExecutionContext earlier) {
+        Map<String, HeapItem> visibleItems = heap.getVisibleItems();
+        Map<String, HeapItem> earlierItems = earlier.getEntryItems();
+        int widenedCount = 0;
+        for (Map.Entry<String, HeapItem> entry : visibleItems.entrySet()) {
+            HeapItem item = entry.getValue();
+            HeapItem earlierItem = earlierItems.get(entry.getKey());
+            if (item.isUnknown() && (earlierItem != null) && earlierItem.isUnknown()
+                            && item.getType().equals(earlierItem.getType())) {
+                continue;
+            }
+            if (item.equals(earlierItem)) {
+                continue;
+            }
+
+            HeapItem unknown = HeapItem.newUnknown(item.getType());
+            heap.set(entry.getKey(), unknown);
+            if (widenedItems == null) {
+                widenedItems = new HashMap<String, HeapItem>();
+            }
+            widenedItems.put(entry.getKey(), unknown);
+            widenedCount++;
+        }
+
+        return widenedCount;
+    }
+
+    /*
+     * Values visible before this context's op executed.
+     */
+    private Map<String, HeapItem> getEntryItems() {
+        Map<String, HeapItem> result = parent.heap.getVisibleItems();
+        if (widenedItems != null) {
+            result.putAll(widenedItems);
+        }
+
+        return result;
+    }
+
+    /*
+     * Drop state only needed while executing and share unchanged values with the parent.
+     */
+    int compact() {
+        summaryRecorder = null;
+        widenedItems = null;
+
+        return heap.shareParentItems();
+    }
+
     public Set<String> getInitializedClasses() {
+        Set<String> initializedClasses = new HashSet<String>(initializedClassIds.size());
+        TIntIterator iterator = initializedClassIds.iterator();
+        while (iterator.hasNext()) {
+            initializedClasses.add(SymbolTable.getSymbol(iterator.next()).getClassName());
+        }
+
         return initializedClasses;
     }
 
@@ -81,14 +198,18 @@ public class ExecutionContext {
     }
 
     public SideEffect.Level getClassStateSideEffectLevel(String className) {
-        ExecutionContext ancestor = getAncestorWithClassName(className);
+        return getClassStateSideEffectLevel(SymbolTable.getId(className));
+    }
+
+    private SideEffect.Level getClassStateSideEffectLevel(int classId) {
+        ExecutionContext ancestor = getAncestorWithClassId(classId);
         if (ancestor == null) {
             return null;
         }
 
-        SideEffect.Level level = ancestor.classNameToSideEffectLevel.get(className);
+        SideEffect.Level level = ancestor.classIdToSideEffectLevel.get(classId);
         if (ancestor != this) {
-            classNameToSideEffectLevel.put(className, level);
+            classIdToSideEffectLevel.put(classId, level);
         }
 
         return level;
@@ -102,13 +223,32 @@ public class ExecutionContext {
         return mState;
     }
 
+    /**
+     * @return highest side effect level of the ops executed in this context, or null if the op's level doesn't depend
+     *         on how it was executed
+     */
+    public SideEffect.Level getOpSideEffectLevel() {
+        return opSideEffectLevel;
+    }
+
+    public MethodSummaryCache.Recorder getSummaryRecorder() {
+        return summaryRecorder;
+    }
+
+    /**
+     * @return visits the op would have used executing invoked methods it used summaries of instead
+     */
+    public int getSummarizedVisits() {
+        return summarizedVisits;
+    }
+
     public void initializeClass(String className, ClassState cState, SideEffect.Level level) {
-        setClassState(className, cState, level);
-        setClassInitialized(className);
+        initializeClass(SymbolTable.getId(className), cState, level);
     }
 
-    private void setClassInitialized(String className) {
-        initializedClasses.add(className);
+    private void initializeClass(int classId, ClassState cState, SideEffect.Level level) {
+        setClassState(classId, cState, level);
+        initializedClassIds.add(classId);
     }
 
     public void setCallDepth(int callDepth) {
@@ -116,23 +256,56 @@ public class ExecutionContext {
     }
 
     public void setClassState(String className, ClassState cState, SideEffect.Level level) {
-        classNameToState.put(className, cState);
-        classNameToSideEffectLevel.put(className, level);
+        setClassState(SymbolTable.getId(className), cState, level);
+    }
+
+    private void setClassState(int classId, ClassState cState, SideEffect.Level level) {
+        classIdToState.put(classId, cState);
+        classIdToSideEffectLevel.put(classId, level);
     }
 
     public void setMethodState(MethodState mState) {
         this.mState = mState;
     }
 
+    /**
+     * Ops whose side effects depend on how they're executed, e.g. invocations, keep the level here rather than in the
+     * op, since ops are shared by every path and thread executing the method.
+     *
+     * @param opSideEffectLevel
+     */
+    public void setOpSideEffectLevel(SideEffect.Level opSideEffectLevel) {
+        this.opSideEffectLevel = opSideEffectLevel;
+    }
+
+    public void setSummarizedVisits(int summarizedVisits) {
+        this.summarizedVisits = summarizedVisits;
+    }
+
+    public void setSummaryRecorder(MethodSummaryCache.Recorder summaryRecorder) {
+        this.summaryRecorder = summaryRecorder;
+    }
+
     public void staticallyInitializeClassIfNecessary(String className) {
         // This method should be called when a class is first used. A usage is:
         // 1.) The invocation of a method declared by the class (not inherited from a superclass)
         // 2.) The invocation of a constructor of the class (covered by #1)
         // 3.) The use or assignment of a field declared by a class (not inherited from a superclass), except for fields
         // that are both static and final, and are initialized by a compile-time constant expression.
-        if (!vm.isLocalClass(className) || isClassInitialized(className)) {
+        if (!vm.isLocalClass(className)) {
             return;
         }
+        if (isClassInitialized(className)) {
+            if (summaryRecorder != null) {
+                summaryRecorder.recordInitializedClass(className, getClassStateSideEffectLevel(className));
+            }
+
+            return;
+        }
+        if (summaryRecorder != null) {
+            // Initialization changes the class state of the caller
+            summaryRecorder.invalidate();
+        }
 
         SideEffect.Level sideEffectLevel = SideEffect.Level.NONE;
         String clinitDescriptor = className + "-><clinit>()V";
@@ -152,24 +325,28 @@ public class ExecutionContext {
             }
         } else {
             // No clinit for this class.
-            setClassInitialized(className);
+            initializedClassIds.add(SymbolTable.getId(className));
         }
         setClassSideEffectType(className, sideEffectLevel);
     }
 
     public boolean isClassInitialized(String className) {
-        ExecutionContext ancestor = getAncestorWithClassName(className);
+        return isClassInitialized(SymbolTable.getId(className));
+    }
+
+    private boolean isClassInitialized(int classId) {
+        ExecutionContext ancestor = getAncestorWithClassId(classId);
         if (ancestor == null) {
             return false;
         }
 
         if (ancestor != this) {
-            if (ancestor.initializedClasses.contains(className)) {
-                initializedClasses.add(className);
+            if (ancestor.initializedClassIds.contains(classId)) {
+                initializedClassIds.add(classId);
             }
         }
 
-        return initializedClasses.contains(className);
+        return initializedClassIds.contains(classId);
     }
 
     private void setParent(ExecutionContext parent) {
@@ -180,10 +357,10 @@ public class ExecutionContext {
         return parent;
     }
 
-    private ExecutionContext getAncestorWithClassName(String className) {
+    private ExecutionContext getAncestorWithClassId(int classId) {
         ExecutionContext ancestor = this;
         do {
-            if (ancestor.classNameToState.containsKey(className)) {
+            if (ancestor.classIdToState.containsKey(classId)) {
                 return ancestor;
             }
 
@@ -194,22 +371,26 @@ public class ExecutionContext {
     }
 
     public ClassState peekClassState(String className) {
-        ExecutionContext ancestor = getAncestorWithClassName(className);
+        return peekClassState(SymbolTable.getId(className));
+    }
+
+    private ClassState peekClassState(int classId) {
+        ExecutionContext ancestor = getAncestorWithClassId(classId);
         if (ancestor == null) {
-            vm.addTemplateClassState(this, className);
+            vm.addTemplateClassState(this, SymbolTable.getSymbol(classId).getClassName());
         } else if (ancestor != this) {
-            ClassState ancestorClassState = ancestor.peekClassState(className);
+            ClassState ancestorClassState = ancestor.peekClassState(classId);
             ClassState cState = ancestorClassState.getChild(this);
-            SideEffect.Level level = ancestor.getClassStateSideEffectLevel(className);
+            SideEffect.Level level = ancestor.getClassStateSideEffectLevel(classId);
             // Must initialize, because the ancestor probably just has the template class state.
-            initializeClass(className, cState, level);
+            initializeClass(classId, cState, level);
         }
 
-        return classNameToState.get(className);
+        return classIdToState.get(classId);
     }
 
     void setClassSideEffectType(String className, SideEffect.Level sideEffectLevel) {
-        classNameToSideEffectLevel.put(className, sideEffectLevel);
+        classIdToSideEffectLevel.put(SymbolTable.getId(className), sideEffectLevel);
     }
 
     @Override
@@ -221,7 +402,7 @@ public class ExecutionContext {
         if (sb.length() > 0) {
             sb.append("\n");
         }
-        if (getInitializedClasses().size() < 4) {
+        if (initializedClassIds.size() < 4) {
             // Too many and can blow up heap
             for (String className : getInitializedClasses()) {
                 ClassState cState = peekClassState(className);
@@ -2,10 +2,17 @@ package org.cf.smalivm.context;
 
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -13,13 +20,19 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.cf.smalivm.ClassHierarchy;
 import org.cf.smalivm.SideEffect;
+import org.cf.smalivm.SymbolTable;
+import org.cf.smalivm.SymbolTable.Symbol;
 import org.cf.smalivm.VirtualMachine;
 import org.cf.smalivm.opcode.Op;
 import org.cf.smalivm.opcode.OpFactory;
 import org.jf.dexlib2.Opcode;
 import org.jf.dexlib2.builder.BuilderInstruction;
 import org.jf.dexlib2.builder.MutableMethodImplementation;
+import org.jf.dexlib2.iface.ExceptionHandler;
+import org.jf.dexlib2.iface.TryBlock;
+import org.jf.dexlib2.immutable.ImmutableTryBlock;
 import org.jf.dexlib2.util.ReferenceUtil;
 import org.jf.dexlib2.writer.builder.BuilderMethod;
 import org.slf4j.Logger;
@@ -50,6 +63,92 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
         return result;
     }
 
+    private static int[] buildAddressToIndex(List<BuilderInstruction> instructions) {
+        int size = 0;
+        if (!instructions.isEmpty()) {
+            size = instructions.get(instructions.size() - 1).getLocation().getCodeAddress() + 1;
+        }
+        int[] result = new int[size];
+        Arrays.fill(result, -1);
+        for (int i = 0; i < instructions.size(); i++) {
+            result[instructions.get(i).getLocation().getCodeAddress()] = i;
+        }
+
+        return result;
+    }
+
+    private static TIntSet buildJoinAddresses(TIntObjectMap<List<ExecutionNode>> addressToNodePile,
+                    List<? extends TryBlock<? extends ExceptionHandler>> tryBlocks) {
+        TIntIntMap addressToPredecessorCount = new TIntIntHashMap();
+        for (List<ExecutionNode> nodePile : addressToNodePile.valueCollection()) {
+            for (int childAddress : nodePile.get(TEMPLATE_NODE_INDEX).getOp().getPossibleChildren()) {
+                addressToPredecessorCount.adjustOrPutValue(childAddress, 1, 1);
+            }
+        }
+
+        TIntSet result = new TIntHashSet();
+        for (int address : addressToPredecessorCount.keys()) {
+            if (addressToPredecessorCount.get(address) > 1) {
+                result.add(address);
+            }
+        }
+        // Any instruction in a try block may throw
+        for (TryBlock<? extends ExceptionHandler> tryBlock : tryBlocks) {
+            for (ExceptionHandler handler : tryBlock.getExceptionHandlers()) {
+                result.add(handler.getHandlerCodeAddress());
+            }
+        }
+
+        return result;
+    }
+
+    private static TIntSet buildLoopHeads(TIntObjectMap<List<ExecutionNode>> addressToNodePile,
+                    List<? extends TryBlock<? extends ExceptionHandler>> tryBlocks) {
+        // Depth first search for back edges, i.e. edges to an address which is still being searched
+        TIntList roots = new TIntArrayList();
+        roots.add(METHOD_ROOT_ADDRESS);
+        for (TryBlock<? extends ExceptionHandler> tryBlock : tryBlocks) {
+            for (ExceptionHandler handler : tryBlock.getExceptionHandlers()) {
+                roots.add(handler.getHandlerCodeAddress());
+            }
+        }
+
+        TIntSet result = new TIntHashSet();
+        TIntSet searched = new TIntHashSet();
+        TIntSet searching = new TIntHashSet();
+        for (int root : roots.toArray()) {
+            if (searched.contains(root) || !addressToNodePile.containsKey(root)) {
+                continue;
+            }
+
+            Deque<int[]> stack = new ArrayDeque<int[]>();
+            stack.push(new int[] { root, 0 });
+            searching.add(root);
+            while (!stack.isEmpty()) {
+                int[] frame = stack.peek();
+                int address = frame[0];
+                int[] children = addressToNodePile.get(address).get(TEMPLATE_NODE_INDEX).getOp().getPossibleChildren();
+                if (frame[1] == children.length) {
+                    stack.pop();
+                    searching.remove(address);
+                    searched.add(address);
+                    continue;
+                }
+
+                int childAddress = children[frame[1]];
+                frame[1]++;
+                if (searching.contains(childAddress)) {
+                    result.add(childAddress);
+                } else if (!searched.contains(childAddress) && addressToNodePile.containsKey(childAddress)) {
+                    stack.push(new int[] { childAddress, 0 });
+                    searching.add(childAddress);
+                }
+            }
+        }
+
+        return result;
+    }
+
     private static TIntList buildTerminatingAddresses(List<BuilderInstruction> instructions) {
         TIntList result = new TIntArrayList(1);
         for (BuilderInstruction instruction : instructions) {
@@ -70,42 +169,178 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
     }
 
     private final String methodDescriptor;
+    // Finds the types of unknown consensus
+    private final ClassHierarchy classHierarchy;
     private final TIntList terminatingAddresses;
+    private final int registerCount;
+    private final List<ImmutableTryBlock> tryBlocks;
+    // Addresses with several possible predecessors, where equivalent paths may be merged
+    private final TIntSet joinAddresses;
+    // Targets of back edges
+    private final TIntSet loopHeads;
+    private final Map<Object, ExecutionNode> stateKeyToNode;
+    // Consensus of the return register of executed terminating nodes, or null if the graph isn't being executed
+    private final HeapItemConsensus returnConsensus;
     protected final TIntObjectMap<List<ExecutionNode>> addressToNodePile;
-
+    // Node piles of the template this graph was cloned from, or null if every address has a pile of its own
+    private final TIntObjectMap<List<ExecutionNode>> templateAddressToNodePile;
+    // Template nodes by instruction index, or null if template nodes may be replaced, e.g. by a wrapping graph
+    private final ExecutionNode[] templateNodes;
+    // Instruction index of each address, or -1 if no instruction starts at the address
+    private final int[] addressToIndex;
+
+    /**
+     * Clone a template graph for an execution. Template nodes are shared with the template, and a node pile is only
+     * allocated once a node is added at its address.
+     *
+     * @param other
+     *            template graph
+     */
     public ExecutionGraph(ExecutionGraph other) {
         methodDescriptor = other.methodDescriptor;
+        classHierarchy = other.classHierarchy;
         addressToNodePile = new TIntObjectHashMap<List<ExecutionNode>>();
-        for (int address : other.addressToNodePile.keys()) {
-            List<ExecutionNode> otherNodePile = other.addressToNodePile.get(address);
-            List<ExecutionNode> nodePile = new ArrayList<ExecutionNode>(otherNodePile.size());
-            for (ExecutionNode otherNode : otherNodePile) {
-                nodePile.add(new ExecutionNode(otherNode));
-            }
-            addressToNodePile.put(address, nodePile);
+        if (other.templateAddressToNodePile != null) {
+            templateAddressToNodePile = other.templateAddressToNodePile;
+        } else {
+            templateAddressToNodePile = other.addressToNodePile;
         }
+        templateNodes = other.templateNodes;
+        addressToIndex = other.addressToIndex;
+        returnConsensus = new HeapItemConsensus(classHierarchy);
         terminatingAddresses = other.terminatingAddresses;
+        registerCount = other.registerCount;
+        tryBlocks = other.tryBlocks;
+        joinAddresses = other.joinAddresses;
+        loopHeads = other.loopHeads;
+        stateKeyToNode = new HashMap<Object, ExecutionNode>();
     }
 
     public ExecutionGraph(ExecutionGraph other, boolean wrap) {
+        if (other.templateAddressToNodePile != null) {
+            // Wrapping graphs may edit the node pile of any address
+            synchronized (other.addressToNodePile) {
+                for (int address : other.templateAddressToNodePile.keys()) {
+                    if (!other.addressToNodePile.containsKey(address)) {
+                        List<ExecutionNode> nodePile = new ArrayList<ExecutionNode>(1);
+                        nodePile.add(other.getTemplateNode(address));
+                        other.addressToNodePile.put(address, nodePile);
+                    }
+                }
+            }
+        }
         this.addressToNodePile = other.addressToNodePile;
+        this.templateAddressToNodePile = null;
+        this.templateNodes = null;
+        this.addressToIndex = null;
+        // Wrapping graphs may replace terminating nodes
+        this.returnConsensus = null;
         this.methodDescriptor = other.methodDescriptor;
+        this.classHierarchy = other.classHierarchy;
         this.terminatingAddresses = other.terminatingAddresses;
+        this.registerCount = other.registerCount;
+        this.tryBlocks = other.tryBlocks;
+        this.joinAddresses = other.joinAddresses;
+        this.loopHeads = other.loopHeads;
+        this.stateKeyToNode = other.stateKeyToNode;
     }
 
     public ExecutionGraph(VirtualMachine vm, BuilderMethod method) {
+        this(vm, method, (MutableMethodImplementation) method.getImplementation());
+    }
+
+    /**
+     * Build a template graph from an implementation which may not be the one currently set on the method, e.g. a
+     * private copy being optimized.
+     *
+     * @param vm
+     * @param method
+     * @param implementation
+     */
+    public ExecutionGraph(VirtualMachine vm, BuilderMethod method, MutableMethodImplementation implementation) {
         methodDescriptor = ReferenceUtil.getMethodDescriptor(method);
-        MutableMethodImplementation implementation = (MutableMethodImplementation) method.getImplementation();
+        classHierarchy = vm.getClassManager().getClassHierarchy();
         List<BuilderInstruction> instructions = implementation.getInstructions();
         addressToNodePile = buildAddressToNodePile(vm, instructions);
+        addressToIndex = buildAddressToIndex(instructions);
+        templateNodes = new ExecutionNode[instructions.size()];
+        for (int i = 0; i < templateNodes.length; i++) {
+            int address = instructions.get(i).getLocation().getCodeAddress();
+            templateNodes[i] = addressToNodePile.get(address).get(TEMPLATE_NODE_INDEX);
+        }
         terminatingAddresses = buildTerminatingAddresses(instructions);
+        registerCount = implementation.getRegisterCount();
+        // Snapshot so later edits to the implementation don't change the graph
+        tryBlocks = ImmutableTryBlock.immutableListOf(implementation.getTryBlocks());
+        joinAddresses = buildJoinAddresses(addressToNodePile, tryBlocks);
+        loopHeads = buildLoopHeads(addressToNodePile, tryBlocks);
+        stateKeyToNode = new HashMap<Object, ExecutionNode>();
+        templateAddressToNodePile = null;
+        returnConsensus = null;
     }
 
     public void addNode(ExecutionNode node) {
-        addressToNodePile.get(node.getAddress()).add(node);
+        int address = node.getAddress();
+        List<ExecutionNode> nodePile;
+        // Paths may be explored concurrently
+        synchronized (addressToNodePile) {
+            nodePile = addressToNodePile.get(address);
+            if (nodePile == null) {
+                // Most node piles will be a template node and one or more context nodes
+                nodePile = new ArrayList<ExecutionNode>(2);
+                nodePile.add(getTemplateNode(address));
+                addressToNodePile.put(address, nodePile);
+            }
+        }
+        synchronized (nodePile) {
+            nodePile.add(node);
+        }
+    }
+
+    /**
+     * Add a node which hasn't been executed yet. If it's at a join point and an earlier node at the same address had
+     * an equal state, the node is merged with the earlier node. It stays in the node pile so consensus includes every
+     * path, but the path doesn't continue past it.
+     *
+     * @param node
+     */
+    public void addNodeAndMerge(ExecutionNode node) {
+        int address = node.getAddress();
+        if (!node.isMerged() && joinAddresses.contains(address)) {
+            Object stateKey = node.getContext().getStateKey();
+            if (stateKey != null) {
+                List<Object> key = Arrays.asList(address, stateKey);
+                synchronized (stateKeyToNode) {
+                    ExecutionNode equivalent = stateKeyToNode.get(key);
+                    if (equivalent == null) {
+                        stateKeyToNode.put(key, node);
+                    } else {
+                        node.mergeInto(equivalent);
+                    }
+                }
+            }
+        }
+
+        addNode(node);
+    }
+
+    /**
+     * Update consensus which is maintained during execution with a node which was just executed.
+     *
+     * @param node
+     */
+    public void updateConsensus(ExecutionNode node) {
+        if ((returnConsensus != null) && terminatingAddresses.contains(node.getAddress())) {
+            // Terminating nodes have no children, so their state won't change
+            returnConsensus.add(node.getContext().getMethodState().peekRegister(MethodState.ReturnRegister));
+        }
     }
 
     public int[] getAddresses() {
+        if (templateAddressToNodePile != null) {
+            return templateAddressToNodePile.keys();
+        }
+
         return addressToNodePile.keys();
     }
 
@@ -122,28 +357,27 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
     }
 
     public HeapItem getFieldConsensus(TIntList addressList, String fieldDescriptor) {
-        String[] parts = fieldDescriptor.split("->");
-        String className = parts[0];
-        String fieldNameAndType = parts[1];
+        Symbol field = SymbolTable.getSymbol(fieldDescriptor);
 
-        return getFieldConsensus(addressList, className, fieldNameAndType);
+        return getFieldConsensus(addressList, field.getClassName(), field.getMemberSignature());
     }
 
     public HeapItem getFieldConsensus(TIntList addressList, String className, String fieldNameAndType) {
-        String[] parts = fieldNameAndType.split(":");
-        String type = parts[1];
-        Set<HeapItem> items = new HashSet<HeapItem>();
+        String type = SymbolTable.getSymbol(fieldNameAndType).getType();
+        HeapItemConsensus consensus = new HeapItemConsensus(classHierarchy);
         for (int address : addressList.toArray()) {
             // If the class wasn't initialized in one path, it's unknown
-            for (ExecutionNode node : getNodePile(address)) {
+            List<ExecutionNode> nodePile = getNodePile(address);
+            for (ExecutionNode node : nodePile) {
                 if (!node.getContext().isClassInitialized(className)) {
                     return HeapItem.newUnknown(type);
                 }
             }
 
-            items.addAll(getFieldItems(address, className, fieldNameAndType));
-            if (1 != items.size()) {
-                // since set, size == 1 -> consensus
+            for (ExecutionNode node : nodePile) {
+                consensus.add(node.getContext().peekClassState(className).peekField(fieldNameAndType));
+            }
+            if (consensus.isUnknown()) {
                 if (log.isTraceEnabled()) {
                     log.trace("No conensus for " + className + "->" + fieldNameAndType + ", returning unknown");
                 }
@@ -152,7 +386,7 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
             }
         }
 
-        return items.toArray(new HeapItem[items.size()])[0];
+        return consensus.get();
     }
 
     public Set<String> getAllPossiblyInitializedClasses(TIntList addressList) {
@@ -183,6 +417,22 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
         return methodDescriptor;
     }
 
+    /**
+     *
+     * @return register count of the implementation the graph was built from
+     */
+    public int getRegisterCount() {
+        return registerCount;
+    }
+
+    /**
+     *
+     * @return try / catch blocks of the implementation the graph was built from
+     */
+    public List<? extends TryBlock<? extends ExceptionHandler>> getTryBlocks() {
+        return tryBlocks;
+    }
+
     public int getNodeCount() {
         int totalSize = addressToNodePile.size();
         int templateCount = addressToNodePile.keys().length;
@@ -191,18 +441,15 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
     }
 
     public List<ExecutionNode> getNodePile(int address) {
-        List<ExecutionNode> result = addressToNodePile.get(address);
+        List<ExecutionNode> result = getPile(address);
         result = result.subList(1, result.size());
 
         return result;
     }
 
     public Op getOp(int address) {
-        List<ExecutionNode> pile = addressToNodePile.get(address);
         // same pile implies same op
-        ExecutionNode bottomNode = pile.get(TEMPLATE_NODE_INDEX);
-
-        return bottomNode.getOp();
+        return getTemplateNode(address).getOp();
     }
 
     public HeapItem getRegisterConsensus(int address, int register) {
@@ -256,21 +503,18 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
     }
 
     public HeapItem getRegisterConsensus(TIntList addressList, int register) {
-        Set<HeapItem> items = new HashSet<HeapItem>();
+        HeapItemConsensus consensus = new HeapItemConsensus(classHierarchy);
         for (int address : addressList.toArray()) {
-            items.addAll(getRegisterItems(address, register));
-            if (items.size() != 1) {
-                if (log.isTraceEnabled()) {
-                    log.trace("No conensus for register #" + register + ", returning unknown");
-                }
-                HeapItem item = items.toArray(new HeapItem[items.size()])[0];
-
-                return HeapItem.newUnknown(item.getType());
+            // Keep adding items after consensus is unknown, so the unknown type covers every path
+            for (ExecutionNode node : getNodePile(address)) {
+                consensus.add(node.getContext().getMethodState().peekRegister(register));
             }
         }
-        assert items.size() == 1;
+        if (consensus.isUnknown() && log.isTraceEnabled()) {
+            log.trace("No conensus for register #" + register + ", returning unknown");
+        }
 
-        return items.toArray(new HeapItem[1])[0];
+        return consensus.get();
     }
 
     public Set<HeapItem> getRegisterItems(int address, int register) {
@@ -286,7 +530,7 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
     }
 
     public ExecutionNode getRoot() {
-        List<ExecutionNode> pile = addressToNodePile.get(METHOD_ROOT_ADDRESS);
+        List<ExecutionNode> pile = getPile(METHOD_ROOT_ADDRESS);
         // Return node with initialized context if available.
         if (pile.size() > 1) {
             return pile.get(1);
@@ -322,8 +566,7 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
     public SideEffect.Level getHighestMethodSideEffectLevel() {
         SideEffect.Level result = SideEffect.Level.NONE;
         for (ExecutionNode node : this) {
-            Op op = node.getOp();
-            SideEffect.Level level = op.sideEffectLevel();
+            SideEffect.Level level = node.getSideEffectLevel();
             switch (level) {
             case STRONG:
                 return level;
@@ -338,8 +581,50 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
         return result;
     }
 
+    /**
+     *
+     * @param address
+     * @return highest side effect level of any execution of the op at the address, or the op's own level if it wasn't
+     *         executed
+     */
+    public SideEffect.Level getHighestSideEffectLevel(int address) {
+        List<ExecutionNode> nodePile = getNodePile(address);
+        if (nodePile.isEmpty()) {
+            return getOp(address).sideEffectLevel();
+        }
+
+        SideEffect.Level result = SideEffect.Level.NONE;
+        for (ExecutionNode node : nodePile) {
+            SideEffect.Level level = node.getSideEffectLevel();
+            if (level.getValue() > result.getValue()) {
+                result = level;
+            }
+        }
+
+        return result;
+    }
+
     public ExecutionNode getTemplateNode(int address) {
-        return addressToNodePile.get(address).get(TEMPLATE_NODE_INDEX);
+        if (templateNodes != null) {
+            return templateNodes[addressToIndex[address]];
+        }
+
+        return getPile(address).get(TEMPLATE_NODE_INDEX);
+    }
+
+    /*
+     * Node pile of an address, which is the template's if no nodes were added at the address.
+     */
+    private List<ExecutionNode> getPile(int address) {
+        List<ExecutionNode> nodePile;
+        synchronized (addressToNodePile) {
+            nodePile = addressToNodePile.get(address);
+        }
+        if ((nodePile == null) && (templateAddressToNodePile != null)) {
+            nodePile = templateAddressToNodePile.get(address);
+        }
+
+        return nodePile;
     }
 
     public HeapItem getTerminatingFieldConsensus(String fieldDescriptor) {
@@ -369,7 +654,12 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
         TIntList addresses = getConnectedTerminatingAddresses();
         Map<Integer, HeapItem> result = new HashMap<Integer, HeapItem>(registers.length);
         for (int register : registers) {
-            HeapItem item = getRegisterConsensus(addresses, register);
+            HeapItem item;
+            if ((MethodState.ReturnRegister == register) && (returnConsensus != null)) {
+                item = returnConsensus.get();
+            } else {
+                item = getRegisterConsensus(addresses, register);
+            }
             result.put(register, item);
         }
 
@@ -385,6 +675,47 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
         return getRoot().toGraph();
     }
 
+    /**
+     * Reduce the memory used by a graph which is done executing. State which is only needed while executing is dropped,
+     * and values which nodes cloned from their parents but never changed are shared with the parents. Nodes may still
+     * be added and executed afterward, e.g. when an optimization replaces an instruction.
+     */
+    public void compact() {
+        int sharedCount = 0;
+        // Iterates parents before children, so unchanged values are shared all the way down
+        for (ExecutionNode node : this) {
+            ExecutionContext context = node.getContext();
+            if (context != null) {
+                sharedCount += context.compact();
+            }
+        }
+        synchronized (stateKeyToNode) {
+            stateKeyToNode.clear();
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Compacted " + getMethodDescriptor() + ", shared " + sharedCount + " values");
+        }
+    }
+
+    /**
+     *
+     * @param address
+     * @return true if the address is the target of a back edge, i.e. the head of a loop
+     */
+    public boolean isLoopHead(int address) {
+        return loopHeads.contains(address);
+    }
+
+    /**
+     *
+     * @param address
+     * @return true if the instruction at the address can't continue, e.g. a return or throw
+     */
+    public boolean isTerminatingAddress(int address) {
+        return terminatingAddresses.contains(address);
+    }
+
     public boolean wasAddressReached(int address) {
         if (METHOD_ROOT_ADDRESS == address) {
             // Root is always reachable
@@ -392,7 +723,7 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
         }
 
         // If this address was reached during execution there will be clones in the pile.
-        List<ExecutionNode> nodePile = addressToNodePile.get(address);
+        List<ExecutionNode> nodePile = getPile(address);
         if ((nodePile == null) || (1 > nodePile.size())) {
             log.warn("Node pile @" + address + " has no template node.");
             return false;
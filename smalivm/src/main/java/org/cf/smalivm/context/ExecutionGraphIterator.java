@@ -1,19 +1,26 @@
 package org.cf.smalivm.context;
 
 import java.util.ArrayDeque;
+import java.util.Collections;
 import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.Set;
 
 class ExecutionGraphIterator implements Iterator<ExecutionNode> {
 
     private final Deque<ExecutionNode> stack;
+    // Merged nodes share children, so a child may be reached more than once
+    private final Set<ExecutionNode> visited;
 
     ExecutionGraphIterator(ExecutionGraph graph) {
         stack = new ArrayDeque<ExecutionNode>();
+        visited = Collections.newSetFromMap(new IdentityHashMap<ExecutionNode, Boolean>());
         ExecutionNode rootNode = graph.getRoot();
 
         if (rootNode != null) {
             stack.push(rootNode);
+            visited.add(rootNode);
         }
     }
 
@@ -25,7 +32,11 @@ class ExecutionGraphIterator implements Iterator<ExecutionNode> {
     @Override
     public ExecutionNode next() {
         ExecutionNode result = stack.poll();
-        stack.addAll(result.getChildren());
+        for (ExecutionNode child : result.getChildren()) {
+            if (visited.add(child)) {
+                stack.add(child);
+            }
+        }
 
         return result;
     }
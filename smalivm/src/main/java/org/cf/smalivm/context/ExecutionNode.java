@@ -1,8 +1,10 @@
 package org.cf.smalivm.context;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
+import org.cf.smalivm.SideEffect;
 import org.cf.smalivm.opcode.ExecutionContextOp;
 import org.cf.smalivm.opcode.MethodStateOp;
 import org.cf.smalivm.opcode.Op;
@@ -17,6 +19,8 @@ public class ExecutionNode {
 
     private final List<ExecutionNode> children;
     private ExecutionContext ectx;
+    // Node whose children this node shares, or null if this node wasn't merged
+    private ExecutionNode equivalent;
     private final Op op;
     private ExecutionNode parent;
 
@@ -70,7 +74,15 @@ public class ExecutionNode {
         return child;
     }
 
+    /**
+     *
+     * @return children of this node, or a read-only view of the equivalent node's children if this node was merged
+     */
     public List<ExecutionNode> getChildren() {
+        if (equivalent != null) {
+            return Collections.unmodifiableList(equivalent.getChildren());
+        }
+
         return children;
     }
 
@@ -78,10 +90,39 @@ public class ExecutionNode {
         return ectx;
     }
 
+    /**
+     * A merged node is executed, so it knows which registers it reads and assigns, but its children are those of an
+     * equivalent node and aren't explored again.
+     *
+     * @return true if this node was merged with an equivalent node
+     */
+    public boolean isMerged() {
+        return equivalent != null;
+    }
+
+    /**
+     * Share the children of a node at the same address with an equal state. Children are only edited through the
+     * equivalent node.
+     *
+     * @param equivalent
+     */
+    public void mergeInto(ExecutionNode equivalent) {
+        this.equivalent = equivalent;
+    }
+
     public Op getOp() {
         return op;
     }
 
+    public SideEffect.Level getSideEffectLevel() {
+        SideEffect.Level level = null;
+        if (ectx != null) {
+            level = ectx.getOpSideEffectLevel();
+        }
+
+        return level != null ? level : op.sideEffectLevel();
+    }
+
     public ExecutionNode getParent() {
         return parent;
     }
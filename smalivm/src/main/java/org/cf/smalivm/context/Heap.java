@@ -1,7 +1,9 @@
 package org.cf.smalivm.context;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -146,10 +148,88 @@ class Heap {
         set(key, item);
     }
 
-    private void set(String key, HeapItem item) {
+    void set(String key, HeapItem item) {
         keyToHeapItem.put(key, item);
     }
 
+    /**
+     *
+     * @return items of this heap and of its ancestors which aren't shadowed by a nearer heap
+     */
+    Map<String, HeapItem> getVisibleItems() {
+        Map<String, HeapItem> result = new HashMap<String, HeapItem>();
+        Heap current = this;
+        do {
+            for (Map.Entry<String, HeapItem> entry : current.keyToHeapItem.entrySet()) {
+                if (!result.containsKey(entry.getKey())) {
+                    result.put(entry.getKey(), entry.getValue());
+                }
+            }
+            current = current.getParent();
+        } while (current != null);
+
+        return result;
+    }
+
+    /**
+     * Replace items which are equal to the items visible from the parent heap with the parent's items, so clones which
+     * were never changed can be collected. Values which are the same object, e.g. two registers referencing one array,
+     * are only replaced if the parent's values are also the same object, so identities are preserved. Must only be
+     * used once no values in this heap will be mutated.
+     *
+     * @return number of replaced items
+     */
+    int shareParentItems() {
+        if (parent == null) {
+            return 0;
+        }
+
+        Map<String, HeapItem> keyToParentItem = new HashMap<String, HeapItem>();
+        Map<Object, Object> valueToParentValue = new IdentityHashMap<Object, Object>();
+        Map<Object, Object> parentValueToValue = new IdentityHashMap<Object, Object>();
+        Set<Object> unsharedValues = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        for (Map.Entry<String, HeapItem> entry : keyToHeapItem.entrySet()) {
+            HeapItem item = entry.getValue();
+            Object value = item.getValue();
+            Heap ancestor = parent.getAncestorWithKey(entry.getKey());
+            HeapItem parentItem = ancestor == null ? null : ancestor.keyToHeapItem.get(entry.getKey());
+            if ((parentItem == null) || !item.equals(parentItem)) {
+                if (value != null) {
+                    unsharedValues.add(value);
+                }
+                continue;
+            }
+
+            Object parentValue = parentItem.getValue();
+            if (value != null) {
+                // Each value must correspond to exactly one parent value, and the other way around
+                if (valueToParentValue.containsKey(value) && (valueToParentValue.get(value) != parentValue)) {
+                    unsharedValues.add(value);
+                }
+                if (parentValueToValue.containsKey(parentValue) && (parentValueToValue.get(parentValue) != value)) {
+                    unsharedValues.add(value);
+                    unsharedValues.add(parentValueToValue.get(parentValue));
+                }
+                valueToParentValue.put(value, parentValue);
+                parentValueToValue.put(parentValue, value);
+            }
+            keyToParentItem.put(entry.getKey(), parentItem);
+        }
+
+        int sharedCount = 0;
+        for (Map.Entry<String, HeapItem> entry : keyToParentItem.entrySet()) {
+            HeapItem item = keyToHeapItem.get(entry.getKey());
+            if ((item == entry.getValue()) || ((item.getValue() != null) && unsharedValues.contains(item.getValue()))) {
+                continue;
+            }
+
+            keyToHeapItem.put(entry.getKey(), entry.getValue());
+            sharedCount++;
+        }
+
+        return sharedCount;
+    }
+
     Map<String, HeapItem> getKeyToItem() {
         return keyToHeapItem;
     }
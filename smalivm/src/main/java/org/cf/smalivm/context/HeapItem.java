@@ -16,6 +16,13 @@ public class HeapItem {
 
     private static final Cloner cloner = new Cloner();
 
+    private static final Object UNKNOWN_KEY = new Object() {
+        @Override
+        public String toString() {
+            return "*unknown*";
+        }
+    };
+
     private Object value;
     private String type;
 
@@ -101,6 +108,32 @@ public class HeapItem {
         return ImmutableUtils.isImmutableClass(getType());
     }
 
+    /**
+     *
+     * @return true if the value is unknown, null, a string, or a boxed primitive, and may be compared by value
+     */
+    public boolean isComparable() {
+        Object value = getValue();
+        if ((value == null) || isUnknown()) {
+            return true;
+        }
+
+        return (value instanceof String) || (value instanceof Integer) || (value instanceof Long)
+                        || (value instanceof Short) || (value instanceof Byte) || (value instanceof Float)
+                        || (value instanceof Double) || (value instanceof Boolean) || (value instanceof Character);
+    }
+
+    /**
+     * Unlike {@link #equals(Object)}, unknown values of the same type have equal keys.
+     *
+     * @return key which is equal for comparable items with the same type and value
+     */
+    public Object getComparisonKey() {
+        Object value = isUnknown() ? UNKNOWN_KEY : getValue();
+
+        return Arrays.asList(getType(), value);
+    }
+
     public String getUnboxedValueType() {
         String unboxedType = SmaliClassUtils.smaliWrapperToSmaliPrimitive(getType());
         if (null == unboxedType) {
@@ -0,0 +1,116 @@
+package org.cf.smalivm.context;
+
+import org.cf.smalivm.ClassHierarchy;
+
+/**
+ * Consensus of heap items which are added one at a time, in constant time for each item. Once two items differ, the
+ * consensus is unknown and stays unknown.
+ * <p>
+ * The type of an unknown consensus doesn't depend on the order items were added. If any item has a reference type, it's
+ * the closest common superclass of all reference types, e.g. Number for Integer and Long. Arrays with different types
+ * have a common array type only if they have the same dimensions and component classes. Primitive types are ignored in
+ * that case, since a null reference is an integer literal. If every item is primitive, it's the first type in sort
+ * order, since primitives have no common type.
+ *
+ * @author cfenton
+ *
+ */
+class HeapItemConsensus {
+
+    private static final String OBJECT_CLASS = "Ljava/lang/Object;";
+
+    private final ClassHierarchy classHierarchy;
+    private HeapItem item;
+    private boolean hasItem;
+    private boolean isUnknown;
+    private String referenceType;
+    private String primitiveType;
+
+    /**
+     *
+     * @param classHierarchy
+     *            used to find common superclasses, or null to use java.lang.Object for different classes
+     */
+    HeapItemConsensus(ClassHierarchy classHierarchy) {
+        this.classHierarchy = classHierarchy;
+    }
+
+    HeapItemConsensus() {
+        this(null);
+    }
+
+    synchronized void add(HeapItem other) {
+        if (other != null) {
+            addType(other.getType());
+        }
+
+        if (!hasItem) {
+            item = other;
+            hasItem = true;
+        } else if (!isUnknown) {
+            isUnknown = item == null ? other != null : !item.equals(other);
+        }
+    }
+
+    /**
+     *
+     * @return the item all added items are equal to, an unknown item if any differ, or null if nothing was added
+     */
+    synchronized HeapItem get() {
+        if (isUnknown) {
+            return HeapItem.newUnknown(null == referenceType ? primitiveType : referenceType);
+        }
+
+        return item;
+    }
+
+    synchronized boolean isUnknown() {
+        return isUnknown;
+    }
+
+    private static int getDimensions(String type) {
+        int dimensions = 0;
+        while (type.charAt(dimensions) == '[') {
+            dimensions++;
+        }
+
+        return dimensions;
+    }
+
+    private static boolean isReferenceType(String type) {
+        return type.startsWith("L") || type.startsWith("[");
+    }
+
+    private void addType(String type) {
+        if (isReferenceType(type)) {
+            referenceType = null == referenceType ? type : getCommonType(referenceType, type);
+        } else if ((null == primitiveType) || (type.compareTo(primitiveType) < 0)) {
+            primitiveType = type;
+        }
+    }
+
+    private String getCommonType(String type1, String type2) {
+        if (type1.equals(type2)) {
+            return type1;
+        }
+
+        int dimensions = getDimensions(type1);
+        if (dimensions != getDimensions(type2)) {
+            return OBJECT_CLASS;
+        }
+
+        String component1 = type1.substring(dimensions);
+        String component2 = type2.substring(dimensions);
+        if (!component1.startsWith("L") || !component2.startsWith("L")) {
+            return OBJECT_CLASS;
+        }
+
+        String commonComponent = OBJECT_CLASS;
+        if (classHierarchy != null) {
+            commonComponent = classHierarchy.getCommonSuperclass(component1, component2);
+        }
+
+        return type1.substring(0, dimensions) + commonComponent;
+    }
+
+}
@@ -0,0 +1,17 @@
+package org.cf.smalivm.exception;
+
+import org.cf.smalivm.context.ExecutionNode;
+
+public class MaxBudgetExceeded extends Exception {
+
+    private static final long serialVersionUID = -3320791786262452474L;
+
+    public MaxBudgetExceeded(ExecutionNode node, String methodDescriptor, String budget) {
+        this("Exceeded " + budget + " @" + node.getAddress() + " " + node + " in " + methodDescriptor);
+    }
+
+    private MaxBudgetExceeded(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,11 @@
+package org.cf.smalivm.exception;
+
+public class UncompilableMethod extends Exception {
+
+    private static final long serialVersionUID = 3870156424851905432L;
+
+    public UncompilableMethod(String methodDescriptor, String reason) {
+        super("Can't compile " + methodDescriptor + ": " + reason);
+    }
+
+}
@@ -12,8 +12,34 @@ import org.slf4j.LoggerFactory;
 
 public class APutOp extends MethodStateOp {
 
+    private static enum PutType {
+        BOOLEAN,
+        BYTE,
+        CHAR,
+        INT,
+        SHORT,
+        WIDE
+    }
+
     private static final Logger log = LoggerFactory.getLogger(APutOp.class.getSimpleName());
 
+    private static PutType getPutType(String opName) {
+        PutType result = PutType.INT;
+        if (opName.endsWith("-wide")) {
+            result = PutType.WIDE;
+        } else if (opName.endsWith("-boolean")) {
+            result = PutType.BOOLEAN;
+        } else if (opName.endsWith("-byte")) {
+            result = PutType.BYTE;
+        } else if (opName.endsWith("-char")) {
+            result = PutType.CHAR;
+        } else if (opName.endsWith("-short")) {
+            result = PutType.SHORT;
+        }
+
+        return result;
+    }
+
     static APutOp create(Instruction instruction, int address) {
         String opName = instruction.getOpcode().name;
         int childAddress = address + instruction.getCodeUnits();
@@ -29,6 +55,7 @@ public class APutOp extends MethodStateOp {
     private final int arrayRegister;
     private final int indexRegister;
     private final int putRegister;
+    private final PutType putType;
 
     public APutOp(int address, String opName, int childAddress, int putRegister, int arrayRegister, int indexRegister) {
         super(address, opName, childAddress);
@@ -36,6 +63,7 @@ public class APutOp extends MethodStateOp {
         this.putRegister = putRegister;
         this.arrayRegister = arrayRegister;
         this.indexRegister = indexRegister;
+        putType = getPutType(opName);
     }
 
     @Override
@@ -54,22 +82,27 @@ public class APutOp extends MethodStateOp {
             } else {
                 Object putValue = putItem.getValue();
                 if (putValue instanceof Number) {
-                    if (getName().endsWith("-wide")) {
+                    switch (putType) {
+                    case WIDE:
                         // No need to cast anything
-                    } else if (getName().endsWith("-boolean")) {
+                        break;
+                    case BOOLEAN:
                         // Booleans are represented by integer literals, so need to convert
-                        Integer intValue = Utils.getIntegerValue(putValue);
-                        putValue = (intValue == 1 ? true : false);
-                    } else {
-                        Integer intValue = Utils.getIntegerValue(putValue);
-                        if (getName().endsWith("-byte")) {
-                            putValue = intValue.byteValue();
-                        } else if (getName().endsWith("-char")) {
-                            // Characters, like boolean, are represented by integers
-                            putValue = (char) intValue.intValue();
-                        } else if (getName().endsWith("-short")) {
-                            putValue = intValue.shortValue();
-                        }
+                        putValue = (Utils.getIntegerValue(putValue) == 1 ? true : false);
+                        break;
+                    case BYTE:
+                        putValue = Utils.getIntegerValue(putValue).byteValue();
+                        break;
+                    case CHAR:
+                        // Characters, like boolean, are represented by integers
+                        putValue = (char) Utils.getIntegerValue(putValue).intValue();
+                        break;
+                    case SHORT:
+                        putValue = Utils.getIntegerValue(putValue).shortValue();
+                        break;
+                    default:
+                        // Plain and object puts keep the value as it is, e.g. floats for float arrays
+                        break;
                     }
                 }
 
@@ -10,9 +10,26 @@ import org.slf4j.LoggerFactory;
 
 public class CmpOp extends MethodStateOp {
 
+    private static enum CmpType {
+        DOUBLE,
+        FLOAT,
+        LONG
+    }
+
     @SuppressWarnings("unused")
     private static final Logger log = LoggerFactory.getLogger(CmpOp.class.getSimpleName());
 
+    private static CmpType getCmpType(String opName) {
+        CmpType result = CmpType.LONG;
+        if (opName.endsWith("float")) {
+            result = CmpType.FLOAT;
+        } else if (opName.endsWith("double")) {
+            result = CmpType.DOUBLE;
+        }
+
+        return result;
+    }
+
     static CmpOp create(Instruction instruction, int address) {
         String opName = instruction.getOpcode().name;
         int childAddress = address + instruction.getCodeUnits();
@@ -28,6 +45,9 @@ public class CmpOp extends MethodStateOp {
     private final int destRegister;
     private final int lhsRegister;
     private final int rhsRegister;
+    private final CmpType cmpType;
+    // cmpg is biased towards greater than for NaN
+    private final boolean isGreaterBias;
 
     public CmpOp(int address, String opName, int childAddress, int destRegister, int lhsRegister, int rhsRegister) {
         super(address, opName, childAddress);
@@ -35,6 +55,8 @@ public class CmpOp extends MethodStateOp {
         this.destRegister = destRegister;
         this.lhsRegister = lhsRegister;
         this.rhsRegister = rhsRegister;
+        cmpType = getCmpType(opName);
+        isGreaterBias = opName.startsWith("cmpg");
     }
 
     @Override
@@ -69,26 +91,23 @@ public class CmpOp extends MethodStateOp {
 
         int value = 0;
         if (arg1IsNan || arg2IsNan) {
-            if (getName().startsWith("cmpg")) {
+            if (isGreaterBias) {
                 value = 1;
             } else { // cmpl
                 value = -1;
             }
         } else {
-            if (getName().endsWith("float")) {
-                Float castVal1 = Utils.getFloatValue(val1);
-                Float castVal2 = Utils.getFloatValue(val2);
-                // The docs say "b == c" but I don't think they mean identity.
-                value = Float.compare(castVal1, castVal2);
-            } else if (getName().endsWith("double")) {
-                Double castVal1 = Utils.getDoubleValue(val1);
-                Double castVal2 = Utils.getDoubleValue(val2);
-                // The docs say "b == c" but I don't think they mean identity.
-                value = Double.compare(castVal1, castVal2);
-            } else {
-                Long castVal1 = Utils.getLongValue(val1);
-                Long castVal2 = Utils.getLongValue(val2);
-                value = Long.compare(castVal1, castVal2);
+            // The docs say "b == c" but I don't think they mean identity.
+            switch (cmpType) {
+            case FLOAT:
+                value = Float.compare(Utils.getFloatValue(val1), Utils.getFloatValue(val2));
+                break;
+            case DOUBLE:
+                value = Double.compare(Utils.getDoubleValue(val1), Utils.getDoubleValue(val2));
+                break;
+            default:
+                value = Long.compare(Utils.getLongValue(val1), Utils.getLongValue(val2));
+                break;
             }
         }
 
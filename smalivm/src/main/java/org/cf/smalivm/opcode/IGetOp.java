@@ -1,5 +1,6 @@
 package org.cf.smalivm.opcode;
 
+import org.cf.smalivm.SymbolTable;
 import org.cf.smalivm.VirtualMachine;
 import org.cf.smalivm.context.ExecutionContext;
 import org.cf.smalivm.context.HeapItem;
@@ -50,7 +51,7 @@ public class IGetOp extends ExecutionContextOp {
         MethodState mState = ectx.getMethodState();
         HeapItem instanceItem = mState.readRegister(instanceRegister);
 
-        String type = fieldDescriptor.split(":")[1];
+        String type = SymbolTable.getSymbol(fieldDescriptor).getType();
         mState.assignRegister(destRegister, HeapItem.newUnknown(type));
 
         return getPossibleChildren();
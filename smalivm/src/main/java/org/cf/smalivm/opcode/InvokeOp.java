@@ -3,13 +3,15 @@ package org.cf.smalivm.opcode;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.linked.TIntLinkedList;
 
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
 
 import org.cf.smalivm.MethodReflector;
+import org.cf.smalivm.MethodSummaryCache;
 import org.cf.smalivm.SideEffect;
 import org.cf.smalivm.SmaliClassManager;
+import org.cf.smalivm.SymbolTable;
+import org.cf.smalivm.SymbolTable.Symbol;
 import org.cf.smalivm.VirtualMachine;
 import org.cf.smalivm.context.ExecutionContext;
 import org.cf.smalivm.context.ExecutionGraph;
@@ -26,18 +28,94 @@ import org.jf.dexlib2.iface.instruction.formats.Instruction35c;
 import org.jf.dexlib2.iface.instruction.formats.Instruction3rc;
 import org.jf.dexlib2.iface.reference.MethodReference;
 import org.jf.dexlib2.util.ReferenceUtil;
-import org.jf.dexlib2.writer.builder.BuilderClassDef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class InvokeOp extends ExecutionContextOp {
 
+    /**
+     * An invocation of a local method which has been set up but not executed. The caller may execute the method
+     * however it likes, e.g. on an explicit frame stack, and then must {@link #finish(ExecutionGraph)} it.
+     */
+    public class LocalInvocation {
+
+        private final String targetMethod;
+        private final ExecutionContext callerContext;
+        private final ExecutionContext calleeContext;
+        private final List<Object> summaryKey;
+        private final MethodSummaryCache.Recorder recorder;
+
+        private LocalInvocation(String targetMethod, ExecutionContext callerContext, ExecutionContext calleeContext,
+                        List<Object> summaryKey, MethodSummaryCache.Recorder recorder) {
+            this.targetMethod = targetMethod;
+            this.callerContext = callerContext;
+            this.calleeContext = calleeContext;
+            this.summaryKey = summaryKey;
+            this.recorder = recorder;
+        }
+
+        public String getMethodDescriptor() {
+            return targetMethod;
+        }
+
+        public ExecutionContext getCallerContext() {
+            return callerContext;
+        }
+
+        public ExecutionContext getCalleeContext() {
+            return calleeContext;
+        }
+
+        public int[] getParameterRegisters() {
+            return parameterRegisters;
+        }
+
+        /**
+         * Apply the result of executing the method to the caller's context.
+         *
+         * @param graph
+         *            execution graph of the method, or null if there was a problem executing it
+         */
+        public void finish(ExecutionGraph graph) {
+            if (graph == null) {
+                // Problem executing the method. Maybe node visits or call depth exceeded?
+                log.info("Problem executing " + targetMethod + ", propagating ambiguity.");
+                recorder.invalidate();
+                assumeMaximumUnknown(callerContext.getMethodState());
+
+                return;
+            }
+
+            HeapItem consensus = null;
+            if (!returnType.equals("V")) {
+                consensus = graph.getTerminatingRegisterConsensus(MethodState.ReturnRegister);
+                callerContext.getMethodState().assignResultRegister(consensus);
+            }
+
+            SideEffect.Level sideEffectLevel = graph.getHighestSideEffectLevel();
+            callerContext.setOpSideEffectLevel(sideEffectLevel);
+
+            MethodSummaryCache.Recorder callerRecorder = callerContext.getSummaryRecorder();
+            if (callerRecorder != null) {
+                callerRecorder.recordInvocation(recorder);
+            }
+
+            if (summaryKey != null) {
+                HeapItem[] parameterItems = getMutableParameterItems(callerContext.getMethodState());
+                vm.getMethodSummaryCache().putSummary(summaryKey, recorder, consensus, parameterItems,
+                                sideEffectLevel);
+            }
+        }
+
+    }
+
     static InvokeOp create(Instruction instruction, int address, VirtualMachine vm) {
         int childAddress = address + instruction.getCodeUnits();
         String opName = instruction.getOpcode().name;
 
         MethodReference methodReference = (MethodReference) ((ReferenceInstruction) instruction).getReference();
         String methodDescriptor = ReferenceUtil.getMethodDescriptor(methodReference);
+        Symbol method = SymbolTable.getSymbol(methodDescriptor);
 
         int[] registers = null;
         if (opName.contains("/range")) {
@@ -78,7 +156,7 @@ public class InvokeOp extends ExecutionContextOp {
                                         .isSafeFramework(methodDescriptor))) {
             parameterTypes = classManager.getParameterTypes(methodDescriptor);
         } else {
-            parameterTypes = Utils.getParameterTypes(methodDescriptor);
+            parameterTypes = new ArrayList<String>(method.getParameterTypes());
             if (!isStatic) {
                 parameterTypes.add(0, methodReference.getDefiningClass());
             }
@@ -94,37 +172,59 @@ public class InvokeOp extends ExecutionContextOp {
             }
         }
 
-        return new InvokeOp(address, opName, childAddress, methodDescriptor, returnType, parameterRegisters.toArray(),
+        return new InvokeOp(address, opName, childAddress, method, returnType, parameterRegisters.toArray(),
                         parameterTypes, vm, isStatic);
     }
 
     private static final Logger log = LoggerFactory.getLogger(InvokeOp.class.getSimpleName());
 
+    private final boolean isInitializing;
     private final boolean isStatic;
+    private final boolean isVirtual;
+    private final Symbol method;
     private final String methodDescriptor;
     private final int[] parameterRegisters;
+    private final int parameterSize;
     private final List<String> parameterTypes;
     private final String returnType;
-    private SideEffect.Level sideEffectLevel;
     private final VirtualMachine vm;
 
-    private InvokeOp(int address, String opName, int childAddress, String methodDescriptor, String returnType,
+    private InvokeOp(int address, String opName, int childAddress, Symbol method, String returnType,
                     int[] parameterRegisters, List<String> parameterTypes, VirtualMachine vm, boolean isStatic) {
         super(address, opName, childAddress);
 
-        this.methodDescriptor = methodDescriptor;
+        this.method = method;
+        methodDescriptor = method.getDescriptor();
+        isInitializing = "<init>".equals(method.getName());
+        isVirtual = opName.contains("-virtual"); // -virtual/range
         this.returnType = returnType;
         this.parameterRegisters = parameterRegisters;
         this.parameterTypes = parameterTypes;
+        parameterSize = Utils.getRegisterSize(parameterTypes);
         this.vm = vm;
         this.isStatic = isStatic;
-        sideEffectLevel = SideEffect.Level.STRONG;
     }
 
     @Override
     public int[] execute(ExecutionContext ectx) {
+        LocalInvocation invocation = prepare(ectx);
+        if (invocation != null) {
+            ExecutionGraph graph = vm.execute(invocation.getMethodDescriptor(), invocation.getCalleeContext(), ectx,
+                            parameterRegisters);
+            invocation.finish(graph);
+        }
+
+        return getPossibleChildren();
+    }
+
+    /**
+     * Perform the invocation, unless it's a local method which must be executed.
+     *
+     * @return local invocation which must be executed and finished, or null if the invocation is complete
+     */
+    public LocalInvocation prepare(ExecutionContext ectx) {
         String targetMethod = methodDescriptor;
-        if (getName().contains("-virtual")) { // -virtual/range
+        if (isVirtual) {
             // Method call might be to interface or abstract class.
             // Try and resolve what the actual virtual target is.
             int targetRegister = parameterRegisters[0];
@@ -138,9 +238,9 @@ public class InvokeOp extends ExecutionContextOp {
             ExecutionContext calleeContext = buildNonLocalCalleeContext(callerMethodState);
             boolean allArgumentsKnown = allArgumentsKnown(calleeContext.getMethodState());
             if (allArgumentsKnown || MethodEmulator.canHandleUnknownValues(targetMethod)) {
-                executeNonLocalMethod(targetMethod, callerMethodState, calleeContext);
+                executeNonLocalMethod(targetMethod, ectx, calleeContext);
 
-                return getPossibleChildren();
+                return null;
             } else {
                 if (log.isTraceEnabled()) {
                     log.trace("Not emulating / reflecting " + targetMethod + " because all args not known.");
@@ -159,7 +259,7 @@ public class InvokeOp extends ExecutionContextOp {
                     }
                     assumeMaximumUnknown(callerMethodState);
 
-                    return getPossibleChildren();
+                    return null;
                 }
 
                 if (!classManager.methodHasImplementation(targetMethod)) {
@@ -174,11 +274,12 @@ public class InvokeOp extends ExecutionContextOp {
                     }
                     assumeMaximumUnknown(callerMethodState);
 
-                    return getPossibleChildren();
+                    return null;
                 }
 
                 ExecutionContext calleeContext = buildLocalCalleeContext(targetMethod, ectx);
-                executeLocalMethod(targetMethod, ectx, calleeContext);
+
+                return beginLocalMethod(targetMethod, ectx, calleeContext);
             } else {
                 if (log.isDebugEnabled()) {
                     log.debug("Unknown method: " + targetMethod + ". Assuming maximum ambiguity.");
@@ -187,7 +288,7 @@ public class InvokeOp extends ExecutionContextOp {
             }
         }
 
-        return getPossibleChildren();
+        return null;
     }
 
     public int[] getParameterRegisters() {
@@ -200,7 +301,8 @@ public class InvokeOp extends ExecutionContextOp {
 
     @Override
     public SideEffect.Level sideEffectLevel() {
-        return sideEffectLevel;
+        // Until executed, assume the worst
+        return SideEffect.Level.STRONG;
     }
 
     @Override
@@ -263,7 +365,6 @@ public class InvokeOp extends ExecutionContextOp {
                 continue;
             }
 
-            boolean isInitializing = methodDescriptor.contains(";-><init>(");
             if (!isInitializing) {
                 // May be immutable type, but if this is the initializer, internal state would be changing.
                 if (ImmutableUtils.isImmutableClass(type)) {
@@ -310,7 +411,6 @@ public class InvokeOp extends ExecutionContextOp {
 
     private ExecutionContext buildNonLocalCalleeContext(MethodState callerMethodState) {
         ExecutionContext ectx = new ExecutionContext(vm);
-        int parameterSize = Utils.getRegisterSize(parameterTypes);
         int registerCount = parameterSize;
         MethodState calleeMethodState = new MethodState(ectx, registerCount, parameterTypes.size(), parameterSize);
         assignCalleeMethodStateParameters(callerMethodState, calleeMethodState);
@@ -319,29 +419,55 @@ public class InvokeOp extends ExecutionContextOp {
         return ectx;
     }
 
-    private void executeLocalMethod(String methodDescriptor, ExecutionContext callerContext,
-                    ExecutionContext calleeContext) {
-        ExecutionGraph graph = vm.execute(methodDescriptor, calleeContext, callerContext, parameterRegisters);
-        if (graph == null) {
-            // Problem executing the method. Maybe node visits or call depth exceeded?
-            log.info("Problem executing " + methodDescriptor + ", propagating ambiguity.");
-            assumeMaximumUnknown(callerContext.getMethodState());
-
-            return;
+    private void applySummary(MethodSummaryCache.Summary summary, ExecutionContext callerContext) {
+        MethodState callerMethodState = callerContext.getMethodState();
+        for (int i = 0; i < parameterRegisters.length; i++) {
+            HeapItem item = summary.getParameterItem(i);
+            if (item != null) {
+                callerMethodState.assignRegister(parameterRegisters[i], item);
+            }
         }
 
         if (!returnType.equals("V")) {
-            HeapItem consensus = graph.getTerminatingRegisterConsensus(MethodState.ReturnRegister);
-            callerContext.getMethodState().assignResultRegister(consensus);
+            callerMethodState.assignResultRegister(summary.getReturnItem());
+        }
+
+        callerContext.setOpSideEffectLevel(summary.getSideEffectLevel());
+        callerContext.setSummarizedVisits(summary.getVisits());
+
+        MethodSummaryCache.Recorder callerRecorder = callerContext.getSummaryRecorder();
+        if (callerRecorder != null) {
+            callerRecorder.recordSummary(summary);
+        }
+    }
+
+    private LocalInvocation beginLocalMethod(String methodDescriptor, ExecutionContext callerContext,
+                    ExecutionContext calleeContext) {
+        MethodSummaryCache summaryCache = vm.getMethodSummaryCache();
+        List<Object> summaryKey = summaryCache.buildKey(methodDescriptor, calleeContext.getMethodState());
+        if (summaryKey != null) {
+            MethodSummaryCache.Summary summary = summaryCache.getSummary(summaryKey, callerContext);
+            // Executing the method would have failed if its invocations went past the call depth limit from here
+            if ((summary != null)
+                            && ((calleeContext.getCallDepth() + summary.getInvocationDepth()) <= vm.getMaxCallDepth())) {
+                applySummary(summary, callerContext);
+
+                return null;
+            }
         }
 
-        sideEffectLevel = graph.getHighestSideEffectLevel();
+        MethodSummaryCache.Recorder recorder = new MethodSummaryCache.Recorder(callerContext.getSummaryRecorder());
+        calleeContext.setSummaryRecorder(recorder);
+
+        return new LocalInvocation(methodDescriptor, callerContext, calleeContext, summaryKey, recorder);
     }
 
-    private void executeNonLocalMethod(String methodDescriptor, MethodState callerContext,
+    private void executeNonLocalMethod(String methodDescriptor, ExecutionContext callerExecutionContext,
                     ExecutionContext calleeContext) {
+        MethodState callerContext = callerExecutionContext.getMethodState();
         if (MethodEmulator.canEmulate(methodDescriptor)) {
-            sideEffectLevel = MethodEmulator.emulate(vm, calleeContext, methodDescriptor, getParameterRegisters());
+            callerExecutionContext.setOpSideEffectLevel(MethodEmulator.emulate(vm, calleeContext, methodDescriptor,
+                            getParameterRegisters()));
         } else if (MethodReflector.canReflect(methodDescriptor)) {
             assert allArgumentsKnown(calleeContext.getMethodState());
 
@@ -349,7 +475,7 @@ public class InvokeOp extends ExecutionContextOp {
             reflector.reflect(calleeContext.getMethodState()); // playa play
 
             // Only safe, non-side-effect methods are allowed to be reflected.
-            sideEffectLevel = SideEffect.Level.NONE;
+            callerExecutionContext.setOpSideEffectLevel(SideEffect.Level.NONE);
         }
 
         if (!isStatic) {
@@ -372,6 +498,18 @@ public class InvokeOp extends ExecutionContextOp {
         }
     }
 
+    private HeapItem[] getMutableParameterItems(MethodState callerMethodState) {
+        // The VM has already assigned the consensus of each mutable parameter to the caller's registers
+        HeapItem[] items = new HeapItem[parameterRegisters.length];
+        for (int i = 0; i < parameterRegisters.length; i++) {
+            if (!ImmutableUtils.isImmutableClass(parameterTypes.get(i))) {
+                items[i] = callerMethodState.peekRegister(parameterRegisters[i]);
+            }
+        }
+
+        return items;
+    }
+
     private String getLocalTargetForVirtualMethod(Object value) {
         String actualType;
         if (value instanceof LocalType) {
@@ -383,90 +521,10 @@ public class InvokeOp extends ExecutionContextOp {
         if (SmaliClassUtils.isPrimitiveType(actualType)) {
             actualType = SmaliClassUtils.smaliPrimitiveToJavaWrapper(actualType);
         }
-        String methodSignature = methodDescriptor.split("->")[1];
-        SmaliClassManager classManager = vm.getClassManager();
-        String targetMethod = getLocalTargetForVirtualMethod(actualType, methodSignature, classManager,
-                        new HashSet<String>());
+        String methodSignature = method.getMemberSignature();
+        String targetMethod = vm.getClassManager().getClassHierarchy()
+                        .resolveVirtualMethod(actualType, methodSignature);
 
         return targetMethod != null ? targetMethod : methodDescriptor;
     }
-
-    private static boolean doesNonLocalMethodExist(String className, String methodSignature) {
-        Class<?> klazz = null;
-        try {
-            klazz = Class.forName(SmaliClassUtils.smaliClassToJava(className));
-        } catch (ClassNotFoundException e) {
-            return false;
-        }
-
-        StringBuilder sb = new StringBuilder(className);
-        sb.append("->").append(methodSignature);
-        List<String> paramList = Utils.getParameterTypes(sb.toString());
-        Class<?>[] params = new Class<?>[paramList.size()];
-        for (int i = 0; i < paramList.size(); i++) {
-            String paramName = paramList.get(i);
-            try {
-                if (SmaliClassUtils.isPrimitiveType(paramName)) {
-                    params[i] = SmaliClassUtils.getPrimitiveType(SmaliClassUtils.smaliClassToJava(paramName));
-                } else {
-                    params[i] = Class.forName(SmaliClassUtils.smaliClassToJava(paramName));
-                }
-            } catch (ClassNotFoundException e) {
-                return false;
-            }
-        }
-
-        String methodName = methodSignature.split("\\(")[0];
-        try {
-            klazz.getMethod(methodName, params);
-        } catch (NoSuchMethodException e) {
-            return false;
-        } catch (SecurityException e) {
-            return false;
-        }
-
-        return true;
-    }
-
-    private String getLocalTargetForVirtualMethod(String className, String methodSignature,
-                    SmaliClassManager classManager, Set<String> visited) {
-        visited.add(className);
-        StringBuilder sb = new StringBuilder(className);
-        sb.append("->").append(methodSignature);
-        String methodDescriptor = sb.toString();
-
-        boolean isLocalMethod = classManager.isLocalMethod(methodDescriptor);
-        if ((isLocalMethod && classManager.methodHasImplementation(methodDescriptor))) {
-            return methodDescriptor;
-        }
-
-        if (MethodReflector.isSafe(methodDescriptor) && doesNonLocalMethodExist(className, methodSignature)) {
-            return methodDescriptor;
-        }
-
-        if (!classManager.isLocalClass(className)) {
-            // Can't trace any further up.
-            // Note, also checked if this is white-listed Java API
-            return null;
-        }
-
-        BuilderClassDef classDef = classManager.getClass(className);
-        Set<String> parents = new HashSet<String>();
-        parents.addAll(classDef.getInterfaces());
-        if (null != classDef.getSuperclass()) {
-            parents.add(classDef.getSuperclass());
-        }
-
-        for (String parent : parents) {
-            if (visited.contains(parent)) {
-                continue;
-            }
-            String target = getLocalTargetForVirtualMethod(parent, methodSignature, classManager, visited);
-            if (null != target) {
-                return target;
-            }
-        }
-
-        return null;
-    }
 }
@@ -28,7 +28,6 @@ public class NewInstanceOp extends ExecutionContextOp {
 
     private final String className;
     private final int destRegister;
-    private SideEffect.Level sideEffectLevel;
     private final VirtualMachine vm;
 
     NewInstanceOp(int address, String opName, int childAddress, int destRegister, String className, VirtualMachine vm) {
@@ -37,7 +36,6 @@ public class NewInstanceOp extends ExecutionContextOp {
         this.destRegister = destRegister;
         this.className = className;
         this.vm = vm;
-        sideEffectLevel = SideEffect.Level.STRONG;
     }
 
     @Override
@@ -46,11 +44,11 @@ public class NewInstanceOp extends ExecutionContextOp {
         if (vm.isLocalClass(className)) {
             // New-instance causes static initialization (but not new-array!)
             ectx.readClassState(className); // access will initialize if necessary
-            sideEffectLevel = ectx.getClassStateSideEffectLevel(className);
+            ectx.setOpSideEffectLevel(ectx.getClassStateSideEffectLevel(className));
             instance = new LocalInstance(className);
         } else {
             if (MethodReflector.isSafe(className)) {
-                sideEffectLevel = SideEffect.Level.NONE;
+                ectx.setOpSideEffectLevel(SideEffect.Level.NONE);
             }
             instance = new UninitializedInstance(className);
         }
@@ -64,7 +62,8 @@ public class NewInstanceOp extends ExecutionContextOp {
 
     @Override
     public SideEffect.Level sideEffectLevel() {
-        return sideEffectLevel;
+        // Until executed, assume the worst
+        return SideEffect.Level.STRONG;
     }
 
     @Override
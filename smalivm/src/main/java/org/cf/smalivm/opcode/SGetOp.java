@@ -1,6 +1,8 @@
 package org.cf.smalivm.opcode;
 
 import org.cf.smalivm.StaticFieldAccessor;
+import org.cf.smalivm.SymbolTable;
+import org.cf.smalivm.SymbolTable.Symbol;
 import org.cf.smalivm.VirtualMachine;
 import org.cf.smalivm.context.ExecutionContext;
 import org.cf.smalivm.context.HeapItem;
@@ -31,6 +33,7 @@ public class SGetOp extends ExecutionContextOp {
 
     private final int destRegister;
     private final String fieldDescriptor;
+    private final Symbol field;
     private final VirtualMachine vm;
 
     public SGetOp(int address, String opName, int childAddress, int destRegister, String fieldDescriptor,
@@ -39,12 +42,13 @@ public class SGetOp extends ExecutionContextOp {
 
         this.destRegister = destRegister;
         this.fieldDescriptor = fieldDescriptor;
+        field = SymbolTable.getSymbol(fieldDescriptor);
         this.vm = vm;
     }
 
     @Override
     public int[] execute(ExecutionContext ectx) {
-        HeapItem item = StaticFieldAccessor.getField(vm, ectx, fieldDescriptor);
+        HeapItem item = StaticFieldAccessor.getField(vm, ectx, field);
         MethodState mState = ectx.getMethodState();
         mState.assignRegister(destRegister, item);
 
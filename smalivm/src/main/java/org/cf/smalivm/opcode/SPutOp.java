@@ -2,6 +2,8 @@ package org.cf.smalivm.opcode;
 
 import org.cf.smalivm.SideEffect;
 import org.cf.smalivm.StaticFieldAccessor;
+import org.cf.smalivm.SymbolTable;
+import org.cf.smalivm.SymbolTable.Symbol;
 import org.cf.smalivm.VirtualMachine;
 import org.cf.smalivm.context.ExecutionContext;
 import org.cf.smalivm.context.HeapItem;
@@ -31,6 +33,7 @@ public class SPutOp extends ExecutionContextOp {
     }
 
     private final String fieldDescriptor;
+    private final Symbol field;
     private final int valueRegister;
     private final VirtualMachine vm;
 
@@ -40,6 +43,7 @@ public class SPutOp extends ExecutionContextOp {
 
         this.valueRegister = valueRegister;
         this.fieldDescriptor = fieldDescriptor;
+        field = SymbolTable.getSymbol(fieldDescriptor);
         this.vm = vm;
     }
 
@@ -48,7 +52,7 @@ public class SPutOp extends ExecutionContextOp {
         MethodState mState = ectx.getMethodState();
         HeapItem item = mState.readRegister(valueRegister);
         // TODO: check if this is <clinit> and only allow static final fields to be initialized here
-        StaticFieldAccessor.putField(vm, ectx, fieldDescriptor, item);
+        StaticFieldAccessor.putField(vm, ectx, field, item);
 
         return getPossibleChildren();
     }
@@ -3,6 +3,7 @@ package org.cf.smalivm.opcode;
 import org.cf.smalivm.context.HeapItem;
 import org.cf.smalivm.context.MethodState;
 import org.cf.util.Utils;
+import org.jf.dexlib2.Opcode;
 import org.jf.dexlib2.iface.instruction.Instruction;
 import org.jf.dexlib2.iface.instruction.formats.Instruction12x;
 
@@ -38,29 +39,32 @@ public class UnaryMathOp extends MethodStateOp {
         Instruction12x instr = (Instruction12x) instruction;
         int destRegister = instr.getRegisterA();
         int srcRegister = instr.getRegisterB();
-        return new UnaryMathOp(address, opName, childAddress, destRegister, srcRegister);
+        return new UnaryMathOp(address, instruction.getOpcode(), childAddress, destRegister, srcRegister);
     }
 
     private final int destRegister;
     private final int srcRegister;
+    private final Opcode opcode;
+    private final String resultType;
 
-    private UnaryMathOp(int address, String opName, int childAddress, int destRegister, int srcRegister) {
-        super(address, opName, childAddress);
+    private UnaryMathOp(int address, Opcode opcode, int childAddress, int destRegister, int srcRegister) {
+        super(address, opcode.name, childAddress);
 
         this.destRegister = destRegister;
         this.srcRegister = srcRegister;
+        this.opcode = opcode;
+        resultType = getResultTypeName(opcode.name);
     }
 
     @Override
     public int[] execute(MethodState mState) {
         HeapItem item = mState.readRegister(srcRegister);
         HeapItem resultItem;
-        String type = getResultTypeName(getName());
         if (item.isUnknown()) {
-            resultItem = HeapItem.newUnknown(type);
+            resultItem = HeapItem.newUnknown(resultType);
         } else {
-            Object resultValue = perform(item.getValue(), getName());
-            resultItem = new HeapItem(resultValue, type);
+            Object resultValue = perform(item.getValue());
+            resultItem = new HeapItem(resultValue, resultType);
         }
         mState.assignRegister(destRegister, resultItem);
 
@@ -75,74 +79,75 @@ public class UnaryMathOp extends MethodStateOp {
         return sb.toString();
     }
 
-    private Object perform(Object value, String opName) {
-        // Stupid, but simple. Deals.
+    private Object perform(Object value) {
         Object resultValue = null;
-        if (opName.startsWith("double")) {
-            Double typedValue = Utils.getDoubleValue(value);
-            if (opName.endsWith("float")) {
-                resultValue = typedValue.floatValue();
-            } else if (opName.endsWith("int")) {
-                resultValue = typedValue.intValue();
-            } else if (opName.endsWith("long")) {
-                resultValue = typedValue.longValue();
-            }
-        } else if (opName.startsWith("float")) {
-            Float typedValue = Utils.getFloatValue(value);
-            if (opName.endsWith("double")) {
-                resultValue = typedValue.doubleValue();
-            } else if (opName.endsWith("int")) {
-                resultValue = typedValue.intValue();
-            } else if (opName.endsWith("long")) {
-                resultValue = typedValue.longValue();
-            }
-        } else if (opName.startsWith("long")) {
-            Long typedValue = Utils.getLongValue(value);
-            if (opName.endsWith("double")) {
-                resultValue = typedValue.doubleValue();
-            } else if (opName.endsWith("int")) {
-                resultValue = typedValue.intValue();
-            } else if (opName.endsWith("float")) {
-                resultValue = typedValue.floatValue();
-            }
-        } else if (opName.startsWith("int")) {
-            // Could be something other than an int, such as short
-            Integer typedValue = Utils.getIntegerValue(value);
-            if (opName.endsWith("byte")) {
-                resultValue = typedValue.byteValue();
-            } else if (opName.endsWith("char")) {
-                resultValue = (char) typedValue.intValue();
-            } else if (opName.endsWith("short")) {
-                resultValue = typedValue.shortValue();
-            } else if (opName.endsWith("double")) {
-                resultValue = typedValue.doubleValue();
-            } else if (opName.endsWith("long")) {
-                resultValue = typedValue.longValue();
-            } else if (opName.endsWith("float")) {
-                resultValue = typedValue.floatValue();
-            }
-        } else if (opName.startsWith("neg")) {
-            if (opName.endsWith("double")) {
-                Double typedValue = Utils.getDoubleValue(value);
-                resultValue = -typedValue;
-            } else if (opName.endsWith("float")) {
-                Float typedValue = Utils.getFloatValue(value);
-                resultValue = -typedValue;
-            } else if (opName.endsWith("int")) {
-                Integer typedValue = Utils.getIntegerValue(value);
-                resultValue = -typedValue;
-            } else if (opName.endsWith("long")) {
-                Long typedValue = Utils.getLongValue(value);
-                resultValue = -typedValue;
-            }
-        } else if (opName.startsWith("not")) {
-            if (opName.endsWith("int")) {
-                Integer typedValue = Utils.getIntegerValue(value);
-                resultValue = ~typedValue;
-            } else if (opName.endsWith("long")) {
-                Long typedValue = Utils.getLongValue(value);
-                resultValue = ~typedValue;
-            }
+        switch (opcode) {
+        case DOUBLE_TO_FLOAT:
+            resultValue = Utils.getDoubleValue(value).floatValue();
+            break;
+        case DOUBLE_TO_INT:
+            resultValue = Utils.getDoubleValue(value).intValue();
+            break;
+        case DOUBLE_TO_LONG:
+            resultValue = Utils.getDoubleValue(value).longValue();
+            break;
+        case FLOAT_TO_DOUBLE:
+            resultValue = Utils.getFloatValue(value).doubleValue();
+            break;
+        case FLOAT_TO_INT:
+            resultValue = Utils.getFloatValue(value).intValue();
+            break;
+        case FLOAT_TO_LONG:
+            resultValue = Utils.getFloatValue(value).longValue();
+            break;
+        case LONG_TO_DOUBLE:
+            resultValue = Utils.getLongValue(value).doubleValue();
+            break;
+        case LONG_TO_INT:
+            resultValue = Utils.getLongValue(value).intValue();
+            break;
+        case LONG_TO_FLOAT:
+            resultValue = Utils.getLongValue(value).floatValue();
+            break;
+        // Could be something other than an int, such as short
+        case INT_TO_BYTE:
+            resultValue = Utils.getIntegerValue(value).byteValue();
+            break;
+        case INT_TO_CHAR:
+            resultValue = (char) Utils.getIntegerValue(value).intValue();
+            break;
+        case INT_TO_SHORT:
+            resultValue = Utils.getIntegerValue(value).shortValue();
+            break;
+        case INT_TO_DOUBLE:
+            resultValue = Utils.getIntegerValue(value).doubleValue();
+            break;
+        case INT_TO_LONG:
+            resultValue = Utils.getIntegerValue(value).longValue();
+            break;
+        case INT_TO_FLOAT:
+            resultValue = Utils.getIntegerValue(value).floatValue();
+            break;
+        case NEG_DOUBLE:
+            resultValue = -Utils.getDoubleValue(value);
+            break;
+        case NEG_FLOAT:
+            resultValue = -Utils.getFloatValue(value);
+            break;
+        case NEG_INT:
+            resultValue = -Utils.getIntegerValue(value);
+            break;
+        case NEG_LONG:
+            resultValue = -Utils.getLongValue(value);
+            break;
+        case NOT_INT:
+            resultValue = ~Utils.getIntegerValue(value);
+            break;
+        case NOT_LONG:
+            resultValue = ~Utils.getLongValue(value);
+            break;
+        default:
+            break;
         }
 
         return resultValue;
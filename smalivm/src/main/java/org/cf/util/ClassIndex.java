@@ -0,0 +1,221 @@
+package org.cf.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read-only index of framework, safe, and immutable classes, built by {@link ClassIndexBuilder}. Lookups are a binary
+ * search over the index bytes, so no per-class objects are created. If the prebuilt index is not on the class path,
+ * it's built in memory from the class configs.
+ *
+ * @author cfenton
+ *
+ */
+public class ClassIndex {
+
+    /**
+     * Loads the index the first time it's used. Class initialization is thread safe, so lookups need no locking.
+     */
+    private static class Holder {
+
+        private static final ClassIndex INSTANCE = loadOrFail();
+
+    }
+
+    public static final int FRAMEWORK = 0x1;
+    public static final int SAFE_FRAMEWORK = 0x2;
+    // Methods from safe classes must not have any side effects, e.g. any IO.
+    public static final int SAFE = 0x4;
+    public static final int IMMUTABLE = 0x8;
+
+    public static final String INDEX_PATH = "class_index.bin";
+
+    private static final Logger log = LoggerFactory.getLogger(ClassIndex.class.getSimpleName());
+
+    private final ByteBuffer buffer;
+    private final int count;
+
+    ClassIndex(ByteBuffer buffer) {
+        if (buffer.getInt(0) != ClassIndexBuilder.MAGIC) {
+            throw new IllegalArgumentException("Not a class index");
+        }
+        if (buffer.getInt(4) != ClassIndexBuilder.VERSION) {
+            throw new IllegalArgumentException("Unsupported class index version: " + buffer.getInt(4));
+        }
+        this.buffer = buffer;
+        count = buffer.getInt(8);
+    }
+
+    public static ClassIndex getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     *
+     * @param flag
+     * @return names of all classes with the flag set
+     */
+    public List<String> getClassNames(int flag) {
+        List<String> classNames = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            if ((getFlags(i) & flag) != 0) {
+                classNames.add(getString(buffer.getInt(getEntryOffset(i))));
+            }
+        }
+
+        return classNames;
+    }
+
+    /**
+     *
+     * @param className
+     * @return resource path of the framework class Smali, or null if className isn't a framework class
+     */
+    public String getFrameworkPath(String className) {
+        int entry = find(className);
+        if (entry < 0) {
+            return null;
+        }
+
+        int pathOffset = buffer.getInt(getEntryOffset(entry) + 4);
+        if (pathOffset < 0) {
+            return null;
+        }
+
+        return getString(pathOffset);
+    }
+
+    public boolean isFramework(String className) {
+        return hasFlag(className, FRAMEWORK);
+    }
+
+    public boolean isImmutable(String className) {
+        return hasFlag(className, IMMUTABLE);
+    }
+
+    public boolean isSafe(String className) {
+        return hasFlag(className, SAFE);
+    }
+
+    public boolean isSafeFramework(String className) {
+        return hasFlag(className, SAFE_FRAMEWORK);
+    }
+
+    public boolean hasFlag(String className, int flag) {
+        int entry = find(className);
+
+        return (entry >= 0) && ((getFlags(entry) & flag) != 0);
+    }
+
+    private int compareName(int entry, byte[] name) {
+        int offset = buffer.getInt(getEntryOffset(entry));
+        int length = buffer.getShort(offset) & 0xFFFF;
+        offset += 2;
+        int minLength = Math.min(length, name.length);
+        for (int i = 0; i < minLength; i++) {
+            int diff = (buffer.get(offset + i) & 0xFF) - (name[i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+
+        return length - name.length;
+    }
+
+    private int find(String className) {
+        byte[] name = className.getBytes(ClassIndexBuilder.UTF8);
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareName(mid, name);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+
+        return -1;
+    }
+
+    private int getEntryOffset(int entry) {
+        return ClassIndexBuilder.HEADER_SIZE + (entry * ClassIndexBuilder.ENTRY_SIZE);
+    }
+
+    private int getFlags(int entry) {
+        return buffer.getInt(getEntryOffset(entry) + 8);
+    }
+
+    private String getString(int offset) {
+        int length = buffer.getShort(offset) & 0xFFFF;
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + 2 + i);
+        }
+
+        return new String(bytes, ClassIndexBuilder.UTF8);
+    }
+
+    private static ClassIndex loadOrFail() {
+        try {
+            return load();
+        } catch (IOException | URISyntaxException e) {
+            throw new RuntimeException("Unable to load class index", e);
+        }
+    }
+
+    private static ClassIndex load() throws IOException, URISyntaxException {
+        long startTime = System.currentTimeMillis();
+        ByteBuffer buffer;
+        URL url = ClassIndex.class.getClassLoader().getResource(INDEX_PATH);
+        if (null == url) {
+            if (log.isDebugEnabled()) {
+                log.debug("No prebuilt class index found, building from configs.");
+            }
+            byte[] index = ClassIndexBuilder.build(ConfigLoader.loadConfig("framework_classes.cfg"),
+                            ConfigLoader.loadConfig("safe_framework_classes.cfg"),
+                            ConfigLoader.loadConfig("safe_classes.cfg"),
+                            ConfigLoader.loadConfig("immutable_classes.cfg"));
+            buffer = ByteBuffer.wrap(index);
+        } else if ("file".equals(url.getProtocol())) {
+            RandomAccessFile file = new RandomAccessFile(new File(url.toURI()), "r");
+            try {
+                FileChannel channel = file.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                file.close();
+            }
+        } else {
+            InputStream is = url.openStream();
+            try {
+                buffer = ByteBuffer.wrap(IOUtils.toByteArray(is));
+            } finally {
+                is.close();
+            }
+        }
+
+        ClassIndex index = new ClassIndex(buffer);
+        if (log.isDebugEnabled()) {
+            long totalTime = System.currentTimeMillis() - startTime;
+            log.debug("Loaded class index of " + index.count + " classes in " + totalTime + " ms.");
+        }
+
+        return index;
+    }
+
+}
@@ -0,0 +1,157 @@
+package org.cf.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Builds the binary class index read by {@link ClassIndex} from the class configs.
+ *
+ * Layout, all integers big endian:
+ *
+ * <pre>
+ * int magic, int version, int entry count
+ * entry count * (int name offset, int path offset or -1, int flags), sorted by UTF-8 name bytes
+ * string pool of (unsigned short length, UTF-8 bytes)
+ * </pre>
+ *
+ * @author cfenton
+ *
+ */
+public class ClassIndexBuilder {
+
+    static final int MAGIC = 0x53494458;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 12;
+    static final int ENTRY_SIZE = 12;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static class Entry {
+
+        private String path;
+        private int flags;
+
+    }
+
+    /**
+     * Sorts by unsigned UTF-8 bytes, which is the order used for lookups.
+     */
+    static final Comparator<byte[]> UTF8_ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] lhs, byte[] rhs) {
+            int length = Math.min(lhs.length, rhs.length);
+            for (int i = 0; i < length; i++) {
+                int diff = (lhs[i] & 0xFF) - (rhs[i] & 0xFF);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+
+            return lhs.length - rhs.length;
+        }
+    };
+
+    /**
+     * Arguments: output file, framework_classes.cfg, safe_framework_classes.cfg, safe_classes.cfg,
+     * immutable_classes.cfg
+     */
+    public static void main(String[] argv) throws Exception {
+        if (argv.length != 5) {
+            System.err.println("Usage: ClassIndexBuilder <output> <framework classes> <safe framework classes> "
+                            + "<safe classes> <immutable classes>");
+            System.exit(-1);
+        }
+
+        byte[] index = build(readConfig(argv[1]), readConfig(argv[2]), readConfig(argv[3]), readConfig(argv[4]));
+        FileUtils.writeByteArrayToFile(new File(argv[0]), index);
+    }
+
+    /**
+     *
+     * @param frameworkClasses
+     *            lines of "class name:resource path"
+     * @param safeFrameworkClasses
+     * @param safeClasses
+     * @param immutableClasses
+     * @return binary class index
+     * @throws IOException
+     */
+    public static byte[] build(List<String> frameworkClasses, List<String> safeFrameworkClasses,
+                    List<String> safeClasses, List<String> immutableClasses) throws IOException {
+        Map<byte[], Entry> nameToEntry = new TreeMap<byte[], Entry>(UTF8_ORDER);
+        for (String line : frameworkClasses) {
+            String[] parts = line.split(":");
+            Entry entry = getEntry(nameToEntry, parts[0]);
+            entry.path = parts[1];
+            entry.flags |= ClassIndex.FRAMEWORK;
+        }
+        addFlag(nameToEntry, safeFrameworkClasses, ClassIndex.SAFE_FRAMEWORK);
+        addFlag(nameToEntry, safeClasses, ClassIndex.SAFE);
+        addFlag(nameToEntry, immutableClasses, ClassIndex.IMMUTABLE);
+
+        ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        DataOutputStream poolOut = new DataOutputStream(pool);
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        DataOutputStream indexOut = new DataOutputStream(index);
+        int poolStart = HEADER_SIZE + (nameToEntry.size() * ENTRY_SIZE);
+        indexOut.writeInt(MAGIC);
+        indexOut.writeInt(VERSION);
+        indexOut.writeInt(nameToEntry.size());
+        for (Map.Entry<byte[], Entry> mapEntry : nameToEntry.entrySet()) {
+            Entry entry = mapEntry.getValue();
+            indexOut.writeInt(poolStart + poolOut.size());
+            writeString(poolOut, mapEntry.getKey());
+            if (null == entry.path) {
+                indexOut.writeInt(-1);
+            } else {
+                indexOut.writeInt(poolStart + poolOut.size());
+                writeString(poolOut, entry.path.getBytes(UTF8));
+            }
+            indexOut.writeInt(entry.flags);
+        }
+        poolOut.flush();
+        pool.writeTo(indexOut);
+        indexOut.flush();
+
+        return index.toByteArray();
+    }
+
+    private static void addFlag(Map<byte[], Entry> nameToEntry, List<String> classNames, int flag) {
+        for (String className : classNames) {
+            getEntry(nameToEntry, className.trim()).flags |= flag;
+        }
+    }
+
+    private static Entry getEntry(Map<byte[], Entry> nameToEntry, String className) {
+        byte[] name = className.getBytes(UTF8);
+        Entry entry = nameToEntry.get(name);
+        if (null == entry) {
+            entry = new Entry();
+            nameToEntry.put(name, entry);
+        }
+
+        return entry;
+    }
+
+    private static List<String> readConfig(String path) throws IOException {
+        List<String> lines = FileUtils.readLines(new File(path), "UTF-8");
+        ConfigLoader.removeNonDefinitionLines(lines);
+
+        return lines;
+    }
+
+    private static void writeString(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+}
@@ -16,7 +16,7 @@ public class ConfigLoader {
         return lines;
     }
 
-    private static void removeNonDefinitionLines(List<String> lines) {
+    static void removeNonDefinitionLines(List<String> lines) {
         Iterator<String> iter = lines.iterator();
         while (iter.hasNext()) {
             String line = iter.next();
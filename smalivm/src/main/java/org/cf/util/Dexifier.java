@@ -5,6 +5,7 @@ import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
 
 import org.antlr.runtime.CommonTokenStream;
@@ -12,6 +13,12 @@ import org.antlr.runtime.TokenSource;
 import org.antlr.runtime.tree.CommonTree;
 import org.antlr.runtime.tree.CommonTreeNodeStream;
 import org.apache.commons.io.FileUtils;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.Field;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.writer.builder.BuilderField;
+import org.jf.dexlib2.writer.builder.BuilderMethod;
 import org.jf.dexlib2.writer.builder.BuilderClassDef;
 import org.jf.dexlib2.writer.builder.DexBuilder;
 import org.jf.smali.LexerErrorInterface;
@@ -27,6 +34,20 @@ public class Dexifier {
 
     private static final Logger log = LoggerFactory.getLogger(Dexifier.class.getSimpleName());
 
+    public static class ParsedSmaliFile {
+
+        private final File smaliFile;
+        private final CommonTree tree;
+        private final CommonTokenStream tokens;
+
+        private ParsedSmaliFile(File smaliFile, CommonTree tree, CommonTokenStream tokens) {
+            this.smaliFile = smaliFile;
+            this.tree = tree;
+            this.tokens = tokens;
+        }
+
+    }
+
     public static BuilderClassDef dexifySmaliFile(File smaliFile, DexBuilder dexBuilder) throws Exception {
         if (log.isInfoEnabled()) {
             log.info("Dexifying: " + smaliFile);
@@ -37,6 +58,21 @@ public class Dexifier {
 
     public static BuilderClassDef dexifySmaliFile(String filePath, InputStream is, DexBuilder dexBuilder)
                     throws Exception {
+        ParsedSmaliFile parsed = parseSmaliFile(filePath, is);
+
+        return dexifyParsedSmaliFile(parsed, dexBuilder);
+    }
+
+    /**
+     * Lex and parse a Smali file without touching a dex builder. This is the expensive part of dexifying and may be
+     * done concurrently.
+     *
+     * @param filePath
+     * @param is
+     * @return parsed syntax tree, ready to be walked by {@link #dexifyParsedSmaliFile}
+     * @throws Exception
+     */
+    public static ParsedSmaliFile parseSmaliFile(String filePath, InputStream is) throws Exception {
         File smaliFile = new File(filePath);
         InputStreamReader reader = new InputStreamReader(is, "UTF-8");
         LexerErrorInterface lexer = new smaliFlexLexer(reader);
@@ -51,21 +87,70 @@ public class Dexifier {
             throw new RuntimeException("Unable to parse: " + smaliFile);
         }
 
-        CommonTree t = result.getTree();
-        CommonTreeNodeStream treeStream = new CommonTreeNodeStream(t);
-        treeStream.setTokenStream(tokens);
+        return new ParsedSmaliFile(smaliFile, result.getTree(), tokens);
+    }
+
+    /**
+     * Walk a parsed Smali file and intern it into the dex builder. DexBuilder is not thread safe, so walking is
+     * synchronized on the builder.
+     *
+     * @param parsed
+     * @param dexBuilder
+     * @return class definition interned into dexBuilder
+     * @throws Exception
+     */
+    public static BuilderClassDef dexifyParsedSmaliFile(ParsedSmaliFile parsed, DexBuilder dexBuilder)
+                    throws Exception {
+        CommonTreeNodeStream treeStream = new CommonTreeNodeStream(parsed.tree);
+        treeStream.setTokenStream(parsed.tokens);
 
         smaliTreeWalker dexGen = new smaliTreeWalker(treeStream);
         dexGen.setVerboseErrors(false);
         dexGen.setDexBuilder(dexBuilder);
-        BuilderClassDef classDef = (BuilderClassDef) dexGen.smali_file();
+        BuilderClassDef classDef;
+        synchronized (dexBuilder) {
+            classDef = (BuilderClassDef) dexGen.smali_file();
+        }
         if (dexGen.getNumberOfSyntaxErrors() != 0) {
-            throw new RuntimeException("Unable to walk: " + smaliFile);
+            throw new RuntimeException("Unable to walk: " + parsed.smaliFile);
         }
 
         return classDef;
     }
 
+    /**
+     * Intern an already compiled class definition, e.g. from a dex file, into the dex builder. Method implementations
+     * are copied into mutable implementations so they can be executed and rewritten like dexified Smali.
+     *
+     * @param classDef
+     * @param dexBuilder
+     * @return class definition interned into dexBuilder
+     */
+    public static BuilderClassDef dexifyClassDef(ClassDef classDef, DexBuilder dexBuilder) {
+        synchronized (dexBuilder) {
+            List<BuilderField> fields = new LinkedList<BuilderField>();
+            for (Field field : classDef.getFields()) {
+                fields.add(dexBuilder.internField(field.getDefiningClass(), field.getName(), field.getType(),
+                                field.getAccessFlags(), field.getInitialValue(), field.getAnnotations()));
+            }
+
+            List<BuilderMethod> methods = new LinkedList<BuilderMethod>();
+            for (Method method : classDef.getMethods()) {
+                MethodImplementation implementation = method.getImplementation();
+                if (null != implementation) {
+                    implementation = InternedMethodImplementation.copy(implementation, dexBuilder);
+                }
+                methods.add(dexBuilder.internMethod(method.getDefiningClass(), method.getName(),
+                                method.getParameters(), method.getReturnType(), method.getAccessFlags(),
+                                method.getAnnotations(), implementation));
+            }
+
+            return dexBuilder.internClassDef(classDef.getType(), classDef.getAccessFlags(), classDef.getSuperclass(),
+                            new ArrayList<String>(classDef.getInterfaces()), classDef.getSourceFile(),
+                            classDef.getAnnotations(), fields, methods);
+        }
+    }
+
     public static List<BuilderClassDef> dexifySmaliFiles(File file, DexBuilder dexBuilder) throws Exception {
         List<File> smaliFiles;
         if (file.isDirectory()) {
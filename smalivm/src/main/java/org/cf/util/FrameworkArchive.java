@@ -0,0 +1,88 @@
+package org.cf.util;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.ClassDef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read-only view of the pre-dexified framework classes built by {@link FrameworkCacheBuilder}. If the archive is not
+ * on the class path, framework classes are dexified from Smali as before.
+ *
+ * @author cfenton
+ *
+ */
+public class FrameworkArchive {
+
+    public static final String ARCHIVE_PATH = "framework.dex";
+
+    private static final Logger log = LoggerFactory.getLogger(FrameworkArchive.class.getSimpleName());
+
+    private static Map<String, ClassDef> classNameToClassDef;
+
+    /**
+     *
+     * @param className
+     * @return dex backed class definition, or null if the archive is missing or does not contain the class
+     */
+    public static ClassDef getClassDef(String className) {
+        return getClassDefs().get(className);
+    }
+
+    public static boolean isAvailable() {
+        return !getClassDefs().isEmpty();
+    }
+
+    private static synchronized Map<String, ClassDef> getClassDefs() {
+        if (null == classNameToClassDef) {
+            classNameToClassDef = loadArchive();
+        }
+
+        return classNameToClassDef;
+    }
+
+    private static Map<String, ClassDef> loadArchive() {
+        InputStream is = FrameworkArchive.class.getClassLoader().getResourceAsStream(ARCHIVE_PATH);
+        if (null == is) {
+            if (log.isDebugEnabled()) {
+                log.debug("No framework archive found, framework classes will be dexified from Smali.");
+            }
+
+            return Collections.emptyMap();
+        }
+
+        long startTime = System.currentTimeMillis();
+        Map<String, ClassDef> result = new HashMap<String, ClassDef>();
+        try {
+            DexBackedDexFile dexFile = DexBackedDexFile.fromInputStream(new Opcodes(Dexifier.DEFAULT_API_LEVEL),
+                            new BufferedInputStream(is));
+            for (DexBackedClassDef classDef : dexFile.getClasses()) {
+                result.put(classDef.getType(), classDef);
+            }
+            is.close();
+        } catch (IOException e) {
+            if (log.isWarnEnabled()) {
+                log.warn("Unable to read framework archive, framework classes will be dexified from Smali.", e);
+            }
+
+            return Collections.emptyMap();
+        }
+
+        if (log.isDebugEnabled()) {
+            long totalTime = System.currentTimeMillis() - startTime;
+            log.debug("Loaded " + result.size() + " framework classes from archive in " + totalTime + " ms.");
+        }
+
+        return result;
+    }
+
+}
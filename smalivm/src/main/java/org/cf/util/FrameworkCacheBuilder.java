@@ -11,11 +11,22 @@ import org.apache.commons.io.FileUtils;
 import org.jf.dexlib2.util.ReferenceUtil;
 import org.jf.dexlib2.writer.builder.BuilderClassDef;
 import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.jf.dexlib2.writer.io.FileDataStore;
 
 public class FrameworkCacheBuilder {
 
+    /**
+     * With no arguments, print the framework class config. With an output path, also write the dexified framework
+     * archive, which is loaded by {@link FrameworkArchive}.
+     */
     public static void main(String[] argv) throws Exception {
-        System.out.println(buildFrameworkCache());
+        DexBuilder dexBuilder = DexBuilder.makeDexBuilder(Dexifier.DEFAULT_API_LEVEL);
+        System.out.println(buildFrameworkCache("/reflib/android-17", dexBuilder));
+
+        if (argv.length > 0) {
+            File archiveFile = new File(argv[0]);
+            dexBuilder.writeTo(new FileDataStore(archiveFile));
+        }
     }
 
     public static String buildFrameworkCache() throws Exception {
@@ -23,6 +34,10 @@ public class FrameworkCacheBuilder {
     }
 
     public static String buildFrameworkCache(String resPath) throws Exception {
+        return buildFrameworkCache(resPath, DexBuilder.makeDexBuilder());
+    }
+
+    public static String buildFrameworkCache(String resPath, DexBuilder dexBuilder) throws Exception {
         List<File> resFiles = new LinkedList<File>();
         try {
             URL url = FrameworkCacheBuilder.class.getResource(resPath);
@@ -30,7 +45,6 @@ public class FrameworkCacheBuilder {
         } catch (URISyntaxException ex) {
         }
 
-        DexBuilder dexBuilder = DexBuilder.makeDexBuilder();
         StringBuilder sb = new StringBuilder();
         for (File resFile : resFiles) {
             String absPath = resFile.getAbsolutePath();
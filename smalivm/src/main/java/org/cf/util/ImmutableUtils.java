@@ -1,11 +1,5 @@
 package org.cf.util;
 
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -14,19 +8,6 @@ public class ImmutableUtils {
     @SuppressWarnings("unused")
     private static final Logger log = LoggerFactory.getLogger(ImmutableUtils.class.getSimpleName());
 
-    private static final Set<String> immutableClasses = getImmutableClasses();
-
-    private static Set<String> getImmutableClasses() {
-        List<String> lines = new ArrayList<String>();
-        try {
-            lines = ConfigLoader.loadConfig("immutable_classes.cfg");
-        } catch (IOException e) {
-            log.warn("Error loading immutable classes.", e);
-        }
-
-        return new HashSet<String>(lines);
-    }
-
     public static boolean isImmutableClass(String smaliClassName) {
         if (smaliClassName.startsWith("[")) {
             // Array contents can always be mutated
@@ -39,7 +20,7 @@ public class ImmutableUtils {
         }
 
         // TODO: https://github.com/MutabilityDetector/MutabilityDetector
-        if (immutableClasses.contains(smaliClassName)) {
+        if (ClassIndex.getInstance().isImmutable(smaliClassName)) {
             return true;
         }
 
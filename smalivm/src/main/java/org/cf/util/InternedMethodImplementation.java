@@ -0,0 +1,268 @@
+package org.cf.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jf.dexlib2.DebugItemType;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.base.BaseExceptionHandler;
+import org.jf.dexlib2.base.BaseTryBlock;
+import org.jf.dexlib2.builder.BuilderInstruction;
+import org.jf.dexlib2.builder.MutableMethodImplementation;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction21c;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction22c;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction31c;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction35c;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction3rc;
+import org.jf.dexlib2.iface.ExceptionHandler;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.TryBlock;
+import org.jf.dexlib2.iface.debug.DebugItem;
+import org.jf.dexlib2.iface.debug.SetSourceFile;
+import org.jf.dexlib2.iface.debug.StartLocal;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.iface.reference.Reference;
+import org.jf.dexlib2.iface.reference.StringReference;
+import org.jf.dexlib2.iface.reference.TypeReference;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+
+/**
+ * View of a compiled method implementation where every string, type, field, and method reference has been interned
+ * into a dex builder. Methods copied from a dex file reference the dex file's pools, but a builder can only write
+ * references it has interned.
+ *
+ * @author cfenton
+ *
+ */
+class InternedMethodImplementation implements MethodImplementation {
+
+    private final MethodImplementation implementation;
+    private final DexBuilder dexBuilder;
+
+    private InternedMethodImplementation(MethodImplementation implementation, DexBuilder dexBuilder) {
+        this.implementation = implementation;
+        this.dexBuilder = dexBuilder;
+    }
+
+    /**
+     * Copy an implementation into a mutable implementation with all references interned into the dex builder. Caller
+     * must hold the builder's monitor.
+     *
+     * @param implementation
+     * @param dexBuilder
+     * @return mutable copy of implementation
+     */
+    static MutableMethodImplementation copy(MethodImplementation implementation, DexBuilder dexBuilder) {
+        MutableMethodImplementation result = new MutableMethodImplementation(new InternedMethodImplementation(
+                        implementation, dexBuilder));
+        internInstructionReferences(result, dexBuilder);
+
+        return result;
+    }
+
+    private static void internInstructionReferences(MutableMethodImplementation implementation,
+                    DexBuilder dexBuilder) {
+        List<BuilderInstruction> instructions = implementation.getInstructions();
+        for (int i = 0; i < instructions.size(); i++) {
+            BuilderInstruction instruction = instructions.get(i);
+            if (!(instruction instanceof ReferenceInstruction)) {
+                continue;
+            }
+
+            Reference reference = dexBuilder.internReference(((ReferenceInstruction) instruction).getReference());
+            Opcode opcode = instruction.getOpcode();
+            BuilderInstruction internedInstruction;
+            switch (instruction.getFormat()) {
+            case Format21c:
+                BuilderInstruction21c instr21c = (BuilderInstruction21c) instruction;
+                internedInstruction = new BuilderInstruction21c(opcode, instr21c.getRegisterA(), reference);
+                break;
+            case Format22c:
+                BuilderInstruction22c instr22c = (BuilderInstruction22c) instruction;
+                internedInstruction = new BuilderInstruction22c(opcode, instr22c.getRegisterA(),
+                                instr22c.getRegisterB(), reference);
+                break;
+            case Format31c:
+                BuilderInstruction31c instr31c = (BuilderInstruction31c) instruction;
+                internedInstruction = new BuilderInstruction31c(opcode, instr31c.getRegisterA(), reference);
+                break;
+            case Format35c:
+                BuilderInstruction35c instr35c = (BuilderInstruction35c) instruction;
+                internedInstruction = new BuilderInstruction35c(opcode, instr35c.getRegisterCount(),
+                                instr35c.getRegisterC(), instr35c.getRegisterD(), instr35c.getRegisterE(),
+                                instr35c.getRegisterF(), instr35c.getRegisterG(), reference);
+                break;
+            case Format3rc:
+                BuilderInstruction3rc instr3rc = (BuilderInstruction3rc) instruction;
+                internedInstruction = new BuilderInstruction3rc(opcode, instr3rc.getStartRegister(),
+                                instr3rc.getRegisterCount(), reference);
+                break;
+            default:
+                throw new IllegalArgumentException("Unexpected reference instruction format: "
+                                + instruction.getFormat());
+            }
+            implementation.replaceInstruction(i, internedInstruction);
+        }
+    }
+
+    @Override
+    public int getRegisterCount() {
+        return implementation.getRegisterCount();
+    }
+
+    @Override
+    public Iterable<? extends Instruction> getInstructions() {
+        // Instructions are replaced after copying since there's an instruction type per format
+        return implementation.getInstructions();
+    }
+
+    @Override
+    public List<? extends TryBlock<? extends ExceptionHandler>> getTryBlocks() {
+        List<TryBlock<ExceptionHandler>> tryBlocks = new ArrayList<TryBlock<ExceptionHandler>>();
+        for (final TryBlock<? extends ExceptionHandler> tryBlock : implementation.getTryBlocks()) {
+            final List<ExceptionHandler> handlers = new ArrayList<ExceptionHandler>();
+            for (ExceptionHandler handler : tryBlock.getExceptionHandlers()) {
+                handlers.add(internHandler(handler));
+            }
+            tryBlocks.add(new BaseTryBlock<ExceptionHandler>() {
+                @Override
+                public int getStartCodeAddress() {
+                    return tryBlock.getStartCodeAddress();
+                }
+
+                @Override
+                public int getCodeUnitCount() {
+                    return tryBlock.getCodeUnitCount();
+                }
+
+                @Override
+                public List<? extends ExceptionHandler> getExceptionHandlers() {
+                    return handlers;
+                }
+            });
+        }
+
+        return tryBlocks;
+    }
+
+    @Override
+    public Iterable<? extends DebugItem> getDebugItems() {
+        List<DebugItem> debugItems = new ArrayList<DebugItem>();
+        for (DebugItem debugItem : implementation.getDebugItems()) {
+            switch (debugItem.getDebugItemType()) {
+            case DebugItemType.START_LOCAL:
+                debugItems.add(internStartLocal((StartLocal) debugItem));
+                break;
+            case DebugItemType.SET_SOURCE_FILE:
+                debugItems.add(internSetSourceFile((SetSourceFile) debugItem));
+                break;
+            default:
+                debugItems.add(debugItem);
+            }
+        }
+
+        return debugItems;
+    }
+
+    private ExceptionHandler internHandler(final ExceptionHandler handler) {
+        final TypeReference exceptionType = dexBuilder.internNullableTypeReference(handler.getExceptionType());
+
+        return new BaseExceptionHandler() {
+            @Override
+            public String getExceptionType() {
+                return handler.getExceptionType();
+            }
+
+            @Override
+            public TypeReference getExceptionTypeReference() {
+                return exceptionType;
+            }
+
+            @Override
+            public int getHandlerCodeAddress() {
+                return handler.getHandlerCodeAddress();
+            }
+        };
+    }
+
+    private StartLocal internStartLocal(final StartLocal startLocal) {
+        final StringReference name = dexBuilder.internNullableStringReference(startLocal.getName());
+        final TypeReference type = dexBuilder.internNullableTypeReference(startLocal.getType());
+        final StringReference signature = dexBuilder.internNullableStringReference(startLocal.getSignature());
+
+        return new StartLocal() {
+            @Override
+            public int getDebugItemType() {
+                return DebugItemType.START_LOCAL;
+            }
+
+            @Override
+            public int getCodeAddress() {
+                return startLocal.getCodeAddress();
+            }
+
+            @Override
+            public String getName() {
+                return startLocal.getName();
+            }
+
+            @Override
+            public String getType() {
+                return startLocal.getType();
+            }
+
+            @Override
+            public String getSignature() {
+                return startLocal.getSignature();
+            }
+
+            @Override
+            public int getRegister() {
+                return startLocal.getRegister();
+            }
+
+            @Override
+            public StringReference getNameReference() {
+                return name;
+            }
+
+            @Override
+            public TypeReference getTypeReference() {
+                return type;
+            }
+
+            @Override
+            public StringReference getSignatureReference() {
+                return signature;
+            }
+        };
+    }
+
+    private SetSourceFile internSetSourceFile(final SetSourceFile setSourceFile) {
+        final StringReference sourceFile = dexBuilder.internNullableStringReference(setSourceFile.getSourceFile());
+
+        return new SetSourceFile() {
+            @Override
+            public int getDebugItemType() {
+                return DebugItemType.SET_SOURCE_FILE;
+            }
+
+            @Override
+            public int getCodeAddress() {
+                return setSourceFile.getCodeAddress();
+            }
+
+            @Override
+            public String getSourceFile() {
+                return setSourceFile.getSourceFile();
+            }
+
+            @Override
+            public StringReference getSourceFileReference() {
+                return sourceFile;
+            }
+        };
+    }
+
+}
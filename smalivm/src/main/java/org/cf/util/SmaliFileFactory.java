@@ -1,24 +1,97 @@
 package org.cf.util;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
-import org.apache.commons.io.FileUtils;
 import org.cf.smalivm.SmaliFile;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class SmaliFileFactory {
 
+    /**
+     * Collects Smali files in a directory tree, walking each subdirectory in its own task.
+     */
+    private static class DirectoryWalk extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+        private final ConcurrentMap<String, BasicFileAttributes> pathToAttributes;
+        // First I/O failure of any walk, which stops the others
+        private final AtomicReference<IOException> failure;
+
+        DirectoryWalk(Path directory, ConcurrentMap<String, BasicFileAttributes> pathToAttributes,
+                        AtomicReference<IOException> failure) {
+            this.directory = directory;
+            this.pathToAttributes = pathToAttributes;
+            this.failure = failure;
+        }
+
+        @Override
+        protected void compute() {
+            if (null != failure.get()) {
+                return;
+            }
+
+            List<DirectoryWalk> subdirectoryWalks = new LinkedList<DirectoryWalk>();
+            try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory)) {
+                for (Path path : paths) {
+                    // Like walkFileTree, don't follow links
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class,
+                                    LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isDirectory()) {
+                        subdirectoryWalks.add(new DirectoryWalk(path, pathToAttributes, failure));
+                    } else if (attributes.isRegularFile() && path.toString().toLowerCase().endsWith(".smali")) {
+                        pathToAttributes.put(path.toAbsolutePath().toString(), attributes);
+                    }
+                }
+            } catch (IOException e) {
+                failure.compareAndSet(null, e);
+                return;
+            }
+            invokeAll(subdirectoryWalks);
+        }
+
+    }
+
     private static final Logger log = LoggerFactory.getLogger(SmaliFileFactory.class.getSimpleName());
 
-    private Map<String, SmaliFile> frameworkClassNameToSmaliFile;
+    private static final File DEFAULT_MANIFEST_DIRECTORY = new File(System.getProperty("java.io.tmpdir"),
+                    "simplify-manifests");
+
+    private final Set<String> inputClassNames = new HashSet<String>();
+    private File manifestDirectory = DEFAULT_MANIFEST_DIRECTORY;
 
     public Set<SmaliFile> getSmaliFiles(String path) throws IOException {
         return getSmaliFiles(new String[] { path });
@@ -37,78 +110,229 @@ public class SmaliFileFactory {
         return getSmaliFiles(new File[] { file });
     }
 
+    /**
+     * Create a Smali file for a framework class. Framework Smali files are created on demand from the class index
+     * rather than all up front.
+     *
+     * @param className
+     * @return Smali file for the framework class, or null if className is not a framework class
+     */
+    public SmaliFile getFrameworkSmaliFile(String className) {
+        if (!isFrameworkClass(className)) {
+            return null;
+        }
+
+        ClassIndex classIndex = ClassIndex.getInstance();
+        SmaliFile smaliFile = new SmaliFile(classIndex.getFrameworkPath(className), className);
+        smaliFile.setIsResource(true);
+        smaliFile.setIsSafeFramework(classIndex.isSafeFramework(className));
+
+        return smaliFile;
+    }
+
     public boolean isFrameworkClass(String className) {
-        return frameworkClassNameToSmaliFile.containsKey(className);
+        // Do not override input class with framework class
+        return ClassIndex.getInstance().isFramework(className) && !inputClassNames.contains(className);
     }
 
     public boolean isSafeFrameworkClass(String className) {
-        SmaliFile smaliFile = frameworkClassNameToSmaliFile.get(className);
-        if (null == smaliFile) {
-            return false;
+        return isFrameworkClass(className) && ClassIndex.getInstance().isSafeFramework(className);
+    }
+
+    /**
+     * Framework classes are not included. Use {@link #getFrameworkSmaliFile(String)}.
+     *
+     * @param files
+     * @return input Smali files
+     * @throws IOException
+     */
+    public Set<SmaliFile> getSmaliFiles(File[] files) throws IOException {
+        Set<SmaliFile> smaliFiles = new HashSet<SmaliFile>();
+        for (File file : files) {
+            List<SmaliFile> matches = getInputSmaliFiles(file);
+            for (SmaliFile smaliFile : matches) {
+                smaliFiles.add(smaliFile);
+                inputClassNames.add(smaliFile.getClassName());
+            }
         }
 
-        return smaliFile.isSafeFrameworkClass();
+        return smaliFiles;
     }
 
-    private void cacheFramework() throws IOException {
+    /**
+     *
+     * @param manifestDirectory
+     *            directory where input manifests are kept, or null to always read every input file
+     */
+    public void setManifestDirectory(File manifestDirectory) {
+        this.manifestDirectory = manifestDirectory;
+    }
+
+    private List<SmaliFile> getInputSmaliFiles(File file) throws IOException {
+        List<SmaliFile> smaliFiles = new LinkedList<SmaliFile>();
+        if (!file.isDirectory()) {
+            String lowerPath = file.getAbsolutePath().toLowerCase();
+            if (lowerPath.endsWith(".smali")) {
+                smaliFiles.add(new SmaliFile(file));
+            } else if (lowerPath.endsWith(".dex")) {
+                InputStream is = new FileInputStream(file);
+                smaliFiles.addAll(getDexSmaliFiles(file.getAbsolutePath(), is));
+                is.close();
+            } else if (lowerPath.endsWith(".apk")) {
+                smaliFiles.addAll(getApkSmaliFiles(file));
+            }
+
+            return smaliFiles;
+        }
+
         long startTime = System.currentTimeMillis();
+        Map<String, BasicFileAttributes> pathToAttributes = findSmaliFiles(file);
 
-        frameworkClassNameToSmaliFile = new HashMap<String, SmaliFile>();
-        List<String> frameworkClassesCfg = ConfigLoader.loadConfig("framework_classes.cfg");
-        Set<String> safeFrameworkClasses = new HashSet<String>(ConfigLoader.loadConfig("safe_framework_classes.cfg"));
-        for (String line : frameworkClassesCfg) {
-            String[] parts = line.split(":");
-            String className = parts[0];
-            String path = parts[1];
-            SmaliFile smaliFile = new SmaliFile(path, className);
-            smaliFile.setIsResource(true);
-            smaliFile.setIsSafeFramework(safeFrameworkClasses.contains(className));
-            frameworkClassNameToSmaliFile.put(smaliFile.getClassName(), smaliFile);
+        SmaliFileManifest manifest = null;
+        if (null != manifestDirectory) {
+            manifest = new SmaliFileManifest(getManifestFile(file));
+            manifest.load();
+        }
+
+        List<String> changedPaths = new LinkedList<String>();
+        for (Map.Entry<String, BasicFileAttributes> entry : pathToAttributes.entrySet()) {
+            String path = entry.getKey();
+            BasicFileAttributes attributes = entry.getValue();
+            String className = null;
+            if (null != manifest) {
+                className = manifest.getClassName(path, attributes.size(), attributes.lastModifiedTime()
+                                .toMillis());
+            }
+
+            if (null == className) {
+                changedPaths.add(path);
+            } else {
+                smaliFiles.add(new SmaliFile(path, className));
+            }
+        }
+
+        List<SmaliFile> changedFiles = readSmaliFiles(changedPaths);
+        smaliFiles.addAll(changedFiles);
+
+        if ((null != manifest) && (!changedFiles.isEmpty() || (manifest.size() != pathToAttributes.size()))) {
+            SmaliFileManifest updated = new SmaliFileManifest(manifest.getManifestFile());
+            for (SmaliFile smaliFile : smaliFiles) {
+                BasicFileAttributes attributes = pathToAttributes.get(smaliFile.getPath());
+                updated.put(smaliFile.getPath(), attributes.size(), attributes.lastModifiedTime().toMillis(),
+                                smaliFile.getClassName());
+            }
+            try {
+                updated.save();
+            } catch (IOException e) {
+                if (log.isWarnEnabled()) {
+                    log.warn("Unable to save manifest " + updated.getManifestFile(), e);
+                }
+            }
         }
 
         if (log.isDebugEnabled()) {
-            long endTime = System.currentTimeMillis();
-            long totalTime = endTime - startTime; // assuming time has not gone backwards
+            long totalTime = System.currentTimeMillis() - startTime;
             StringBuilder sb = new StringBuilder();
-            sb.append("Cached ").append(frameworkClassNameToSmaliFile.size()).append(" framework classes in ")
-            .append(totalTime).append(" ms.");
+            sb.append("Found ").append(smaliFiles.size()).append(" input files, read ").append(changedFiles.size())
+                            .append(" changed files in ").append(totalTime).append(" ms.");
             log.debug(sb.toString());
         }
+
+        return smaliFiles;
     }
 
-    public Set<SmaliFile> getSmaliFiles(File[] files) throws IOException {
-        Set<SmaliFile> smaliFiles = new HashSet<SmaliFile>();
-        Set<String> inputClasses = new HashSet<String>();
-        for (File file : files) {
-            List<File> matches = getFilesWithSmaliExtension(file);
-            for (File match : matches) {
-                SmaliFile smaliFile = new SmaliFile(match);
-                smaliFiles.add(smaliFile);
-                inputClasses.add(smaliFile.getClassName());
+    private static List<SmaliFile> getApkSmaliFiles(File apkFile) throws IOException {
+        List<SmaliFile> smaliFiles = new LinkedList<SmaliFile>();
+        ZipFile zipFile = new ZipFile(apkFile);
+        try {
+            // Multidex APKs have classes.dex, classes2.dex, ...
+            for (int i = 1;; i++) {
+                String entryName = i == 1 ? "classes.dex" : "classes" + i + ".dex";
+                ZipEntry entry = zipFile.getEntry(entryName);
+                if (null == entry) {
+                    break;
+                }
+                String path = apkFile.getAbsolutePath() + "!" + entryName;
+                smaliFiles.addAll(getDexSmaliFiles(path, zipFile.getInputStream(entry)));
             }
+        } finally {
+            zipFile.close();
+        }
+
+        return smaliFiles;
+    }
+
+    private static List<SmaliFile> getDexSmaliFiles(String path, InputStream is) throws IOException {
+        DexBackedDexFile dexFile = DexBackedDexFile.fromInputStream(new Opcodes(Dexifier.DEFAULT_API_LEVEL),
+                        new BufferedInputStream(is));
+        List<SmaliFile> smaliFiles = new LinkedList<SmaliFile>();
+        for (DexBackedClassDef classDef : dexFile.getClasses()) {
+            smaliFiles.add(new SmaliFile(path, classDef));
         }
 
-        if (null == frameworkClassNameToSmaliFile) {
-            cacheFramework();
+        return smaliFiles;
+    }
+
+    private File getManifestFile(File inputDirectory) throws IOException {
+        // Manifests of every input share a directory, so name them by a digest of the whole path
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(inputDirectory.getCanonicalPath().getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unable to name manifest", e);
         }
+        StringBuilder sb = new StringBuilder(inputDirectory.getName()).append('_');
+        for (byte b : digest) {
+            sb.append(String.format("%02x", b));
+        }
+        sb.append(".manifest");
 
-        // Do not override input class with framework class
-        frameworkClassNameToSmaliFile.entrySet().removeAll(inputClasses);
+        return new File(manifestDirectory, sb.toString());
+    }
 
-        smaliFiles.addAll(frameworkClassNameToSmaliFile.values());
+    private static Map<String, BasicFileAttributes> findSmaliFiles(File directory) throws IOException {
+        ConcurrentMap<String, BasicFileAttributes> result = new ConcurrentHashMap<String, BasicFileAttributes>();
+        AtomicReference<IOException> failure = new AtomicReference<IOException>();
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            pool.invoke(new DirectoryWalk(directory.toPath(), result, failure));
+        } finally {
+            pool.shutdown();
+        }
+        if (null != failure.get()) {
+            throw failure.get();
+        }
 
-        return smaliFiles;
+        return result;
     }
 
-    private static List<File> getFilesWithSmaliExtension(File file) {
-        List<File> files = new LinkedList<File>();
-        if (file.isDirectory()) {
-            files = (List<File>) FileUtils.listFiles(file, new String[] { "smali" }, true);
-        } else if (file.getAbsolutePath().toLowerCase().endsWith(".smali")) {
-            files.add(file);
+    private static List<SmaliFile> readSmaliFiles(List<String> paths) throws IOException {
+        if (paths.isEmpty()) {
+            return new LinkedList<SmaliFile>();
+        }
+
+        List<Future<SmaliFile>> futures = new LinkedList<Future<SmaliFile>>();
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        for (final String path : paths) {
+            futures.add(executor.submit(new Callable<SmaliFile>() {
+                @Override
+                public SmaliFile call() throws IOException {
+                    return new SmaliFile(new File(path));
+                }
+            }));
         }
+        executor.shutdown();
 
-        return files;
+        List<SmaliFile> smaliFiles = new LinkedList<SmaliFile>();
+        try {
+            for (Future<SmaliFile> future : futures) {
+                smaliFiles.add(future.get());
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Unable to read Smali files", e);
+        }
+
+        return smaliFiles;
     }
 
 }
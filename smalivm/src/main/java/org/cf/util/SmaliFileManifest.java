@@ -0,0 +1,158 @@
+package org.cf.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * On-disk cache of Smali file path, size, and modification time to class name. This avoids opening every input file
+ * to read the class directive when the input tree has not changed since the last run.
+ *
+ * @author cfenton
+ *
+ */
+public class SmaliFileManifest {
+
+    private static class Entry {
+
+        private final long size;
+        private final long lastModified;
+        private final String className;
+
+        private Entry(long size, long lastModified, String className) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.className = className;
+        }
+
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(SmaliFileManifest.class.getSimpleName());
+
+    private static final int VERSION = 1;
+
+    private final File manifestFile;
+    private final Map<String, Entry> pathToEntry;
+
+    public SmaliFileManifest(File manifestFile) {
+        this.manifestFile = manifestFile;
+        pathToEntry = new HashMap<String, Entry>();
+    }
+
+    /**
+     *
+     * @param path
+     * @param size
+     * @param lastModified
+     * @return cached class name, or null if the path is unknown or has changed
+     */
+    public String getClassName(String path, long size, long lastModified) {
+        Entry entry = pathToEntry.get(path);
+        if ((null == entry) || (entry.size != size) || (entry.lastModified != lastModified)) {
+            return null;
+        }
+
+        return entry.className;
+    }
+
+    public File getManifestFile() {
+        return manifestFile;
+    }
+
+    public void put(String path, long size, long lastModified, String className) {
+        pathToEntry.put(path, new Entry(size, lastModified, className));
+    }
+
+    public int size() {
+        return pathToEntry.size();
+    }
+
+    /**
+     * Read entries from the manifest file. A missing or unreadable manifest leaves this manifest empty.
+     */
+    public void load() {
+        pathToEntry.clear();
+        if (!manifestFile.exists()) {
+            return;
+        }
+
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(manifestFile)));
+            if (dis.readInt() != VERSION) {
+                return;
+            }
+
+            int count = dis.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = dis.readUTF();
+                long size = dis.readLong();
+                long lastModified = dis.readLong();
+                String className = dis.readUTF();
+                put(path, size, lastModified, className);
+            }
+        } catch (IOException e) {
+            if (log.isWarnEnabled()) {
+                log.warn("Unable to read manifest " + manifestFile + ", ignoring it.", e);
+            }
+            pathToEntry.clear();
+        } finally {
+            IOUtils.closeQuietly(dis);
+        }
+    }
+
+    /**
+     * Write entries to a temporary file and move it over the manifest file, so concurrent runs never read a partly
+     * written manifest.
+     *
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        File parent = manifestFile.getAbsoluteFile().getParentFile();
+        if (!parent.exists()) {
+            parent.mkdirs();
+        }
+
+        File tempFile = File.createTempFile(manifestFile.getName(), ".tmp", parent);
+        try {
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                dos.writeInt(VERSION);
+                dos.writeInt(pathToEntry.size());
+                for (Map.Entry<String, Entry> mapEntry : pathToEntry.entrySet()) {
+                    Entry entry = mapEntry.getValue();
+                    dos.writeUTF(mapEntry.getKey());
+                    dos.writeLong(entry.size);
+                    dos.writeLong(entry.lastModified);
+                    dos.writeUTF(entry.className);
+                }
+            } finally {
+                dos.close();
+            }
+
+            try {
+                Files.move(tempFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                                StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+}
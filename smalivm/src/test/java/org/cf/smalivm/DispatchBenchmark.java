@@ -0,0 +1,133 @@
+package org.cf.smalivm;
+
+import gnu.trove.map.TIntObjectMap;
+
+import org.cf.smalivm.context.ExecutionGraph;
+import org.cf.smalivm.context.HeapItem;
+import org.cf.smalivm.context.MethodState;
+import org.cf.smalivm.opcode.MethodStateOp;
+import org.cf.smalivm.opcode.Op;
+import org.junit.BeforeClass;
+import org.perfidix.annotation.BeforeBenchClass;
+import org.perfidix.annotation.Bench;
+import org.perfidix.annotation.BenchClass;
+
+@BenchClass(runs = 100)
+public class DispatchBenchmark {
+
+    /**
+     * The first op of a test method, built by the VM's op factory, and the state it executes in.
+     */
+    private static class OpExecution {
+
+        private final MethodStateOp op;
+        private final MethodState mState;
+        private final TIntObjectMap<HeapItem> initial;
+
+        private OpExecution(VirtualMachine vm, String methodDescriptor, TIntObjectMap<HeapItem> initial) {
+            op = (MethodStateOp) vm.getInstructionGraphClone(methodDescriptor).getTemplateNode(0).getOp();
+            mState = vm.getRootExecutionContext(methodDescriptor).getMethodState();
+            this.initial = initial;
+        }
+
+        private void execute() {
+            // Some ops overwrite their inputs, so every execution starts from the same registers
+            for (int register : initial.keys()) {
+                mState.pokeRegister(register, initial.get(register));
+            }
+            op.execute(mState);
+        }
+
+    }
+
+    private static final int LOOKUPS = 1000 * 1000;
+    private static final int EXECUTIONS = 100 * 1000;
+    private static final String METHOD_DESCRIPTOR = "Lswitch_test;->PackedSwitch()V";
+
+    private static int[] addresses;
+    // Template nodes are looked up in a dense array
+    private static ExecutionGraph clone;
+    // Template nodes are looked up in the node piles, as before templates had a dense array
+    private static ExecutionGraph wrapper;
+    private static OpExecution[] aPutExecutions;
+    private static OpExecution[] cmpExecutions;
+    private static OpExecution[] unaryMathExecutions;
+
+    @BeforeBenchClass
+    @BeforeClass
+    public static void beforeClass() {
+        VirtualMachine vm = VMTester.getTestVM();
+        clone = vm.getInstructionGraphClone(METHOD_DESCRIPTOR);
+        wrapper = new ExecutionGraph(vm.getInstructionGraphClone(METHOD_DESCRIPTOR), true);
+        addresses = clone.getAddresses();
+
+        aPutExecutions = new OpExecution[] {
+                        new OpExecution(vm, "Laput_test;->put()V", VMTester.buildRegisterState(0, new int[1], "[I", 1,
+                                        0, "I", 2, 4, "I")),
+                        new OpExecution(vm, "Laput_test;->putWide()V", VMTester.buildRegisterState(0, new long[1],
+                                        "[J", 1, 0, "I", 2, 4L, "J")),
+                        new OpExecution(vm, "Laput_test;->putBoolean()V", VMTester.buildRegisterState(0,
+                                        new boolean[1], "[Z", 1, 0, "I", 2, 0x1, "Z")),
+                        new OpExecution(vm, "Laput_test;->putByte()V", VMTester.buildRegisterState(0, new byte[1],
+                                        "[B", 1, 0, "I", 2, (byte) 0xf, "B")),
+                        new OpExecution(vm, "Laput_test;->putChar()V", VMTester.buildRegisterState(0, new char[1],
+                                        "[C", 1, 0, "I", 2, (int) '$', "I")),
+                        new OpExecution(vm, "Laput_test;->putShort()V", VMTester.buildRegisterState(0, new short[1],
+                                        "[S", 1, 0, "I", 2, (short) 0x42, "S")), };
+        cmpExecutions = new OpExecution[] {
+                        new OpExecution(vm, "Lcmp_test;->CmplFloat()V", VMTester.buildRegisterState(0, 0.5F, "F", 1,
+                                        20.5F, "F")),
+                        new OpExecution(vm, "Lcmp_test;->CmpgDouble()V", VMTester.buildRegisterState(0, 0.5D, "D", 2,
+                                        20.5D, "D")),
+                        new OpExecution(vm, "Lcmp_test;->CmpLong()V", VMTester.buildRegisterState(0, 0x10L, "J", 2,
+                                        0x100000L, "J")), };
+        unaryMathExecutions = new OpExecution[] {
+                        new OpExecution(vm, "Lunary_math_test;->NegInt()V", VMTester.buildRegisterState(0, 0x42, "I")),
+                        new OpExecution(vm, "Lunary_math_test;->IntToChar()V", VMTester.buildRegisterState(0, 0x62,
+                                        "I")),
+                        new OpExecution(vm, "Lunary_math_test;->DoubleToLong()V", VMTester.buildRegisterState(0,
+                                        210D, "D")), };
+    }
+
+    private static void execute(OpExecution[] executions) {
+        for (int i = 0; i < EXECUTIONS; i++) {
+            executions[i % executions.length].execute();
+        }
+    }
+
+    @Bench
+    public void timeTemplateLookupDenseArray() {
+        Op op = null;
+        for (int i = 0; i < LOOKUPS; i++) {
+            op = clone.getTemplateNode(addresses[i % addresses.length]).getOp();
+        }
+
+        op.toString();
+    }
+
+    @Bench
+    public void timeTemplateLookupNodePile() {
+        Op op = null;
+        for (int i = 0; i < LOOKUPS; i++) {
+            op = wrapper.getTemplateNode(addresses[i % addresses.length]).getOp();
+        }
+
+        op.toString();
+    }
+
+    @Bench
+    public void timeExecuteAPutOps() {
+        execute(aPutExecutions);
+    }
+
+    @Bench
+    public void timeExecuteCmpOps() {
+        execute(cmpExecutions);
+    }
+
+    @Bench
+    public void timeExecuteUnaryMathOps() {
+        execute(unaryMathExecutions);
+    }
+
+}
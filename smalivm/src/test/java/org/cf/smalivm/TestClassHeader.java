@@ -0,0 +1,57 @@
+package org.cf.smalivm;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+
+import org.apache.commons.io.FileUtils;
+import org.cf.smalivm.ClassHeader.MethodHeader;
+import org.cf.util.Dexifier;
+import org.jf.dexlib2.writer.builder.BuilderClassDef;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.junit.Test;
+
+public class TestClassHeader {
+
+    private static final String TEST_DIRECTORY = "resources/test";
+
+    @Test
+    public void testSmaliHeaderMatchesDexifiedClass() throws Exception {
+        Collection<File> smaliFiles = FileUtils.listFiles(new File(TEST_DIRECTORY), new String[] { "smali" }, true);
+        DexBuilder dexBuilder = DexBuilder.makeDexBuilder();
+        for (File smaliFile : smaliFiles) {
+            BuilderClassDef classDef = Dexifier.dexifySmaliFile(smaliFile, dexBuilder);
+            ClassHeader expected = ClassHeader.fromClassDef(classDef);
+            ClassHeader header = readHeader(smaliFile);
+
+            assertEquals(expected.getClassName(), header.getClassName());
+            assertEquals(expected.getAccessFlags(), header.getAccessFlags());
+            assertEquals(expected.getSuperclass(), header.getSuperclass());
+            assertEquals(expected.getInterfaces(), header.getInterfaces());
+            assertEquals(new HashSet<String>(expected.getFieldNameAndTypes()), new HashSet<String>(header
+                            .getFieldNameAndTypes()));
+            assertEquals(expected.getMethodDescriptors(), header.getMethodDescriptors());
+            for (String methodDescriptor : expected.getMethodDescriptors()) {
+                MethodHeader expectedMethod = expected.getMethod(methodDescriptor);
+                MethodHeader method = header.getMethod(methodDescriptor);
+                assertEquals(methodDescriptor, expectedMethod.getAccessFlags(), method.getAccessFlags());
+                assertEquals(methodDescriptor, expectedMethod.hasImplementation(), method.hasImplementation());
+                assertEquals(methodDescriptor, expectedMethod.getParameterTypes(), method.getParameterTypes());
+            }
+        }
+    }
+
+    private static ClassHeader readHeader(File smaliFile) throws IOException {
+        FileInputStream is = new FileInputStream(smaliFile);
+        try {
+            return ClassHeader.fromSmali(is);
+        } finally {
+            is.close();
+        }
+    }
+
+}
@@ -0,0 +1,183 @@
+package org.cf.smalivm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.Method;
+
+import org.cf.smalivm.context.ExecutionContext;
+import org.cf.smalivm.context.ExecutionGraph;
+import org.cf.smalivm.context.HeapItem;
+import org.cf.smalivm.context.MethodState;
+import org.junit.Test;
+
+public class TestMethodCompiler {
+
+    private static final String CLASS_NAME = "Lcompile_test;";
+    private static final int MAX_ADDRESS_VISITS = 500;
+    private static final int MAX_METHOD_VISITS = MAX_ADDRESS_VISITS * 500;
+
+    private static VirtualMachine getVM(int compileThreshold) {
+        return getVM(MAX_METHOD_VISITS, compileThreshold);
+    }
+
+    private static VirtualMachine getVM(int maxMethodVisits, int compileThreshold) {
+        return new VirtualMachine(VMTester.getTestVM().getClassManager(), new VirtualMachine.Options()
+                        .setMaxAddressVisits(MAX_ADDRESS_VISITS).setMaxMethodVisits(maxMethodVisits)
+                        .setCompileThreshold(compileThreshold));
+    }
+
+    private static ExecutionContext buildInvokedContext(VirtualMachine vm, String methodDescriptor,
+                    Object... arguments) {
+        ExecutionContext ectx = vm.getRootExecutionContext(methodDescriptor);
+        // As if invoked by another method
+        ectx.setCallDepth(1);
+        MethodState mState = ectx.getMethodState();
+        for (int i = 0; i < arguments.length; i++) {
+            mState.assignParameter(mState.getParameterStart() + i, new HeapItem(arguments[i], "I"));
+        }
+
+        return ectx;
+    }
+
+    private static void executeCompiled(String methodName) throws Exception {
+        Method method = TestMethodCompiler.class.getMethod(methodName, int.class, int[].class);
+        MethodCompiler.CompiledMethod compiledMethod = new MethodCompiler.CompiledMethod(method, "I", 0);
+        ExecutionContext ectx = buildInvokedContext(getVM(0), CLASS_NAME + "->Divide(I)I", 1);
+        compiledMethod.execute(ectx.getMethodState(), new int[] { MAX_METHOD_VISITS });
+    }
+
+    public static int throwException(int value, int[] fuel) {
+        throw new ArithmeticException();
+    }
+
+    public static int throwError(int value, int[] fuel) {
+        throw new StackOverflowError();
+    }
+
+    private static Object executeInvoked(VirtualMachine vm, String methodName, Object... arguments) {
+        String methodDescriptor = CLASS_NAME + "->" + methodName;
+        ExecutionGraph graph = vm.execute(methodDescriptor, buildInvokedContext(vm, methodDescriptor, arguments));
+
+        return graph.getTerminatingRegisterConsensus(MethodState.ReturnRegister).getValue();
+    }
+
+    @Test
+    public void testHotMethodIsCompiled() {
+        VirtualMachine vm = getVM(2);
+        String methodDescriptor = CLASS_NAME + "->SumTo(I)I";
+
+        assertEquals(45, executeInvoked(vm, "SumTo(I)I", 10));
+        assertEquals(45, executeInvoked(vm, "SumTo(I)I", 10));
+        assertNotNull(vm.getMethodCompiler().getCompiledMethod(methodDescriptor));
+    }
+
+    @Test
+    public void testCompiledMethodGivesSameResultAsOps() {
+        VirtualMachine interpreter = getVM(0);
+        VirtualMachine compiler = getVM(1);
+        for (int value : new int[] { -70000, -1, 0, 1, 16, 12345 }) {
+            Object expected = executeInvoked(interpreter, "Mix(I)I", value);
+
+            assertEquals("Mix(" + value + ")", expected, executeInvoked(compiler, "Mix(I)I", value));
+        }
+        assertNotNull(compiler.getMethodCompiler().getCompiledMethod(CLASS_NAME + "->Mix(I)I"));
+    }
+
+    @Test
+    public void testCompiledLoopIsNotLimitedByAddressVisits() {
+        VirtualMachine vm = getVM(1);
+        int count = MAX_ADDRESS_VISITS * 2;
+
+        assertEquals(count * (count - 1) / 2, executeInvoked(vm, "SumTo(I)I", count));
+    }
+
+    @Test
+    public void testCompiledMethodFillsAndReturnsArray() {
+        VirtualMachine vm = getVM(1);
+
+        assertArrayEquals(new char[] { 'a', 'b', 'c' }, (char[]) executeInvoked(vm, "Chars()[C"));
+        assertNotNull(vm.getMethodCompiler().getCompiledMethod(CLASS_NAME + "->Chars()[C"));
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void testCompiledMethodThrowsInsteadOfReturning() throws Exception {
+        VirtualMachine vm = getVM(1);
+        String methodDescriptor = CLASS_NAME + "->Divide(I)I";
+        MethodCompiler.CompiledMethod compiledMethod = vm.getMethodCompiler().getCompiledMethod(methodDescriptor);
+        assertEquals(20, compiledMethod.execute(buildInvokedContext(vm, methodDescriptor, 5).getMethodState(),
+                        new int[] { 3 }));
+
+        compiledMethod.execute(buildInvokedContext(vm, methodDescriptor, 0).getMethodState(), new int[] { 3 });
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testCompiledLoopStopsWhenFuelRunsOut() throws Exception {
+        VirtualMachine vm = getVM(1);
+        String methodDescriptor = CLASS_NAME + "->LoopUnlessZero(I)I";
+        MethodCompiler.CompiledMethod compiledMethod = vm.getMethodCompiler().getCompiledMethod(methodDescriptor);
+        assertEquals(0, compiledMethod.execute(buildInvokedContext(vm, methodDescriptor, 0).getMethodState(),
+                        new int[] { 2 }));
+
+        compiledMethod.execute(buildInvokedContext(vm, methodDescriptor, 1).getMethodState(), new int[] { 100 });
+    }
+
+    @Test
+    public void testCompiledMethodUsesFuelForEachInstructionExecuted() throws Exception {
+        VirtualMachine vm = getVM(1);
+        String methodDescriptor = CLASS_NAME + "->SumTo(I)I";
+        MethodCompiler.CompiledMethod compiledMethod = vm.getMethodCompiler().getCompiledMethod(methodDescriptor);
+        int[] fuel = new int[] { 100 };
+
+        assertEquals(45, compiledMethod.execute(buildInvokedContext(vm, methodDescriptor, 10).getMethodState(), fuel));
+        // Two constants, 11 loop checks, 10 loop bodies of three instructions, and the return
+        assertEquals(100 - 44, fuel[0]);
+    }
+
+    @Test
+    public void testCompiledMethodIsLimitedByMethodVisits() {
+        int maxMethodVisits = 100;
+        VirtualMachine interpreter = getVM(maxMethodVisits, 0);
+        VirtualMachine compiler = getVM(maxMethodVisits, 1);
+
+        assertEquals(45, executeInvoked(compiler, "SumTo(I)I", 10));
+        String methodDescriptor = CLASS_NAME + "->SumTo(I)I";
+        assertNull(interpreter.execute(methodDescriptor, buildInvokedContext(interpreter, methodDescriptor, 40)));
+        assertNull(compiler.execute(methodDescriptor, buildInvokedContext(compiler, methodDescriptor, 40)));
+    }
+
+    @Test
+    public void testMethodWithUnsupportedInstructionIsNotCompiled() {
+        VirtualMachine vm = getVM(1);
+
+        assertNull(vm.getMethodCompiler().getCompiledMethod(CLASS_NAME + "->Invoke()I"));
+    }
+
+    @Test
+    public void testInvalidatedMethodIsRecompiled() {
+        VirtualMachine vm = getVM(1);
+        String methodDescriptor = CLASS_NAME + "->SumTo(I)I";
+        MethodCompiler.CompiledMethod compiledMethod = vm.getMethodCompiler().getCompiledMethod(methodDescriptor);
+        assertNotNull(compiledMethod);
+
+        vm.removeInstructionGraph(methodDescriptor);
+
+        MethodCompiler.CompiledMethod recompiledMethod = vm.getMethodCompiler().getCompiledMethod(methodDescriptor);
+        assertNotNull(recompiledMethod);
+        assertNotSame(compiledMethod, recompiledMethod);
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void testExceptionFromCompiledMethodIsRethrown() throws Exception {
+        executeCompiled("throwException");
+    }
+
+    @Test(expected = StackOverflowError.class)
+    public void testErrorFromCompiledMethodIsRethrown() throws Exception {
+        executeCompiled("throwError");
+    }
+
+}
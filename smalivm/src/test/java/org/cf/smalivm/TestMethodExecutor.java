@@ -0,0 +1,292 @@
+package org.cf.smalivm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import gnu.trove.map.TIntObjectMap;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cf.smalivm.context.ClassState;
+import org.cf.smalivm.context.ExecutionContext;
+import org.cf.smalivm.context.ExecutionGraph;
+import org.cf.smalivm.context.ExecutionNode;
+import org.cf.smalivm.context.HeapItem;
+import org.cf.smalivm.context.MethodState;
+import org.cf.smalivm.type.UnknownValue;
+import org.junit.Test;
+
+public class TestMethodExecutor {
+
+    private static final String CLASS_NAME = "Lswitch_test;";
+    private static final String METHOD_NAME = "PackedSwitch()V";
+
+    private static final String MERGE_CLASS_NAME = "Lmerge_test;";
+    private static final String LOOP_WIDENING_CLASS_NAME = "Lloop_widening_test;";
+    private static final String DEEP_RECURSION_CLASS_NAME = "Ldeep_recursion_test;";
+    private static final String CONCRETE_CLASS_NAME = "Lconcrete_execution_test;";
+    private static final String STATIC_FIELD_CLASS_NAME = "Lstatic_field_test;";
+
+    private static ExecutionGraph executeInvoked(String methodDescriptor, int parameterRegister, Object value) {
+        VirtualMachine vm = new VirtualMachine(VMTester.getTestVM().getClassManager(), 500, 20, 500 * 500);
+        ExecutionContext ectx = vm.getRootExecutionContext(methodDescriptor);
+        // As if invoked by another method
+        ectx.setCallDepth(1);
+        ectx.getMethodState().assignParameter(parameterRegister, new HeapItem(value, "I"));
+
+        return vm.execute(methodDescriptor, ectx);
+    }
+
+    private static ExecutionGraph execute(int executorThreads) {
+        return execute(CLASS_NAME, METHOD_NAME, executorThreads);
+    }
+
+    private static ExecutionGraph execute(String className, String methodName, int executorThreads) {
+        return execute(className, methodName, executorThreads, 0);
+    }
+
+    private static VirtualMachine getBudgetedVM(SmaliClassManager classManager, ExecutionBudget budget) {
+        return new VirtualMachine(classManager, new VirtualMachine.Options().setMaxAddressVisits(Integer.MAX_VALUE)
+                        .setMaxMethodVisits(Integer.MAX_VALUE).setExecutionBudget(budget));
+    }
+
+    private static ExecutionGraph execute(String className, String methodName, int executorThreads,
+                    int loopWideningThreshold) {
+        SmaliClassManager classManager = VMTester.getTestVM().getClassManager();
+        VirtualMachine vm = new VirtualMachine(classManager, new VirtualMachine.Options().setMaxAddressVisits(500)
+                        .setMaxCallDepth(20).setMaxMethodVisits(500 * 500).setExecutorThreads(executorThreads)
+                        .setLoopWideningThreshold(loopWideningThreshold));
+        TIntObjectMap<HeapItem> initial = VMTester.buildRegisterState(0, new UnknownValue(), "I");
+        Map<String, Map<String, HeapItem>> classNameToFieldValue = new HashMap<String, Map<String, HeapItem>>();
+
+        return VMTester.execute(vm, className, methodName, initial, classNameToFieldValue);
+    }
+
+    @Test
+    public void testParallelExplorationVisitsEveryBranch() {
+        ExecutionGraph graph = execute(4);
+
+        int[] expected = new int[] { 0, 1, 4, 5, 6, 7 };
+        for (int address : expected) {
+            assertEquals("@" + address, 1, graph.getNodePile(address).size());
+        }
+    }
+
+    @Test
+    public void testParallelExplorationMatchesSequentialExploration() {
+        ExecutionGraph sequential = execute(1);
+        ExecutionGraph parallel = execute(4);
+
+        for (int address : sequential.getAddresses()) {
+            assertEquals("@" + address, sequential.getNodePile(address).size(), parallel.getNodePile(address).size());
+        }
+        assertArrayEquals(sequential.getConnectedTerminatingAddresses().toArray(), parallel
+                        .getConnectedTerminatingAddresses().toArray());
+    }
+
+    @Test
+    public void testParallelExplorationWithStaticFieldsMatchesSequentialExploration() {
+        String methodName = "UnknownIfsWithStaticFields()V";
+        ExecutionGraph sequential = execute(STATIC_FIELD_CLASS_NAME, methodName, 1);
+        ExecutionGraph parallel = execute(STATIC_FIELD_CLASS_NAME, methodName, 4);
+
+        int returnAddress = sequential.getConnectedTerminatingAddresses().get(0);
+        assertEquals(sequential.getNodePile(returnAddress).size(), parallel.getNodePile(returnAddress).size());
+        for (int i = 1; i <= 8; i++) {
+            String fieldDescriptor = STATIC_FIELD_CLASS_NAME + "->f" + i + ":I";
+            assertEquals(fieldDescriptor, sequential.getTerminatingFieldConsensus(fieldDescriptor).toString(),
+                            parallel.getTerminatingFieldConsensus(fieldDescriptor).toString());
+            for (ExecutionNode node : parallel.getNodePile(returnAddress)) {
+                ClassState cState = node.getContext().peekClassState(STATIC_FIELD_CLASS_NAME);
+                assertNotNull(fieldDescriptor, cState.peekField("f" + i + ":I"));
+            }
+        }
+    }
+
+    @Test
+    public void testPathsWithEqualStatesAreMergedAtJoinPoints() {
+        for (int executorThreads : new int[] { 1, 4 }) {
+            ExecutionGraph graph = execute(MERGE_CLASS_NAME, "SequentialUnknownIfsWithEqualStates()V", executorThreads);
+
+            // Without merging, each of the 12 unknown branches would double the paths. The return is the last join
+            // point and only has the surviving node and one merged node.
+            int returnAddress = graph.getConnectedTerminatingAddresses().get(0);
+            assertEquals(2, graph.getNodePile(returnAddress).size());
+            assertEquals(1, graph.getTerminatingRegisterConsensus(1).getValue());
+        }
+    }
+
+    @Test
+    public void testMergedNodeStaysInNodePile() {
+        ExecutionGraph graph = execute(MERGE_CLASS_NAME, "SequentialUnknownIfsWithEqualStates()V", 1);
+
+        // First join point is after const/4 and if-eqz and the const/4 in the branch
+        List<ExecutionNode> pile = graph.getNodePile(4);
+        assertEquals(2, pile.size());
+        assertTrue(pile.get(0).isMerged() != pile.get(1).isMerged());
+        assertEquals(1, graph.getRegisterConsensusValue(4, 1));
+    }
+
+    @Test
+    public void testMergedNodeOnlySeesChildrenOfEquivalentNode() {
+        ExecutionGraph graph = execute(MERGE_CLASS_NAME, "SequentialUnknownIfsWithEqualStates()V", 1);
+        List<ExecutionNode> pile = graph.getNodePile(4);
+        ExecutionNode merged = pile.get(0).isMerged() ? pile.get(0) : pile.get(1);
+        ExecutionNode equivalent = pile.get(0).isMerged() ? pile.get(1) : pile.get(0);
+        int childCount = equivalent.getChildren().size();
+        ExecutionNode child = equivalent.getChildren().get(0);
+
+        // Editing the merged node must not edit the equivalent node
+        merged.removeChild(child);
+        assertEquals(childCount, equivalent.getChildren().size());
+        assertEquals(equivalent.getChildren(), merged.getChildren());
+
+        equivalent.removeChild(child);
+        assertEquals(childCount - 1, merged.getChildren().size());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testMergedNodeChildrenAreReadOnly() {
+        ExecutionGraph graph = execute(MERGE_CLASS_NAME, "SequentialUnknownIfsWithEqualStates()V", 1);
+        List<ExecutionNode> pile = graph.getNodePile(4);
+        ExecutionNode merged = pile.get(0).isMerged() ? pile.get(0) : pile.get(1);
+
+        merged.getChildren().clear();
+    }
+
+    @Test
+    public void testPathsWithDifferentStatesAreNotMerged() {
+        ExecutionGraph graph = execute(MERGE_CLASS_NAME, "UnknownIfWithDifferentStates()V", 1);
+
+        int returnAddress = graph.getConnectedTerminatingAddresses().get(0);
+        assertEquals(2, graph.getNodePile(returnAddress).size());
+        assertTrue(graph.getTerminatingRegisterConsensus(1).isUnknown());
+    }
+
+    @Test
+    public void testLoopWithUnknownBoundExceedsMaxAddressVisitsWithoutWidening() {
+        ExecutionGraph graph = execute(LOOP_WIDENING_CLASS_NAME, "UnknownBoundLoop()V", 1);
+
+        assertNull(graph);
+    }
+
+    @Test
+    public void testLoopWithUnknownBoundIsWidened() {
+        for (int executorThreads : new int[] { 1, 4 }) {
+            ExecutionGraph graph = execute(LOOP_WIDENING_CLASS_NAME, "UnknownBoundLoop()V", executorThreads, 3);
+
+            assertNotNull(graph);
+            assertTrue(graph.getTerminatingRegisterConsensus(1).isUnknown());
+        }
+    }
+
+    @Test
+    public void testLoopWithKnownBoundIsNotWidened() {
+        ExecutionGraph graph = execute(LOOP_WIDENING_CLASS_NAME, "KnownBoundLoop()V", 1, 3);
+
+        assertEquals(5, graph.getTerminatingRegisterConsensus(1).getValue());
+    }
+
+    @Test
+    public void testDeepRecursionDoesNotOverflowStack() throws InterruptedException {
+        SmaliClassManager classManager = VMTester.getTestVM().getClassManager();
+        final int depth = 2000;
+        final VirtualMachine vm = new VirtualMachine(classManager, 500, depth + 1, Integer.MAX_VALUE);
+        final TIntObjectMap<HeapItem> initial = VMTester.buildRegisterState(1, depth, "I");
+        final Map<String, Map<String, HeapItem>> classNameToFieldValue = new HashMap<String, Map<String, HeapItem>>();
+        final ExecutionGraph[] graph = new ExecutionGraph[1];
+
+        // Invoked methods are executed on a frame stack, so a small thread stack is enough for any call depth
+        Thread thread = new Thread(null, new Runnable() {
+            @Override
+            public void run() {
+                graph[0] = VMTester.execute(vm, DEEP_RECURSION_CLASS_NAME, "CountDown(I)I", initial,
+                                classNameToFieldValue);
+            }
+        }, "small-stack", 256 * 1024);
+        thread.start();
+        thread.join();
+
+        assertNotNull(graph[0]);
+        assertEquals(depth, graph[0].getTerminatingRegisterConsensus(0).getValue());
+    }
+
+    @Test
+    public void testInvokedMethodWithKnownArgumentsIsExecutedConcretely() {
+        ExecutionGraph graph = executeInvoked(CONCRETE_CLASS_NAME + "->SumTo(I)I", 2, 10);
+
+        assertEquals(45, graph.getTerminatingRegisterConsensus(MethodState.ReturnRegister).getValue());
+        // Only the root and the return have nodes
+        assertEquals(1, graph.getNodePile(0).size());
+        assertEquals(1, graph.getNodePile(8).size());
+        for (int address : new int[] { 1, 2, 4, 5, 7 }) {
+            assertTrue("@" + address, graph.getNodePile(address).isEmpty());
+        }
+    }
+
+    @Test
+    public void testConcretelyExecutedMethodKeepsSideEffectsOfItsOps() {
+        ExecutionGraph graph = executeInvoked(CONCRETE_CLASS_NAME + "->InvokeUnknown(I)I", 1, 5);
+
+        assertEquals(5, graph.getTerminatingRegisterConsensus(MethodState.ReturnRegister).getValue());
+        assertEquals(SideEffect.Level.STRONG, graph.getHighestSideEffectLevel());
+        // Every node has a context, so the graph can be walked
+        assertEquals(1, graph.getRoot().getChildren().size());
+        assertNotNull(graph.toGraph());
+    }
+
+    @Test
+    public void testInvokedMethodWhichBranchesOnUnknownValueIsExplored() {
+        ExecutionGraph graph = executeInvoked(CONCRETE_CLASS_NAME + "->BranchOnUnknown(I)I", 1, 7);
+
+        assertTrue(graph.getTerminatingRegisterConsensus(MethodState.ReturnRegister).isUnknown());
+        assertEquals(2, graph.getConnectedTerminatingAddresses().size());
+        assertEquals(1, graph.getNodePile(3).size());
+    }
+
+    @Test
+    public void testMethodIsAbandonedWhenTimeBudgetIsExceeded() {
+        SmaliClassManager classManager = VMTester.getTestVM().getClassManager();
+        ExecutionBudget budget = new ExecutionBudget(100, 0, 0, 0);
+        VirtualMachine vm = getBudgetedVM(classManager, budget);
+        TIntObjectMap<HeapItem> initial = VMTester.buildRegisterState(0, new UnknownValue(), "I");
+        Map<String, Map<String, HeapItem>> classNameToFieldValue = new HashMap<String, Map<String, HeapItem>>();
+
+        // Without a budget, this would run until the heap is exhausted
+        long startMillis = System.currentTimeMillis();
+        ExecutionGraph graph = VMTester.execute(vm, LOOP_WIDENING_CLASS_NAME, "UnknownBoundLoop()V", initial,
+                        classNameToFieldValue);
+
+        assertNull(graph);
+        assertTrue(System.currentTimeMillis() - startMillis < 10000);
+        assertFalse(budget.isRunExhausted());
+    }
+
+    @Test
+    public void testMethodIsAbandonedWhenHeapBudgetIsExceeded() {
+        SmaliClassManager classManager = VMTester.getTestVM().getClassManager();
+        ExecutionBudget budget = new ExecutionBudget(0, 10 * 1024 * 1024, 0, 0);
+        VirtualMachine vm = getBudgetedVM(classManager, budget);
+        TIntObjectMap<HeapItem> initial = VMTester.buildRegisterState(0, new UnknownValue(), "I");
+        Map<String, Map<String, HeapItem>> classNameToFieldValue = new HashMap<String, Map<String, HeapItem>>();
+
+        ExecutionGraph graph = VMTester.execute(vm, LOOP_WIDENING_CLASS_NAME, "UnknownBoundLoop()V", initial,
+                        classNameToFieldValue);
+
+        assertNull(graph);
+        assertFalse(budget.isRunExhausted());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testHeapBudgetIsRejectedWithSeveralExecutorThreads() {
+        ExecutionBudget budget = new ExecutionBudget(0, 0, 0, 10 * 1024 * 1024);
+        new VirtualMachine(VMTester.getTestVM().getClassManager(), new VirtualMachine.Options().setExecutorThreads(2)
+                        .setExecutionBudget(budget));
+    }
+
+}
@@ -1,5 +1,8 @@
 package org.cf.smalivm;
 
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import gnu.trove.map.TIntObjectMap;
 
 import org.cf.smalivm.context.HeapItem;
@@ -16,6 +19,20 @@ public class TestMethodReflector {
 
     private static final String CLASS_NAME = "Lmethod_reflector_test;";
 
+    @Test
+    public void testMethodHandleIsCached() {
+        String methodDescriptor = "Ljava/lang/String;->indexOf(Ljava/lang/String;I)I";
+
+        assertTrue(MethodReflector.methodExists(methodDescriptor));
+        assertSame(MethodReflector.getMethodHandle(methodDescriptor), MethodReflector.getMethodHandle(methodDescriptor));
+    }
+
+    @Test
+    public void testMissingMethodDoesNotExist() {
+        assertFalse(MethodReflector.methodExists("Ljava/lang/String;->doesNotExist()V"));
+        assertFalse(MethodReflector.methodExists("Lthis_certainly_wont_exist;->someMethod()V"));
+    }
+
     @Test
     public void testInitCharacterWithChar() {
         char value = 'a';
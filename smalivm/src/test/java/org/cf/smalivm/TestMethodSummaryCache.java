@@ -0,0 +1,86 @@
+package org.cf.smalivm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+import java.util.Map;
+
+import org.cf.smalivm.context.ExecutionGraph;
+import org.cf.smalivm.context.HeapItem;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestMethodSummaryCache {
+
+    private static final String CLASS_NAME = "Lmethod_summary_test;";
+
+    private VirtualMachine vm;
+
+    @Before
+    public void setUp() {
+        vm = VMTester.getTestVM();
+    }
+
+    private ExecutionGraph execute(String methodSignature) {
+        TIntObjectMap<HeapItem> initial = new TIntObjectHashMap<HeapItem>();
+        Map<String, Map<String, HeapItem>> classNameToFieldValue = VMTester.buildClassNameToFieldItem(CLASS_NAME,
+                        "key:Ljava/lang/String;", "key");
+
+        return VMTester.execute(vm, CLASS_NAME, methodSignature, initial, classNameToFieldValue);
+    }
+
+    @Test
+    public void testRepeatedCallUsesSummary() {
+        ExecutionGraph graph = execute("InvokeDecryptTwice()V");
+
+        assertEquals("secretkey", graph.getTerminatingRegisterConsensus(1).getValue());
+        assertEquals("secretkey", graph.getTerminatingRegisterConsensus(2).getValue());
+        assertEquals(1, vm.getMethodSummaryCache().size());
+    }
+
+    @Test
+    public void testSummaryIsNotUsedAfterReadFieldChanges() {
+        ExecutionGraph graph = execute("InvokeDecryptBeforeAndAfterChangingKey()V");
+
+        assertEquals("secretkey", graph.getTerminatingRegisterConsensus(1).getValue());
+        assertEquals("secretnew key", graph.getTerminatingRegisterConsensus(2).getValue());
+        assertEquals(2, vm.getMethodSummaryCache().size());
+    }
+
+    @Test
+    public void testCallAssigningFieldIsNotSummarized() {
+        ExecutionGraph graph = execute("InvokeChangeKeyTwice()V");
+
+        assertEquals("new key", graph.getTerminatingFieldConsensus(CLASS_NAME + "->key:Ljava/lang/String;")
+                        .getValue());
+        assertEquals(0, vm.getMethodSummaryCache().size());
+    }
+
+    @Test
+    public void testUsingSummaryCostsVisitsOfExecution() {
+        // Each loop takes 64 visits, so the second must be charged to go over
+        vm = new VirtualMachine(vm.getClassManager(), 500, 20, 100);
+        assertNull(execute("InvokeLoopTwice()V"));
+
+        vm = new VirtualMachine(vm.getClassManager(), 500, 20, 200);
+        ExecutionGraph graph = execute("InvokeLoopTwice()V");
+        assertNotNull(graph);
+        assertEquals(20, graph.getTerminatingRegisterConsensus(1).getValue());
+        assertEquals(1, vm.getMethodSummaryCache().size());
+    }
+
+    @Test
+    public void testSummaryIsNotUsedIfItsInvocationsWouldGoPastCallDepthLimit() {
+        vm = new VirtualMachine(vm.getClassManager(), 500, 2, 500 * 500);
+        ExecutionGraph graph = execute("InvokeOuterThenNestedOuter()V");
+
+        assertEquals(20, graph.getTerminatingRegisterConsensus(0).getValue());
+        // Executing the nested outer method invokes the loop past the limit
+        assertTrue(graph.getTerminatingRegisterConsensus(1).isUnknown());
+    }
+
+}
@@ -0,0 +1,134 @@
+package org.cf.smalivm;
+
+import static org.junit.Assert.assertEquals;
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cf.smalivm.context.ExecutionGraph;
+import org.cf.smalivm.context.HeapItem;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.builder.MutableMethodImplementation;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction22b;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestPureCallCache {
+
+    private static final String CLASS_NAME = "Lpure_call_test;";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static VirtualMachine getVM(SmaliClassManager classManager, PureCallCache pureCallCache) {
+        return new VirtualMachine(classManager, new VirtualMachine.Options().setPureCallCache(pureCallCache));
+    }
+
+    private static void putPureSummary(PureCallCache pureCallCache, String methodSignature) {
+        List<Object> key = Arrays.<Object> asList(CLASS_NAME + "->" + methodSignature, Arrays.asList("I", 42));
+        MethodSummaryCache.Summary summary = new MethodSummaryCache.Summary(new HashMap<String, SideEffect.Level>(),
+                        new HeapItem(85, "I"), new HeapItem[1], SideEffect.Level.NONE, 5, 0);
+        pureCallCache.putSummary(key, summary);
+    }
+
+    private static ExecutionGraph execute(VirtualMachine vm, String methodSignature) {
+        return VMTester.execute(vm, CLASS_NAME, methodSignature, new TIntObjectHashMap<HeapItem>(),
+                        new HashMap<String, Map<String, HeapItem>>());
+    }
+
+    @Test
+    public void testPureCallResultsAreReusedAfterLoading() throws IOException {
+        SmaliClassManager classManager = VMTester.getTestVM().getClassManager();
+        PureCallCache pureCallCache = new PureCallCache(classManager);
+        VirtualMachine vm = getVM(classManager, pureCallCache);
+        ExecutionGraph graph = execute(vm, "InvokeDecrypt()V");
+        assertEquals("85", graph.getTerminatingRegisterConsensus(1).getValue());
+        // Decrypt and the mask it invokes
+        assertEquals(2, pureCallCache.size());
+
+        File file = folder.newFile();
+        pureCallCache.save(file);
+        PureCallCache loadedCache = new PureCallCache(classManager);
+        loadedCache.load(file);
+        assertEquals(2, loadedCache.size());
+
+        VirtualMachine loadedVM = getVM(classManager, loadedCache);
+        graph = execute(loadedVM, "InvokeDecrypt()V");
+
+        assertEquals("85", graph.getTerminatingRegisterConsensus(1).getValue());
+        // Nothing was executed, so nothing was summarized
+        assertEquals(0, loadedVM.getMethodSummaryCache().size());
+    }
+
+    @Test
+    public void testResultIsNotReusedAfterInvokedMethodChanges() throws IOException {
+        SmaliClassManager classManager = new SmaliClassManager("resources/test/smalivm/pure_call_test.smali",
+                        VMTester.getDexBuilder());
+        PureCallCache pureCallCache = new PureCallCache(classManager);
+        VirtualMachine vm = getVM(classManager, pureCallCache);
+        assertEquals("85", execute(vm, "InvokeDecrypt()V").getTerminatingRegisterConsensus(1).getValue());
+
+        String maskDescriptor = CLASS_NAME + "->Mask(I)I";
+        MutableMethodImplementation implementation = new MutableMethodImplementation(classManager.getMethod(
+                        maskDescriptor).getImplementation());
+        implementation.replaceInstruction(0, new BuilderInstruction22b(Opcode.XOR_INT_LIT8, 0, 1, 0x3f));
+        classManager.setImplementation(maskDescriptor, implementation);
+        vm.removeInstructionGraph(maskDescriptor);
+
+        VirtualMachine changedVM = getVM(classManager, pureCallCache);
+        ExecutionGraph graph = execute(changedVM, "InvokeDecrypt()V");
+
+        assertEquals("21", graph.getTerminatingRegisterConsensus(1).getValue());
+        assertEquals(2, changedVM.getMethodSummaryCache().size());
+        assertEquals(4, pureCallCache.size());
+    }
+
+    @Test
+    public void testCallInvokingLocalVirtualMethodIsNotCached() {
+        SmaliClassManager classManager = VMTester.getTestVM().getClassManager();
+        PureCallCache pureCallCache = new PureCallCache(classManager);
+        VirtualMachine vm = getVM(classManager, pureCallCache);
+        ExecutionGraph graph = execute(vm, "InvokeVirtualDecrypt()V");
+
+        assertEquals(85, graph.getTerminatingRegisterConsensus(1).getValue());
+        assertEquals(0, pureCallCache.size());
+    }
+
+    @Test
+    public void testCallInvokingOverridableFrameworkVirtualMethodIsNotCached() {
+        PureCallCache pureCallCache = new PureCallCache(VMTester.getTestVM().getClassManager());
+        // Object.hashCode() may be overridden by a local class
+        putPureSummary(pureCallCache, "DecryptWithObject(I)I");
+
+        assertEquals(0, pureCallCache.size());
+    }
+
+    @Test
+    public void testCallInvokingFinalFrameworkVirtualMethodIsCached() {
+        PureCallCache pureCallCache = new PureCallCache(VMTester.getTestVM().getClassManager());
+        putPureSummary(pureCallCache, "DecryptWithLength(I)I");
+
+        assertEquals(1, pureCallCache.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void testLoadingOtherFileFails() throws IOException {
+        File file = folder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write("not a cache".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        new PureCallCache(VMTester.getTestVM().getClassManager()).load(file);
+    }
+
+}
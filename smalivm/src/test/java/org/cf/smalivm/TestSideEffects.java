@@ -87,6 +87,16 @@ public class TestSideEffects {
         assertEquals(SideEffect.Level.NONE, graph.getHighestSideEffectLevel());
     }
 
+    @Test
+    public void testSideEffectLevelOfInvokeIsKeptByNodeRatherThanOp() {
+        String methodName = "InvokeMethodWithNoSideEffects()V";
+        ExecutionGraph graph = vm.execute(CLASS_NAME + "->" + methodName);
+
+        // Ops are shared by every execution of the method, so they only know the worst case
+        assertEquals(SideEffect.Level.STRONG, graph.getOp(0).sideEffectLevel());
+        assertEquals(SideEffect.Level.NONE, graph.getHighestSideEffectLevel(0));
+    }
+
     @Test
     public void testModifyInstanceMemberHasStrongSideEffects() {
         String methodName = "ModifyInstanceMember()V";
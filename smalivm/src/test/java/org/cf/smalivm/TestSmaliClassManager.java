@@ -1,11 +1,20 @@
 package org.cf.smalivm;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Set;
 
 import org.cf.smalivm.exception.UnknownAncestors;
+import org.cf.util.Dexifier;
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.jf.dexlib2.writer.io.FileDataStore;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -27,6 +36,44 @@ public class TestSmaliClassManager {
         assertTrue(isInstance);
     }
 
+    @Test
+    public void testClassNamesIncludeFrameworkAndAreBuiltOnce() {
+        Set<String> classNames = manager.getClassNames();
+
+        assertTrue(classNames.contains("Lchild_class;"));
+        assertTrue(classNames.contains("Ljava/lang/Object;"));
+        assertSame(classNames, manager.getClassNames());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testClassNamesAreUnmodifiable() {
+        manager.getClassNames().add("Lnew_class;");
+    }
+
+    @Test
+    public void testVirtualMethodResolvesToInheritedImplementation() {
+        ClassHierarchy hierarchy = manager.getClassHierarchy();
+        String target = hierarchy.resolveVirtualMethod("Lchild_class;", "parentMethod()Ljava/lang/String;");
+
+        assertEquals("Lparent_class;->parentMethod()Ljava/lang/String;", target);
+        assertSame(target, hierarchy.resolveVirtualMethod("Lchild_class;", "parentMethod()Ljava/lang/String;"));
+    }
+
+    @Test
+    public void testVirtualMethodResolvesToOverridingImplementation() {
+        String target = manager.getClassHierarchy().resolveVirtualMethod("Lchild_class;",
+                        "abstractMethod()Ljava/lang/String;");
+
+        assertEquals("Lchild_class;->abstractMethod()Ljava/lang/String;", target);
+    }
+
+    @Test
+    public void testUnknownVirtualMethodResolvesToNull() {
+        String target = manager.getClassHierarchy().resolveVirtualMethod("Lchild_class;", "doesNotExist()V");
+
+        assertNull(target);
+    }
+
     @Test
     public void testCanUnderstandNativeMethods() throws UnknownAncestors {
         boolean isNative = manager.isNativeMethod("Lnative_method_class;->nativeMethod()V");
@@ -83,6 +130,42 @@ public class TestSmaliClassManager {
         assertFalse(isInstance);
     }
 
+    @Test
+    public void testLoadClassesWithThreadsLoadsAllClasses() throws IOException, InterruptedException {
+        SmaliClassManager threadedManager = new SmaliClassManager(TEST_DIRECTORY);
+        Set<String> classNames = threadedManager.getNonFrameworkClassNames();
+        threadedManager.loadClasses(classNames, 4);
+
+        assertTrue(threadedManager.getLoadedClassNames().containsAll(classNames));
+        for (String className : classNames) {
+            assertEquals(className, threadedManager.getClass(className).getType());
+        }
+    }
+
+    @Test
+    public void testClassesLoadedFromDexCanBeWritten() throws Exception {
+        DexBuilder smaliDexBuilder = DexBuilder.makeDexBuilder();
+        Dexifier.dexifySmaliFiles(TEST_DIRECTORY, smaliDexBuilder);
+        File dexFile = File.createTempFile("test", ".dex");
+        dexFile.deleteOnExit();
+        smaliDexBuilder.writeTo(new FileDataStore(dexFile));
+
+        DexBuilder dexBuilder = DexBuilder.makeDexBuilder();
+        SmaliClassManager dexManager = new SmaliClassManager(dexFile.getAbsolutePath(), dexBuilder);
+        Set<String> classNames = dexManager.getNonFrameworkClassNames();
+        assertEquals(manager.getNonFrameworkClassNames(), classNames);
+        for (String className : classNames) {
+            assertEquals(manager.getMethodDescriptors(className), dexManager.getMethodDescriptors(className));
+        }
+        dexManager.loadClasses(classNames, 1);
+
+        File outFile = File.createTempFile("test", ".dex");
+        outFile.deleteOnExit();
+        dexBuilder.writeTo(new FileDataStore(outFile));
+        assertEquals(classNames.size(), DexFileFactory.loadDexFile(outFile, Dexifier.DEFAULT_API_LEVEL).getClasses()
+                        .size());
+    }
+
     @Test(expected = UnknownAncestors.class)
     public void testUnknownChildThrowsUnknownAncestors() throws UnknownAncestors {
         manager.isInstance("Lthis_certainly_wont_exists;", "Lparent_class;");
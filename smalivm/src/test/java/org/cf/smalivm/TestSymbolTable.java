@@ -0,0 +1,68 @@
+package org.cf.smalivm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.cf.smalivm.SymbolTable.Symbol;
+import org.junit.Test;
+
+public class TestSymbolTable {
+
+    @Test
+    public void testClassDescriptorIsParsed() {
+        Symbol symbol = SymbolTable.getSymbol("Lsymbol_test;");
+
+        assertTrue(symbol.isClass());
+        assertEquals("Lsymbol_test;", symbol.getClassName());
+        assertEquals(symbol.getId(), symbol.getClassId());
+        assertNull(symbol.getMemberSignature());
+    }
+
+    @Test
+    public void testFieldDescriptorIsParsed() {
+        Symbol symbol = SymbolTable.getSymbol("Lsymbol_test;->someField:[I");
+
+        assertTrue(symbol.isField());
+        assertEquals("Lsymbol_test;", symbol.getClassName());
+        assertEquals(SymbolTable.getId("Lsymbol_test;"), symbol.getClassId());
+        assertEquals("someField:[I", symbol.getMemberSignature());
+        assertEquals("someField", symbol.getName());
+        assertEquals("[I", symbol.getType());
+    }
+
+    @Test
+    public void testMethodDescriptorIsParsed() {
+        Symbol symbol = SymbolTable.getSymbol("Lsymbol_test;->someMethod(IJLjava/lang/String;)V");
+
+        assertTrue(symbol.isMethod());
+        assertEquals("Lsymbol_test;", symbol.getClassName());
+        assertEquals("someMethod(IJLjava/lang/String;)V", symbol.getMemberSignature());
+        assertEquals("someMethod", symbol.getName());
+        assertEquals("V", symbol.getType());
+        assertEquals(Arrays.asList("I", "J", "Ljava/lang/String;"), symbol.getParameterTypes());
+        assertEquals(4, symbol.getParameterSize());
+    }
+
+    @Test
+    public void testMemberSignatureWithoutClassIsParsed() {
+        Symbol symbol = SymbolTable.getSymbol("someField:I");
+
+        assertTrue(symbol.isField());
+        assertNull(symbol.getClassName());
+        assertEquals(-1, symbol.getClassId());
+        assertEquals("I", symbol.getType());
+    }
+
+    @Test
+    public void testInterningReturnsSameSymbol() {
+        Symbol symbol = SymbolTable.getSymbol("Lsymbol_test;->otherMethod()V");
+
+        assertSame(symbol, SymbolTable.getSymbol("Lsymbol_test;->otherMethod()V"));
+        assertSame(symbol, SymbolTable.getSymbol(symbol.getId()));
+    }
+
+}
@@ -0,0 +1,33 @@
+package org.cf.smalivm.context;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.cf.smalivm.VMTester;
+import org.cf.smalivm.VirtualMachine;
+import org.junit.Test;
+
+public class TestClassState {
+
+    private static final String CLASS_NAME = "Lstatic_field_test;";
+    private static final String METHOD_DESCRIPTOR = CLASS_NAME + "->UnknownIfsWithStaticFields()V";
+
+    @Test
+    public void testChildDoesNotAddFieldsToParentOrSiblings() {
+        VirtualMachine vm = VMTester.getTestVM();
+        ExecutionContext parent = vm.getRootExecutionContext(METHOD_DESCRIPTOR);
+        parent.peekClassState(CLASS_NAME);
+        ExecutionContext child = parent.getChild();
+        ExecutionContext sibling = parent.getChild();
+
+        // Not declared by the class, e.g. a field of a parent class accessed through this class
+        child.peekClassState(CLASS_NAME).pokeField("undeclared:I", new HeapItem(1, "I"));
+
+        assertTrue(child.peekClassState(CLASS_NAME).toString().contains("undeclared:I"));
+        assertFalse(parent.peekClassState(CLASS_NAME).toString().contains("undeclared:I"));
+        assertFalse(sibling.peekClassState(CLASS_NAME).toString().contains("undeclared:I"));
+        assertEquals(new HeapItem(1, "I"), child.peekClassState(CLASS_NAME).peekField("undeclared:I"));
+    }
+
+}
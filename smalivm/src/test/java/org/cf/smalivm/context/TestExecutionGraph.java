@@ -0,0 +1,69 @@
+package org.cf.smalivm.context;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.cf.smalivm.VMTester;
+import org.cf.smalivm.VirtualMachine;
+import org.junit.Test;
+
+public class TestExecutionGraph {
+
+    private static final String CLASS_NAME = "Lgraph_compaction_test;";
+
+    private static Object peekValue(ExecutionGraph graph, int address, int register) {
+        return graph.getNodePile(address).get(0).getContext().getMethodState().peekRegister(register).getValue();
+    }
+
+    @Test
+    public void testCompactSharesUnchangedValuesWithParent() {
+        ExecutionGraph graph = VMTester.execute(CLASS_NAME, "ReadArrayTwice()V");
+        // Each array-length reads a private clone of the array
+        assertNotSame(peekValue(graph, 1, 0), peekValue(graph, 4, 0));
+
+        graph.compact();
+
+        assertSame(peekValue(graph, 1, 0), peekValue(graph, 3, 0));
+        assertSame(peekValue(graph, 1, 0), peekValue(graph, 4, 0));
+        assertArrayEquals(new int[2], (int[]) graph.getRegisterConsensusValue(4, 0));
+    }
+
+    @Test
+    public void testCompactKeepsChangedValues() {
+        ExecutionGraph graph = VMTester.execute(CLASS_NAME, "ChangeArray()V");
+
+        graph.compact();
+
+        assertNotSame(peekValue(graph, 1, 0), peekValue(graph, 4, 0));
+        assertArrayEquals(new int[2], (int[]) peekValue(graph, 1, 0));
+        assertArrayEquals(new int[] { 0, 1 }, (int[]) peekValue(graph, 4, 0));
+    }
+
+    @Test
+    public void testClonesShareTemplateNodesUntilVisited() {
+        VirtualMachine vm = VMTester.getTestVM();
+        String methodDescriptor = CLASS_NAME + "->ReadArrayTwice()V";
+        ExecutionGraph graph = vm.getInstructionGraphClone(methodDescriptor);
+        ExecutionGraph otherGraph = vm.getInstructionGraphClone(methodDescriptor);
+
+        int[] addresses = graph.getAddresses();
+        assertEquals(5, addresses.length);
+        for (int address : addresses) {
+            assertSame(graph.getTemplateNode(address), otherGraph.getTemplateNode(address));
+            assertEquals(0, graph.getNodePile(address).size());
+        }
+
+        ExecutionNode node = new ExecutionNode(graph.getTemplateNode(3));
+        graph.addNode(node);
+
+        assertTrue(graph.wasAddressReached(3));
+        assertSame(node, graph.getNodePile(3).get(0));
+        assertFalse(otherGraph.wasAddressReached(3));
+        assertEquals(0, otherGraph.getNodePile(3).size());
+    }
+
+}
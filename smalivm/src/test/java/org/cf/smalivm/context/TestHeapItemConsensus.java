@@ -0,0 +1,95 @@
+package org.cf.smalivm.context;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.cf.smalivm.ClassHierarchy;
+import org.cf.smalivm.VMTester;
+import org.junit.Test;
+
+public class TestHeapItemConsensus {
+
+    private static String getUnknownType(HeapItem... items) {
+        ClassHierarchy classHierarchy = VMTester.getTestVM().getClassManager().getClassHierarchy();
+        HeapItemConsensus consensus = new HeapItemConsensus(classHierarchy);
+        for (HeapItem item : items) {
+            consensus.add(item);
+        }
+        assertTrue(consensus.isUnknown());
+
+        return consensus.get().getType();
+    }
+
+    @Test
+    public void testEmptyConsensusIsNull() {
+        HeapItemConsensus consensus = new HeapItemConsensus();
+
+        assertNull(consensus.get());
+    }
+
+    @Test
+    public void testEqualItemsHaveConsensus() {
+        HeapItemConsensus consensus = new HeapItemConsensus();
+        consensus.add(new HeapItem(1, "I"));
+        consensus.add(new HeapItem(1, "I"));
+
+        assertFalse(consensus.isUnknown());
+        assertEquals(new HeapItem(1, "I"), consensus.get());
+    }
+
+    @Test
+    public void testDifferentItemsStayUnknown() {
+        HeapItemConsensus consensus = new HeapItemConsensus();
+        consensus.add(new HeapItem(1, "I"));
+        consensus.add(new HeapItem(2, "I"));
+        consensus.add(new HeapItem(1, "I"));
+
+        assertTrue(consensus.isUnknown());
+        assertTrue(consensus.get().isUnknown());
+        assertEquals("I", consensus.get().getType());
+    }
+
+    @Test
+    public void testUnknownTypeDoesNotDependOnOrder() {
+        HeapItemConsensus consensus = new HeapItemConsensus();
+        consensus.add(new HeapItem(1, "I"));
+        consensus.add(new HeapItem(true, "Z"));
+        HeapItemConsensus reversed = new HeapItemConsensus();
+        reversed.add(new HeapItem(true, "Z"));
+        reversed.add(new HeapItem(1, "I"));
+
+        assertEquals(consensus.get().getType(), reversed.get().getType());
+    }
+
+    @Test
+    public void testUnknownTypeIsClosestCommonSuperclass() {
+        assertEquals("Ljava/lang/Number;", getUnknownType(new HeapItem(1, "Ljava/lang/Integer;"), new HeapItem(2L,
+                        "Ljava/lang/Long;")));
+        assertEquals("Ljava/lang/Number;", getUnknownType(new HeapItem(2L, "Ljava/lang/Long;"), new HeapItem(1,
+                        "Ljava/lang/Integer;")));
+        assertEquals("Lparent_class;", getUnknownType(new HeapItem(new Object(), "Lchild_class;"), new HeapItem(
+                        new Object(), "Lparent_class;")));
+        assertEquals("Ljava/lang/Object;", getUnknownType(new HeapItem("a", "Ljava/lang/String;"), new HeapItem(1,
+                        "Ljava/lang/Integer;")));
+    }
+
+    @Test
+    public void testUnknownTypeOfArraysIsArrayOfCommonSuperclass() {
+        assertEquals("[Ljava/lang/Number;", getUnknownType(new HeapItem(new Integer[1], "[Ljava/lang/Integer;"),
+                        new HeapItem(new Long[1], "[Ljava/lang/Long;")));
+        assertEquals("Ljava/lang/Object;", getUnknownType(new HeapItem(new Integer[1], "[Ljava/lang/Integer;"),
+                        new HeapItem(new int[1], "[I")));
+    }
+
+    @Test
+    public void testUnknownTypeIgnoresPrimitivesIfAnyItemIsReference() {
+        // Null is the integer literal 0
+        assertEquals("Ljava/lang/String;", getUnknownType(new HeapItem(0, "I"), new HeapItem("a",
+                        "Ljava/lang/String;")));
+        assertEquals("Ljava/lang/String;", getUnknownType(new HeapItem("a", "Ljava/lang/String;"), new HeapItem(0,
+                        "I")));
+    }
+
+}
@@ -101,6 +101,15 @@ public class TestAPutOp {
         VMTester.testMethodState(CLASS_NAME, "putChar()V", initial, expected);
     }
 
+    @Test
+    public void testPutFloat() {
+        Float value = 1.5F;
+        TIntObjectMap<HeapItem> initial = VMTester.buildRegisterState(0, new float[1], "[F", 1, 0, "I", 2, value, "F");
+        TIntObjectMap<HeapItem> expected = VMTester.buildRegisterState(0, new float[] { value }, "[F");
+
+        VMTester.testMethodState(CLASS_NAME, "put()V", initial, expected);
+    }
+
     @Test
     public void testPutObject() {
         TIntObjectMap<HeapItem> initial = VMTester.buildRegisterState(0, new LocalInstance[1], "[" + CLASS_NAME, 1, 0,
@@ -0,0 +1,67 @@
+package org.cf.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestClassIndex {
+
+    private static ClassIndex classIndex;
+
+    @BeforeClass
+    public static void buildIndex() throws IOException {
+        List<String> framework = Arrays.asList("Landroid/Foo;:reflib/android/Foo.smali",
+                        "Landroid/Bar;:reflib/android/Bar.smali", "Landroid/\u00dcnicode;:reflib/android/\u00dcnicode.smali");
+        List<String> safeFramework = Arrays.asList("Landroid/Bar;");
+        List<String> safe = Arrays.asList("Ljava/lang/Integer;", "Landroid/Bar;");
+        List<String> immutable = Arrays.asList("Ljava/lang/Integer;", "I");
+        byte[] index = ClassIndexBuilder.build(framework, safeFramework, safe, immutable);
+        classIndex = new ClassIndex(ByteBuffer.wrap(index));
+    }
+
+    @Test
+    public void testFrameworkClassesHavePaths() {
+        assertTrue(classIndex.isFramework("Landroid/Foo;"));
+        assertEquals("reflib/android/Foo.smali", classIndex.getFrameworkPath("Landroid/Foo;"));
+        assertEquals("reflib/android/\u00dcnicode.smali", classIndex.getFrameworkPath("Landroid/\u00dcnicode;"));
+        assertNull(classIndex.getFrameworkPath("Ljava/lang/Integer;"));
+    }
+
+    @Test
+    public void testFlagsAreIndependent() {
+        assertTrue(classIndex.isSafeFramework("Landroid/Bar;"));
+        assertTrue(classIndex.isSafe("Landroid/Bar;"));
+        assertFalse(classIndex.isImmutable("Landroid/Bar;"));
+        assertFalse(classIndex.isSafeFramework("Landroid/Foo;"));
+        assertTrue(classIndex.isSafe("Ljava/lang/Integer;"));
+        assertTrue(classIndex.isImmutable("Ljava/lang/Integer;"));
+        assertFalse(classIndex.isFramework("Ljava/lang/Integer;"));
+        assertTrue(classIndex.isImmutable("I"));
+    }
+
+    @Test
+    public void testUnknownClassHasNoFlags() {
+        assertFalse(classIndex.isFramework("Lthis_certainly_wont_exist;"));
+        assertFalse(classIndex.isSafe("Landroid/Baz;"));
+        assertFalse(classIndex.isImmutable(""));
+    }
+
+    @Test
+    public void testGetClassNamesWithFlag() {
+        List<String> classNames = classIndex.getClassNames(ClassIndex.FRAMEWORK);
+        Collections.sort(classNames);
+
+        assertEquals(Arrays.asList("Landroid/Bar;", "Landroid/Foo;", "Landroid/\u00dcnicode;"), classNames);
+    }
+
+}
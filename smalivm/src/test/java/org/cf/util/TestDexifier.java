@@ -0,0 +1,87 @@
+package org.cf.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.util.ReferenceUtil;
+import org.jf.dexlib2.writer.builder.BuilderClassDef;
+import org.jf.dexlib2.writer.builder.BuilderMethod;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.jf.dexlib2.writer.io.FileDataStore;
+import org.junit.Test;
+
+public class TestDexifier {
+
+    private static final String TEST_DIRECTORY = "resources/test";
+
+    private static Map<String, BuilderMethod> getMethods(BuilderClassDef classDef) {
+        Map<String, BuilderMethod> methods = new HashMap<String, BuilderMethod>();
+        for (BuilderMethod method : classDef.getMethods()) {
+            methods.put(ReferenceUtil.getMethodDescriptor(method), method);
+        }
+
+        return methods;
+    }
+
+    @Test
+    public void testDexifiedClassDefsMatchDexifiedSmali() throws Exception {
+        DexBuilder dexBuilder = DexBuilder.makeDexBuilder();
+        List<BuilderClassDef> smaliClassDefs = Dexifier.dexifySmaliFiles(new File(TEST_DIRECTORY), dexBuilder);
+        File dexFile = File.createTempFile("dexifier", ".dex");
+        dexFile.deleteOnExit();
+        dexBuilder.writeTo(new FileDataStore(dexFile));
+
+        DexBackedDexFile dex = DexFileFactory.loadDexFile(dexFile, Dexifier.DEFAULT_API_LEVEL);
+        Map<String, DexBackedClassDef> typeToDexClassDef = new HashMap<String, DexBackedClassDef>();
+        for (DexBackedClassDef classDef : dex.getClasses()) {
+            typeToDexClassDef.put(classDef.getType(), classDef);
+        }
+
+        DexBuilder archiveDexBuilder = DexBuilder.makeDexBuilder();
+        for (BuilderClassDef smaliClassDef : smaliClassDefs) {
+            DexBackedClassDef dexClassDef = typeToDexClassDef.get(smaliClassDef.getType());
+            assertNotNull(dexClassDef);
+
+            BuilderClassDef classDef = Dexifier.dexifyClassDef(dexClassDef, archiveDexBuilder);
+            assertEquals(smaliClassDef.getSuperclass(), classDef.getSuperclass());
+            assertEquals(smaliClassDef.getInterfaces(), classDef.getInterfaces());
+            assertEquals(smaliClassDef.getFields().size(), classDef.getFields().size());
+
+            Map<String, BuilderMethod> expectedMethods = getMethods(smaliClassDef);
+            Map<String, BuilderMethod> methods = getMethods(classDef);
+            assertEquals(expectedMethods.keySet(), methods.keySet());
+            for (String methodDescriptor : methods.keySet()) {
+                BuilderMethod expected = expectedMethods.get(methodDescriptor);
+                BuilderMethod method = methods.get(methodDescriptor);
+                if (null == expected.getImplementation()) {
+                    continue;
+                }
+                assertEquals(expected.getImplementation().getRegisterCount(), method.getImplementation()
+                                .getRegisterCount());
+                assertEquals(count(expected.getImplementation().getInstructions()), count(method
+                                .getImplementation().getInstructions()));
+                assertEquals(expected.getImplementation().getTryBlocks().size(), method.getImplementation()
+                                .getTryBlocks().size());
+            }
+        }
+    }
+
+    private static int count(Iterable<?> items) {
+        int count = 0;
+        for (Iterator<?> it = items.iterator(); it.hasNext(); it.next()) {
+            count++;
+        }
+
+        return count;
+    }
+
+}
@@ -0,0 +1,59 @@
+package org.cf.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+public class TestSmaliFileFactory {
+
+    private static final int DEPTH = 25;
+    private static final String SHORT_NAME = "d";
+
+    private static String getLongName() {
+        char[] name = new char[200];
+        Arrays.fill(name, 'd');
+
+        return new String(name);
+    }
+
+    private static Path getPath(Path root, String outerName, String innerName, int depth) {
+        Path path = root;
+        for (int i = 0; i < depth; i++) {
+            path = path.resolve(i < depth - 1 ? outerName : innerName);
+        }
+
+        return path;
+    }
+
+    @Test(expected = IOException.class)
+    public void testFailureInNestedDirectoryIsThrownAsIOException() throws IOException {
+        Path root = Files.createTempDirectory("test");
+        File manifestDirectory = Files.createTempDirectory("test").toFile();
+        Files.createDirectories(getPath(root, SHORT_NAME, SHORT_NAME, DEPTH));
+        // Rename innermost first, so no path used for renaming is too long, but reading the innermost one fails
+        for (int depth = DEPTH; depth > 0; depth--) {
+            Path directory = getPath(root, SHORT_NAME, SHORT_NAME, depth);
+            Files.move(directory, directory.resolveSibling(getLongName()));
+        }
+
+        try {
+            SmaliFileFactory factory = new SmaliFileFactory();
+            factory.setManifestDirectory(manifestDirectory);
+            factory.getSmaliFiles(root.toFile());
+        } finally {
+            // Rename back outermost first, so the tree can be deleted
+            for (int depth = 1; depth <= DEPTH; depth++) {
+                Path directory = getPath(root, SHORT_NAME, getLongName(), depth);
+                Files.move(directory, directory.resolveSibling(SHORT_NAME));
+            }
+            FileUtils.deleteDirectory(root.toFile());
+            FileUtils.deleteDirectory(manifestDirectory);
+        }
+    }
+
+}
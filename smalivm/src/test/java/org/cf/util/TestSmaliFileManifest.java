@@ -0,0 +1,71 @@
+package org.cf.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+public class TestSmaliFileManifest {
+
+    @Test
+    public void testSavedManifestLoadsSameEntries() throws IOException {
+        File manifestFile = File.createTempFile("test", ".manifest");
+        manifestFile.deleteOnExit();
+        SmaliFileManifest manifest = new SmaliFileManifest(manifestFile);
+        manifest.put("/some/path/Foo.smali", 100, 1234L, "Lsome/path/Foo;");
+        manifest.put("/some/path/Bar.smali", 200, 5678L, "Lsome/path/Bar;");
+        manifest.save();
+
+        SmaliFileManifest loaded = new SmaliFileManifest(manifestFile);
+        loaded.load();
+
+        assertEquals(2, loaded.size());
+        assertEquals("Lsome/path/Foo;", loaded.getClassName("/some/path/Foo.smali", 100, 1234L));
+        assertEquals("Lsome/path/Bar;", loaded.getClassName("/some/path/Bar.smali", 200, 5678L));
+    }
+
+    @Test
+    public void testSavingReplacesManifestWithoutLeavingTemporaryFiles() throws IOException {
+        File directory = Files.createTempDirectory("test").toFile();
+        File manifestFile = new File(directory, "test.manifest");
+        SmaliFileManifest manifest = new SmaliFileManifest(manifestFile);
+        manifest.put("/some/path/Foo.smali", 100, 1234L, "Lsome/path/Foo;");
+        manifest.save();
+        manifest = new SmaliFileManifest(manifestFile);
+        manifest.put("/some/path/Bar.smali", 200, 5678L, "Lsome/path/Bar;");
+        manifest.save();
+
+        SmaliFileManifest loaded = new SmaliFileManifest(manifestFile);
+        loaded.load();
+
+        assertEquals(1, loaded.size());
+        assertEquals("Lsome/path/Bar;", loaded.getClassName("/some/path/Bar.smali", 200, 5678L));
+        assertArrayEquals(new String[] { manifestFile.getName() }, directory.list());
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void testChangedFileHasNoClassName() {
+        SmaliFileManifest manifest = new SmaliFileManifest(new File("unused"));
+        manifest.put("/some/path/Foo.smali", 100, 1234L, "Lsome/path/Foo;");
+
+        assertNull(manifest.getClassName("/some/path/Foo.smali", 101, 1234L));
+        assertNull(manifest.getClassName("/some/path/Foo.smali", 100, 1235L));
+        assertNull(manifest.getClassName("/some/path/Bar.smali", 100, 1234L));
+    }
+
+    @Test
+    public void testMissingManifestLoadsEmpty() {
+        SmaliFileManifest manifest = new SmaliFileManifest(new File("this_certainly_wont_exist.manifest"));
+        manifest.load();
+
+        assertEquals(0, manifest.size());
+    }
+
+}